@@ -0,0 +1,395 @@
+package com.krisjacyna.yasm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fires events asynchronously on {@link MachineInstance}s identified by a
+ * {@code long} ID.
+ * 
+ * Instances are sharded by ID across a fixed number of partitions. Each
+ * partition has a bounded queue, which any number of threads may publish
+ * to, and a single worker thread which owns the partition's instances and
+ * drains its queue in batches. Events for one instance are therefore applied
+ * in the order they were published without any locking of the instance,
+ * while different partitions run in parallel.
+ * 
+ * When a partition's queue is full the returned {@link CompletableFuture} is
+ * completed at once with a {@link RejectedExecutionException}, so producers
+ * can slow down or retry; {@link #isSaturated(long)} can be used to check
+ * before publishing. Futures are completed on the worker thread, so any
+ * dependent stages which are not async also run there and delay the
+ * partition.
+ * 
+ * @author Kris Jacyna
+ */
+public class AsyncMachineEngine implements AutoCloseable {
+    
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private final MachineEngine engine;
+    
+    private final Partition[] partitions;
+    
+    private volatile boolean closed;
+    
+    /**
+     * Creates and starts a new {@link AsyncMachineEngine} with one partition
+     * per available processor.
+     * 
+     * @param machine the Machine to execute
+     * @param queueCapacity the capacity of each partition's queue
+     */
+    public AsyncMachineEngine(final Machine machine, final int queueCapacity) {
+        this(new MachineEngine(machine), Runtime.getRuntime().availableProcessors(), queueCapacity, 256,
+                daemonThreads());
+    }
+    
+    /**
+     * Creates and starts a new {@link AsyncMachineEngine}.
+     * 
+     * @param engine the MachineEngine to fire with, which must not have a TimingWheel
+     * @param partitions the number of partitions and worker threads
+     * @param queueCapacity the capacity of each partition's queue
+     * @param batchSize the largest number of events drained at once
+     * @param threadFactory the factory for worker threads
+     * @throws IllegalArgumentException if the engine has a TimingWheel, which
+     *         is not thread-safe and expires timers outside the partitions
+     */
+    public AsyncMachineEngine(final MachineEngine engine, final int partitions, final int queueCapacity,
+            final int batchSize, final ThreadFactory threadFactory) {
+        if (partitions <= 0 || queueCapacity <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid partitions %d, queue capacity %d or batch size %d",
+                    partitions, queueCapacity, batchSize));
+        }
+        if (engine.getTimers() != null) {
+            throw new IllegalArgumentException("A MachineEngine with a TimingWheel cannot be shared between threads");
+        }
+        this.engine = engine;
+        this.partitions = new Partition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new Partition(queueCapacity, batchSize);
+        }
+        for (final Partition partition : this.partitions) {
+            final Thread worker = threadFactory.newThread(partition);
+            partition.worker = worker;
+            worker.start();
+        }
+    }
+    
+    /**
+     * Returns the {@link Machine} executed by this engine.
+     * 
+     * @return the Machine
+     */
+    public Machine getMachine() {
+        return this.engine.getMachine();
+    }
+    
+    /**
+     * Registers a new instance in the initial {@link State} and executes
+     * its entry {@link Action}s.
+     * 
+     * @param instanceId the ID of the instance
+     * @param context the Context of the instance, which may be {@code null}
+     * @return a future holding the initial State, completed exceptionally
+     *         with an IllegalArgumentException if the ID is already registered
+     */
+    public CompletableFuture<State> register(final long instanceId, final Context context) {
+        return submit(new Task(instanceId, Task.REGISTER, null, context));
+    }
+    
+    /**
+     * Removes a registered instance.
+     * 
+     * @param instanceId the ID of the instance
+     * @return a future holding the last State of the instance, or {@code null}
+     *         if it was not registered
+     */
+    public CompletableFuture<State> unregister(final long instanceId) {
+        return submit(new Task(instanceId, Task.UNREGISTER, null, null));
+    }
+    
+    /**
+     * Fires the specified event on a registered instance.
+     * 
+     * @param instanceId the ID of the instance
+     * @param event the event name
+     * @return a future holding the State of the instance after the event
+     */
+    public CompletableFuture<State> fireAsync(final long instanceId, final String event) {
+        // resolved by the worker, against the Machine current at the time
+        return submit(new Task(instanceId, Task.NAMED, event, null));
+    }
+    
+    /**
+     * Fires the event with the specified integer ID on a registered instance.
+     * 
+     * @param instanceId the ID of the instance
+     * @param eventId the integer ID of the event
+     * @return a future holding the State of the instance after the event
+     */
+    public CompletableFuture<State> fireAsync(final long instanceId, final int eventId) {
+        return submit(new Task(instanceId, eventId, null, null));
+    }
+    
+    /**
+     * Returns whether the queue of the partition owning the specified
+     * instance is full, in which case events for it would be rejected.
+     * 
+     * @param instanceId the ID of the instance
+     * @return {@code true} if the partition is full, {@code false} otherwise
+     */
+    public boolean isSaturated(final long instanceId) {
+        return partitionFor(instanceId).queue.remainingCapacity() == 0;
+    }
+    
+    /**
+     * Returns the number of events waiting in each partition's queue.
+     * 
+     * @return the queue sizes, indexed by partition
+     */
+    public int[] getQueueSizes() {
+        final int[] sizes = new int[this.partitions.length];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = this.partitions[i].queue.size();
+        }
+        return sizes;
+    }
+    
+    /**
+     * Stops accepting events, completes every event already queued and
+     * waits for the worker threads to finish. If interrupted while waiting
+     * it carries on waiting and restores the interrupt status on return.
+     */
+    @Override
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        boolean interrupted = false;
+        for (final Partition partition : this.partitions) {
+            while (true) {
+                try {
+                    partition.queue.put(Task.STOP);
+                    break;
+                }
+                catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (final Partition partition : this.partitions) {
+            while (partition.worker.isAlive()) {
+                try {
+                    partition.worker.join();
+                }
+                catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private CompletableFuture<State> submit(final Task task) {
+        if (this.closed) {
+            task.result.completeExceptionally(new RejectedExecutionException("Engine is closed"));
+            return task.result;
+        }
+        final BlockingQueue<Task> queue = partitionFor(task.instanceId).queue;
+        if (!queue.offer(task)) {
+            task.result.completeExceptionally(new RejectedExecutionException(
+                    "Queue is full for instance " + task.instanceId));
+        }
+        else if (this.closed && queue.remove(task)) {
+            // offered as the engine closed, possibly behind the STOP task, so never taken by the worker
+            task.result.completeExceptionally(new RejectedExecutionException("Engine is closed"));
+        }
+        return task.result;
+    }
+    
+    private Partition partitionFor(final long instanceId) {
+        long h = instanceId * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 32;
+        return this.partitions[(int) ((h & Long.MAX_VALUE) % this.partitions.length)];
+    }
+    
+    private static ThreadFactory daemonThreads() {
+        final int[] count = new int[1];
+        return r -> {
+            final Thread thread;
+            synchronized (count) {
+                thread = new Thread(r, "yasm-async-" + count[0]++);
+            }
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    /**
+     * An event, or other request, queued for a partition.
+     */
+    private static final class Task {
+        
+        static final int REGISTER = -1;
+        static final int UNREGISTER = -2;
+        static final int NAMED = -3;
+        static final Task STOP = new Task(0, -4, null, null);
+        
+        final long instanceId;
+        
+        // integer ID of the event, or one of the request codes
+        final int eventId;
+        
+        final String event;
+        
+        final Context context;
+        
+        final CompletableFuture<State> result = new CompletableFuture<>();
+        
+        Task(final long instanceId, final int eventId, final String event, final Context context) {
+            this.instanceId = instanceId;
+            this.eventId = eventId;
+            this.event = event;
+            this.context = context;
+        }
+    }
+    
+    /**
+     * A queue and the instances owned by its worker thread.
+     */
+    private final class Partition implements Runnable {
+        
+        final BlockingQueue<Task> queue;
+        
+        final int batchSize;
+        
+        // only accessed by the worker thread: the slot of each registered ID, and the IDs and instances by slot
+        final LongIndex slots = new LongIndex();
+        
+        long[] ids = new long[16];
+        
+        MachineInstance[] instances = new MachineInstance[16];
+        
+        int count;
+        
+        Thread worker;
+        
+        Partition(final int queueCapacity, final int batchSize) {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.batchSize = batchSize;
+        }
+        
+        @Override
+        public void run() {
+            final List<Task> batch = new ArrayList<>(this.batchSize);
+            try {
+                while (true) {
+                    batch.add(this.queue.take());
+                    this.queue.drainTo(batch, this.batchSize - 1);
+                    for (int i = 0; i < batch.size(); i++) {
+                        final Task task = batch.get(i);
+                        if (task == Task.STOP) {
+                            rejectRemaining(batch, i + 1);
+                            return;
+                        }
+                        process(task);
+                    }
+                    batch.clear();
+                }
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        private void rejectRemaining(final List<Task> batch, final int from) {
+            final List<Task> remaining = new ArrayList<>(batch.subList(from, batch.size()));
+            this.queue.drainTo(remaining);
+            remaining.forEach(t -> t.result.completeExceptionally(new RejectedExecutionException("Engine is closed")));
+        }
+        
+        private void process(final Task task) {
+            try {
+                final MachineEngine engine = AsyncMachineEngine.this.engine;
+                switch (task.eventId) {
+                case Task.REGISTER: {
+                    if (this.slots.get(task.instanceId) != LongIndex.MISSING) {
+                        throw new IllegalArgumentException("Duplicate instance " + task.instanceId);
+                    }
+                    final MachineInstance instance = engine.newInstance(task.instanceId, task.context);
+                    add(task.instanceId, instance);
+                    engine.start(instance);
+                    task.result.complete(engine.getState(instance));
+                    break;
+                }
+                case Task.UNREGISTER: {
+                    final MachineInstance instance = remove(task.instanceId);
+                    task.result.complete(instance != null ? engine.getState(instance) : null);
+                    break;
+                }
+                default: {
+                    final int slot = this.slots.get(task.instanceId);
+                    if (slot == LongIndex.MISSING) {
+                        throw new IllegalArgumentException("No instance " + task.instanceId);
+                    }
+                    final MachineInstance instance = this.instances[slot];
+                    if (task.eventId == Task.NAMED) {
+                        engine.fire(instance, task.event);
+                    }
+                    else {
+                        engine.fire(instance, task.eventId);
+                    }
+                    task.result.complete(engine.getState(instance));
+                    break;
+                }
+                }
+            }
+            catch (final RuntimeException e) {
+                AsyncMachineEngine.this.logger.debug("event failed for instance {}", task.instanceId, e);
+                task.result.completeExceptionally(e);
+            }
+        }
+        
+        private void add(final long instanceId, final MachineInstance instance) {
+            if (this.count == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.count << 1);
+                this.instances = Arrays.copyOf(this.instances, this.count << 1);
+            }
+            this.ids[this.count] = instanceId;
+            this.instances[this.count] = instance;
+            this.slots.put(instanceId, this.count++);
+        }
+        
+        // moves the last instance into the slot of the removed one
+        private MachineInstance remove(final long instanceId) {
+            final int slot = this.slots.remove(instanceId);
+            if (slot == LongIndex.MISSING) {
+                return null;
+            }
+            final MachineInstance instance = this.instances[slot];
+            final int last = --this.count;
+            if (slot != last) {
+                this.ids[slot] = this.ids[last];
+                this.instances[slot] = this.instances[last];
+                this.slots.put(this.ids[slot], slot);
+            }
+            this.instances[last] = null;
+            return instance;
+        }
+    }
+}
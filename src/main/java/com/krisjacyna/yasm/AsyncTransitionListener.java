@@ -0,0 +1,356 @@
+package com.krisjacyna.yasm;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link TransitionListener} which delivers transitions to other
+ * {@link TransitionListener}s asynchronously, so slow listeners do not add
+ * to the latency of firing events.
+ * 
+ * Transitions are published into a preallocated ring of slots, which are
+ * overwritten in place, so the firing thread only claims a slot and copies
+ * three references into it, without allocating or waking another thread.
+ * Each delegate listener has its own consumer thread, which follows the
+ * ring at its own pace and delivers every transition published since it
+ * last looked in one batch, recording its progress once per batch. A slot
+ * is reused once every consumer has passed it.
+ * 
+ * When a slow consumer has fallen a whole ring behind, the {@link Overflow}
+ * policy decides whether a new transition is dropped, and counted, or
+ * whether the firing thread waits for a slot. Each listener's lag is the
+ * number of transitions published which it has not yet been delivered.
+ * 
+ * Register it like any other listener, with
+ * {@link MachineEngine#addListener(TransitionListener)}. Transitions from
+ * all threads are delivered to each listener on its one thread, in the
+ * order their slots were claimed. A listener which throws, even an
+ * {@link Error}, is logged and keeps receiving transitions.
+ *
+ * @author Kris Jacyna
+ */
+public final class AsyncTransitionListener implements TransitionListener, AutoCloseable {
+    
+    /**
+     * What a firing thread does when the ring is full.
+     */
+    public enum Overflow {
+        
+        /** Drop the transition, counting it in {@link AsyncTransitionListener#getDropped()}. */
+        DROP,
+        
+        /** Wait until the slowest listener has taken a slot. */
+        BLOCK
+    }
+    
+    // the longest a firing thread waiting for a slot, or an idle consumer, parks at once
+    private static final long MAX_PARK_NANOS = 1_000_000;
+    
+    // set in the claimed sequence once closed, so no slot can be claimed after a consumer has seen the last one
+    private static final long CLOSED = Long.MIN_VALUE;
+    
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private final Overflow overflow;
+    
+    private final int mask;
+    
+    private final int batchSize;
+    
+    // the slots, one column per field
+    private final State[] froms;
+    
+    private final State[] tos;
+    
+    private final String[] events;
+    
+    // the sequence last published in each slot, set once the slot is filled
+    private final AtomicLongArray published;
+    
+    // the next sequence to claim, with CLOSED set once closed
+    private final AtomicLong claimed = new AtomicLong();
+    
+    // the lowest sequence any consumer has yet to deliver, as last seen by a firing thread
+    private volatile long gate;
+    
+    private final LongAdder dropped = new LongAdder();
+    
+    private final Consumer[] consumers;
+    
+    /**
+     * Creates and starts a new {@link AsyncTransitionListener} delivering to
+     * the specified listeners on daemon threads, with a ring of 65536 slots
+     * and batches of up to 256 transitions.
+     * 
+     * @param overflow what to do when the ring is full
+     * @param listeners the TransitionListeners to deliver to
+     */
+    public AsyncTransitionListener(final Overflow overflow, final TransitionListener... listeners) {
+        this(overflow, 1 << 16, 256, daemonThreads(), listeners);
+    }
+    
+    /**
+     * Creates and starts a new {@link AsyncTransitionListener}.
+     * 
+     * @param overflow what to do when the ring is full
+     * @param capacity the number of slots in the ring, a power of two
+     * @param batchSize the largest number of transitions delivered before a consumer records its progress
+     * @param threadFactory the factory for the consumer threads, one per listener
+     * @param listeners the TransitionListeners to deliver to
+     */
+    public AsyncTransitionListener(final Overflow overflow, final int capacity, final int batchSize,
+            final ThreadFactory threadFactory, final TransitionListener... listeners) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1 || batchSize <= 0 || listeners.length == 0) {
+            throw new IllegalArgumentException(String.format("Invalid capacity %d, batch size %d or %d listeners",
+                    capacity, batchSize, listeners.length));
+        }
+        this.overflow = overflow;
+        this.mask = capacity - 1;
+        this.batchSize = batchSize;
+        this.froms = new State[capacity];
+        this.tos = new State[capacity];
+        this.events = new String[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            this.published.set(i, -1);
+        }
+        this.consumers = new Consumer[listeners.length];
+        for (int i = 0; i < listeners.length; i++) {
+            this.consumers[i] = new Consumer(listeners[i]);
+        }
+        for (final Consumer consumer : this.consumers) {
+            consumer.thread = threadFactory.newThread(consumer);
+            consumer.thread.start();
+        }
+    }
+    
+    /**
+     * Publishes the transition into the next free slot of the ring.
+     * 
+     * @param from the origin State
+     * @param to the target State
+     * @param event the name of the event
+     */
+    @Override
+    public void onTransition(final State from, final State to, final String event) {
+        final int capacity = this.mask + 1;
+        long sequence;
+        int waits = 0;
+        while (true) {
+            sequence = this.claimed.get();
+            if ((sequence & CLOSED) != 0) {
+                this.dropped.increment();
+                return;
+            }
+            // the slot is free once every consumer has passed its last sequence
+            if (sequence - capacity >= this.gate && sequence - capacity >= (this.gate = gate())) {
+                if (this.overflow == Overflow.DROP) {
+                    this.dropped.increment();
+                    return;
+                }
+                backOff(waits++);
+            }
+            else if (this.claimed.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+        final int slot = (int) sequence & this.mask;
+        this.froms[slot] = from;
+        this.tos[slot] = to;
+        this.events[slot] = event;
+        this.published.lazySet(slot, sequence);
+    }
+    
+    /**
+     * Returns the number of listeners this delivers to.
+     * 
+     * @return the number of listeners
+     */
+    public int getListenerCount() {
+        return this.consumers.length;
+    }
+    
+    /**
+     * Returns the listener at the specified index.
+     * 
+     * @param listener the index of the listener, in the order they were given
+     * @return the TransitionListener
+     */
+    public TransitionListener getListener(final int listener) {
+        return this.consumers[listener].listener;
+    }
+    
+    /**
+     * Returns the number of transitions published to the ring.
+     * 
+     * @return the number of transitions published
+     */
+    public long getPublished() {
+        return this.claimed.get() & ~CLOSED;
+    }
+    
+    /**
+     * Returns the number of transitions dropped because the ring was full or
+     * this listener was closed.
+     * 
+     * @return the number of transitions dropped
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+    
+    /**
+     * Returns the number of transitions delivered to the specified
+     * listener.
+     * 
+     * @param listener the index of the listener, in the order they were given
+     * @return the number of transitions delivered
+     */
+    public long getDelivered(final int listener) {
+        return this.consumers[listener].sequence.get();
+    }
+    
+    /**
+     * Returns the number of transitions published which the specified
+     * listener has not yet been delivered.
+     * 
+     * @param listener the index of the listener, in the order they were given
+     * @return the lag of the listener
+     */
+    public long getLag(final int listener) {
+        return Math.max(0, getPublished() - this.consumers[listener].sequence.get());
+    }
+    
+    /**
+     * Stops accepting transitions, waits until every transition already
+     * published has been delivered and stops the consumer threads.
+     * Transitions published afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        long sequence;
+        do {
+            sequence = this.claimed.get();
+        }
+        while ((sequence & CLOSED) == 0 && !this.claimed.compareAndSet(sequence, sequence | CLOSED));
+        boolean interrupted = false;
+        for (final Consumer consumer : this.consumers) {
+            while (consumer.thread.isAlive()) {
+                try {
+                    consumer.thread.join();
+                }
+                catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder()
+                .append("AsyncTransitionListener[")
+                .append("published=").append(getPublished())
+                .append(", dropped=").append(getDropped());
+        for (int i = 0; i < this.consumers.length; i++) {
+            builder.append(", lag[").append(i).append("]=").append(getLag(i));
+        }
+        return builder.append("]").toString();
+    }
+    
+    // the lowest sequence any consumer has yet to deliver
+    private long gate() {
+        long gate = Long.MAX_VALUE;
+        for (final Consumer consumer : this.consumers) {
+            gate = Math.min(gate, consumer.sequence.get());
+        }
+        return gate;
+    }
+    
+    // spins, then yields, then parks for longer on each wait
+    private static void backOff(final int waits) {
+        if (waits < 64) {
+            return;
+        }
+        if (waits < 128) {
+            Thread.yield();
+            return;
+        }
+        LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(waits - 128, 10)));
+    }
+    
+    private static ThreadFactory daemonThreads() {
+        final int[] count = new int[1];
+        return r -> {
+            final Thread thread;
+            synchronized (count) {
+                thread = new Thread(r, "yasm-listener-" + count[0]++);
+            }
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    /**
+     * A listener and the sequence it has been delivered up to.
+     */
+    private final class Consumer implements Runnable {
+        
+        final TransitionListener listener;
+        
+        // the next sequence to deliver
+        final AtomicLong sequence = new AtomicLong();
+        
+        Thread thread;
+        
+        Consumer(final TransitionListener listener) {
+            this.listener = listener;
+        }
+        
+        @Override
+        public void run() {
+            final AsyncTransitionListener ring = AsyncTransitionListener.this;
+            final AtomicLongArray published = ring.published;
+            long next = 0;
+            int waits = 0;
+            while (true) {
+                // find the run of published slots, up to a batch
+                int available = 0;
+                while (available < ring.batchSize
+                        && published.get((int) (next + available) & ring.mask) == next + available) {
+                    available++;
+                }
+                if (available == 0) {
+                    // once closed, no more slots are claimed, but those claimed may still be filling
+                    if (ring.claimed.get() == (next | CLOSED)) {
+                        return;
+                    }
+                    backOff(waits++);
+                    continue;
+                }
+                waits = 0;
+                for (int i = 0; i < available; i++) {
+                    final int slot = (int) (next + i) & ring.mask;
+                    // any Throwable, as a consumer thread which died would hold back the gate forever
+                    try {
+                        this.listener.onTransition(ring.froms[slot], ring.tos[slot], ring.events[slot]);
+                    }
+                    catch (final Throwable e) {
+                        ring.logger.error("listener {} failed", this.listener, e);
+                    }
+                }
+                next += available;
+                this.sequence.lazySet(next);
+            }
+        }
+    }
+}
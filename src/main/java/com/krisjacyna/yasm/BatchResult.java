@@ -0,0 +1,80 @@
+package com.krisjacyna.yasm;
+
+/**
+ * The outcome of firing a batch of events through a {@link MachineEngine}.
+ * 
+ * A {@link BatchResult} is the only object a batch creates, so firing a
+ * batch costs one allocation however many events it holds.
+ *
+ * @author Kris Jacyna
+ */
+public final class BatchResult {
+    
+    /** The index returned when every event of a batch was handled. */
+    public static final int ALL_HANDLED = -1;
+    
+    State finalState;
+    
+    int processed;
+    
+    int transitions;
+    
+    int firstUnhandled = ALL_HANDLED;
+    
+    BatchResult() {
+    }
+    
+    /**
+     * Returns the {@link State} the instance was left in, in its first
+     * {@link Region}. For a batch over several instances this is the
+     * {@link State} of the instance of the last event.
+     * 
+     * @return the final State, or {@code null} if the batch was empty or queued
+     */
+    public State getFinalState() {
+        return this.finalState;
+    }
+    
+    /**
+     * Returns the number of events of the batch which were processed, not
+     * counting events raised by {@link Action}s.
+     * 
+     * @return the number of events processed
+     */
+    public int getProcessed() {
+        return this.processed;
+    }
+    
+    /**
+     * Returns the number of {@link Transition}s taken, including those taken
+     * for events raised by {@link Action}s while the batch was processed.
+     * 
+     * @return the number of Transitions taken
+     */
+    public int getTransitions() {
+        return this.transitions;
+    }
+    
+    /**
+     * Returns the index in the batch of the first event which no
+     * {@link Transition} handled and no {@link State} deferred, including
+     * events with a name no {@link Transition} uses.
+     * 
+     * @return the index of the first unhandled event, or {@link #ALL_HANDLED}
+     */
+    public int getFirstUnhandled() {
+        return this.firstUnhandled;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append("BatchResult[")
+                .append("finalState=").append(this.finalState != null ? this.finalState.getId() : "none")
+                .append(", processed=").append(this.processed)
+                .append(", transitions=").append(this.transitions)
+                .append(", firstUnhandled=").append(this.firstUnhandled)
+                .append("]")
+                .toString();
+    }
+}
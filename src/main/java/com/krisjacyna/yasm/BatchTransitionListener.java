@@ -0,0 +1,27 @@
+package com.krisjacyna.yasm;
+
+/**
+ * A {@link TransitionListener} which may be notified once per batch.
+ * 
+ * While a batch of events is fired on one instance with
+ * {@link MachineEngine#fireAll(MachineInstance, int[])} or its variants, a
+ * {@link BatchTransitionListener} is not notified of each transition but
+ * once, when the batch has run, with the {@link State}s the instance moved
+ * from and to. Outside a batch it is notified of each transition like any
+ * other {@link TransitionListener}.
+ *
+ * @author Kris Jacyna
+ */
+public interface BatchTransitionListener extends TransitionListener {
+    
+    /**
+     * Called when a batch of events which took at least one transition has
+     * been fired on an instance. With several {@link Region}s the
+     * {@link State}s are those of the first.
+     * 
+     * @param from the State the instance was in before the batch
+     * @param to the State the instance is in after the batch
+     * @param transitions the number of transitions taken
+     */
+    void onBatch(final State from, final State to, final int transitions);
+}
@@ -0,0 +1,811 @@
+package com.krisjacyna.yasm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the {@link State}s and {@link Context} variables of
+ * {@link MachineInstance}s in a memory-mapped, append-only checkpoint log.
+ * 
+ * Instances are registered with the store by a {@code long} ID. Each
+ * {@link #checkpoint()} appends a record for every registered instance which
+ * has taken a {@link Transition}, been started or reset, or been marked as
+ * changed since the last checkpoint, so checkpoints are incremental, then
+ * forces the log to disk. Removing an instance appends a tombstone. When the
+ * log has grown to several times the size of its live records it is
+ * compacted: the live records are written to a new file, which atomically
+ * replaces the log.
+ * 
+ * Opening an existing log maps it, indexes the latest record of every
+ * instance in one pass and restores only those, so millions of instances
+ * are recovered in a single read of the file. {@link State}s are recorded
+ * by ID along with a table of {@link State} names, so a log written before
+ * a {@link MachineEngine#reload(Machine) reload} is recovered onto the new
+ * {@link Machine}; an instance whose {@link State} has been removed is
+ * restored to the start {@link State} of its {@link Region}. A record which
+ * was torn by a crash is detected by its checksum, and the log is truncated
+ * to the last whole record.
+ * 
+ * {@link Context} variables are written as primitives and strings where
+ * possible and with Java serialization otherwise, so every value must be
+ * {@link Serializable}. Queued and deferred events and timers are not
+ * persisted. A store is not thread-safe: it must be used on the thread which
+ * fires the instances, or while none are being fired.
+ * 
+ * The log is mapped in fixed size segments, which no record may span.
+ *
+ * @author Kris Jacyna
+ */
+public final class CheckpointStore implements AutoCloseable {
+    
+    /** The default size of each mapped segment of the log. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    
+    private static final int MAGIC = 0x5953434b;
+    
+    private static final int VERSION = 1;
+    
+    private static final int HEADER_SIZE = 8;
+    
+    // int length, int checksum, byte type
+    private static final int RECORD_HEADER_SIZE = 9;
+    
+    // a length marking the rest of a segment as unused
+    private static final int PAD = -1;
+    
+    private static final byte STATES = 1;
+    
+    private static final byte INSTANCE = 2;
+    
+    private static final byte REMOVED = 3;
+    
+    // Context value tags
+    private static final byte NULL = 0;
+    
+    private static final byte BOOLEAN = 1;
+    
+    private static final byte INTEGER = 2;
+    
+    private static final byte LONG = 3;
+    
+    private static final byte DOUBLE = 4;
+    
+    private static final byte STRING = 5;
+    
+    private static final byte SERIALIZED = 6;
+    
+    // compact once the log is this many times the size of its live records
+    private static final int COMPACTION_RATIO = 4;
+    
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private final Path path;
+    
+    private final MachineEngine engine;
+    
+    private final LongFunction<Context> contexts;
+    
+    private final int segmentSize;
+    
+    private Log log;
+    
+    // the Machine of the last State table written, and its number in the log
+    private Machine tableMachine;
+    
+    private int table = -1;
+    
+    // registered instances, by slot
+    private final LongIndex slots = new LongIndex();
+    
+    private long[] ids = new long[64];
+    
+    private MachineInstance[] instances = new MachineInstance[64];
+    
+    // size of the latest record of each instance, or zero if none
+    private int[] recordSizes = new int[64];
+    
+    private int count;
+    
+    private long liveBytes;
+    
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+    
+    private final CRC32 crc = new CRC32();
+    
+    private CheckpointStore(final Path path, final MachineEngine engine, final LongFunction<Context> contexts,
+            final int segmentSize) {
+        this.path = path;
+        this.engine = engine;
+        this.contexts = contexts;
+        this.segmentSize = segmentSize;
+    }
+    
+    /**
+     * Opens the checkpoint log in the specified file, creating it if it does
+     * not exist, and restores every instance it holds as an instance of the
+     * specified {@link MachineEngine}.
+     * 
+     * @param path the file of the log
+     * @param engine the MachineEngine the instances belong to
+     * @param contexts creates the Context of an instance from its ID
+     * @return the CheckpointStore
+     * @throws UncheckedIOException if the file cannot be read or written
+     * @throws IllegalArgumentException if the file is not a checkpoint log
+     */
+    public static CheckpointStore open(final Path path, final MachineEngine engine,
+            final LongFunction<Context> contexts) {
+        return open(path, engine, contexts, DEFAULT_SEGMENT_SIZE);
+    }
+    
+    /**
+     * Opens the checkpoint log in the specified file with the specified
+     * segment size, which must be the size the log was created with.
+     * 
+     * @param path the file of the log
+     * @param engine the MachineEngine the instances belong to
+     * @param contexts creates the Context of an instance from its ID
+     * @param segmentSize the size of each mapped segment, which bounds the size of a record
+     * @return the CheckpointStore
+     * @throws UncheckedIOException if the file cannot be read or written
+     * @throws IllegalArgumentException if the file is not a checkpoint log
+     */
+    public static CheckpointStore open(final Path path, final MachineEngine engine,
+            final LongFunction<Context> contexts, final int segmentSize) {
+        if (segmentSize < 4096) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " is too small");
+        }
+        final CheckpointStore store = new CheckpointStore(path, engine, contexts, segmentSize);
+        try {
+            store.log = new Log(path, segmentSize);
+            store.recover();
+        }
+        catch (final IOException e) {
+            throw new UncheckedIOException("Failed to open checkpoint log " + path.toAbsolutePath(), e);
+        }
+        return store;
+    }
+    
+    /**
+     * Creates a new instance in the start {@link State} and registers it
+     * with the specified ID. It is written by the next checkpoint.
+     * 
+     * @param instanceId the ID of the instance
+     * @return the new MachineInstance
+     * @throws IllegalArgumentException if an instance with the ID is registered
+     */
+    public MachineInstance newInstance(final long instanceId) {
+        final MachineInstance instance = this.engine.newInstance(instanceId, this.contexts.apply(instanceId));
+        register(instanceId, instance);
+        return instance;
+    }
+    
+    /**
+     * Registers an instance of the engine with the specified ID. It is
+     * written by the next checkpoint.
+     * 
+     * @param instanceId the ID of the instance
+     * @param instance the MachineInstance
+     * @throws IllegalArgumentException if an instance with the ID is registered
+     */
+    public void register(final long instanceId, final MachineInstance instance) {
+        if (this.slots.get(instanceId) != LongIndex.MISSING) {
+            throw new IllegalArgumentException("Duplicate instance " + instanceId);
+        }
+        add(instanceId, instance, 0);
+        instance.changed = true;
+    }
+    
+    /**
+     * Returns the registered instance with the specified ID.
+     * 
+     * @param instanceId the ID of the instance
+     * @return the MachineInstance, or {@code null} if there is none
+     */
+    public MachineInstance getInstance(final long instanceId) {
+        final int slot = this.slots.get(instanceId);
+        return slot != LongIndex.MISSING ? this.instances[slot] : null;
+    }
+    
+    /**
+     * Returns the number of registered instances.
+     * 
+     * @return the number of instances
+     */
+    public int size() {
+        return this.count;
+    }
+    
+    /**
+     * Passes every registered instance and its ID to the specified consumer.
+     * 
+     * @param consumer the consumer of each instance and its ID
+     */
+    public void forEach(final ObjLongConsumer<MachineInstance> consumer) {
+        for (int i = 0; i < this.count; i++) {
+            consumer.accept(this.instances[i], this.ids[i]);
+        }
+    }
+    
+    /**
+     * Marks an instance as changed, so that the next checkpoint writes it.
+     * This is only needed when its {@link Context} is changed outside of an
+     * {@link Action}.
+     * 
+     * @param instanceId the ID of the instance
+     */
+    public void markChanged(final long instanceId) {
+        final MachineInstance instance = getInstance(instanceId);
+        if (instance != null) {
+            instance.changed = true;
+        }
+    }
+    
+    /**
+     * Unregisters an instance and appends a tombstone for it to the log,
+     * which is forced to disk by the next checkpoint.
+     * 
+     * @param instanceId the ID of the instance
+     * @return {@code true} if the instance was removed, {@code false} if it was not registered
+     */
+    public boolean remove(final long instanceId) {
+        final int slot = this.slots.remove(instanceId);
+        if (slot == LongIndex.MISSING) {
+            return false;
+        }
+        this.liveBytes -= this.recordSizes[slot];
+        final int last = --this.count;
+        if (slot != last) {
+            this.ids[slot] = this.ids[last];
+            this.instances[slot] = this.instances[last];
+            this.recordSizes[slot] = this.recordSizes[last];
+            this.slots.put(this.ids[slot], slot);
+        }
+        this.instances[last] = null;
+        final ByteBuffer body = body(Long.BYTES);
+        body.putLong(instanceId);
+        try {
+            append(this.log, REMOVED, body);
+        }
+        catch (final IOException e) {
+            throw new UncheckedIOException("Failed to write checkpoint log " + this.path.toAbsolutePath(), e);
+        }
+        return true;
+    }
+    
+    /**
+     * Appends a record for every registered instance which has changed since
+     * it was last written, forces the log to disk and compacts it if it has
+     * grown to several times the size of its live records.
+     * 
+     * @return the number of instances written
+     * @throws UncheckedIOException if the log cannot be written
+     */
+    public int checkpoint() {
+        int written = 0;
+        try {
+            final Machine machine = this.engine.getMachine();
+            for (int i = 0; i < this.count; i++) {
+                if (this.instances[i].changed) {
+                    write(this.log, machine, i);
+                    written++;
+                }
+            }
+            this.log.force();
+            if (this.log.position > this.segmentSize && this.log.position > COMPACTION_RATIO * this.liveBytes) {
+                compact();
+            }
+        }
+        catch (final IOException e) {
+            throw new UncheckedIOException("Failed to write checkpoint log " + this.path.toAbsolutePath(), e);
+        }
+        return written;
+    }
+    
+    /**
+     * Rewrites the log with one record for every registered instance, in its
+     * current {@link State}, and atomically replaces the old log with it.
+     * 
+     * @throws UncheckedIOException if the log cannot be written
+     */
+    public void compact() {
+        final Path compacted = this.path.resolveSibling(this.path.getFileName() + ".compact");
+        final long before = this.log.position;
+        final Machine tableMachine = this.tableMachine;
+        final int table = this.table;
+        final long liveBytes = this.liveBytes;
+        final int[] recordSizes = this.recordSizes.clone();
+        Log target = null;
+        boolean closed = false;
+        boolean moved = false;
+        try {
+            Files.deleteIfExists(compacted);
+            target = new Log(compacted, this.segmentSize);
+            target.init();
+            this.tableMachine = null;
+            this.table = -1;
+            this.liveBytes = 0;
+            final Machine machine = this.engine.getMachine();
+            for (int i = 0; i < this.count; i++) {
+                write(target, machine, i);
+            }
+            target.force();
+            target.close();
+            this.log.close();
+            closed = true;
+            Files.move(compacted, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+            this.log = new Log(this.path, this.segmentSize);
+            this.log.position = target.position;
+        }
+        catch (final IOException e) {
+            if (!moved) {
+                // carry on with the old log, writing again the instances written only to the discarded file
+                this.tableMachine = tableMachine;
+                this.table = table;
+                this.liveBytes = liveBytes;
+                this.recordSizes = recordSizes;
+                for (int i = 0; i < this.count; i++) {
+                    this.instances[i].changed = true;
+                }
+                try {
+                    if (target != null) {
+                        target.close();
+                    }
+                    Files.deleteIfExists(compacted);
+                }
+                catch (final IOException cleanup) {
+                    e.addSuppressed(cleanup);
+                }
+            }
+            if (closed) {
+                try {
+                    this.log = new Log(this.path, this.segmentSize);
+                    this.log.position = moved ? target.position : before;
+                }
+                catch (final IOException reopen) {
+                    e.addSuppressed(reopen);
+                }
+            }
+            throw new UncheckedIOException("Failed to compact checkpoint log " + this.path.toAbsolutePath(), e);
+        }
+        this.logger.info("compacted checkpoint log {} from {} to {} bytes", this.path, before, this.log.position);
+    }
+    
+    /**
+     * Returns the number of bytes in use in the log.
+     * 
+     * @return the size of the log
+     */
+    public long getLogSize() {
+        return this.log.position;
+    }
+    
+    /**
+     * Forces the log to disk and closes it, without writing a checkpoint.
+     */
+    @Override
+    public void close() {
+        try {
+            this.log.force();
+            this.log.close();
+        }
+        catch (final IOException e) {
+            throw new UncheckedIOException("Failed to close checkpoint log " + this.path.toAbsolutePath(), e);
+        }
+    }
+    
+    private void add(final long instanceId, final MachineInstance instance, final int recordSize) {
+        if (this.count == this.ids.length) {
+            this.ids = Arrays.copyOf(this.ids, this.count << 1);
+            this.instances = Arrays.copyOf(this.instances, this.count << 1);
+            this.recordSizes = Arrays.copyOf(this.recordSizes, this.count << 1);
+        }
+        this.ids[this.count] = instanceId;
+        this.instances[this.count] = instance;
+        this.recordSizes[this.count] = recordSize;
+        this.slots.put(instanceId, this.count);
+        this.count++;
+        this.liveBytes += recordSize;
+    }
+    
+    private void write(final Log target, final Machine machine, final int slot) throws IOException {
+        if (machine != this.tableMachine) {
+            writeStates(target, machine);
+        }
+        final MachineInstance instance = this.instances[slot];
+        final ByteBuffer body = body(Long.BYTES + (3 + machine.getRegionCount()) * Integer.BYTES);
+        body.putLong(this.ids[slot]);
+        body.putInt(this.table);
+        body.putInt(machine.getRegionCount());
+        for (int r = 0; r < machine.getRegionCount(); r++) {
+            final State state = this.engine.getState(instance, r);
+            // the engine may have been reloaded since the table was written
+            body.putInt(machine.getState(state.getIndex()) == state
+                    ? state.getIndex() : machine.getStateId(state.getId()));
+        }
+        final Context context = instance.getContext();
+        final Map<String, Object> variables = context != null ? context.getVariables() : null;
+        if (variables == null) {
+            this.scratch.putInt(-1);
+        }
+        else {
+            this.scratch.putInt(variables.size());
+            for (final Map.Entry<String, Object> variable : variables.entrySet()) {
+                putString(variable.getKey());
+                putValue(variable.getKey(), variable.getValue());
+            }
+        }
+        final int size = append(target, INSTANCE, this.scratch);
+        this.liveBytes += size - this.recordSizes[slot];
+        this.recordSizes[slot] = size;
+        instance.changed = false;
+    }
+    
+    private void writeStates(final Log target, final Machine machine) throws IOException {
+        this.table++;
+        final ByteBuffer body = body(2 * Integer.BYTES);
+        body.putInt(this.table);
+        body.putInt(machine.getStateCount());
+        for (int i = 0; i < machine.getStateCount(); i++) {
+            putString(machine.getState(i).getId());
+        }
+        append(target, STATES, this.scratch);
+        this.tableMachine = machine;
+    }
+    
+    // appends the flipped scratch buffer as a record, returning the size of the record
+    private int append(final Log target, final byte type, final ByteBuffer body) throws IOException {
+        body.flip();
+        final int length = body.remaining();
+        final int size = RECORD_HEADER_SIZE + length;
+        if (size > this.segmentSize - HEADER_SIZE) {
+            throw new IllegalArgumentException("Checkpoint record of " + size + " bytes is larger than a segment");
+        }
+        int offset = (int) (target.position % this.segmentSize);
+        if (offset + size > this.segmentSize) {
+            if (this.segmentSize - offset >= Integer.BYTES) {
+                target.segment(target.position).putInt(offset, PAD);
+            }
+            target.position += this.segmentSize - offset;
+            offset = 0;
+        }
+        final ByteBuffer segment = target.segment(target.position);
+        this.crc.reset();
+        this.crc.update(body.array(), 0, length);
+        segment.putInt(offset + Integer.BYTES, (int) this.crc.getValue());
+        segment.put(offset + 2 * Integer.BYTES, type);
+        final ByteBuffer slice = segment.duplicate();
+        slice.position(offset + RECORD_HEADER_SIZE);
+        slice.put(body.array(), 0, length);
+        // the length goes last, so a torn record is never read as whole
+        segment.putInt(offset, length);
+        target.position += size;
+        return size;
+    }
+    
+    // clears the scratch buffer, growing it to hold at least the specified number of bytes
+    private ByteBuffer body(final int bytes) {
+        this.scratch.clear();
+        ensure(bytes);
+        return this.scratch;
+    }
+    
+    private void ensure(final int bytes) {
+        if (this.scratch.remaining() < bytes) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(this.scratch.capacity() << 1,
+                    this.scratch.position() + bytes));
+            this.scratch.flip();
+            grown.put(this.scratch);
+            this.scratch = grown;
+        }
+    }
+    
+    private void putString(final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(Integer.BYTES + bytes.length);
+        this.scratch.putInt(bytes.length);
+        this.scratch.put(bytes);
+    }
+    
+    private void putValue(final String key, final Object value) throws IOException {
+        ensure(1 + Long.BYTES);
+        if (value == null) {
+            this.scratch.put(NULL);
+        }
+        else if (value instanceof Boolean) {
+            this.scratch.put(BOOLEAN).put((byte) ((Boolean) value ? 1 : 0));
+        }
+        else if (value instanceof Integer) {
+            this.scratch.put(INTEGER).putInt((Integer) value);
+        }
+        else if (value instanceof Long) {
+            this.scratch.put(LONG).putLong((Long) value);
+        }
+        else if (value instanceof Double) {
+            this.scratch.put(DOUBLE).putDouble((Double) value);
+        }
+        else if (value instanceof String) {
+            this.scratch.put(STRING);
+            putString((String) value);
+        }
+        else if (value instanceof Serializable) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(value);
+            }
+            ensure(1 + Integer.BYTES + bytes.size());
+            this.scratch.put(SERIALIZED).putInt(bytes.size()).put(bytes.toByteArray());
+        }
+        else {
+            throw new IllegalArgumentException("Context variable '" + key + "' of "
+                    + value.getClass().getName() + " is not serializable");
+        }
+    }
+    
+    private void recover() throws IOException {
+        final Log log = this.log;
+        if (log.size == 0) {
+            log.init();
+            return;
+        }
+        final ByteBuffer header = log.segment(0);
+        if (header.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a checkpoint log: " + this.path.toAbsolutePath());
+        }
+        if (header.getInt(Integer.BYTES) != VERSION) {
+            throw new IllegalArgumentException(String.format("Checkpoint log %s has version %d, expected %d",
+                    this.path.toAbsolutePath(), header.getInt(Integer.BYTES), VERSION));
+        }
+        
+        // index the latest record of every instance and read the State tables
+        final Machine machine = this.engine.getMachine();
+        final List<int[]> tables = new ArrayList<>();
+        final LongIndex latest = new LongIndex();
+        long[] positions = new long[64];
+        int[] sizes = new int[64];
+        int records = 0;
+        long position = HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= log.size) {
+            final int offset = (int) (position % this.segmentSize);
+            if (this.segmentSize - offset < RECORD_HEADER_SIZE) {
+                position += this.segmentSize - offset;
+                continue;
+            }
+            final ByteBuffer segment = log.segment(position);
+            final int length = segment.getInt(offset);
+            if (length == PAD) {
+                position += this.segmentSize - offset;
+                continue;
+            }
+            if (length <= 0 || offset + RECORD_HEADER_SIZE + length > this.segmentSize
+                    || !intact(segment, offset, length)) {
+                if (length != 0) {
+                    this.logger.warn("checkpoint log {} has a torn record at {}, truncating", this.path, position);
+                    truncate(segment, offset);
+                }
+                break;
+            }
+            final ByteBuffer body = body(segment, offset, length);
+            final byte type = segment.get(offset + 2 * Integer.BYTES);
+            if (type == STATES) {
+                tables.add(mapping(body, machine));
+            }
+            else if (type == INSTANCE) {
+                final long instanceId = body.getLong();
+                int slot = latest.get(instanceId);
+                if (slot == LongIndex.MISSING) {
+                    slot = records++;
+                    if (slot == positions.length) {
+                        positions = Arrays.copyOf(positions, slot << 1);
+                        sizes = Arrays.copyOf(sizes, slot << 1);
+                    }
+                    latest.put(instanceId, slot);
+                }
+                positions[slot] = position;
+                sizes[slot] = RECORD_HEADER_SIZE + length;
+            }
+            else if (type == REMOVED) {
+                final int slot = latest.remove(body.getLong());
+                if (slot != LongIndex.MISSING) {
+                    positions[slot] = -1;
+                }
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        log.position = position;
+        // tables are numbered in log order, and the next is written on the next checkpoint
+        this.table = tables.size() - 1;
+        
+        // restore only the latest record of each instance
+        for (int slot = 0; slot < records; slot++) {
+            if (positions[slot] >= 0) {
+                final ByteBuffer segment = log.segment(positions[slot]);
+                final int offset = (int) (positions[slot] % this.segmentSize);
+                restore(body(segment, offset, segment.getInt(offset)), machine, tables, sizes[slot]);
+            }
+        }
+        this.logger.info("recovered {} instances from checkpoint log {}", this.count, this.path);
+    }
+    
+    private boolean intact(final ByteBuffer segment, final int offset, final int length) {
+        this.crc.reset();
+        this.crc.update(body(segment, offset, length));
+        return (int) this.crc.getValue() == segment.getInt(offset + Integer.BYTES);
+    }
+    
+    private void truncate(final ByteBuffer segment, final int offset) {
+        for (int i = offset; i < this.segmentSize; i++) {
+            segment.put(i, (byte) 0);
+        }
+    }
+    
+    private static ByteBuffer body(final ByteBuffer segment, final int offset, final int length) {
+        final ByteBuffer body = segment.duplicate();
+        body.limit(offset + RECORD_HEADER_SIZE + length);
+        body.position(offset + RECORD_HEADER_SIZE);
+        return body.slice();
+    }
+    
+    // maps the State IDs of a table to those of the Machine, or UNDEFINED if removed
+    private int[] mapping(final ByteBuffer body, final Machine machine) {
+        body.getInt();
+        final int[] mapping = new int[body.getInt()];
+        final List<String> removed = new ArrayList<>();
+        for (int i = 0; i < mapping.length; i++) {
+            final String id = getString(body);
+            final State state = machine.getStates().get(id);
+            mapping[i] = state != null ? Machine.leafOf(state).getIndex() : Machine.UNDEFINED;
+            if (state == null) {
+                removed.add(id);
+            }
+        }
+        if (!removed.isEmpty()) {
+            this.logger.warn("states {} were removed, their instances will move to the start state of their region",
+                    removed);
+        }
+        return mapping;
+    }
+    
+    private void restore(final ByteBuffer body, final Machine machine, final List<int[]> tables,
+            final int recordSize) throws IOException {
+        final long instanceId = body.getLong();
+        final int[] mapping = tables.get(body.getInt());
+        final int regions = body.getInt();
+        if (regions != machine.getRegionCount()) {
+            throw new IllegalArgumentException("Instance " + instanceId + " has " + regions
+                    + " regions but the machine has " + machine.getRegionCount());
+        }
+        final Context context = this.contexts.apply(instanceId);
+        final MachineInstance instance = this.engine.newInstance(instanceId, context);
+        for (int r = 0; r < regions; r++) {
+            final int stateId = mapping[body.getInt()];
+            instance.setStateId(r, stateId != Machine.UNDEFINED && machine.getRegionOf(stateId) == r
+                    ? stateId : machine.getStartState(r).getIndex());
+        }
+        final int variables = body.getInt();
+        for (int i = 0; i < variables; i++) {
+            final String key = getString(body);
+            final Object value = getValue(body);
+            if (context != null) {
+                context.set(key, value);
+            }
+        }
+        add(instanceId, instance, recordSize);
+        instance.changed = false;
+    }
+    
+    private static String getString(final ByteBuffer body) {
+        final byte[] bytes = new byte[body.getInt()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static Object getValue(final ByteBuffer body) throws IOException {
+        final byte tag = body.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return body.get() != 0;
+            case INTEGER:
+                return body.getInt();
+            case LONG:
+                return body.getLong();
+            case DOUBLE:
+                return body.getDouble();
+            case STRING:
+                return getString(body);
+            case SERIALIZED:
+                final byte[] bytes = new byte[body.getInt()];
+                body.get(bytes);
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return in.readObject();
+                }
+                catch (final ClassNotFoundException e) {
+                    throw new IOException("Cannot restore context variable", e);
+                }
+            default:
+                throw new IOException("Unknown context value tag " + tag);
+        }
+    }
+    
+    /**
+     * An open log file, mapped one segment at a time as it is read or grows.
+     */
+    private static final class Log {
+        
+        private final FileChannel channel;
+        
+        private final int segmentSize;
+        
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+        
+        // the size of the file when it was opened
+        final long size;
+        
+        // where the next record is appended
+        long position;
+        
+        // the index of the first segment written since the last force
+        private int unforced;
+        
+        Log(final Path path, final int segmentSize) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.segmentSize = segmentSize;
+            this.size = this.channel.size();
+        }
+        
+        // writes the file header to an empty log
+        void init() throws IOException {
+            final ByteBuffer header = segment(0);
+            header.putInt(0, MAGIC);
+            header.putInt(Integer.BYTES, VERSION);
+            this.position = HEADER_SIZE;
+        }
+        
+        // the segment holding the specified position, mapping it and those before it if needed
+        MappedByteBuffer segment(final long position) throws IOException {
+            final int index = (int) (position / this.segmentSize);
+            while (this.segments.size() <= index) {
+                this.segments.add(this.channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long) this.segments.size() * this.segmentSize, this.segmentSize));
+            }
+            return this.segments.get(index);
+        }
+        
+        void force() {
+            for (int i = this.unforced; i < this.segments.size(); i++) {
+                this.segments.get(i).force();
+            }
+            this.unforced = (int) (this.position / this.segmentSize);
+        }
+        
+        void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.krisjacyna.yasm;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fires events on {@link MachineInstance}s which are shared between threads.
+ * 
+ * Each instance is guarded by one of a fixed set of striped locks, chosen by
+ * its identity, so events for the same instance are applied one at a time
+ * while events for instances on different stripes run fully in parallel.
+ * There is no global lock. Holding the stripe lock also publishes the
+ * changes made to the instance's {@link Context} by {@link Action}s to the
+ * next thread which fires on it. With fair locks, threads waiting on the
+ * same stripe are served in arrival order.
+ * 
+ * An {@link Action} may fire further events on its own instance, which are
+ * processed once the current event has run to completion. Events it fires
+ * on other instances are queued on the firing thread and fired once that
+ * thread has released every stripe lock, so a thread never waits for a lock
+ * while holding another and two instances firing on each other cannot
+ * deadlock. For the same reason an {@link Action} must not start, reset or
+ * read the {@link State} of another instance.
+ * 
+ * @author Kris Jacyna
+ */
+public class ConcurrentMachineEngine {
+    
+    private final MachineEngine engine;
+    
+    private final ReentrantLock[] locks;
+    
+    private final int mask;
+    
+    // events fired by Actions on other instances, by thread
+    private final ThreadLocal<Pending> pending = ThreadLocal.withInitial(Pending::new);
+    
+    /**
+     * Creates a new {@link ConcurrentMachineEngine} with four stripes per
+     * available processor and unfair locks.
+     * 
+     * @param machine the Machine to execute
+     */
+    public ConcurrentMachineEngine(final Machine machine) {
+        this(machine, Runtime.getRuntime().availableProcessors() * 4, false);
+    }
+    
+    /**
+     * Creates a new {@link ConcurrentMachineEngine}.
+     * 
+     * @param machine the Machine to execute
+     * @param stripes the number of locks, rounded up to a power of two
+     * @param fair whether waiting threads acquire each lock in arrival order
+     */
+    public ConcurrentMachineEngine(final Machine machine, final int stripes, final boolean fair) {
+        this(new MachineEngine(machine), stripes, fair);
+    }
+    
+    /**
+     * Creates a new {@link ConcurrentMachineEngine} which guards the
+     * specified {@link MachineEngine}. Instances of the engine must only be
+     * fired on through this {@link ConcurrentMachineEngine}.
+     * 
+     * @param engine the MachineEngine to guard, which must not have a TimingWheel
+     * @param stripes the number of locks, rounded up to a power of two
+     * @param fair whether waiting threads acquire each lock in arrival order
+     * @throws IllegalArgumentException if the engine has a TimingWheel, which
+     *         is not thread-safe and expires timers without the stripe locks
+     */
+    public ConcurrentMachineEngine(final MachineEngine engine, final int stripes, final boolean fair) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("Invalid number of stripes " + stripes);
+        }
+        if (engine.getTimers() != null) {
+            throw new IllegalArgumentException("A MachineEngine with a TimingWheel cannot be shared between threads");
+        }
+        this.engine = engine;
+        final int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.locks[i] = new ReentrantLock(fair);
+        }
+        this.mask = size - 1;
+    }
+    
+    /**
+     * Returns the {@link Machine} executed by this engine.
+     * 
+     * @return the Machine
+     */
+    public Machine getMachine() {
+        return this.engine.getMachine();
+    }
+    
+    /**
+     * Creates a new {@link MachineInstance} in the initial {@link State}.
+     * 
+     * @param context the Context of the instance, which may be {@code null}
+     * @return the new MachineInstance
+     * @see MachineEngine#newInstance(Context)
+     */
+    public MachineInstance newInstance(final Context context) {
+        return this.engine.newInstance(context);
+    }
+    
+    /**
+     * Adds a {@link TransitionListener}. Listeners are called while the
+     * lock of the instance is held and may be called concurrently for
+     * different instances.
+     * 
+     * @param listener the TransitionListener to add
+     */
+    public void addListener(final TransitionListener listener) {
+        this.engine.addListener(listener);
+    }
+    
+    /**
+     * Executes the entry {@link Action}s of the current {@link State} of the
+     * specified instance while holding its lock.
+     * 
+     * @param instance the MachineInstance to start
+     * @throws IllegalStateException if called by an Action of another instance
+     */
+    public void start(final MachineInstance instance) {
+        final ReentrantLock lock = lockFor(instance);
+        checkNotForeign(lock, instance);
+        lock.lock();
+        try {
+            this.engine.start(instance);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Moves the specified instance back to the initial {@link State} while
+     * holding its lock.
+     * 
+     * @param instance the MachineInstance to reset
+     * @throws IllegalStateException if called by an Action of another instance
+     */
+    public void reset(final MachineInstance instance) {
+        final ReentrantLock lock = lockFor(instance);
+        checkNotForeign(lock, instance);
+        lock.lock();
+        try {
+            this.engine.reset(instance);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the current {@link State} of the specified instance, as last
+     * published under its lock.
+     * 
+     * @param instance the MachineInstance
+     * @return the current State
+     * @throws IllegalStateException if called by an Action of another instance
+     */
+    public State getState(final MachineInstance instance) {
+        final ReentrantLock lock = lockFor(instance);
+        checkNotForeign(lock, instance);
+        lock.lock();
+        try {
+            return this.engine.getState(instance);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Fires the specified event on the specified instance while holding
+     * its lock. When called by an {@link Action} of another instance, the
+     * event is fired once the calling thread has released its locks.
+     * 
+     * @param instance the MachineInstance to fire on
+     * @param event the event name
+     */
+    public void fire(final MachineInstance instance, final String event) {
+        fire(instance, event, Machine.UNDEFINED);
+    }
+    
+    /**
+     * Fires the event with the specified integer ID on the specified instance
+     * while holding its lock. When called by an {@link Action} of another
+     * instance, the event is fired once the calling thread has released its
+     * locks.
+     * 
+     * @param instance the MachineInstance to fire on
+     * @param eventId the integer ID of the event
+     */
+    public void fire(final MachineInstance instance, final int eventId) {
+        fire(instance, null, eventId);
+    }
+    
+    // fires the named event, or the event with the ID if there is no name
+    private void fire(final MachineInstance instance, final String event, final int eventId) {
+        final ReentrantLock lock = lockFor(instance);
+        final Pending pending = this.pending.get();
+        if (isForeign(pending, lock, instance)) {
+            pending.offer(instance, event, eventId);
+            return;
+        }
+        boolean completed = false;
+        lock.lock();
+        pending.depth++;
+        try {
+            if (event != null) {
+                this.engine.fire(instance, event);
+            }
+            else {
+                this.engine.fire(instance, eventId);
+            }
+            completed = true;
+        }
+        finally {
+            pending.depth--;
+            lock.unlock();
+            if (pending.depth == 0 && !completed) {
+                pending.clear();
+            }
+        }
+        // each fire drains the events queued after it, so they are fired in order
+        while (pending.depth == 0 && !pending.isEmpty()) {
+            final MachineInstance next = pending.instances[pending.head];
+            final String nextEvent = pending.events[pending.head];
+            final int nextEventId = pending.eventIds[pending.head];
+            pending.poll();
+            fire(next, nextEvent, nextEventId);
+        }
+    }
+    
+    // whether this thread is processing an event on an instance other than the specified one
+    private static boolean isForeign(final Pending pending, final ReentrantLock lock, final MachineInstance instance) {
+        return pending.depth > 0 && !(lock.isHeldByCurrentThread() && instance.dispatching != null);
+    }
+    
+    private void checkNotForeign(final ReentrantLock lock, final MachineInstance instance) {
+        if (isForeign(this.pending.get(), lock, instance)) {
+            throw new IllegalStateException("An Action cannot start, reset or read another instance");
+        }
+    }
+    
+    ReentrantLock lockFor(final MachineInstance instance) {
+        int h = System.identityHashCode(instance);
+        h ^= h >>> 16;
+        return this.locks[h & this.mask];
+    }
+    
+    /**
+     * The events a thread's {@link Action}s have fired on other instances,
+     * in a ring buffer which is reused.
+     */
+    private static final class Pending {
+        
+        // the number of fires this thread is within
+        int depth;
+        
+        MachineInstance[] instances = new MachineInstance[8];
+        
+        String[] events = new String[8];
+        
+        int[] eventIds = new int[8];
+        
+        int head;
+        
+        int size;
+        
+        boolean isEmpty() {
+            return this.size == 0;
+        }
+        
+        void offer(final MachineInstance instance, final String event, final int eventId) {
+            if (this.size == this.instances.length) {
+                grow();
+            }
+            final int tail = (this.head + this.size) & (this.instances.length - 1);
+            this.instances[tail] = instance;
+            this.events[tail] = event;
+            this.eventIds[tail] = eventId;
+            this.size++;
+        }
+        
+        // drops the head, which has been read
+        void poll() {
+            this.instances[this.head] = null;
+            this.events[this.head] = null;
+            this.head = (this.head + 1) & (this.instances.length - 1);
+            this.size--;
+        }
+        
+        void clear() {
+            while (this.size > 0) {
+                poll();
+            }
+        }
+        
+        private void grow() {
+            final int length = this.instances.length;
+            final MachineInstance[] instances = new MachineInstance[length << 1];
+            final String[] events = new String[length << 1];
+            final int[] eventIds = new int[length << 1];
+            for (int i = 0; i < this.size; i++) {
+                final int index = (this.head + i) & (length - 1);
+                instances[i] = this.instances[index];
+                events[i] = this.events[index];
+                eventIds[i] = this.eventIds[index];
+            }
+            this.instances = instances;
+            this.events = events;
+            this.eventIds = eventIds;
+            this.head = 0;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.krisjacyna.yasm;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -61,6 +62,15 @@ public class Context {
         return this.variables.get(key);
     }
     
+    /**
+     * Returns every variable of this {@link Context}, keyed by name.
+     * 
+     * @return an unmodifiable view of the variables
+     */
+    public Map<String, Object> getVariables() {
+        return Collections.unmodifiableMap(this.variables);
+    }
+    
     @Override
     public String toString() {
         return new StringBuilder()
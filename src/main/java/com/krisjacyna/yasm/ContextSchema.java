@@ -0,0 +1,363 @@
+package com.krisjacyna.yasm;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Declares the typed variables of a {@link TypedContext}.
+ * 
+ * Each declared variable is given an integer slot in a primitive array of
+ * its type and a handle ({@link LongVariable}, {@link DoubleVariable} or
+ * {@link ObjectVariable}) which reads and writes that slot directly. Handles
+ * should be resolved once, for example when an {@link Action} or
+ * {@link Condition} is created, so that no {@link String} is hashed and no
+ * value is boxed when they are used.
+ * 
+ * @author Kris Jacyna
+ */
+public final class ContextSchema {
+    
+    private final Map<String, Variable> variables;
+    
+    private final int longCount;
+    
+    private final int doubleCount;
+    
+    private final int objectCount;
+    
+    private ContextSchema(final Builder builder) {
+        this.variables = Collections.unmodifiableMap(new HashMap<>(builder.variables));
+        this.longCount = builder.longCount;
+        this.doubleCount = builder.doubleCount;
+        this.objectCount = builder.objectCount;
+        this.variables.values().forEach(v -> v.schema = this);
+    }
+    
+    /**
+     * Creates a new {@link TypedContext} with this schema and no name.
+     * 
+     * @return the new TypedContext
+     */
+    public TypedContext newContext() {
+        return new TypedContext(this, null);
+    }
+    
+    /**
+     * Creates a new {@link TypedContext} with this schema and the specified name.
+     * 
+     * @param name the name of the Context
+     * @return the new TypedContext
+     */
+    public TypedContext newContext(final String name) {
+        return new TypedContext(this, name);
+    }
+    
+    /**
+     * Returns the declared variables, keyed by name.
+     * 
+     * @return the map of variables
+     */
+    public Map<String, Variable> getVariables() {
+        return this.variables;
+    }
+    
+    /**
+     * Returns the {@link LongVariable} with the specified name.
+     * 
+     * @param name the name of the variable
+     * @return the LongVariable
+     * @throws IllegalArgumentException if there is no such {@code long} variable
+     */
+    public LongVariable getLong(final String name) {
+        return lookup(name, LongVariable.class);
+    }
+    
+    /**
+     * Returns the {@link DoubleVariable} with the specified name.
+     * 
+     * @param name the name of the variable
+     * @return the DoubleVariable
+     * @throws IllegalArgumentException if there is no such {@code double} variable
+     */
+    public DoubleVariable getDouble(final String name) {
+        return lookup(name, DoubleVariable.class);
+    }
+    
+    /**
+     * Returns the {@link ObjectVariable} with the specified name.
+     * 
+     * @param name the name of the variable
+     * @return the ObjectVariable
+     * @throws IllegalArgumentException if there is no such object variable
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ObjectVariable<T> getObject(final String name) {
+        return lookup(name, ObjectVariable.class);
+    }
+    
+    int getLongCount() {
+        return this.longCount;
+    }
+    
+    int getDoubleCount() {
+        return this.doubleCount;
+    }
+    
+    int getObjectCount() {
+        return this.objectCount;
+    }
+    
+    Variable find(final String name) {
+        return this.variables.get(name);
+    }
+    
+    private <V extends Variable> V lookup(final String name, final Class<V> type) {
+        final Variable variable = this.variables.get(name);
+        if (!type.isInstance(variable)) {
+            throw new IllegalArgumentException("No " + type.getSimpleName() + " named '" + name + "'");
+        }
+        return type.cast(variable);
+    }
+    
+    /**
+     * Builder for creating {@link ContextSchema}s.
+     */
+    public static class Builder {
+        
+        private final Map<String, Variable> variables = new HashMap<>();
+        
+        private int longCount;
+        
+        private int doubleCount;
+        
+        private int objectCount;
+        
+        private boolean built;
+        
+        /**
+         * Declares a {@code long} variable, initially zero.
+         * 
+         * @param name the name of the variable
+         * @return the handle of the variable
+         */
+        public LongVariable declareLong(final String name) {
+            return declare(new LongVariable(name, this.longCount++));
+        }
+        
+        /**
+         * Declares a {@code double} variable, initially zero.
+         * 
+         * @param name the name of the variable
+         * @return the handle of the variable
+         */
+        public DoubleVariable declareDouble(final String name) {
+            return declare(new DoubleVariable(name, this.doubleCount++));
+        }
+        
+        /**
+         * Declares an object variable, initially {@code null}.
+         * 
+         * @param name the name of the variable
+         * @param type the type of the variable's values
+         * @return the handle of the variable
+         */
+        public <T> ObjectVariable<T> declareObject(final String name, final Class<T> type) {
+            return declare(new ObjectVariable<>(name, this.objectCount++, type));
+        }
+        
+        /**
+         * Builds the {@link ContextSchema}. The handles returned by this
+         * builder belong to the schema, so a builder can only be built once.
+         * 
+         * @return the ContextSchema
+         */
+        public ContextSchema build() {
+            checkNotBuilt();
+            this.built = true;
+            return new ContextSchema(this);
+        }
+        
+        private void checkNotBuilt() {
+            if (this.built) {
+                throw new IllegalStateException("ContextSchema has already been built");
+            }
+        }
+        
+        private <V extends Variable> V declare(final V variable) {
+            checkNotBuilt();
+            if (this.variables.putIfAbsent(variable.getName(), variable) != null) {
+                throw new IllegalArgumentException("Duplicate variable '" + variable.getName() + "'");
+            }
+            return variable;
+        }
+    }
+    
+    /**
+     * A declared variable of a {@link ContextSchema}.
+     */
+    public abstract static class Variable {
+        
+        private final String name;
+        
+        final int slot;
+        
+        ContextSchema schema;
+        
+        Variable(final String name, final int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+        
+        /**
+         * Returns the name of this variable.
+         * 
+         * @return the name
+         */
+        public String getName() {
+            return this.name;
+        }
+        
+        abstract Object getBoxed(TypedContext context);
+        
+        abstract void setBoxed(TypedContext context, Object value);
+        
+        final void check(final TypedContext context) {
+            if (context.getSchema() != this.schema) {
+                throw new IllegalArgumentException("Variable '" + this.name + "' is not declared by "
+                        + "the schema of " + context);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[" + this.name + "]";
+        }
+    }
+    
+    /**
+     * A handle to a {@code long} variable.
+     */
+    public static final class LongVariable extends Variable {
+        
+        LongVariable(final String name, final int slot) {
+            super(name, slot);
+        }
+        
+        public long get(final TypedContext context) {
+            check(context);
+            return context.longs[this.slot];
+        }
+        
+        public void set(final TypedContext context, final long value) {
+            check(context);
+            context.longs[this.slot] = value;
+        }
+        
+        /**
+         * Adds to the value of this variable.
+         * 
+         * @param context the TypedContext holding the variable
+         * @param delta the amount to add
+         * @return the new value
+         */
+        public long add(final TypedContext context, final long delta) {
+            check(context);
+            return context.longs[this.slot] += delta;
+        }
+        
+        @Override
+        Object getBoxed(final TypedContext context) {
+            return get(context);
+        }
+        
+        @Override
+        void setBoxed(final TypedContext context, final Object value) {
+            if (!(value instanceof Long || value instanceof Integer || value instanceof Short
+                    || value instanceof Byte)) {
+                throw new IllegalArgumentException("Variable '" + getName() + "' cannot hold " + value);
+            }
+            set(context, ((Number) value).longValue());
+        }
+    }
+    
+    /**
+     * A handle to a {@code double} variable.
+     */
+    public static final class DoubleVariable extends Variable {
+        
+        DoubleVariable(final String name, final int slot) {
+            super(name, slot);
+        }
+        
+        public double get(final TypedContext context) {
+            check(context);
+            return context.doubles[this.slot];
+        }
+        
+        public void set(final TypedContext context, final double value) {
+            check(context);
+            context.doubles[this.slot] = value;
+        }
+        
+        @Override
+        Object getBoxed(final TypedContext context) {
+            return get(context);
+        }
+        
+        @Override
+        void setBoxed(final TypedContext context, final Object value) {
+            if (!(value instanceof Number)) {
+                throw new IllegalArgumentException("Variable '" + getName() + "' cannot hold " + value);
+            }
+            set(context, ((Number) value).doubleValue());
+        }
+    }
+    
+    /**
+     * A handle to an object variable.
+     * 
+     * @param <T> the type of the variable's values
+     */
+    public static final class ObjectVariable<T> extends Variable {
+        
+        private final Class<T> type;
+        
+        ObjectVariable(final String name, final int slot, final Class<T> type) {
+            super(name, slot);
+            this.type = type;
+        }
+        
+        /**
+         * Returns the type of this variable's values.
+         * 
+         * @return the type
+         */
+        public Class<T> getType() {
+            return this.type;
+        }
+        
+        public T get(final TypedContext context) {
+            check(context);
+            return this.type.cast(context.objects[this.slot]);
+        }
+        
+        public void set(final TypedContext context, final T value) {
+            check(context);
+            context.objects[this.slot] = this.type.cast(value);
+        }
+        
+        @Override
+        Object getBoxed(final TypedContext context) {
+            return get(context);
+        }
+        
+        @Override
+        void setBoxed(final TypedContext context, final Object value) {
+            if (value != null && !this.type.isInstance(value)) {
+                throw new IllegalArgumentException("Variable '" + getName() + "' cannot hold " + value);
+            }
+            set(context, this.type.cast(value));
+        }
+    }
+}
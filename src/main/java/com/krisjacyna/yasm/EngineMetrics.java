@@ -0,0 +1,394 @@
+package com.krisjacyna.yasm;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and times the work of a {@link MachineEngine}.
+ * 
+ * An engine created with an {@link EngineMetrics} counts every event it
+ * processes, split into those taken by a {@link Transition}, deferred and
+ * left unhandled, every event fired by a name no {@link Transition} uses,
+ * every {@link Transition} taken and rejected by its {@link Condition}, and
+ * every simple {@link State} entered. It also records the latency of
+ * processing each event and of every {@link Action} and {@link Condition}
+ * in a {@link LatencyHistogram}. Without an {@link EngineMetrics} the
+ * engine pays a single {@code null} check per step.
+ * 
+ * Counters are {@link LongAdder}s, which stripe themselves under contention,
+ * held in arrays indexed by the integer IDs of the {@link Machine}, so
+ * recording does not allocate or look anything up by name. They are kept
+ * by name across {@link MachineEngine#reload(Machine) reloads}: the counters
+ * of a {@link State}, event or {@link Transition} which is still present
+ * carry on counting, and {@link Action}s and {@link Condition}s are timed by
+ * ID. One {@link EngineMetrics} may be shared by several engines.
+ * 
+ * A {@link Snapshot} copies every counter and histogram by name for export.
+ *
+ * @author Kris Jacyna
+ */
+public final class EngineMetrics {
+    
+    private final ConcurrentMap<String, LongAdder> fired = new ConcurrentHashMap<>();
+    
+    private final ConcurrentMap<String, LongAdder> unhandled = new ConcurrentHashMap<>();
+    
+    private final ConcurrentMap<String, LongAdder> deferred = new ConcurrentHashMap<>();
+    
+    private final ConcurrentMap<String, LongAdder> entries = new ConcurrentHashMap<>();
+    
+    private final ConcurrentMap<String, LongAdder> taken = new ConcurrentHashMap<>();
+    
+    private final ConcurrentMap<String, LongAdder> guardFailures = new ConcurrentHashMap<>();
+    
+    private final ConcurrentMap<String, LatencyHistogram> actionLatencies = new ConcurrentHashMap<>();
+    
+    private final ConcurrentMap<String, LatencyHistogram> conditionLatencies = new ConcurrentHashMap<>();
+    
+    private final LongAdder dropped = new LongAdder();
+    
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+    
+    /**
+     * Returns a copy of every counter and histogram.
+     * 
+     * @return the Snapshot
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+    
+    /**
+     * Creates counters for the specified {@link Machine}, bound by name to
+     * the counters of every earlier {@link Machine}. The engine keeps them
+     * with the version of its {@link Machine}, so they are dropped with it.
+     * 
+     * @param machine the Machine
+     * @return the Counters
+     */
+    Counters bind(final Machine machine) {
+        return new Counters(this, machine);
+    }
+    
+    /**
+     * Counts an event fired by a name which no {@link Transition} uses.
+     */
+    void dropped() {
+        this.dropped.increment();
+    }
+    
+    private static LongAdder[] adders(final ConcurrentMap<String, LongAdder> adders, final String[] names) {
+        final LongAdder[] array = new LongAdder[names.length];
+        for (int i = 0; i < names.length; i++) {
+            array[i] = adders.computeIfAbsent(names[i], n -> new LongAdder());
+        }
+        return array;
+    }
+    
+    private static String key(final Machine machine, final int transitionId) {
+        final Transition transition = machine.getTransition(transitionId);
+        final String source = machine.getTransitionSource(transitionId).getId();
+        return transition.getTarget()
+                .map(target -> source + ":" + transition.getEvent() + "->" + target.getId())
+                .orElse(source + ":" + transition.getEvent());
+    }
+    
+    /**
+     * The counters of one {@link Machine}, indexed by its integer IDs.
+     */
+    static final class Counters {
+        
+        // by event ID
+        private final LongAdder[] fired;
+        
+        private final LongAdder[] unhandled;
+        
+        private final LongAdder[] deferred;
+        
+        // by State ID
+        private final LongAdder[] entries;
+        
+        // by transition ID
+        private final LongAdder[] taken;
+        
+        private final LongAdder[] guardFailures;
+        
+        // the histogram of every Action and Condition of the Machine
+        private final Map<Identifiable, LatencyHistogram> latencies = new IdentityHashMap<>();
+        
+        private final LatencyHistogram dispatchLatency;
+        
+        Counters(final EngineMetrics metrics, final Machine machine) {
+            final String[] events = new String[machine.getEventCount()];
+            for (int i = 0; i < events.length; i++) {
+                events[i] = machine.getEvent(i);
+            }
+            final String[] states = new String[machine.getStateCount()];
+            for (int i = 0; i < states.length; i++) {
+                states[i] = machine.getState(i).getId();
+            }
+            final String[] transitions = new String[machine.getTransitionCount()];
+            for (int i = 0; i < transitions.length; i++) {
+                transitions[i] = key(machine, i);
+            }
+            this.fired = adders(metrics.fired, events);
+            this.unhandled = adders(metrics.unhandled, events);
+            this.deferred = adders(metrics.deferred, events);
+            this.entries = adders(metrics.entries, states);
+            this.taken = adders(metrics.taken, transitions);
+            this.guardFailures = adders(metrics.guardFailures, transitions);
+            for (int i = 0; i < states.length; i++) {
+                final State state = machine.getState(i);
+                state.getEntryActions().forEach(a -> time(metrics.actionLatencies, a));
+                state.getExitActions().forEach(a -> time(metrics.actionLatencies, a));
+            }
+            for (int i = 0; i < transitions.length; i++) {
+                final Transition transition = machine.getTransition(i);
+                transition.getActions().forEach(a -> time(metrics.actionLatencies, a));
+                transition.getCondition().ifPresent(c -> time(metrics.conditionLatencies, c));
+            }
+            this.dispatchLatency = metrics.dispatchLatency;
+        }
+        
+        /**
+         * Counts an event which has been processed.
+         * 
+         * @param eventId the integer ID of the event
+         * @param handled whether a Transition was taken
+         * @param deferred whether the event was deferred
+         * @param nanos the time taken to process the event
+         */
+        void processed(final int eventId, final boolean handled, final boolean deferred, final long nanos) {
+            this.fired[eventId].increment();
+            if (deferred) {
+                this.deferred[eventId].increment();
+            }
+            else if (!handled) {
+                this.unhandled[eventId].increment();
+            }
+            this.dispatchLatency.record(nanos);
+        }
+        
+        /**
+         * Counts a {@link Route} which has been taken.
+         * 
+         * @param route the Route
+         */
+        void taken(final Route route) {
+            this.taken[route.transitionId].increment();
+            if (route.target != null) {
+                this.entries[route.target.getIndex()].increment();
+            }
+        }
+        
+        /**
+         * Evaluates and times the {@link Condition} of a {@link Route},
+         * counting a failure if it does not pass.
+         * 
+         * @param route the Route, which must have a Condition
+         * @param context the Context to evaluate
+         * @return the result of the Condition
+         */
+        boolean evaluate(final Route route, final Context context) {
+            final long start = System.nanoTime();
+            final boolean passed = route.condition.evaluate(context);
+            this.latencies.get(route.condition).record(System.nanoTime() - start);
+            if (!passed) {
+                this.guardFailures[route.transitionId].increment();
+            }
+            return passed;
+        }
+        
+        /**
+         * Executes and times each of the specified {@link Action}s.
+         * 
+         * @param actions the Actions
+         * @param context the Context to action on
+         */
+        void execute(final Action[] actions, final Context context) {
+            for (int i = 0; i < actions.length; i++) {
+                final long start = System.nanoTime();
+                actions[i].execute(context);
+                this.latencies.get(actions[i]).record(System.nanoTime() - start);
+            }
+        }
+        
+        private void time(final ConcurrentMap<String, LatencyHistogram> histograms, final Identifiable target) {
+            this.latencies.put(target, histograms.computeIfAbsent(target.getId(), id -> new LatencyHistogram()));
+        }
+    }
+    
+    /**
+     * A copy of the counters and histograms of an {@link EngineMetrics},
+     * keyed by name. Events are keyed by name, {@link State}s by ID,
+     * {@link Action}s and {@link Condition}s by ID, and {@link Transition}s
+     * by {@code source:event->target}, or {@code source:event} for a
+     * {@link Transition} without a target.
+     */
+    public static final class Snapshot {
+        
+        private final SortedMap<String, Long> fired;
+        
+        private final SortedMap<String, Long> unhandled;
+        
+        private final SortedMap<String, Long> deferred;
+        
+        private final SortedMap<String, Long> entries;
+        
+        private final SortedMap<String, Long> taken;
+        
+        private final SortedMap<String, Long> guardFailures;
+        
+        private final SortedMap<String, LatencyHistogram> actionLatencies;
+        
+        private final SortedMap<String, LatencyHistogram> conditionLatencies;
+        
+        private final long dropped;
+        
+        private final LatencyHistogram dispatchLatency;
+        
+        private Snapshot(final EngineMetrics metrics) {
+            this.fired = counts(metrics.fired);
+            this.unhandled = counts(metrics.unhandled);
+            this.deferred = counts(metrics.deferred);
+            this.entries = counts(metrics.entries);
+            this.taken = counts(metrics.taken);
+            this.guardFailures = counts(metrics.guardFailures);
+            this.actionLatencies = copies(metrics.actionLatencies);
+            this.conditionLatencies = copies(metrics.conditionLatencies);
+            this.dropped = metrics.dropped.sum();
+            this.dispatchLatency = metrics.dispatchLatency.copy();
+        }
+        
+        /**
+         * Returns the number of times each event was processed.
+         * 
+         * @return the counts by event
+         */
+        public SortedMap<String, Long> getEventsFired() {
+            return this.fired;
+        }
+        
+        /**
+         * Returns the number of times each event was processed without a
+         * {@link Transition} being taken or the event being deferred.
+         * 
+         * @return the counts by event
+         */
+        public SortedMap<String, Long> getEventsUnhandled() {
+            return this.unhandled;
+        }
+        
+        /**
+         * Returns the number of times each event was deferred.
+         * 
+         * @return the counts by event
+         */
+        public SortedMap<String, Long> getEventsDeferred() {
+            return this.deferred;
+        }
+        
+        /**
+         * Returns the number of events fired by a name no {@link Transition}
+         * uses, which are dropped without being processed.
+         * 
+         * @return the number of dropped events
+         */
+        public long getEventsDropped() {
+            return this.dropped;
+        }
+        
+        /**
+         * Returns the number of times each simple {@link State} was entered
+         * by a {@link Transition}.
+         * 
+         * @return the counts by State ID
+         */
+        public SortedMap<String, Long> getStateEntries() {
+            return this.entries;
+        }
+        
+        /**
+         * Returns the number of times each {@link Transition} was taken.
+         * 
+         * @return the counts by Transition
+         */
+        public SortedMap<String, Long> getTransitionsTaken() {
+            return this.taken;
+        }
+        
+        /**
+         * Returns the number of times the {@link Condition} of each
+         * {@link Transition} did not pass.
+         * 
+         * @return the counts by Transition
+         */
+        public SortedMap<String, Long> getGuardFailures() {
+            return this.guardFailures;
+        }
+        
+        /**
+         * Returns the latency of processing an event, including every
+         * {@link Condition} and {@link Action} it caused.
+         * 
+         * @return the LatencyHistogram
+         */
+        public LatencyHistogram getDispatchLatency() {
+            return this.dispatchLatency;
+        }
+        
+        /**
+         * Returns the latency of each {@link Action}.
+         * 
+         * @return the histograms by Action ID
+         */
+        public SortedMap<String, LatencyHistogram> getActionLatencies() {
+            return this.actionLatencies;
+        }
+        
+        /**
+         * Returns the latency of each {@link Condition}.
+         * 
+         * @return the histograms by Condition ID
+         */
+        public SortedMap<String, LatencyHistogram> getConditionLatencies() {
+            return this.conditionLatencies;
+        }
+        
+        @Override
+        public String toString() {
+            return new StringBuilder()
+                    .append("Snapshot[")
+                    .append("fired=").append(this.fired)
+                    .append(", unhandled=").append(this.unhandled)
+                    .append(", deferred=").append(this.deferred)
+                    .append(", dropped=").append(this.dropped)
+                    .append(", entries=").append(this.entries)
+                    .append(", transitions=").append(this.taken)
+                    .append(", guardFailures=").append(this.guardFailures)
+                    .append(", dispatch=").append(this.dispatchLatency)
+                    .append(", actions=").append(this.actionLatencies)
+                    .append(", conditions=").append(this.conditionLatencies)
+                    .append("]")
+                    .toString();
+        }
+        
+        private static SortedMap<String, Long> counts(final Map<String, LongAdder> adders) {
+            final SortedMap<String, Long> counts = new TreeMap<>();
+            adders.forEach((name, adder) -> counts.put(name, adder.sum()));
+            return Collections.unmodifiableSortedMap(counts);
+        }
+        
+        private static SortedMap<String, LatencyHistogram> copies(final Map<String, LatencyHistogram> histograms) {
+            final SortedMap<String, LatencyHistogram> copies = new TreeMap<>();
+            histograms.forEach((name, histogram) -> copies.put(name, histogram.copy()));
+            return Collections.unmodifiableSortedMap(copies);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.krisjacyna.yasm;
+
+/**
+ * A ring buffer of {@code long}s used to queue event IDs, and the IDs of the
+ * instances they are for, without boxing them.
+ * 
+ * The buffer doubles in size when it is full and never shrinks, so once a
+ * queue has grown to the longest chain of events raised by an instance no
+ * more memory is allocated. A queue is not thread-safe.
+ *
+ * @author Kris Jacyna
+ */
+final class EventQueue {
+    
+    private static final int INITIAL_CAPACITY = 8;
+    
+    private long[] elements = new long[INITIAL_CAPACITY];
+    
+    // index of the first element
+    private int head;
+    
+    private int size;
+    
+    /**
+     * Returns whether this queue is empty.
+     * 
+     * @return {@code true} if the queue is empty, {@code false} otherwise
+     */
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+    
+    /**
+     * Returns the number of elements in this queue.
+     * 
+     * @return the number of elements
+     */
+    int size() {
+        return this.size;
+    }
+    
+    /**
+     * Adds an element to the back of this queue.
+     * 
+     * @param element the element to add
+     */
+    void offer(final long element) {
+        if (this.size == this.elements.length) {
+            grow();
+        }
+        this.elements[(this.head + this.size) & (this.elements.length - 1)] = element;
+        this.size++;
+    }
+    
+    /**
+     * Removes and returns the element at the front of this queue, which must
+     * not be empty.
+     * 
+     * @return the first element
+     */
+    long poll() {
+        final long element = this.elements[this.head];
+        this.head = (this.head + 1) & (this.elements.length - 1);
+        this.size--;
+        return element;
+    }
+    
+    /**
+     * Moves every element of this queue to the front of another queue,
+     * keeping their order, leaving this queue empty.
+     * 
+     * @param queue the queue to move the elements to
+     */
+    void drainToFront(final EventQueue queue) {
+        for (int i = this.size - 1; i >= 0; i--) {
+            queue.offerFirst(this.elements[(this.head + i) & (this.elements.length - 1)]);
+        }
+        clear();
+    }
+    
+    /**
+     * Removes every element of this queue.
+     */
+    void clear() {
+        this.head = 0;
+        this.size = 0;
+    }
+    
+    private void offerFirst(final long element) {
+        if (this.size == this.elements.length) {
+            grow();
+        }
+        this.head = (this.head - 1) & (this.elements.length - 1);
+        this.elements[this.head] = element;
+        this.size++;
+    }
+    
+    private void grow() {
+        final long[] grown = new long[this.elements.length << 1];
+        for (int i = 0; i < this.size; i++) {
+            grown[i] = this.elements[(this.head + i) & (this.elements.length - 1)];
+        }
+        this.elements = grown;
+        this.head = 0;
+    }
+}
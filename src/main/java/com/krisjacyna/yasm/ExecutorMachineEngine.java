@@ -0,0 +1,199 @@
+package com.krisjacyna.yasm;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fires events on {@link MachineInstance}s on an {@link Executor}, for
+ * {@link Action}s which block, for example on I/O.
+ * 
+ * The whole exit, transition and entry {@link Action} chain of an event runs
+ * as one task on the {@link Executor}, so the caller of
+ * {@link #fireAsync(MachineInstance, String)} is never blocked. Tasks for the
+ * same instance are chained one after another, so an instance sees its
+ * events in the order they were fired and never runs two chains at once,
+ * while different instances run concurrently.
+ * 
+ * By default, tasks run on virtual threads when the JVM supports them (Java
+ * 21 or later), so thousands of instances can wait on I/O at the same time
+ * without as many platform threads. On older JVMs a cached pool of platform
+ * threads is used instead.
+ * 
+ * @author Kris Jacyna
+ */
+public class ExecutorMachineEngine implements AutoCloseable {
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExecutorMachineEngine.class);
+    
+    private final MachineEngine engine;
+    
+    private final Executor executor;
+    
+    // the executor to shut down on close, if it was created here
+    private final ExecutorService owned;
+    
+    // the last queued task of each busy instance
+    private final Map<MachineInstance, CompletableFuture<State>> tails = new ConcurrentHashMap<>();
+    
+    /**
+     * Creates a new {@link ExecutorMachineEngine} which runs on virtual
+     * threads where available.
+     * 
+     * @param machine the Machine to execute
+     */
+    public ExecutorMachineEngine(final Machine machine) {
+        this.engine = new MachineEngine(machine);
+        this.owned = newVirtualThreadExecutor();
+        this.executor = this.owned;
+    }
+    
+    /**
+     * Creates a new {@link ExecutorMachineEngine} which runs on the specified
+     * {@link Executor}. The {@link Executor} is not shut down on close.
+     * 
+     * @param engine the MachineEngine to fire with, which must not have a TimingWheel
+     * @param executor the Executor to run Action chains on
+     * @throws IllegalArgumentException if the engine has a TimingWheel, which
+     *         is not thread-safe and expires timers outside the Executor
+     */
+    public ExecutorMachineEngine(final MachineEngine engine, final Executor executor) {
+        if (engine.getTimers() != null) {
+            throw new IllegalArgumentException("A MachineEngine with a TimingWheel cannot be shared between threads");
+        }
+        this.engine = engine;
+        this.executor = executor;
+        this.owned = null;
+    }
+    
+    /**
+     * Returns the {@link Machine} executed by this engine.
+     * 
+     * @return the Machine
+     */
+    public Machine getMachine() {
+        return this.engine.getMachine();
+    }
+    
+    /**
+     * Creates a new {@link MachineInstance} in the initial {@link State}.
+     * 
+     * @param context the Context of the instance, which may be {@code null}
+     * @return the new MachineInstance
+     * @see MachineEngine#newInstance(Context)
+     */
+    public MachineInstance newInstance(final Context context) {
+        return this.engine.newInstance(context);
+    }
+    
+    /**
+     * Adds a {@link TransitionListener}. Listeners are called on the
+     * {@link Executor} and may be called concurrently for different instances.
+     * 
+     * @param listener the TransitionListener to add
+     */
+    public void addListener(final TransitionListener listener) {
+        this.engine.addListener(listener);
+    }
+    
+    /**
+     * Executes the entry {@link Action}s of the current {@link State} of the
+     * specified instance after any events already fired on it.
+     * 
+     * @param instance the MachineInstance to start
+     * @return a future holding the current State once started
+     */
+    public CompletableFuture<State> startAsync(final MachineInstance instance) {
+        return enqueue(instance, () -> {
+            this.engine.start(instance);
+            return currentState(instance);
+        });
+    }
+    
+    /**
+     * Fires the specified event on the specified instance after any events
+     * already fired on it.
+     * 
+     * @param instance the MachineInstance to fire on
+     * @param event the event name
+     * @return a future holding the State of the instance after the event
+     */
+    public CompletableFuture<State> fireAsync(final MachineInstance instance, final String event) {
+        return enqueue(instance, () -> {
+            this.engine.fire(instance, event);
+            return currentState(instance);
+        });
+    }
+    
+    /**
+     * Fires the event with the specified integer ID on the specified instance
+     * after any events already fired on it.
+     * 
+     * @param instance the MachineInstance to fire on
+     * @param eventId the integer ID of the event
+     * @return a future holding the State of the instance after the event
+     */
+    public CompletableFuture<State> fireAsync(final MachineInstance instance, final int eventId) {
+        return enqueue(instance, () -> {
+            this.engine.fire(instance, eventId);
+            return currentState(instance);
+        });
+    }
+    
+    /**
+     * Shuts down the {@link Executor} if it was created by this engine.
+     * Chains which are already running are allowed to finish.
+     */
+    @Override
+    public void close() {
+        if (this.owned != null) {
+            this.owned.shutdown();
+        }
+    }
+    
+    private State currentState(final MachineInstance instance) {
+        return this.engine.getState(instance);
+    }
+    
+    private CompletableFuture<State> enqueue(final MachineInstance instance, final Supplier<State> task) {
+        // compute returns the task queued behind the instance's last one
+        final CompletableFuture<State> result = this.tails.compute(instance, (key, tail) -> {
+            // a failed chain must not stop later events for the instance
+            final CompletableFuture<?> previous = tail != null
+                    ? tail.handle((state, error) -> null)
+                    : CompletableFuture.completedFuture(null);
+            return previous.thenApplyAsync(ignored -> task.get(), this.executor);
+        });
+        result.whenComplete((state, error) -> this.tails.remove(instance, result));
+        return result;
+    }
+    
+    /**
+     * Returns an {@link ExecutorService} which starts a virtual thread per
+     * task, or a cached pool of daemon platform threads if the running JVM
+     * does not support virtual threads.
+     * 
+     * @return a new ExecutorService
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Java 21+, looked up reflectively to keep the Java 8 target
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (final ReflectiveOperationException e) {
+            LOGGER.debug("virtual threads are not available, using platform threads");
+            return Executors.newCachedThreadPool(r -> {
+                final Thread thread = new Thread(r, "yasm-actions");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
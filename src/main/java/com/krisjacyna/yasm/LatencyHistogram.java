@@ -0,0 +1,169 @@
+package com.krisjacyna.yasm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds with a fixed relative precision.
+ * 
+ * Values are counted in log-linear buckets, in the style of an HDR
+ * histogram: every power of two is split into 32 linear sub-buckets, so a
+ * value is reported to within about 3% of its recorded value however large
+ * it is. The buckets are a fixed array of atomic counters, so recording a
+ * value is a handful of arithmetic operations and an atomic increment, never
+ * allocates and is safe from any number of threads.
+ *
+ * @author Kris Jacyna
+ */
+public final class LatencyHistogram {
+    
+    private static final int SUB_BUCKET_BITS = 5;
+    
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    
+    // values below SUB_BUCKETS are counted exactly, then 32 buckets per power of two
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    
+    private final LongAdder count = new LongAdder();
+    
+    private final LongAdder sum = new LongAdder();
+    
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * Records a latency. Negative values are recorded as zero.
+     * 
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        this.counts.incrementAndGet(bucket(value));
+        this.count.increment();
+        this.sum.add(value);
+        long current = this.max.get();
+        while (value > current && !this.max.compareAndSet(current, value)) {
+            current = this.max.get();
+        }
+    }
+    
+    /**
+     * Returns the number of recorded latencies.
+     * 
+     * @return the count
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+    
+    /**
+     * Returns the largest recorded latency, exactly.
+     * 
+     * @return the maximum in nanoseconds, or zero if nothing was recorded
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+    
+    /**
+     * Returns the mean of the recorded latencies.
+     * 
+     * @return the mean in nanoseconds, or zero if nothing was recorded
+     */
+    public double getMean() {
+        final long n = this.count.sum();
+        return n == 0 ? 0 : (double) this.sum.sum() / n;
+    }
+    
+    /**
+     * Returns the latency which the specified percentage of recorded
+     * latencies are at or below, rounded up to the top of its bucket.
+     * 
+     * @param percentile the percentile, from 0 to 100
+     * @return the latency in nanoseconds, or zero if nothing was recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += this.counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+    
+    /**
+     * Adds every latency recorded by another histogram to this one.
+     * 
+     * @param other the LatencyHistogram to add
+     */
+    public void add(final LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            final long n = other.counts.get(i);
+            if (n != 0) {
+                this.counts.addAndGet(i, n);
+            }
+        }
+        this.count.add(other.count.sum());
+        this.sum.add(other.sum.sum());
+        final long otherMax = other.max.get();
+        long current = this.max.get();
+        while (otherMax > current && !this.max.compareAndSet(current, otherMax)) {
+            current = this.max.get();
+        }
+    }
+    
+    /**
+     * Returns a copy of this histogram, which is not affected by latencies
+     * recorded afterwards.
+     * 
+     * @return the copy
+     */
+    public LatencyHistogram copy() {
+        final LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append("LatencyHistogram[")
+                .append("count=").append(getCount())
+                .append(", mean=").append(Math.round(getMean()))
+                .append(", p50=").append(getValueAtPercentile(50))
+                .append(", p99=").append(getValueAtPercentile(99))
+                .append(", max=").append(getMax())
+                .append("]")
+                .toString();
+    }
+    
+    private static int bucket(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // shift the top SUB_BUCKET_BITS + 1 bits of the value down
+        final int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+    
+    private static long highestValue(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,132 @@
+package com.krisjacyna.yasm;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing map from {@code long} keys to non-negative {@code int}
+ * values, used to index instances by ID without boxing.
+ * 
+ * Keys are placed by linear probing and removed by shifting back the keys
+ * which probed past them, so there are no tombstones. The table doubles
+ * when it is half full. An index is not thread-safe.
+ *
+ * @author Kris Jacyna
+ */
+final class LongIndex {
+    
+    /** The value returned for a missing key. */
+    static final int MISSING = -1;
+    
+    private static final int INITIAL_CAPACITY = 64;
+    
+    private long[] keys = new long[INITIAL_CAPACITY];
+    
+    // MISSING marks an empty slot
+    private int[] values = empty(INITIAL_CAPACITY);
+    
+    private int size;
+    
+    /**
+     * Returns the number of keys.
+     * 
+     * @return the number of keys
+     */
+    int size() {
+        return this.size;
+    }
+    
+    /**
+     * Returns the value of the specified key.
+     * 
+     * @param key the key
+     * @return the value, or {@link #MISSING} if there is none
+     */
+    int get(final long key) {
+        final int mask = this.keys.length - 1;
+        for (int i = slot(key) & mask; this.values[i] != MISSING; i = (i + 1) & mask) {
+            if (this.keys[i] == key) {
+                return this.values[i];
+            }
+        }
+        return MISSING;
+    }
+    
+    /**
+     * Sets the value of the specified key.
+     * 
+     * @param key the key
+     * @param value the value, which must not be negative
+     */
+    void put(final long key, final int value) {
+        if ((this.size + 1) * 2 > this.keys.length) {
+            grow();
+        }
+        final int mask = this.keys.length - 1;
+        int i = slot(key) & mask;
+        while (this.values[i] != MISSING) {
+            if (this.keys[i] == key) {
+                this.values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        this.keys[i] = key;
+        this.values[i] = value;
+        this.size++;
+    }
+    
+    /**
+     * Removes the specified key.
+     * 
+     * @param key the key
+     * @return the value of the key, or {@link #MISSING} if there was none
+     */
+    int remove(final long key) {
+        final int mask = this.keys.length - 1;
+        int i = slot(key) & mask;
+        while (this.values[i] != MISSING && this.keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        final int value = this.values[i];
+        if (value == MISSING) {
+            return MISSING;
+        }
+        // shift back any following keys which probed past this one
+        int next = (i + 1) & mask;
+        while (this.values[next] != MISSING) {
+            final int home = slot(this.keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - i) & mask)) {
+                this.keys[i] = this.keys[next];
+                this.values[i] = this.values[next];
+                i = next;
+            }
+            next = (next + 1) & mask;
+        }
+        this.values[i] = MISSING;
+        this.size--;
+        return value;
+    }
+    
+    private void grow() {
+        final long[] keys = this.keys;
+        final int[] values = this.values;
+        this.keys = new long[keys.length << 1];
+        this.values = empty(keys.length << 1);
+        this.size = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != MISSING) {
+                put(keys[i], values[i]);
+            }
+        }
+    }
+    
+    private static int[] empty(final int capacity) {
+        final int[] values = new int[capacity];
+        Arrays.fill(values, MISSING);
+        return values;
+    }
+    
+    private static int slot(final long key) {
+        return Long.hashCode(key * 0x9e3779b97f4a7c15L);
+    }
+}
@@ -1,28 +1,265 @@
 package com.krisjacyna.yasm;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Represents a machine with a set of {@link State}s.
  * 
+ * When a {@link Machine} is created every {@link State} and every event is
+ * assigned a dense integer ID, ordered by name. Events can then be dispatched
+ * by integer ID through a flat state by event table of {@link Transition}s,
+ * without any {@link String} hashing or comparison. The {@link String} based
+ * lookups are kept as a thin wrapper over the integer IDs.
+ * 
+ * A {@link Machine} may be split into up to 64 orthogonal {@link Region}s
+ * which share the same {@link State} and event IDs. For every event the
+ * {@link Machine} holds a bitmask of the {@link Region}s with a
+ * {@link Transition} for it, so that firing an event skips every other
+ * {@link Region} without a lookup.
+ * 
+ * Events deferred by a {@link State} are given IDs like any other event, and
+ * each {@link State} holds the sorted IDs of the events deferred by it or its
+ * ancestors, so that checking for a deferral is a binary search.
+ * 
  * @author Kris Jacyna
  */
 public class Machine {
     
+    /** The ID returned for an unknown {@link State} or event. */
+    public static final int UNDEFINED = -1;
+    
+    // Largest number of cells allowed in the flat dispatch table, beyond
+    // which each State falls back to a sorted table of its own events
+    private static final int MAX_DISPATCH_TABLE_SIZE = 1 << 22;
+    
+    /** The largest number of {@link Region}s in a {@link Machine}. */
+    public static final int MAX_REGIONS = Long.SIZE;
+    
+    private static final Route[] NO_ROUTES = new Route[0];
+    
     private final Map<String, State> states;
     
-    private final State initialState;
+    private final Region[] regions;
+    
+    // the simple State each Region starts in
+    private final State[] startStates;
+    
+    private final State[] stateTable;
+    
+    // the Region of each State, by State ID
+    private final int[] stateRegions;
+    
+    // the Regions with a Transition for each event, as a bitmask by event ID
+    private final long[] eventRegions;
+    
+    // sorted IDs of the events deferred by each State or its ancestors, by State ID
+    private final int[][] deferredEvents;
+    
+    // delays and event IDs of the timed Transitions of each State, by State ID
+    private final long[][] timeouts;
+    
+    private final int[][] timeoutEvents;
+    
+    // States with timed Transitions from the top level down to each State, by State ID
+    private final State[][] timedPaths;
+    
+    private final String[] eventTable;
+    
+    // every Transition and the State declaring it, by transition ID
+    private final Transition[] transitionTable;
+    
+    private final State[] transitionSources;
+    
+    private final Map<String, Integer> eventIds = new HashMap<>();
+    
+    // entry Actions from the top level down to each State, by State ID
+    private final Action[][] entryPaths;
+    
+    // [stateId * eventCount + eventId], or null if too large
+    private final Route[][] dispatchTable;
+    
+    // per State sorted event IDs and matching Routes, used when
+    // there is no flat dispatch table
+    private final int[][] sparseEvents;
+    
+    private final Route[][][] sparseRoutes;
     
     /**
      * Creates a {@link Machine} with the specified {@link State}s and the
-     * initial {@link State}. to start on.
+     * initial {@link State}. to start on. Each {@link State} is compiled
+     * so no further {@link Transition}s may be added to it.
+     * 
+     * For every simple {@link State}, the {@link Transition}s it inherits from
+     * its ancestors are appended to its own, and every {@link Transition} is
+     * compiled into the full chain of exit and entry {@link Action}s it
+     * causes from that {@link State}.
      * 
-     * @param states the States
+     * @param states the States, including every child State
      * @param initialState the State to start on
+     * @throws IllegalArgumentException if a composite State has no initial child
      */
     public Machine(final Map<String, State> states, final State initialState) {
+        this(states, Collections.singletonList(new Region(Region.DEFAULT, initialState, topLevel(states))));
+    }
+    
+    /**
+     * Creates a {@link Machine} with the specified {@link State}s split into
+     * orthogonal {@link Region}s. Region IDs are assigned in list order.
+     * 
+     * @param states the States, including every child State
+     * @param regions the Regions, which together hold every top level State once
+     * @throws IllegalArgumentException if there are no or too many Regions,
+     *         a top level State is not in exactly one Region, a Transition
+     *         crosses Regions or a composite State has no initial child
+     */
+    public Machine(final Map<String, State> states, final List<Region> regions) {
+        if (regions.isEmpty() || regions.size() > MAX_REGIONS) {
+            throw new IllegalArgumentException("A machine must have between 1 and "
+                    + MAX_REGIONS + " regions, not " + regions.size());
+        }
         this.states = states;
-        this.initialState = initialState;
+        this.regions = regions.toArray(new Region[regions.size()]);
+        this.states.values().forEach(State::compile);
+        for (final State state : this.states.values()) {
+            if (state.isComposite() && state.getInitialChild() == null) {
+                throw new IllegalArgumentException("Composite state '" + state.getId()
+                        + "' has no initial child state");
+            }
+        }
+        this.startStates = new State[this.regions.length];
+        for (int r = 0; r < this.regions.length; r++) {
+            this.startStates[r] = leafOf(this.regions[r].getInitialState());
+        }
+        
+        // assign State IDs
+        final String[] stateNames = this.states.keySet().toArray(new String[this.states.size()]);
+        Arrays.sort(stateNames);
+        this.stateTable = new State[stateNames.length];
+        for (int i = 0; i < stateNames.length; i++) {
+            this.stateTable[i] = this.states.get(stateNames[i]);
+            this.stateTable[i].setIndex(i);
+        }
+        
+        // assign every State to the Region of its top level ancestor
+        final Map<State, Integer> topLevelRegions = new HashMap<>();
+        for (int r = 0; r < this.regions.length; r++) {
+            for (final State state : this.regions[r].getStates()) {
+                if (topLevelRegions.put(state, r) != null) {
+                    throw new IllegalArgumentException("State '" + state.getId() + "' is in more than one region");
+                }
+            }
+        }
+        this.stateRegions = new int[this.stateTable.length];
+        for (final State state : this.stateTable) {
+            final Integer region = topLevelRegions.get(topLevelOf(state));
+            if (region == null) {
+                throw new IllegalArgumentException("State '" + state.getId() + "' is not in any region");
+            }
+            this.stateRegions[state.getIndex()] = region;
+        }
+        for (final State state : this.stateTable) {
+            for (final Transition transition : state.getTransitions()) {
+                final State target = transition.target();
+                if (target != null && this.stateRegions[target.getIndex()] != this.stateRegions[state.getIndex()]) {
+                    throw new IllegalArgumentException("Transition from '" + state.getId() + "' to '"
+                            + target.getId() + "' crosses regions");
+                }
+            }
+        }
+        
+        // assign transition IDs, in State ID then declaration order
+        final List<Transition> transitions = new ArrayList<>();
+        final List<State> sources = new ArrayList<>();
+        final Map<Transition, Integer> transitionIds = new IdentityHashMap<>();
+        for (final State state : this.stateTable) {
+            for (final Transition transition : state.getTransitions()) {
+                transitionIds.put(transition, transitions.size());
+                transitions.add(transition);
+                sources.add(state);
+            }
+        }
+        this.transitionTable = transitions.toArray(new Transition[transitions.size()]);
+        this.transitionSources = sources.toArray(new State[sources.size()]);
+        
+        // assign event IDs
+        final TreeSet<String> events = new TreeSet<>();
+        this.states.values().forEach(s -> {
+            events.addAll(s.getEvents());
+            events.addAll(s.getDeferredEvents());
+        });
+        this.eventTable = events.toArray(new String[events.size()]);
+        for (int i = 0; i < this.eventTable.length; i++) {
+            this.eventIds.put(this.eventTable[i], i);
+        }
+        this.eventRegions = new long[this.eventTable.length];
+        for (final State state : this.stateTable) {
+            for (final String event : state.getEvents()) {
+                this.eventRegions[this.eventIds.get(event)] |= 1L << this.stateRegions[state.getIndex()];
+            }
+        }
+        this.deferredEvents = new int[this.stateTable.length][];
+        for (final State state : this.stateTable) {
+            final Set<Integer> deferred = new HashSet<>();
+            for (State s = state; s != null; s = s.getParent()) {
+                s.getDeferredEvents().forEach(e -> deferred.add(this.eventIds.get(e)));
+            }
+            this.deferredEvents[state.getIndex()] = deferred.stream().mapToInt(Integer::intValue).sorted().toArray();
+        }
+        
+        this.entryPaths = new Action[this.stateTable.length][];
+        this.timedPaths = new State[this.stateTable.length][];
+        this.timeouts = new long[this.stateTable.length][];
+        this.timeoutEvents = new int[this.stateTable.length][];
+        for (final State state : this.stateTable) {
+            this.entryPaths[state.getIndex()] = Route.entryPath(state);
+            this.timedPaths[state.getIndex()] = Route.timedPath(state);
+            final long[] delays = state.getTransitions().stream()
+                    .filter(Transition::isTimed)
+                    .mapToLong(t -> t.getAfter().getAsLong())
+                    .distinct()
+                    .toArray();
+            this.timeouts[state.getIndex()] = delays;
+            this.timeoutEvents[state.getIndex()] = Arrays.stream(delays)
+                    .mapToInt(d -> this.eventIds.get(Transition.timeoutEvent(d)))
+                    .toArray();
+        }
+        
+        final long size = (long) this.stateTable.length * this.eventTable.length;
+        if (size <= MAX_DISPATCH_TABLE_SIZE) {
+            this.dispatchTable = new Route[(int) size][];
+            Arrays.fill(this.dispatchTable, NO_ROUTES);
+            for (final State state : this.stateTable) {
+                for (final String event : eventsOf(state)) {
+                    this.dispatchTable[state.getIndex() * this.eventTable.length + this.eventIds.get(event)] =
+                            routes(state, event, transitionIds);
+                }
+            }
+            this.sparseEvents = null;
+            this.sparseRoutes = null;
+        }
+        else {
+            this.dispatchTable = null;
+            this.sparseEvents = new int[this.stateTable.length][];
+            this.sparseRoutes = new Route[this.stateTable.length][][];
+            for (final State state : this.stateTable) {
+                final int[] ids = eventsOf(state).stream().mapToInt(this.eventIds::get).sorted().toArray();
+                final Route[][] routes = new Route[ids.length][];
+                for (int i = 0; i < ids.length; i++) {
+                    routes[i] = routes(state, this.eventTable[ids[i]], transitionIds);
+                }
+                this.sparseEvents[state.getIndex()] = ids;
+                this.sparseRoutes[state.getIndex()] = routes;
+            }
+        }
     }
 
     /**
@@ -35,11 +272,315 @@ public class Machine {
     }
 
     /**
-     * Returns the initial {@link State} for this {@link Machine}.
+     * Returns the initial {@link State} for this {@link Machine}, which is
+     * the initial {@link State} of its first {@link Region}.
      * 
      * @return the initial State
      */
     public State getInitialState() {
-        return this.initialState;
+        return this.regions[0].getInitialState();
+    }
+    
+    /**
+     * Returns the simple {@link State} this {@link Machine} starts in, which
+     * is the initial {@link State} or, if that is composite, its initial
+     * descendant. With several {@link Region}s this is the start
+     * {@link State} of the first.
+     * 
+     * @return the simple State to start in
+     */
+    public State getStartState() {
+        return this.startStates[0];
+    }
+    
+    /**
+     * Returns the simple {@link State} the specified {@link Region} starts in.
+     * 
+     * @param region the integer ID of the Region
+     * @return the simple State to start in
+     * @throws ArrayIndexOutOfBoundsException if there is no Region with the ID
+     */
+    public State getStartState(final int region) {
+        return this.startStates[region];
+    }
+    
+    /**
+     * Returns the number of {@link Region}s in this {@link Machine}, which is
+     * one unless the {@link Machine} was created with explicit regions.
+     * 
+     * @return the number of Regions
+     */
+    public int getRegionCount() {
+        return this.regions.length;
+    }
+    
+    /**
+     * Returns the {@link Region} with the specified integer ID.
+     * 
+     * @param region the integer ID of the Region
+     * @return the Region
+     * @throws ArrayIndexOutOfBoundsException if there is no Region with the ID
+     */
+    public Region getRegion(final int region) {
+        return this.regions[region];
+    }
+    
+    /**
+     * Returns the integer ID of the {@link Region} the specified {@link State}
+     * belongs to.
+     * 
+     * @param stateId the integer ID of the State
+     * @return the integer ID of the Region
+     */
+    public int getRegionOf(final int stateId) {
+        return this.stateRegions[stateId];
+    }
+    
+    /**
+     * Returns the number of {@link State}s in this {@link Machine}. Integer
+     * {@link State} IDs range from zero up to, but excluding, this count.
+     * 
+     * @return the number of States
+     */
+    public int getStateCount() {
+        return this.stateTable.length;
+    }
+    
+    /**
+     * Returns the number of distinct events in this {@link Machine}. Integer
+     * event IDs range from zero up to, but excluding, this count.
+     * 
+     * @return the number of events
+     */
+    public int getEventCount() {
+        return this.eventTable.length;
+    }
+    
+    /**
+     * Returns the number of {@link Transition}s in this {@link Machine}.
+     * Integer transition IDs are assigned in {@link State} ID order, then in
+     * the order each {@link State} declares its {@link Transition}s, and
+     * range from zero up to, but excluding, this count.
+     * 
+     * @return the number of Transitions
+     */
+    public int getTransitionCount() {
+        return this.transitionTable.length;
+    }
+    
+    /**
+     * Returns the {@link Transition} with the specified integer ID.
+     * 
+     * @param transitionId the integer ID of the Transition
+     * @return the Transition
+     * @throws ArrayIndexOutOfBoundsException if there is no Transition with the ID
+     */
+    public Transition getTransition(final int transitionId) {
+        return this.transitionTable[transitionId];
+    }
+    
+    /**
+     * Returns the {@link State} which declares the {@link Transition} with
+     * the specified integer ID.
+     * 
+     * @param transitionId the integer ID of the Transition
+     * @return the declaring State
+     * @throws ArrayIndexOutOfBoundsException if there is no Transition with the ID
+     */
+    public State getTransitionSource(final int transitionId) {
+        return this.transitionSources[transitionId];
+    }
+    
+    /**
+     * Returns the {@link State} with the specified integer ID.
+     * 
+     * @param stateId the integer ID of the State
+     * @return the State
+     * @throws ArrayIndexOutOfBoundsException if there is no State with the ID
+     */
+    public State getState(final int stateId) {
+        return this.stateTable[stateId];
+    }
+    
+    /**
+     * Returns the integer ID for the {@link State} with the specified name.
+     * 
+     * @param id the ID of the State
+     * @return the integer ID, or {@link #UNDEFINED} if there is no such State
+     */
+    public int getStateId(final String id) {
+        final State state = this.states.get(id);
+        return state != null ? state.getIndex() : UNDEFINED;
+    }
+    
+    /**
+     * Returns the event with the specified integer ID.
+     * 
+     * @param eventId the integer ID of the event
+     * @return the event name
+     * @throws ArrayIndexOutOfBoundsException if there is no event with the ID
+     */
+    public String getEvent(final int eventId) {
+        return this.eventTable[eventId];
+    }
+    
+    /**
+     * Returns the integer ID for the specified event.
+     * 
+     * @param event the event name
+     * @return the integer ID, or {@link #UNDEFINED} if no Transition uses the event
+     */
+    public int getEventId(final String event) {
+        final Integer eventId = this.eventIds.get(event);
+        return eventId != null ? eventId : UNDEFINED;
+    }
+    
+    /**
+     * Returns the {@link Route}s from the specified simple {@link State} for
+     * the specified event: its own {@link Transition}s in the order they were
+     * defined, followed by those of its parent, and so on. The returned array
+     * is shared and must not be modified.
+     * 
+     * @param stateId the integer ID of the State
+     * @param eventId the integer ID of the event
+     * @return the Routes, which may be empty
+     */
+    Route[] getRoutes(final int stateId, final int eventId) {
+        if (this.dispatchTable != null) {
+            return this.dispatchTable[stateId * this.eventTable.length + eventId];
+        }
+        final int i = Arrays.binarySearch(this.sparseEvents[stateId], eventId);
+        return i >= 0 ? this.sparseRoutes[stateId][i] : NO_ROUTES;
+    }
+    
+    /**
+     * Returns the {@link Region}s with a {@link Transition} for the specified
+     * event, as a bitmask with bit {@code r} set for the {@link Region} with
+     * integer ID {@code r}.
+     * 
+     * @param eventId the integer ID of the event
+     * @return the bitmask of Regions
+     */
+    long getRegionMask(final int eventId) {
+        return this.eventRegions[eventId];
+    }
+    
+    /**
+     * Returns whether the specified event is deferred by the specified
+     * {@link State} or one of its ancestors.
+     * 
+     * @param stateId the integer ID of the State
+     * @param eventId the integer ID of the event
+     * @return {@code true} if the event is deferred, {@code false} otherwise
+     */
+    boolean isDeferred(final int stateId, final int eventId) {
+        final int[] deferred = this.deferredEvents[stateId];
+        return deferred.length != 0 && Arrays.binarySearch(deferred, eventId) >= 0;
+    }
+    
+    /**
+     * Returns the distinct delays of the timed {@link Transition}s of the
+     * specified {@link State}, not including those of its ancestors. The
+     * returned array is shared and must not be modified.
+     * 
+     * @param stateId the integer ID of the State
+     * @return the delays in milliseconds
+     */
+    long[] getTimeouts(final int stateId) {
+        return this.timeouts[stateId];
+    }
+    
+    /**
+     * Returns the IDs of the timeout events matching
+     * {@link #getTimeouts(int)}. The returned array is shared and must not be
+     * modified.
+     * 
+     * @param stateId the integer ID of the State
+     * @return the event IDs
+     */
+    int[] getTimeoutEvents(final int stateId) {
+        return this.timeoutEvents[stateId];
+    }
+    
+    /**
+     * Returns the {@link State}s with timed {@link Transition}s among the
+     * specified {@link State} and its ancestors, outermost first. The
+     * returned array is shared and must not be modified.
+     * 
+     * @param stateId the integer ID of the State
+     * @return the timed States
+     */
+    State[] getTimedPath(final int stateId) {
+        return this.timedPaths[stateId];
+    }
+    
+    /**
+     * Returns the entry {@link Action}s of the specified {@link State} and
+     * all of its ancestors, outermost first. The returned array is shared and
+     * must not be modified.
+     * 
+     * @param stateId the integer ID of the State
+     * @return the entry Actions
+     */
+    Action[] getEntryPath(final int stateId) {
+        return this.entryPaths[stateId];
+    }
+    
+    /**
+     * Returns the simple {@link State} entered when the specified
+     * {@link State} is entered: the State itself if it is simple, otherwise
+     * its initial descendant.
+     * 
+     * @param state the State
+     * @return the simple State
+     */
+    static State leafOf(final State state) {
+        State leaf = state;
+        while (leaf.isComposite()) {
+            leaf = leaf.getInitialChild();
+        }
+        return leaf;
+    }
+    
+    private static List<State> topLevel(final Map<String, State> states) {
+        final List<State> topLevel = new ArrayList<>();
+        for (final State state : states.values()) {
+            if (state.getParent() == null) {
+                topLevel.add(state);
+            }
+        }
+        return topLevel;
+    }
+    
+    private static State topLevelOf(final State state) {
+        State top = state;
+        while (top.getParent() != null) {
+            top = top.getParent();
+        }
+        return top;
+    }
+    
+    // the events handled by a simple State or any of its ancestors
+    private static Set<String> eventsOf(final State state) {
+        if (state.isComposite()) {
+            // never current, so never dispatched from
+            return Collections.emptySet();
+        }
+        final Set<String> events = new HashSet<>();
+        for (State s = state; s != null; s = s.getParent()) {
+            events.addAll(s.getEvents());
+        }
+        return events;
+    }
+    
+    private static Route[] routes(final State state, final String event,
+            final Map<Transition, Integer> transitionIds) {
+        final List<Route> routes = new ArrayList<>();
+        for (State s = state; s != null; s = s.getParent()) {
+            for (final Transition transition : s.getTransitions(event)) {
+                routes.add(Route.compile(state, s, transition, transitionIds.get(transition)));
+            }
+        }
+        return routes.toArray(new Route[routes.size()]);
     }
 }
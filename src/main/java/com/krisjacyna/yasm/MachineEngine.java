@@ -0,0 +1,1343 @@
+package com.krisjacyna.yasm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fires events on any number of {@link MachineInstance}s of one shared
+ * {@link Machine}.
+ * 
+ * The {@link Machine} and the {@link TransitionListener}s are held once by
+ * the engine, so each {@link MachineInstance} only needs its current
+ * {@link State} ID and {@link Context}. Firing an event does not allocate
+ * once the {@link TransitionListener}s have been added: {@link Transition}s,
+ * {@link Condition}s and {@link Action}s are read from arrays compiled by the
+ * {@link Machine}, including the exit and entry {@link Action}s of every
+ * {@link State} left and entered in a hierarchy, the listeners are held in a
+ * copy-on-write array and tracing is only performed when debug logging is
+ * enabled. Listeners are notified on the firing thread; slow listeners can
+ * be wrapped in an {@link AsyncTransitionListener} to be notified on their
+ * own threads instead.
+ * 
+ * The {@link Machine} can be replaced while instances are running with
+ * {@link #reload(Machine)}. The swap is a single volatile write, so firing
+ * never blocks on a reload. Each instance records the version of the
+ * {@link Machine} its {@link State} ID belongs to and is moved to the
+ * {@link State} with the same ID in the latest version the next time it is
+ * used. Each version only links forward to the next, so a version is
+ * collected once no instance belongs to it and reloading costs the same
+ * however many times the {@link Machine} has been reloaded. Integer event IDs
+ * are only valid for the {@link Machine} they were looked up on, so they
+ * must be looked up again after a reload.
+ * 
+ * An event fired on an instance of a {@link Machine} with several
+ * {@link Region}s is dispatched to the current {@link State} of every
+ * {@link Region} which has a {@link Transition} for it, in {@link Region}
+ * order, in one pass.
+ * 
+ * Events are processed with run-to-completion semantics: an event fired on
+ * an instance while it is already processing one, typically by an
+ * {@link Action}, is queued on the instance and processed once the current
+ * event and all of its {@link Action}s have finished. An event which no
+ * {@link Transition} handles but which the current {@link State} defers is
+ * kept and fired again, ahead of any queued events, each time the instance
+ * takes a {@link Transition} with a target, but not after a
+ * {@link Transition} without one, which leaves the {@link State} as it was.
+ * Both queues are ring buffers which are reused, so chains of raised events
+ * do not allocate.
+ * 
+ * An engine created with a {@link TimingWheel} arms a timer for each timed
+ * {@link Transition} of every {@link State} an instance enters and cancels
+ * it when the instance exits the {@link State}. An expired timer only tries
+ * the timed {@link Transition}s with its delay declared by the {@link State}
+ * which armed it, so it never takes those of a nested {@link State} or of
+ * another {@link Region}. Each instance reuses its expired and cancelled
+ * timers. Without a {@link TimingWheel}, timed {@link Transition}s are never
+ * taken. Timers are not kept for instances in an
+ * {@link OffHeapInstanceStore}. An engine with a {@link TimingWheel} must only
+ * be fired on by the thread which advances the wheel, so it cannot be wrapped
+ * by the engines which fire from several threads.
+ * 
+ * A batch of events can be fired on one instance with
+ * {@link #fireAll(MachineInstance, int[])}, or across instances with
+ * {@link #fire(MachineInstance[], int[])}, in a single loop which returns a
+ * {@link BatchResult}. Within a batch on one instance,
+ * {@link BatchTransitionListener}s are notified once rather than per
+ * transition.
+ * 
+ * An engine created with an {@link EngineMetrics} counts and times the
+ * events it processes, the {@link Transition}s it takes and the
+ * {@link Condition}s and {@link Action}s it runs. Without one, each step
+ * costs a {@code null} check.
+ * 
+ * With a {@link TransitionJournal} set, every {@link Transition} between
+ * {@link State}s is appended to the journal, by the ID of the instance,
+ * before the entry {@link Action}s of its target run.
+ * 
+ * A {@link MachineEngine} is safe to share between threads, but each
+ * {@link MachineInstance} must only be fired on by one thread at a time.
+ *
+ * @author Kris Jacyna
+ */
+public class MachineEngine {
+    
+    private static final TransitionListener[] NO_LISTENERS = new TransitionListener[0];
+    
+    // added to the number of Transitions dispatch returns when one of them had a target
+    private static final int MOVED = 1 << 16;
+    
+    // queued on a Cursor in place of an event ID to start the instance, outside the range of any int ID
+    private static final long START = Long.MIN_VALUE;
+    
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private volatile Version version;
+    
+    // copy-on-write so that firing never creates an iterator
+    private volatile TransitionListener[] listeners = NO_LISTENERS;
+    
+    // the listeners notified of each transition within a batch, and the rest
+    private volatile TransitionListener[] eagerListeners = NO_LISTENERS;
+    
+    private volatile BatchTransitionListener[] batchListeners = new BatchTransitionListener[0];
+    
+    private final TimingWheel timers;
+    
+    private final EngineMetrics metrics;
+    
+    private volatile TransitionJournal journal;
+    
+    /**
+     * Creates a new {@link MachineEngine} for the specified {@link Machine}.
+     * 
+     * @param machine the Machine to execute
+     */
+    public MachineEngine(final Machine machine) {
+        this(machine, null);
+    }
+    
+    /**
+     * Creates a new {@link MachineEngine} for the specified {@link Machine}
+     * which arms the timers of timed {@link Transition}s on the specified
+     * {@link TimingWheel}.
+     * 
+     * @param machine the Machine to execute
+     * @param timers the TimingWheel, or {@code null} to never take timed Transitions
+     */
+    public MachineEngine(final Machine machine, final TimingWheel timers) {
+        this(machine, timers, null);
+    }
+    
+    /**
+     * Creates a new {@link MachineEngine} for the specified {@link Machine}
+     * which arms the timers of timed {@link Transition}s on the specified
+     * {@link TimingWheel} and records its work in the specified
+     * {@link EngineMetrics}.
+     * 
+     * @param machine the Machine to execute
+     * @param timers the TimingWheel, or {@code null} to never take timed Transitions
+     * @param metrics the EngineMetrics, or {@code null} to record nothing
+     */
+    public MachineEngine(final Machine machine, final TimingWheel timers, final EngineMetrics metrics) {
+        this.timers = timers;
+        this.metrics = metrics;
+        this.version = new Version(machine, metrics != null ? metrics.bind(machine) : null);
+    }
+    
+    /**
+     * Returns the {@link Machine} executed by this engine.
+     * 
+     * @return the current Machine
+     */
+    public Machine getMachine() {
+        return this.version.machine;
+    }
+    
+    /**
+     * Returns the {@link TimingWheel} this engine arms timers on.
+     * 
+     * @return the TimingWheel, or {@code null} if there is none
+     */
+    public TimingWheel getTimers() {
+        return this.timers;
+    }
+    
+    /**
+     * Returns the {@link EngineMetrics} this engine records its work in.
+     * 
+     * @return the EngineMetrics, or {@code null} if there are none
+     */
+    public EngineMetrics getMetrics() {
+        return this.metrics;
+    }
+    
+    /**
+     * Replaces the {@link Machine} executed by this engine. Instances keep
+     * their current {@link State} by ID; instances whose {@link State} no
+     * longer exists are moved to the new start {@link State}, and instances
+     * whose {@link State} has become composite are moved to its initial
+     * descendant. A {@link State} which has moved to another {@link Region}
+     * is treated as removed. No {@link Action}s are executed by the move.
+     * 
+     * @param machine the new Machine
+     * @throws IllegalArgumentException if the new Machine has a different
+     *         number of Regions
+     */
+    public synchronized void reload(final Machine machine) {
+        final Version current = this.version;
+        final Machine old = current.machine;
+        if (machine.getRegionCount() != old.getRegionCount()) {
+            throw new IllegalArgumentException("Cannot reload a machine with " + old.getRegionCount()
+                    + " regions as one with " + machine.getRegionCount());
+        }
+        final int[] forward = new int[old.getStateCount()];
+        final int[] exactForward = new int[old.getStateCount()];
+        final List<String> removed = new ArrayList<>();
+        for (int i = 0; i < forward.length; i++) {
+            final String id = old.getState(i).getId();
+            final int region = old.getRegionOf(i);
+            final State state = machine.getStates().get(id);
+            if (state == null || machine.getRegionOf(state.getIndex()) != region) {
+                forward[i] = machine.getStartState(region).getIndex();
+                exactForward[i] = Machine.UNDEFINED;
+                removed.add(id);
+            }
+            else {
+                forward[i] = Machine.leafOf(state).getIndex();
+                exactForward[i] = state.getIndex();
+            }
+        }
+        if (!removed.isEmpty()) {
+            this.logger.warn("states {} were removed, their instances will move to the start state of their region",
+                    removed);
+        }
+        final int[] eventForward = new int[old.getEventCount()];
+        for (int i = 0; i < eventForward.length; i++) {
+            eventForward[i] = machine.getEventId(old.getEvent(i));
+        }
+        // only the old version links to the new one, so versions no instance belongs to can be collected
+        final Version next = new Version(machine, this.metrics != null ? this.metrics.bind(machine) : null);
+        current.next = new Link(next, forward, exactForward, eventForward);
+        this.version = next;
+    }
+    
+    /**
+     * Creates a new {@link MachineInstance} in the start {@link State}. The
+     * entry {@link Action}s of the start {@link State} and its ancestors are
+     * not executed until the instance is started.
+     * 
+     * @param context the Context of the instance, which may be {@code null}
+     * @return the new MachineInstance
+     * @see #start(MachineInstance)
+     */
+    public MachineInstance newInstance(final Context context) {
+        return newInstance(0, context);
+    }
+    
+    /**
+     * Creates a new {@link MachineInstance} with the specified ID in the
+     * start {@link State}, like {@link #newInstance(Context)}.
+     * 
+     * @param instanceId the ID of the instance
+     * @param context the Context of the instance, which may be {@code null}
+     * @return the new MachineInstance
+     */
+    public MachineInstance newInstance(final long instanceId, final Context context) {
+        final Version v = this.version;
+        final Machine machine = v.machine;
+        final int regions = machine.getRegionCount();
+        int[] regionStateIds = null;
+        if (regions > 1) {
+            regionStateIds = new int[regions - 1];
+            for (int r = 1; r < regions; r++) {
+                regionStateIds[r - 1] = machine.getStartState(r).getIndex();
+            }
+        }
+        return new MachineInstance(instanceId, machine.getStartState().getIndex(), regionStateIds, v, context);
+    }
+    
+    /**
+     * Executes the entry {@link Action}s of the current {@link State} of the
+     * specified instance and of its ancestors, outermost first, in every
+     * {@link Region}, and arms the timers of their timed {@link Transition}s.
+     * 
+     * @param instance the MachineInstance to start
+     */
+    public void start(final MachineInstance instance) {
+        final Version v = current(instance);
+        final Machine machine = v.machine;
+        final EngineMetrics.Counters counters = v.counters;
+        instance.dispatching = machine;
+        instance.changed = true;
+        try {
+            cancelTimers(instance);
+            for (int r = 0; r < machine.getRegionCount(); r++) {
+                armTimers(machine, instance, machine.getTimedPath(instance.getStateId(r)));
+                execute(machine.getEntryPath(instance.getStateId(r)), instance.getContext(), counters);
+            }
+            drain(machine, instance, counters);
+        }
+        finally {
+            finish(instance);
+        }
+    }
+    
+    /**
+     * Arms the timers of the timed {@link Transition}s of the current
+     * {@link State} of the specified instance and of its ancestors, in every
+     * {@link Region}, for their full delays, without executing any
+     * {@link Action}s. Timers already armed for the instance are cancelled.
+     * Used to resume instances rebuilt without being started, such as by a
+     * {@link ReplayEngine}.
+     * 
+     * @param instance the MachineInstance to resume
+     */
+    public void resume(final MachineInstance instance) {
+        final Machine machine = instance.dispatching != null ? instance.dispatching : current(instance).machine;
+        cancelTimers(instance);
+        for (int r = 0; r < machine.getRegionCount(); r++) {
+            armTimers(machine, instance, machine.getTimedPath(instance.getStateId(r)));
+        }
+    }
+    
+    /**
+     * Moves the specified instance back to the start {@link State} of every
+     * {@link Region} without executing any {@link Action}s, cancelling all
+     * of its timers.
+     * 
+     * @param instance the MachineInstance to reset
+     */
+    public void reset(final MachineInstance instance) {
+        cancelTimers(instance);
+        final Version v = this.version;
+        for (int r = 0; r < v.machine.getRegionCount(); r++) {
+            instance.setStateId(r, v.machine.getStartState(r).getIndex());
+        }
+        instance.version = v;
+        instance.changed = true;
+    }
+    
+    /**
+     * Returns the current {@link State} of the specified instance in the
+     * latest version of the {@link Machine}. With several {@link Region}s
+     * this is the {@link State} of the first.
+     * 
+     * @param instance the MachineInstance
+     * @return the current State
+     */
+    public State getState(final MachineInstance instance) {
+        return current(instance).machine.getState(instance.stateId);
+    }
+    
+    /**
+     * Returns the current {@link State} of the specified instance in the
+     * specified {@link Region}, in the latest version of the {@link Machine}.
+     * 
+     * @param instance the MachineInstance
+     * @param region the integer ID of the Region
+     * @return the current State of the Region
+     */
+    public State getState(final MachineInstance instance, final int region) {
+        return current(instance).machine.getState(instance.getStateId(region));
+    }
+    
+    /**
+     * Sets the {@link TransitionJournal} to append every {@link Transition}
+     * between {@link State}s to.
+     * 
+     * @param journal the TransitionJournal, or {@code null} to journal nothing
+     */
+    public void setJournal(final TransitionJournal journal) {
+        this.journal = journal;
+    }
+    
+    /**
+     * Returns the {@link TransitionJournal} this engine appends to.
+     * 
+     * @return the TransitionJournal, or {@code null} if there is none
+     */
+    public TransitionJournal getJournal() {
+        return this.journal;
+    }
+    
+    /**
+     * Adds a {@link TransitionListener} to be notified of the transitions
+     * of every instance fired on by this engine.
+     * 
+     * @param listener the TransitionListener to add
+     */
+    public synchronized void addListener(final TransitionListener listener) {
+        for (final TransitionListener l : this.listeners) {
+            if (l.equals(listener)) {
+                return;
+            }
+        }
+        this.listeners = append(this.listeners, listener);
+        if (listener instanceof BatchTransitionListener) {
+            this.batchListeners = append(this.batchListeners, (BatchTransitionListener) listener);
+        }
+        else {
+            this.eagerListeners = append(this.eagerListeners, listener);
+        }
+    }
+    
+    private static <T> T[] append(final T[] array, final T element) {
+        final T[] copy = Arrays.copyOf(array, array.length + 1);
+        copy[copy.length - 1] = element;
+        return copy;
+    }
+    
+    /**
+     * Fires the specified event on the specified instance. If the instance
+     * is already processing an event the event is queued.
+     * 
+     * @param instance the MachineInstance to fire on
+     * @param event the event name
+     */
+    public void fire(final MachineInstance instance, final String event) {
+        final Machine machine = instance.dispatching != null ? instance.dispatching : current(instance).machine;
+        final int eventId = machine.getEventId(event);
+        if (eventId == Machine.UNDEFINED) {
+            if (this.metrics != null) {
+                this.metrics.dropped();
+            }
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("firing event {} on {}", event, machine.getState(instance.stateId).getId());
+                this.logger.debug("no transition for event {}", event);
+            }
+            return;
+        }
+        fire(machine, instance, eventId, Machine.UNDEFINED);
+    }
+    
+    /**
+     * Fires the event with the specified integer ID on the specified instance.
+     * If the instance is already processing an event the event is queued. An
+     * ID of {@link Machine#UNDEFINED}, as looked up for a name no
+     * {@link Transition} uses, is ignored like an unknown name.
+     * 
+     * @param instance the MachineInstance to fire on
+     * @param eventId the integer ID of the event
+     * @throws IllegalArgumentException if the ID is neither UNDEFINED nor an
+     *         event ID of the current Machine
+     * @see Machine#getEventId(String)
+     */
+    public void fire(final MachineInstance instance, final int eventId) {
+        final Machine machine = instance.dispatching != null ? instance.dispatching : current(instance).machine;
+        if (isDefined(machine, eventId)) {
+            fire(machine, instance, eventId, Machine.UNDEFINED);
+        }
+    }
+    
+    // whether the ID is an event of the Machine, counting UNDEFINED as a dropped event
+    private boolean isDefined(final Machine machine, final int eventId) {
+        if (eventId == Machine.UNDEFINED) {
+            if (this.metrics != null) {
+                this.metrics.dropped();
+            }
+            return false;
+        }
+        if (eventId < 0 || eventId >= machine.getEventCount()) {
+            throw new IllegalArgumentException("Event ID " + eventId + " is not one of the "
+                    + machine.getEventCount() + " events of the machine");
+        }
+        return true;
+    }
+    
+    // fires an event, or the timeout of the State with ID source unless that is UNDEFINED
+    private void fire(final Machine machine, final MachineInstance instance, final int eventId, final int source) {
+        if (instance.dispatching != null) {
+            // run to completion: the event is processed after the current one
+            instance.queue().offer(queued(eventId, source));
+            return;
+        }
+        // the instance was just moved to the Version of the Machine, whose Counters serve the whole dispatch
+        final EngineMetrics.Counters counters = instance.version.counters;
+        instance.dispatching = machine;
+        try {
+            process(machine, instance, eventId, source, counters);
+            drain(machine, instance, counters);
+        }
+        finally {
+            finish(instance);
+        }
+    }
+    
+    /**
+     * Fires a batch of events on the specified instance in one loop, each
+     * event, and any events raised by its {@link Action}s, running to
+     * completion before the next. Events with a name no {@link Transition}
+     * uses are skipped. {@link BatchTransitionListener}s are notified once,
+     * after the batch. If the instance is already processing an event the
+     * events are queued and the result counts nothing.
+     * 
+     * @param instance the MachineInstance to fire on
+     * @param events the event names
+     * @return the BatchResult
+     */
+    public BatchResult fireAll(final MachineInstance instance, final String[] events) {
+        final Machine machine = instance.dispatching != null ? instance.dispatching : current(instance).machine;
+        final BatchResult result = new BatchResult();
+        if (instance.dispatching != null) {
+            for (int i = 0; i < events.length; i++) {
+                fire(instance, events[i]);
+            }
+            return result;
+        }
+        final EngineMetrics.Counters counters = instance.version.counters;
+        final State from = begin(machine, instance);
+        try {
+            for (int i = 0; i < events.length; i++) {
+                step(machine, instance, machine.getEventId(events[i]), i, result, counters);
+            }
+        }
+        finally {
+            finish(instance);
+        }
+        return end(machine, instance, from, result);
+    }
+    
+    /**
+     * Fires a batch of events on the specified instance in one loop, as
+     * {@link #fireAll(MachineInstance, String[])} does.
+     * 
+     * @param instance the MachineInstance to fire on
+     * @param events the event names
+     * @return the BatchResult
+     */
+    public BatchResult fireAll(final MachineInstance instance, final Iterable<String> events) {
+        final Machine machine = instance.dispatching != null ? instance.dispatching : current(instance).machine;
+        final BatchResult result = new BatchResult();
+        if (instance.dispatching != null) {
+            events.forEach(event -> fire(instance, event));
+            return result;
+        }
+        final EngineMetrics.Counters counters = instance.version.counters;
+        final State from = begin(machine, instance);
+        try {
+            int i = 0;
+            for (final String event : events) {
+                step(machine, instance, machine.getEventId(event), i++, result, counters);
+            }
+        }
+        finally {
+            finish(instance);
+        }
+        return end(machine, instance, from, result);
+    }
+    
+    /**
+     * Fires a batch of events with the specified integer IDs on the
+     * specified instance in one loop, as
+     * {@link #fireAll(MachineInstance, String[])} does.
+     * 
+     * @param instance the MachineInstance to fire on
+     * @param eventIds the integer IDs of the events
+     * @return the BatchResult
+     * @see Machine#getEventId(String)
+     */
+    public BatchResult fireAll(final MachineInstance instance, final int[] eventIds) {
+        final Machine machine = instance.dispatching != null ? instance.dispatching : current(instance).machine;
+        final BatchResult result = new BatchResult();
+        if (instance.dispatching != null) {
+            for (int i = 0; i < eventIds.length; i++) {
+                fire(instance, eventIds[i]);
+            }
+            return result;
+        }
+        final EngineMetrics.Counters counters = instance.version.counters;
+        final State from = begin(machine, instance);
+        try {
+            for (int i = 0; i < eventIds.length; i++) {
+                step(machine, instance, eventIds[i], i, result, counters);
+            }
+        }
+        finally {
+            finish(instance);
+        }
+        return end(machine, instance, from, result);
+    }
+    
+    /**
+     * Fires a columnar batch of events, the event with integer ID
+     * {@code eventIds[i]} on {@code instances[i]}, in one loop. Each event
+     * runs to completion before the next. Listeners are notified of each
+     * transition, as the batch spans several instances. An event for an
+     * instance which is already processing one is queued on it.
+     * 
+     * @param instances the MachineInstances to fire on
+     * @param eventIds the integer IDs of the events, one per instance
+     * @return the BatchResult
+     * @throws IllegalArgumentException if the arrays differ in length
+     */
+    public BatchResult fire(final MachineInstance[] instances, final int[] eventIds) {
+        if (instances.length != eventIds.length) {
+            throw new IllegalArgumentException(instances.length + " instances but " + eventIds.length + " events");
+        }
+        final BatchResult result = new BatchResult();
+        for (int i = 0; i < instances.length; i++) {
+            final MachineInstance instance = instances[i];
+            if (instance.dispatching != null) {
+                fire(instance, eventIds[i]);
+                continue;
+            }
+            final Version v = current(instance);
+            final Machine machine = v.machine;
+            instance.dispatching = machine;
+            try {
+                step(machine, instance, eventIds[i], i, result, v.counters);
+            }
+            finally {
+                finish(instance);
+            }
+            result.finalState = machine.getState(instance.stateId);
+        }
+        return result;
+    }
+    
+    private static State begin(final Machine machine, final MachineInstance instance) {
+        instance.dispatching = machine;
+        instance.batching = true;
+        return machine.getState(instance.stateId);
+    }
+    
+    // processes one event of a batch and the events it raises
+    private void step(final Machine machine, final MachineInstance instance, final int eventId, final int index,
+            final BatchResult result, final EngineMetrics.Counters counters) {
+        final int taken = isDefined(machine, eventId)
+                ? process(machine, instance, eventId, Machine.UNDEFINED, counters) : 0;
+        if (taken == 0 && result.firstUnhandled == BatchResult.ALL_HANDLED) {
+            result.firstUnhandled = index;
+        }
+        result.transitions += Math.max(0, taken) + drain(machine, instance, counters);
+        result.processed++;
+    }
+    
+    private BatchResult end(final Machine machine, final MachineInstance instance, final State from,
+            final BatchResult result) {
+        result.finalState = machine.getState(instance.stateId);
+        if (result.transitions > 0) {
+            final BatchTransitionListener[] listeners = this.batchListeners;
+            for (int l = 0; l < listeners.length; l++) {
+                listeners[l].onBatch(from, result.finalState, result.transitions);
+            }
+        }
+        return result;
+    }
+    
+    private int drain(final Machine machine, final MachineInstance instance, final EngineMetrics.Counters counters) {
+        final EventQueue queue = instance.queue;
+        int transitions = 0;
+        while (queue != null && !queue.isEmpty()) {
+            final long event = queue.poll();
+            transitions += Math.max(0, process(machine, instance, (int) event, (int) (event >>> 32) - 1, counters));
+        }
+        return transitions;
+    }
+    
+    // an event as queued on an instance, with the ID of the State whose timeout it is in the upper half
+    private static long queued(final int eventId, final int source) {
+        return (long) (source + 1) << 32 | eventId;
+    }
+    
+    private static void finish(final MachineInstance instance) {
+        instance.dispatching = null;
+        instance.batching = false;
+        if (instance.queue != null) {
+            // only left over if an Action failed
+            instance.queue.clear();
+        }
+    }
+    
+    // returns the number of Transitions taken, or -1 if the event was deferred;
+    // a timeout of the State with ID source is never deferred
+    private int process(final Machine machine, final MachineInstance instance, final int eventId, final int source,
+            final EngineMetrics.Counters counters) {
+        final long start = counters != null ? System.nanoTime() : 0;
+        final int dispatched = dispatch(machine, instance, eventId, source, counters);
+        final int taken = dispatched & (MOVED - 1);
+        boolean deferring = false;
+        if (taken > 0) {
+            instance.changed = true;
+            final EventQueue deferred = instance.deferred;
+            if (dispatched >= MOVED && deferred != null && !deferred.isEmpty()) {
+                // give the deferred events a chance in the new State, which a Transition without a target never enters
+                deferred.drainToFront(instance.queue());
+            }
+        }
+        else if (source == Machine.UNDEFINED && isDeferred(machine, instance, eventId)) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("deferring event {}", machine.getEvent(eventId));
+            }
+            instance.deferred().offer(eventId);
+            deferring = true;
+        }
+        if (counters != null) {
+            counters.processed(eventId, taken > 0, deferring, System.nanoTime() - start);
+        }
+        return deferring ? -1 : taken;
+    }
+    
+    // returns the number of Transitions taken, plus MOVED if any had a target
+    private int dispatch(final Machine machine, final MachineInstance instance, final int eventId, final int source,
+            final EngineMetrics.Counters counters) {
+        final Context context = instance.getContext();
+        final TransitionListener[] listeners = instance.batching ? this.eagerListeners : this.listeners;
+        final TransitionJournal journal = this.journal;
+        int taken = 0;
+        int moved = 0;
+        // visit only the Regions with a Transition for the event, or the Region of the State timing out
+        final long mask = source == Machine.UNDEFINED ? machine.getRegionMask(eventId) : 1L << machine.getRegionOf(source);
+        for (long regions = mask; regions != 0; regions &= regions - 1) {
+            final int region = Long.numberOfTrailingZeros(regions);
+            final int stateId = instance.getStateId(region);
+            final Route route = select(machine, stateId, eventId, source, context, counters);
+            if (route != null) {
+                taken++;
+                final State from = machine.getState(stateId);
+                leave(route, context, counters);
+                if (route.target != null) {
+                    moved = MOVED;
+                    instance.setStateId(region, route.target.getIndex());
+                    if (journal != null) {
+                        journal.append(machine, instance.getId(), stateId, route.target.getIndex(), eventId);
+                    }
+                    cancelTimers(instance, route.timedExits);
+                    armTimers(machine, instance, route.timedEntries);
+                    enter(from, route, context, counters, listeners);
+                }
+            }
+        }
+        return taken | moved;
+    }
+    
+    /**
+     * Processes the event with the specified integer ID on the specified
+     * instance, and any deferred events it releases, moving only its current
+     * {@link State}s: {@link Condition}s are evaluated, but no {@link Action}s
+     * are executed, no listeners notified, no timers armed and no metrics
+     * recorded. Used to rebuild instances from a log of their events.
+     * 
+     * @param instance the MachineInstance, which must not be processing an event
+     * @param eventId the integer ID of the event
+     * @return the number of Transitions taken
+     */
+    int replay(final MachineInstance instance, final int eventId) {
+        final Machine machine = current(instance).machine;
+        int transitions = replayOne(machine, instance, eventId);
+        final EventQueue queue = instance.queue;
+        while (queue != null && !queue.isEmpty()) {
+            transitions += replayOne(machine, instance, (int) queue.poll());
+        }
+        return transitions;
+    }
+    
+    private int replayOne(final Machine machine, final MachineInstance instance, final int eventId) {
+        final Context context = instance.getContext();
+        int taken = 0;
+        boolean moved = false;
+        for (long regions = machine.getRegionMask(eventId); regions != 0; regions &= regions - 1) {
+            final int region = Long.numberOfTrailingZeros(regions);
+            final Route route = select(machine, instance.getStateId(region), eventId, Machine.UNDEFINED, context, null);
+            if (route != null) {
+                taken++;
+                if (route.target != null) {
+                    moved = true;
+                    instance.setStateId(region, route.target.getIndex());
+                }
+            }
+        }
+        if (taken > 0) {
+            instance.changed = true;
+            final EventQueue deferred = instance.deferred;
+            if (moved && deferred != null && !deferred.isEmpty()) {
+                deferred.drainToFront(instance.queue());
+            }
+        }
+        else if (isDeferred(machine, instance, eventId)) {
+            instance.deferred().offer(eventId);
+        }
+        return taken;
+    }
+    
+    /**
+     * Fires the timeout event of a {@link Timer} which has expired on its
+     * instance.
+     * 
+     * @param timer the expired Timer
+     */
+    void timeout(final Timer timer) {
+        final MachineInstance instance = timer.instance;
+        if (instance == null) {
+            // its event was removed by a reload
+            return;
+        }
+        final Machine machine = instance.dispatching != null ? instance.dispatching : current(instance).machine;
+        if (timer.instance == null) {
+            // migrating the instance found its State or event removed by a reload
+            return;
+        }
+        final int stateId = timer.stateId;
+        final int eventId = timer.eventId;
+        release(instance, timer);
+        fire(machine, instance, eventId, stateId);
+    }
+    
+    private void armTimers(final Machine machine, final MachineInstance instance, final State[] states) {
+        if (this.timers == null) {
+            return;
+        }
+        for (int s = 0; s < states.length; s++) {
+            final int stateId = states[s].getIndex();
+            final long[] delays = machine.getTimeouts(stateId);
+            final int[] events = machine.getTimeoutEvents(stateId);
+            for (int i = 0; i < delays.length; i++) {
+                Timer timer = instance.spareTimers;
+                if (timer != null) {
+                    instance.spareTimers = timer.nextOfInstance;
+                }
+                else {
+                    timer = new Timer();
+                    timer.engine = this;
+                }
+                timer.instance = instance;
+                timer.stateId = stateId;
+                timer.eventId = events[i];
+                timer.nextOfInstance = instance.timers;
+                instance.timers = timer;
+                this.timers.schedule(timer, delays[i]);
+            }
+        }
+    }
+    
+    private void cancelTimers(final MachineInstance instance, final State[] states) {
+        for (int s = 0; s < states.length && instance.timers != null; s++) {
+            final int stateId = states[s].getIndex();
+            Timer timer = instance.timers;
+            while (timer != null) {
+                final Timer next = timer.nextOfInstance;
+                if (timer.stateId == stateId) {
+                    this.timers.cancel(timer);
+                    release(instance, timer);
+                }
+                timer = next;
+            }
+        }
+    }
+    
+    private void cancelTimers(final MachineInstance instance) {
+        while (instance.timers != null) {
+            final Timer timer = instance.timers;
+            this.timers.cancel(timer);
+            release(instance, timer);
+        }
+    }
+    
+    // moves a disarmed Timer to the spare Timers of its instance
+    private static void release(final MachineInstance instance, final Timer timer) {
+        if (instance.timers == timer) {
+            instance.timers = timer.nextOfInstance;
+        }
+        else {
+            Timer prev = instance.timers;
+            while (prev.nextOfInstance != timer) {
+                prev = prev.nextOfInstance;
+            }
+            prev.nextOfInstance = timer.nextOfInstance;
+        }
+        timer.instance = null;
+        timer.nextOfInstance = instance.spareTimers;
+        instance.spareTimers = timer;
+    }
+    
+    private static boolean isDeferred(final Machine machine, final MachineInstance instance, final int eventId) {
+        for (int r = 0; r < machine.getRegionCount(); r++) {
+            if (machine.isDeferred(instance.getStateId(r), eventId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Adds an instance to the specified {@link OffHeapInstanceStore} in the
+     * start {@link State}. The entry {@link Action}s of the start
+     * {@link State} and its ancestors are not executed until the instance
+     * is started.
+     * 
+     * @param store the OffHeapInstanceStore to add to
+     * @param instanceId the ID of the instance
+     * @throws IllegalArgumentException if the store holds fewer Regions per
+     *         instance than the Machine has
+     * @see #start(OffHeapInstanceStore.Cursor, long)
+     */
+    public void newInstance(final OffHeapInstanceStore store, final long instanceId) {
+        final Version v = this.version;
+        final Machine machine = v.machine;
+        if (store.getRegions() < machine.getRegionCount()) {
+            throw new IllegalArgumentException("Store holds " + store.getRegions()
+                    + " regions per instance but the machine has " + machine.getRegionCount());
+        }
+        final long record = store.add(instanceId, machine.getStartState().getIndex(), v);
+        for (int r = 1; r < machine.getRegionCount(); r++) {
+            store.setStateIdAt(record, r, machine.getStartState(r).getIndex());
+        }
+    }
+    
+    /**
+     * Executes the entry {@link Action}s of the current {@link State} of an
+     * instance in an {@link OffHeapInstanceStore} and of its ancestors,
+     * outermost first, in every {@link Region}. Events the {@link Action}s
+     * fire through the same {@link OffHeapInstanceStore.Cursor} are processed
+     * once they have all run. If the cursor is already processing an event
+     * the instance is started after it, like a queued event.
+     * 
+     * @param cursor the Cursor over the store holding the instance
+     * @param instanceId the ID of the instance
+     * @throws IllegalArgumentException if the instance does not exist
+     */
+    public void start(final OffHeapInstanceStore.Cursor cursor, final long instanceId) {
+        if (cursor.dispatching) {
+            final EventQueue queue = cursor.queue();
+            queue.offer(instanceId);
+            queue.offer(START);
+            return;
+        }
+        cursor.dispatching = true;
+        try {
+            enter(cursor, instanceId);
+            drain(cursor);
+        }
+        finally {
+            cursor.dispatching = false;
+            if (cursor.queue != null) {
+                cursor.queue.clear();
+            }
+        }
+    }
+    
+    private void enter(final OffHeapInstanceStore.Cursor cursor, final long instanceId) {
+        final long record = cursor.moveTo(instanceId);
+        final Version v = current(cursor.getStore(), record);
+        final Machine machine = v.machine;
+        final EngineMetrics.Counters counters = v.counters;
+        for (int r = 0; r < machine.getRegionCount(); r++) {
+            execute(machine.getEntryPath(cursor.getStore().stateIdAt(record, r)), cursor, counters);
+        }
+    }
+    
+    // processes the events and starts queued on the cursor, returning the number of Transitions taken
+    private int drain(final OffHeapInstanceStore.Cursor cursor) {
+        final EventQueue queue = cursor.queue;
+        int taken = 0;
+        while (queue != null && !queue.isEmpty()) {
+            final long instanceId = queue.poll();
+            final long event = queue.poll();
+            if (event == START) {
+                enter(cursor, instanceId);
+            }
+            else {
+                taken += dispatch(cursor, instanceId, (int) event);
+            }
+        }
+        return taken;
+    }
+    
+    /**
+     * Returns the current {@link State} of an instance in an
+     * {@link OffHeapInstanceStore}, in the latest version of the
+     * {@link Machine}.
+     * 
+     * @param store the OffHeapInstanceStore holding the instance
+     * @param instanceId the ID of the instance
+     * @return the current State
+     */
+    public State getState(final OffHeapInstanceStore store, final long instanceId) {
+        final long record = store.record(instanceId);
+        return current(store, record).machine.getState(store.stateIdAt(record));
+    }
+    
+    /**
+     * Returns the current {@link State} of an instance in an
+     * {@link OffHeapInstanceStore} in the specified {@link Region}, in the
+     * latest version of the {@link Machine}.
+     * 
+     * @param store the OffHeapInstanceStore holding the instance
+     * @param instanceId the ID of the instance
+     * @param region the integer ID of the Region
+     * @return the current State of the Region
+     */
+    public State getState(final OffHeapInstanceStore store, final long instanceId, final int region) {
+        final long record = store.record(instanceId);
+        return current(store, record).machine.getState(store.stateIdAt(record, region));
+    }
+    
+    /**
+     * Fires the event with the specified integer ID on an instance in an
+     * {@link OffHeapInstanceStore}. The {@link OffHeapInstanceStore.Cursor} is positioned on the
+     * instance and passed to the {@link Condition}s and {@link Action}s as
+     * their {@link Context}. No object is created for the instance.
+     * 
+     * {@link Action}s must not add or remove instances of the store while
+     * an event is being fired. Events they fire through the same
+     * {@link OffHeapInstanceStore.Cursor}, on any instance, are queued and
+     * processed once the current event has run to completion, after which
+     * the cursor is left on the last instance processed. Deferred events are
+     * not kept for instances in an {@link OffHeapInstanceStore}. An ID of
+     * {@link Machine#UNDEFINED} is ignored.
+     * 
+     * @param cursor the Cursor over the store holding the instance
+     * @param instanceId the ID of the instance
+     * @param eventId the integer ID of the event
+     * @throws IllegalArgumentException if the instance does not exist or the
+     *         ID is neither UNDEFINED nor an event ID of its Machine
+     */
+    public void fire(final OffHeapInstanceStore.Cursor cursor, final long instanceId, final int eventId) {
+        if (cursor.dispatching) {
+            final EventQueue queue = cursor.queue();
+            queue.offer(instanceId);
+            queue.offer(eventId);
+            return;
+        }
+        cursor.dispatching = true;
+        try {
+            dispatch(cursor, instanceId, eventId);
+            drain(cursor);
+        }
+        finally {
+            cursor.dispatching = false;
+            if (cursor.queue != null) {
+                cursor.queue.clear();
+            }
+        }
+    }
+    
+    /**
+     * Fires a columnar batch of events on instances in an
+     * {@link OffHeapInstanceStore}, the event with integer ID
+     * {@code eventIds[i]} on the instance with ID {@code instanceIds[i]}, in
+     * one loop. Each event runs to completion before the next, and listeners
+     * are notified of each transition. If the cursor is already processing an
+     * event the events are queued and the result counts nothing.
+     * 
+     * @param cursor the Cursor over the store holding the instances
+     * @param instanceIds the IDs of the instances
+     * @param eventIds the integer IDs of the events, one per instance
+     * @return the BatchResult
+     * @throws IllegalArgumentException if the arrays differ in length or an
+     *         instance does not exist
+     */
+    public BatchResult fire(final OffHeapInstanceStore.Cursor cursor, final long[] instanceIds, final int[] eventIds) {
+        if (instanceIds.length != eventIds.length) {
+            throw new IllegalArgumentException(instanceIds.length + " instances but " + eventIds.length + " events");
+        }
+        final BatchResult result = new BatchResult();
+        if (cursor.dispatching) {
+            final EventQueue queue = cursor.queue();
+            for (int i = 0; i < instanceIds.length; i++) {
+                queue.offer(instanceIds[i]);
+                queue.offer(eventIds[i]);
+            }
+            return result;
+        }
+        cursor.dispatching = true;
+        try {
+            for (int i = 0; i < instanceIds.length; i++) {
+                final int taken = dispatch(cursor, instanceIds[i], eventIds[i]);
+                if (taken == 0 && result.firstUnhandled == BatchResult.ALL_HANDLED) {
+                    result.firstUnhandled = i;
+                }
+                result.transitions += taken;
+                result.processed++;
+                result.transitions += drain(cursor);
+            }
+            if (instanceIds.length > 0) {
+                result.finalState = getState(cursor.getStore(), instanceIds[instanceIds.length - 1]);
+            }
+        }
+        finally {
+            cursor.dispatching = false;
+            if (cursor.queue != null) {
+                cursor.queue.clear();
+            }
+        }
+        return result;
+    }
+    
+    // returns the number of Transitions taken
+    private int dispatch(final OffHeapInstanceStore.Cursor cursor, final long instanceId, final int eventId) {
+        final OffHeapInstanceStore store = cursor.getStore();
+        final long record = cursor.moveTo(instanceId);
+        final Version v = current(store, record);
+        final Machine machine = v.machine;
+        if (!isDefined(machine, eventId)) {
+            return 0;
+        }
+        final EngineMetrics.Counters counters = v.counters;
+        final long start = counters != null ? System.nanoTime() : 0;
+        final TransitionListener[] listeners = this.listeners;
+        final TransitionJournal journal = this.journal;
+        int taken = 0;
+        for (long regions = machine.getRegionMask(eventId); regions != 0; regions &= regions - 1) {
+            final int region = Long.numberOfTrailingZeros(regions);
+            final int stateId = store.stateIdAt(record, region);
+            final Route route = select(machine, stateId, eventId, Machine.UNDEFINED, cursor, counters);
+            if (route != null) {
+                taken++;
+                final State from = machine.getState(stateId);
+                leave(route, cursor, counters);
+                if (route.target != null) {
+                    store.setStateIdAt(record, region, route.target.getIndex());
+                    if (journal != null) {
+                        journal.append(machine, instanceId, stateId, route.target.getIndex(), eventId);
+                    }
+                    enter(from, route, cursor, counters, listeners);
+                }
+            }
+        }
+        if (counters != null) {
+            counters.processed(eventId, taken > 0, false, System.nanoTime() - start);
+        }
+        return taken;
+    }
+    
+    /**
+     * Returns the latest {@link Version}, first moving the instance to it
+     * if it was last used with an older version.
+     * 
+     * @param instance the MachineInstance
+     * @return the latest Version
+     */
+    private Version current(final MachineInstance instance) {
+        final Link link = instance.version.latest();
+        if (link == null) {
+            return instance.version;
+        }
+        final Version v = link.to;
+        for (int r = 0; r < v.machine.getRegionCount(); r++) {
+            instance.setStateId(r, link.states[instance.getStateId(r)]);
+        }
+        Timer timer = instance.timers;
+        while (timer != null) {
+            final Timer next = timer.nextOfInstance;
+            timer.stateId = link.exactStates[timer.stateId];
+            timer.eventId = link.event(timer.eventId);
+            if (timer.stateId == Machine.UNDEFINED || timer.eventId == Machine.UNDEFINED) {
+                this.timers.cancel(timer);
+                release(instance, timer);
+            }
+            timer = next;
+        }
+        final EventQueue deferred = instance.deferred;
+        if (deferred != null) {
+            // event IDs also change, and deferred events may no longer exist
+            for (int i = deferred.size(); i > 0; i--) {
+                final int eventId = link.event((int) deferred.poll());
+                if (eventId != Machine.UNDEFINED) {
+                    deferred.offer(eventId);
+                }
+            }
+        }
+        instance.version = v;
+        return v;
+    }
+    
+    private Version current(final OffHeapInstanceStore store, final long record) {
+        final Version from = store.versionAt(record);
+        final Link link = from.latest();
+        if (link == null) {
+            return from;
+        }
+        for (int r = 0; r < link.to.machine.getRegionCount(); r++) {
+            store.setStateIdAt(record, r, link.states[store.stateIdAt(record, r)]);
+        }
+        store.setVersionAt(record, link.to);
+        return link.to;
+    }
+    
+    /**
+     * Selects the first {@link Route} from the specified {@link State} for
+     * the specified event whose {@link Condition} passes. The {@link Transition}s
+     * of the {@link State} itself are tried before those of its ancestors. A
+     * timeout only tries the {@link Transition}s declared by the
+     * {@link State} which armed its timer.
+     * 
+     * @param machine the Machine the IDs belong to
+     * @param stateId the integer ID of the current State
+     * @param eventId the integer ID of the event
+     * @param source the integer ID of the State whose timeout the event is,
+     *        or {@link Machine#UNDEFINED} for any other event
+     * @param context the Context to evaluate
+     * @param counters the Counters to record in, or {@code null}
+     * @return the Route to take, or {@code null} if there is none
+     */
+    Route select(final Machine machine, final int stateId, final int eventId, final int source,
+            final Context context, final EngineMetrics.Counters counters) {
+        final State currentState = machine.getState(stateId);
+        final boolean debug = this.logger.isDebugEnabled();
+        if (debug) {
+            this.logger.debug("firing event {} on {}", machine.getEvent(eventId), currentState.getId());
+        }
+        if (currentState.isFinal()) {
+            if (debug) {
+                this.logger.debug("{} is in a final state", currentState.getId());
+            }
+            return null;
+        }
+        final Route[] routes = machine.getRoutes(stateId, eventId);
+        for (int i = 0; i < routes.length; i++) {
+            if (source != Machine.UNDEFINED && routes[i].declaring.getIndex() != source) {
+                continue;
+            }
+            final Condition condition = routes[i].condition;
+            if (condition == null
+                    || (counters == null ? condition.evaluate(context) : counters.evaluate(routes[i], context))) {
+                return routes[i];
+            }
+        }
+        if (debug) {
+            this.logger.debug("no transition for event {}", machine.getEvent(eventId));
+        }
+        return null;
+    }
+    
+    /**
+     * Executes the exit {@link Action}s of every {@link State} left by the
+     * {@link Route}, innermost first, followed by the {@link Transition}
+     * {@link Action}s.
+     * 
+     * @param route the Route being taken
+     * @param context the Context to action on
+     * @param counters the Counters to record in, or {@code null}
+     */
+    void leave(final Route route, final Context context, final EngineMetrics.Counters counters) {
+        if (counters != null) {
+            counters.taken(route);
+        }
+        execute(route.exitActions, context, counters);
+        execute(route.actions, context, counters);
+    }
+    
+    /**
+     * Notifies the listeners of a {@link Route} to a target and executes
+     * the entry {@link Action}s of every {@link State} entered, outermost
+     * first. This should be called once the instance has moved to the target.
+     * 
+     * @param from the origin State
+     * @param route the Route being taken
+     * @param context the Context to action on
+     * @param counters the Counters to record in, or {@code null}
+     * @param listeners the TransitionListeners to notify
+     */
+    void enter(final State from, final Route route, final Context context, final EngineMetrics.Counters counters,
+            final TransitionListener[] listeners) {
+        for (int l = 0; l < listeners.length; l++) {
+            listeners[l].onTransition(from, route.target, route.transition.getEvent());
+        }
+        execute(route.entryActions, context, counters);
+    }
+    
+    private static void execute(final Action[] actions, final Context context, final EngineMetrics.Counters counters) {
+        if (counters != null) {
+            counters.execute(actions, context);
+            return;
+        }
+        for (int i = 0; i < actions.length; i++) {
+            actions[i].execute(context);
+        }
+    }
+    
+    // maps each ID through the first map, then the second, keeping UNDEFINED
+    private static int[] compose(final int[] first, final int[] second) {
+        final int[] composed = new int[first.length];
+        for (int i = 0; i < first.length; i++) {
+            composed[i] = first[i] == Machine.UNDEFINED ? Machine.UNDEFINED : second[first[i]];
+        }
+        return composed;
+    }
+    
+    /**
+     * A version of the {@link Machine}, linked to the next version once the
+     * engine is reloaded. Only instances and older versions refer to a
+     * version, so the engine holds no more versions than its instances use.
+     */
+    static final class Version {
+        
+        final Machine machine;
+        
+        // the Counters of the Machine, or null without EngineMetrics
+        final EngineMetrics.Counters counters;
+        
+        // the Link to a later version, or null if this is the latest
+        volatile Link next;
+        
+        Version(final Machine machine, final EngineMetrics.Counters counters) {
+            this.machine = machine;
+            this.counters = counters;
+        }
+        
+        /**
+         * Returns a {@link Link} from this version straight to the latest,
+         * composing the links between them the first time it is followed
+         * from here, so an instance moves in one step however many reloads
+         * it missed. A thread racing with a reload may be linked to a version
+         * newer than the one it last read, which is as current.
+         * 
+         * @return the Link, or {@code null} if this is the latest version
+         */
+        Link latest() {
+            final Link first = this.next;
+            if (first == null || first.to.next == null) {
+                return first;
+            }
+            int[] states = first.states;
+            int[] exactStates = first.exactStates;
+            int[] events = first.events;
+            Version to = first.to;
+            Link step;
+            while ((step = to.next) != null) {
+                states = compose(states, step.states);
+                exactStates = compose(exactStates, step.exactStates);
+                events = compose(events, step.events);
+                to = step.to;
+            }
+            final Link direct = new Link(to, states, exactStates, events);
+            this.next = direct;
+            return direct;
+        }
+    }
+    
+    /**
+     * The mappings of {@link State} and event IDs from one {@link Version}
+     * to a later one.
+     */
+    static final class Link {
+        
+        final Version to;
+        
+        // maps each State ID to the State with the same ID, or to its initial leaf if it has become composite,
+        // or to the start State of its Region if it was removed
+        final int[] states;
+        
+        // maps each State ID to the State with the same ID, or UNDEFINED if it was removed
+        final int[] exactStates;
+        
+        // maps each event ID to the same event, or UNDEFINED if the later Machine has no such event
+        final int[] events;
+        
+        Link(final Version to, final int[] states, final int[] exactStates, final int[] events) {
+            this.to = to;
+            this.states = states;
+            this.exactStates = exactStates;
+            this.events = events;
+        }
+        
+        int event(final int eventId) {
+            return eventId == Machine.UNDEFINED ? eventId : this.events[eventId];
+        }
+    }
+}
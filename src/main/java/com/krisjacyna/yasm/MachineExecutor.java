@@ -1,86 +1,136 @@
 package com.krisjacyna.yasm;
 
-import java.util.List;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /**
+ * Executes a {@link Machine} against a {@link Context}, moving between
+ * {@link State}s as events are fired.
+ * 
+ * A {@link MachineExecutor} is a convenience pairing of a
+ * {@link MachineEngine} and a single {@link MachineInstance}. Where many
+ * instances of the same {@link Machine} are needed, share one
+ * {@link MachineEngine} and create a {@link MachineInstance} for each.
+ * Firing events does not allocate once the {@link TransitionListener}s
+ * have been added (see {@link MachineEngine}).
  * 
  * @author Kris Jacyna
  */
 public class MachineExecutor {
     
-    private final Logger logger = LoggerFactory.getLogger(getClass());
-    
-    private final Machine machine;
-    
-    private State currentState;
-    
-    private final Context context;
+    private final MachineEngine engine;
     
-    private final Set<TransitionListener> listeners = new CopyOnWriteArraySet<>();
+    private final MachineInstance instance;
 
     public MachineExecutor(final Machine machine, final Context context) {
-        this.machine = machine;
-        this.context = context;
-        reset();
+        this(new MachineEngine(machine), context);
+    }
+    
+    /**
+     * Creates a new {@link MachineExecutor} which fires through the specified
+     * {@link MachineEngine}, so that every executor of the engine follows
+     * its {@link MachineEngine#reload(Machine) reloads} and shares its
+     * {@link TransitionListener}s.
+     * 
+     * @param engine the MachineEngine to fire through
+     * @param context the Context to action on
+     */
+    public MachineExecutor(final MachineEngine engine, final Context context) {
+        this.engine = engine;
+        this.instance = this.engine.newInstance(context);
+    }
+    
+    /**
+     * Returns the {@link MachineEngine} this executor fires through.
+     * 
+     * @return the MachineEngine
+     */
+    public MachineEngine getEngine() {
+        return this.engine;
     }
 
     public void reset() {
-        this.currentState = this.machine.getInitialState();
+        this.engine.reset(this.instance);
     }
     
     public void start() {
-        this.currentState.getEntryActions().forEach(a -> a.execute(this.context));
+        this.engine.start(this.instance);
     }
     
     public void addListener(final TransitionListener listener) {
-        this.listeners.add(listener);
+        this.engine.addListener(listener);
+    }
+    
+    /**
+     * Returns the current {@link State}.
+     * 
+     * @return the current State
+     */
+    public State getCurrentState() {
+        return this.engine.getState(this.instance);
+    }
+    
+    /**
+     * Returns the current {@link State} of the specified {@link Region}.
+     * 
+     * @param region the integer ID of the Region
+     * @return the current State of the Region
+     */
+    public State getCurrentState(final int region) {
+        return this.engine.getState(this.instance, region);
+    }
+    
+    /**
+     * Returns the integer ID of the current {@link State}.
+     * 
+     * @return the integer ID of the current State
+     * @see Machine#getStateId(String)
+     */
+    public int getCurrentStateId() {
+        return getCurrentState().getIndex();
     }
     
     public void fire(final String event) {
-        this.logger.info("firing event {} on {}", event, this.currentState.getId());
-        if (this.currentState.isFinal()) {
-            this.logger.info("{} is in a final state", this.currentState.getId());
-            return;
-        }
-        final List<Transition> transitions = this.currentState.getTransitions(event);
-        if (transitions.isEmpty()) {
-            this.logger.info("no transition for event {}", event);
-            return;
-        }
-        for (final Transition trans : transitions) {
-            if (evaluateCondition(trans)) {
-                
-                if (trans.getTarget().isPresent()) {
-                    // do exit actions
-                    this.currentState.getExitActions().forEach(a -> a.execute(this.context));
-                }
-                
-                // do trans actions
-                trans.getActions().forEach(a -> a.execute(this.context));
-                
-                // change state
-                if (trans.getTarget().isPresent()) {
-                    final State oldState = this.currentState;
-                    this.currentState = trans.getTarget().get();
-                    // notify listeners
-                    this.listeners.forEach(l -> l.onTransition(oldState, this.currentState, event));
-                    // do entry actions
-                    this.currentState.getEntryActions().forEach(a -> a.execute(this.context));
-                }
-                return;
-            }
-        }
+        this.engine.fire(this.instance, event);
+    }
+    
+    /**
+     * Fires the event with the specified integer ID.
+     * 
+     * @param eventId the integer ID of the event
+     * @see Machine#getEventId(String)
+     */
+    public void fire(final int eventId) {
+        this.engine.fire(this.instance, eventId);
+    }
+    
+    /**
+     * Fires a batch of events in one loop.
+     * 
+     * @param events the event names
+     * @return the BatchResult
+     * @see MachineEngine#fireAll(MachineInstance, String[])
+     */
+    public BatchResult fireAll(final String... events) {
+        return this.engine.fireAll(this.instance, events);
+    }
+    
+    /**
+     * Fires a batch of events in one loop.
+     * 
+     * @param events the event names
+     * @return the BatchResult
+     * @see MachineEngine#fireAll(MachineInstance, Iterable)
+     */
+    public BatchResult fireAll(final Iterable<String> events) {
+        return this.engine.fireAll(this.instance, events);
     }
     
-    private boolean evaluateCondition(final Transition transition) {
-        if (transition.getCondition().isPresent()) {
-            return transition.getCondition().get().evaluate(this.context);
-        }
-        return true;
+    /**
+     * Fires a batch of events with the specified integer IDs in one loop.
+     * 
+     * @param eventIds the integer IDs of the events
+     * @return the BatchResult
+     * @see MachineEngine#fireAll(MachineInstance, int[])
+     */
+    public BatchResult fireAll(final int[] eventIds) {
+        return this.engine.fireAll(this.instance, eventIds);
     }
 }
@@ -0,0 +1,176 @@
+package com.krisjacyna.yasm;
+
+import java.util.Arrays;
+
+/**
+ * The runtime state of a single instance of a {@link Machine}.
+ * 
+ * A {@link MachineInstance} only holds the integer ID of its current
+ * {@link State} and a reference to its {@link Context}, so that millions of
+ * instances can share one {@link Machine} definition. Events are fired on an
+ * instance through the {@link MachineEngine} which created it. An instance of
+ * a {@link Machine} with several {@link Region}s holds one {@link State} ID
+ * per {@link Region}.
+ * 
+ * Events fired while the instance is already processing an event, such as
+ * those fired by an {@link Action}, are queued and processed in order once
+ * the current event has run to completion. Events deferred by its current
+ * {@link State} are held until it moves to another {@link State}. Both
+ * queues are only created when first needed.
+ * 
+ * An instance may be created with a {@code long} ID, which identifies it in
+ * a {@link TransitionJournal}.
+ * 
+ * @author Kris Jacyna
+ */
+public final class MachineInstance {
+    
+    private final long id;
+    
+    // State ID of the first Region
+    int stateId;
+    
+    // State IDs of the second and later Regions, or null with a single Region
+    final int[] regionStateIds;
+    
+    // version of the engine's Machine which the state ID belongs to
+    MachineEngine.Version version;
+    
+    private final Context context;
+    
+    // the Machine an event is being processed with, or null when idle
+    Machine dispatching;
+    
+    // whether a batch is being fired, so batch listeners are notified once
+    boolean batching;
+    
+    // whether the State or Context may have changed since the last checkpoint
+    boolean changed;
+    
+    // events raised while processing, then events deferred by the current State
+    EventQueue queue;
+    
+    EventQueue deferred;
+    
+    // armed Timers, then expired or cancelled Timers kept for reuse
+    Timer timers;
+    
+    Timer spareTimers;
+    
+    MachineInstance(final long id, final int stateId, final MachineEngine.Version version, final Context context) {
+        this(id, stateId, null, version, context);
+    }
+    
+    MachineInstance(final long id, final int stateId, final int[] regionStateIds,
+            final MachineEngine.Version version, final Context context) {
+        this.id = id;
+        this.stateId = stateId;
+        this.regionStateIds = regionStateIds;
+        this.version = version;
+        this.context = context;
+    }
+    
+    /**
+     * Returns the ID this instance was created with.
+     * 
+     * @return the ID, or zero if it was created without one
+     */
+    public long getId() {
+        return this.id;
+    }
+    
+    /**
+     * Returns the integer ID of the current {@link State}. After the
+     * {@link Machine} has been reloaded the ID may belong to an older version
+     * until the instance is next used; {@link MachineEngine#getState} always
+     * returns the {@link State} in the latest version.
+     * 
+     * @return the integer ID of the current State
+     * @see Machine#getState(int)
+     */
+    public int getStateId() {
+        return this.stateId;
+    }
+    
+    /**
+     * Returns the integer ID of the current {@link State} in the specified
+     * {@link Region}, with the same caveat as {@link #getStateId()}.
+     * 
+     * @param region the integer ID of the Region
+     * @return the integer ID of the current State of the Region
+     * @throws IndexOutOfBoundsException if there is no Region with the ID
+     */
+    public int getStateId(final int region) {
+        if (region == 0) {
+            return this.stateId;
+        }
+        if (this.regionStateIds == null) {
+            throw new IndexOutOfBoundsException("Region " + region + " of 1");
+        }
+        return this.regionStateIds[region - 1];
+    }
+    
+    void setStateId(final int region, final int stateId) {
+        if (region == 0) {
+            this.stateId = stateId;
+        }
+        else {
+            this.regionStateIds[region - 1] = stateId;
+        }
+    }
+    
+    EventQueue queue() {
+        if (this.queue == null) {
+            this.queue = new EventQueue();
+        }
+        return this.queue;
+    }
+    
+    EventQueue deferred() {
+        if (this.deferred == null) {
+            this.deferred = new EventQueue();
+        }
+        return this.deferred;
+    }
+    
+    /**
+     * Returns the number of events deferred by the current {@link State}
+     * which are waiting to be fired again.
+     * 
+     * @return the number of deferred events
+     */
+    public int getDeferredCount() {
+        return this.deferred != null ? this.deferred.size() : 0;
+    }
+    
+    /**
+     * Returns the number of {@link Region}s this instance holds a
+     * {@link State} for.
+     * 
+     * @return the number of Regions
+     */
+    public int getRegionCount() {
+        return this.regionStateIds != null ? this.regionStateIds.length + 1 : 1;
+    }
+    
+    /**
+     * Returns the {@link Context} of this instance.
+     * 
+     * @return the Context, which may be {@code null}
+     */
+    public Context getContext() {
+        return this.context;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append("MachineInstance[")
+                .append("id=").append(this.id)
+                .append(", stateId=").append(this.stateId)
+                .append(this.regionStateIds != null ? ", regionStateIds=" + Arrays.toString(this.regionStateIds) : "")
+                .append(", context=").append(this.context)
+                .append("]")
+                .toString();
+    }
+}
@@ -0,0 +1,510 @@
+package com.krisjacyna.yasm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Stores the runtime state of very large numbers of {@link Machine} instances
+ * outside of the Java heap.
+ * 
+ * Each instance is keyed by a {@code long} ID and holds the integer ID of its
+ * current {@link State}, or one per {@link Region} for a {@link Machine} with
+ * several {@link Region}s, plus a fixed number of {@code long} context slots. The
+ * records are kept in direct {@link ByteBuffer}s in an open addressing hash
+ * table, so no Java object is created per instance and the garbage collector
+ * only ever sees a handful of buffers. The capacity is fixed when the store
+ * is created.
+ * 
+ * Events are fired on stored instances with a {@link Cursor} through
+ * {@link MachineEngine#fire(Cursor, long, int)}. A store is not thread-safe.
+ * 
+ * @author Kris Jacyna
+ */
+public class OffHeapInstanceStore {
+    
+    // record layout: [id:long][stateId:int][version + 1:int]
+    // [regionStateId:int]* padded to a long [slot:long]*
+    // where version indexes the versions table and zero marks an unused record
+    private static final int ID_OFFSET = 0;
+    private static final int STATE_OFFSET = 8;
+    private static final int USED_OFFSET = 12;
+    private static final int REGIONS_OFFSET = 16;
+    
+    // largest buffer used for a single segment of records
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+    
+    private final int slots;
+    
+    private final int regions;
+    
+    private final int slotsOffset;
+    
+    private final int recordSize;
+    
+    private final int capacity;
+    
+    private final long mask;
+    
+    private final int segmentShift;
+    
+    private final int segmentMask;
+    
+    private final ByteBuffer[] segments;
+    
+    private int size;
+    
+    // the versions of the engine's Machine which records belong to, and the number of records of each,
+    // so that a version is released once no record belongs to it
+    private MachineEngine.Version[] versions = new MachineEngine.Version[1];
+    
+    private int[] versionRecords = new int[1];
+    
+    /**
+     * Creates a new {@link OffHeapInstanceStore}.
+     * 
+     * @param capacity the maximum number of instances
+     * @param slots the number of {@code long} context slots per instance
+     */
+    public OffHeapInstanceStore(final int capacity, final int slots) {
+        this(capacity, slots, 1);
+    }
+    
+    /**
+     * Creates a new {@link OffHeapInstanceStore} for a {@link Machine} with
+     * the specified number of {@link Region}s.
+     * 
+     * @param capacity the maximum number of instances
+     * @param slots the number of {@code long} context slots per instance
+     * @param regions the number of Regions, and so State IDs, per instance
+     */
+    public OffHeapInstanceStore(final int capacity, final int slots, final int regions) {
+        if (capacity <= 0 || slots < 0 || regions < 1 || regions > Machine.MAX_REGIONS) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity + ", slots " + slots
+                    + " or regions " + regions);
+        }
+        this.capacity = capacity;
+        this.slots = slots;
+        this.regions = regions;
+        final int regionBytes = (regions - 1) * Integer.BYTES;
+        this.slotsOffset = REGIONS_OFFSET + (regionBytes + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+        this.recordSize = this.slotsOffset + slots * Long.BYTES;
+        
+        // keep the table at most three quarters full
+        final long records = Long.highestOneBit(capacity * 4L / 3 + 1) << 1;
+        this.mask = records - 1;
+        
+        final int recordsPerSegment = Integer.highestOneBit(MAX_SEGMENT_BYTES / this.recordSize);
+        final long perSegment = Math.min(records, recordsPerSegment);
+        this.segmentShift = Long.numberOfTrailingZeros(perSegment);
+        this.segmentMask = (int) perSegment - 1;
+        this.segments = new ByteBuffer[(int) (records / perSegment)];
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i] = ByteBuffer.allocateDirect((int) perSegment * this.recordSize)
+                    .order(ByteOrder.nativeOrder());
+        }
+    }
+    
+    /**
+     * Returns the number of instances in this store.
+     * 
+     * @return the number of instances
+     */
+    public int size() {
+        return this.size;
+    }
+    
+    /**
+     * Returns the maximum number of instances this store can hold.
+     * 
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+    
+    /**
+     * Returns the number of {@code long} context slots per instance.
+     * 
+     * @return the number of slots
+     */
+    public int getSlots() {
+        return this.slots;
+    }
+    
+    /**
+     * Returns the number of {@link Region}s, and so {@link State} IDs, per
+     * instance.
+     * 
+     * @return the number of Regions
+     */
+    public int getRegions() {
+        return this.regions;
+    }
+    
+    /**
+     * Adds an instance in the specified {@link State} of the specified
+     * version of the engine's {@link Machine}, with all of its context
+     * slots and the {@link State} IDs of any other {@link Region}s set to
+     * zero. Instances are created with
+     * {@link MachineEngine#newInstance(OffHeapInstanceStore, long)}.
+     * 
+     * @param instanceId the ID of the instance
+     * @param stateId the integer ID of its State
+     * @param version the version of the Machine the State belongs to
+     * @return the record of the instance
+     * @throws IllegalArgumentException if the instance already exists
+     * @throws IllegalStateException if the store is full
+     */
+    long add(final long instanceId, final int stateId, final MachineEngine.Version version) {
+        if (this.size == this.capacity) {
+            throw new IllegalStateException("Instance store is full (" + this.capacity + ")");
+        }
+        long index = hash(instanceId) & this.mask;
+        while (isUsed(index)) {
+            if (id(index) == instanceId) {
+                throw new IllegalArgumentException("Duplicate instance " + instanceId);
+            }
+            index = (index + 1) & this.mask;
+        }
+        final ByteBuffer segment = segment(index);
+        final int offset = offset(index);
+        segment.putLong(offset + ID_OFFSET, instanceId);
+        segment.putInt(offset + STATE_OFFSET, stateId);
+        segment.putInt(offset + USED_OFFSET, acquire(version) + 1);
+        for (int i = REGIONS_OFFSET; i < this.recordSize; i += Long.BYTES) {
+            segment.putLong(offset + i, 0L);
+        }
+        this.size++;
+        return index;
+    }
+    
+    /**
+     * Removes an instance.
+     * 
+     * @param instanceId the ID of the instance
+     * @return {@code true} if the instance was removed, {@code false} if it did not exist
+     */
+    public boolean remove(final long instanceId) {
+        long index = find(instanceId);
+        if (index < 0) {
+            return false;
+        }
+        release(segment(index).getInt(offset(index) + USED_OFFSET) - 1);
+        // shift back any following records which probed past this one
+        long next = (index + 1) & this.mask;
+        while (isUsed(next)) {
+            final long home = hash(id(next)) & this.mask;
+            if (((next - home) & this.mask) >= ((next - index) & this.mask)) {
+                copy(next, index);
+                index = next;
+            }
+            next = (next + 1) & this.mask;
+        }
+        segment(index).putInt(offset(index) + USED_OFFSET, 0);
+        this.size--;
+        return true;
+    }
+    
+    /**
+     * Returns whether an instance exists.
+     * 
+     * @param instanceId the ID of the instance
+     * @return {@code true} if the instance exists, {@code false} otherwise
+     */
+    public boolean contains(final long instanceId) {
+        return find(instanceId) >= 0;
+    }
+    
+    /**
+     * Returns the integer ID of the current {@link State} of an instance.
+     * 
+     * @param instanceId the ID of the instance
+     * @return the integer ID of the current State
+     * @throws IllegalArgumentException if the instance does not exist
+     */
+    public int getStateId(final long instanceId) {
+        return stateIdAt(record(instanceId));
+    }
+    
+    /**
+     * Returns the integer ID of the current {@link State} of an instance in
+     * the specified {@link Region}.
+     * 
+     * @param instanceId the ID of the instance
+     * @param region the integer ID of the Region
+     * @return the integer ID of the current State of the Region
+     * @throws IllegalArgumentException if the instance does not exist
+     */
+    public int getStateId(final long instanceId, final int region) {
+        return stateIdAt(record(instanceId), region);
+    }
+    
+    /**
+     * Sets the integer ID of the current {@link State} of an instance without
+     * executing any {@link Action}s.
+     * 
+     * @param instanceId the ID of the instance
+     * @param stateId the integer ID of the State
+     * @throws IllegalArgumentException if the instance does not exist
+     */
+    public void setStateId(final long instanceId, final int stateId) {
+        setStateIdAt(record(instanceId), stateId);
+    }
+    
+    /**
+     * Returns the value of a context slot of an instance.
+     * 
+     * @param instanceId the ID of the instance
+     * @param slot the index of the slot
+     * @return the value of the slot
+     * @throws IllegalArgumentException if the instance does not exist
+     */
+    public long getLong(final long instanceId, final int slot) {
+        return getLongAt(record(instanceId), slot);
+    }
+    
+    /**
+     * Sets the value of a context slot of an instance.
+     * 
+     * @param instanceId the ID of the instance
+     * @param slot the index of the slot
+     * @param value the value of the slot
+     * @throws IllegalArgumentException if the instance does not exist
+     */
+    public void setLong(final long instanceId, final int slot, final long value) {
+        setLongAt(record(instanceId), slot, value);
+    }
+    
+    /**
+     * Creates a new {@link Cursor} over this store.
+     * 
+     * @return a new Cursor
+     */
+    public Cursor newCursor() {
+        return new Cursor(this);
+    }
+    
+    long record(final long instanceId) {
+        final long index = find(instanceId);
+        if (index < 0) {
+            throw new IllegalArgumentException("No instance " + instanceId);
+        }
+        return index;
+    }
+    
+    int stateIdAt(final long record) {
+        return segment(record).getInt(offset(record) + STATE_OFFSET);
+    }
+    
+    void setStateIdAt(final long record, final int stateId) {
+        segment(record).putInt(offset(record) + STATE_OFFSET, stateId);
+    }
+    
+    int stateIdAt(final long record, final int region) {
+        return segment(record).getInt(stateOffset(record, region));
+    }
+    
+    void setStateIdAt(final long record, final int region, final int stateId) {
+        segment(record).putInt(stateOffset(record, region), stateId);
+    }
+    
+    MachineEngine.Version versionAt(final long record) {
+        return this.versions[segment(record).getInt(offset(record) + USED_OFFSET) - 1];
+    }
+    
+    void setVersionAt(final long record, final MachineEngine.Version version) {
+        final ByteBuffer segment = segment(record);
+        final int offset = offset(record) + USED_OFFSET;
+        release(segment.getInt(offset) - 1);
+        segment.putInt(offset, acquire(version) + 1);
+    }
+    
+    long getLongAt(final long record, final int slot) {
+        return segment(record).getLong(slotOffset(record, slot));
+    }
+    
+    void setLongAt(final long record, final int slot, final long value) {
+        segment(record).putLong(slotOffset(record, slot), value);
+    }
+    
+    private long find(final long instanceId) {
+        long index = hash(instanceId) & this.mask;
+        while (isUsed(index)) {
+            if (id(index) == instanceId) {
+                return index;
+            }
+            index = (index + 1) & this.mask;
+        }
+        return -1;
+    }
+    
+    // returns the index of a version in the versions table, adding it if no record belongs to it yet
+    private int acquire(final MachineEngine.Version version) {
+        int free = -1;
+        for (int i = 0; i < this.versions.length; i++) {
+            if (this.versions[i] == version) {
+                this.versionRecords[i]++;
+                return i;
+            }
+            if (free < 0 && this.versions[i] == null) {
+                free = i;
+            }
+        }
+        if (free < 0) {
+            free = this.versions.length;
+            this.versions = Arrays.copyOf(this.versions, free << 1);
+            this.versionRecords = Arrays.copyOf(this.versionRecords, free << 1);
+        }
+        this.versions[free] = version;
+        this.versionRecords[free] = 1;
+        return free;
+    }
+    
+    private void release(final int index) {
+        if (--this.versionRecords[index] == 0) {
+            this.versions[index] = null;
+        }
+    }
+    
+    private boolean isUsed(final long index) {
+        return segment(index).getInt(offset(index) + USED_OFFSET) != 0;
+    }
+    
+    private long id(final long index) {
+        return segment(index).getLong(offset(index) + ID_OFFSET);
+    }
+    
+    private void copy(final long from, final long to) {
+        final ByteBuffer src = segment(from);
+        final ByteBuffer dst = segment(to);
+        final int srcOffset = offset(from);
+        final int dstOffset = offset(to);
+        for (int i = 0; i < this.recordSize; i += Long.BYTES) {
+            dst.putLong(dstOffset + i, src.getLong(srcOffset + i));
+        }
+    }
+    
+    private int slotOffset(final long record, final int slot) {
+        if (slot < 0 || slot >= this.slots) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " of " + this.slots);
+        }
+        return offset(record) + this.slotsOffset + slot * Long.BYTES;
+    }
+    
+    private int stateOffset(final long record, final int region) {
+        if (region == 0) {
+            return offset(record) + STATE_OFFSET;
+        }
+        if (region < 0 || region >= this.regions) {
+            throw new IndexOutOfBoundsException("Region " + region + " of " + this.regions);
+        }
+        return offset(record) + REGIONS_OFFSET + (region - 1) * Integer.BYTES;
+    }
+    
+    private ByteBuffer segment(final long index) {
+        return this.segments[(int) (index >>> this.segmentShift)];
+    }
+    
+    private int offset(final long index) {
+        return ((int) index & this.segmentMask) * this.recordSize;
+    }
+    
+    private static long hash(final long id) {
+        // MurmurHash3 finalizer
+        long h = id;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
+    /**
+     * A {@link Context} which is positioned on one instance of an
+     * {@link OffHeapInstanceStore} at a time, giving {@link Action}s and
+     * {@link Condition}s access to that instance's context slots.
+     * 
+     * A {@link Cursor} is reused for every instance it fires on, so it should
+     * be owned by a single thread. The named variables of the underlying
+     * {@link Context} are shared by every instance and are not stored
+     * off-heap; per instance values must use the slots.
+     */
+    public static final class Cursor extends Context {
+        
+        private final OffHeapInstanceStore store;
+        
+        private long instanceId;
+        
+        private long record = -1;
+        
+        // whether an event is being fired through this Cursor
+        boolean dispatching;
+        
+        // instance and event ID pairs fired while dispatching
+        EventQueue queue;
+        
+        Cursor(final OffHeapInstanceStore store) {
+            this.store = store;
+        }
+        
+        /**
+         * Returns the {@link OffHeapInstanceStore} of this {@link Cursor}.
+         * 
+         * @return the OffHeapInstanceStore
+         */
+        public OffHeapInstanceStore getStore() {
+            return this.store;
+        }
+        
+        /**
+         * Returns the ID of the instance this {@link Cursor} is positioned on.
+         * 
+         * @return the instance ID
+         */
+        public long getInstanceId() {
+            return this.instanceId;
+        }
+        
+        /**
+         * Returns the value of a context slot of the current instance.
+         * 
+         * @param slot the index of the slot
+         * @return the value of the slot
+         */
+        public long getLong(final int slot) {
+            return this.store.getLongAt(record(), slot);
+        }
+        
+        /**
+         * Sets the value of a context slot of the current instance.
+         * 
+         * @param slot the index of the slot
+         * @param value the value of the slot
+         */
+        public void setLong(final int slot, final long value) {
+            this.store.setLongAt(record(), slot, value);
+        }
+        
+        EventQueue queue() {
+            if (this.queue == null) {
+                this.queue = new EventQueue();
+            }
+            return this.queue;
+        }
+        
+        long moveTo(final long instanceId) {
+            this.record = this.store.record(instanceId);
+            this.instanceId = instanceId;
+            return this.record;
+        }
+        
+        private long record() {
+            if (this.record < 0) {
+                throw new IllegalStateException("Cursor is not positioned on an instance");
+            }
+            return this.record;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.krisjacyna.yasm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents an orthogonal region of a {@link Machine}.
+ * 
+ * A {@link Machine} with several {@link Region}s is in one {@link State} of
+ * every {@link Region} at once, and each event is dispatched to all of the
+ * {@link Region}s which have a {@link Transition} for it in a single pass.
+ * A {@link Region} holds a set of top level {@link State}s, one of which it
+ * starts in. {@link Transition}s may not cross from one {@link Region} to
+ * another.
+ * 
+ * A {@link Machine} without explicit {@link Region}s has a single
+ * {@link Region} named {@value #DEFAULT}.
+ *
+ * @author Kris Jacyna
+ */
+public final class Region {
+    
+    /** The ID of the single {@link Region} of a {@link Machine} without explicit regions. */
+    public static final String DEFAULT = "default";
+    
+    private final String id;
+    
+    private final State initialState;
+    
+    private final List<State> states;
+    
+    /**
+     * Creates a new {@link Region}.
+     * 
+     * @param id the ID of the Region
+     * @param initialState the top level State the Region starts in
+     * @param states the top level States of the Region, including the initial State
+     * @throws IllegalArgumentException if a State is not top level or the
+     *         initial State is not one of the States
+     */
+    public Region(final String id, final State initialState, final Collection<State> states) {
+        if (!states.contains(initialState)) {
+            throw new IllegalArgumentException("Initial state '" + initialState.getId()
+                    + "' is not in region '" + id + "'");
+        }
+        for (final State state : states) {
+            if (state.getParent() != null) {
+                throw new IllegalArgumentException("State '" + state.getId()
+                        + "' of region '" + id + "' is not a top level state");
+            }
+        }
+        this.id = id;
+        this.initialState = initialState;
+        this.states = Collections.unmodifiableList(new ArrayList<>(states));
+    }
+    
+    /**
+     * Returns the ID of this {@link Region}.
+     * 
+     * @return the ID
+     */
+    public String getId() {
+        return this.id;
+    }
+    
+    /**
+     * Returns the top level {@link State} this {@link Region} starts in.
+     * 
+     * @return the initial State
+     */
+    public State getInitialState() {
+        return this.initialState;
+    }
+    
+    /**
+     * Returns the top level {@link State}s of this {@link Region}.
+     * 
+     * @return an unmodifiable List of States
+     */
+    public List<State> getStates() {
+        return this.states;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append("Region [id=").append(this.id)
+                .append(", initialState=").append(this.initialState.getId())
+                .append(", states=").append(this.states.size())
+                .append("]")
+                .toString();
+    }
+}
@@ -0,0 +1,557 @@
+package com.krisjacyna.yasm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+import java.util.function.ObjLongConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rebuilds the current {@link State}s of many instances by replaying a log
+ * of their events.
+ * 
+ * The log is read once, in order, and its events are split by instance ID
+ * into partitions, keeping the order of each instance's events. Each time a
+ * chunk of {@link #CHUNK_SIZE} events has been read the partitions are
+ * replayed in parallel on a {@link ForkJoinPool}, each by a single task
+ * which owns its instances, so no instance is locked, before the next chunk
+ * is read. The events buffered at once, 12 bytes each, are therefore
+ * bounded by the chunk however long the log is, and only the instances are
+ * kept. By default only the {@link State}s of the instances move:
+ * {@link Condition}s are evaluated but {@link Action}s, which may have side
+ * effects, are not executed, and listeners, timers and metrics are left
+ * untouched; the timers of the rebuilt instances may be armed afterwards
+ * with {@link Result#resumeTimers()}. A replay may instead fire every event through the
+ * {@link MachineEngine} as usual, in which case its listeners are notified
+ * from every thread of the pool at once and must be thread-safe, and it
+ * must not have a {@link TimingWheel}.
+ * 
+ * Two log formats are read (see {@link Format}): text lines of an instance
+ * ID and an event name, and a compact binary stream of the same pairs.
+ * Events with a name no {@link Transition} uses are counted and skipped.
+ * 
+ * The rebuilt instances belong to the {@link MachineEngine} of the replay,
+ * so firing can carry on where the log left off.
+ *
+ * @author Kris Jacyna
+ */
+public class ReplayEngine {
+    
+    /**
+     * The format of an event log.
+     */
+    public enum Format {
+        
+        /**
+         * UTF-8 text with one event per line: a decimal instance ID and the
+         * event name, separated by whitespace. Blank lines and lines starting
+         * with {@code #} are ignored.
+         */
+        LINES,
+        
+        /**
+         * A stream of records, each a {@code long} instance ID followed by
+         * the event name, as written by {@link java.io.DataOutput#writeLong(long)}
+         * and {@link java.io.DataOutput#writeUTF(String)}.
+         */
+        BINARY
+    }
+    
+    /** The number of events read before the partitions are replayed. */
+    public static final int CHUNK_SIZE = 1 << 20;
+    
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private final MachineEngine engine;
+    
+    private final ForkJoinPool pool;
+    
+    private final LongFunction<Context> contexts;
+    
+    private final boolean executeActions;
+    
+    /**
+     * Creates a new {@link ReplayEngine} which rebuilds instances of the
+     * specified {@link MachineEngine} on the common {@link ForkJoinPool},
+     * each with a new empty {@link Context}, without executing
+     * {@link Action}s.
+     * 
+     * @param engine the MachineEngine the instances belong to
+     */
+    public ReplayEngine(final MachineEngine engine) {
+        this(engine, ForkJoinPool.commonPool(), id -> new Context(), false);
+    }
+    
+    /**
+     * Creates a new {@link ReplayEngine}.
+     * 
+     * @param engine the MachineEngine the instances belong to
+     * @param pool the ForkJoinPool to replay on
+     * @param contexts creates the Context of an instance from its ID
+     * @param executeActions whether to fire events through the engine,
+     *        executing Actions and notifying listeners, rather than only
+     *        moving States
+     * @throws IllegalArgumentException if Actions are to be executed and the
+     *         engine has a TimingWheel, which is not thread-safe
+     */
+    public ReplayEngine(final MachineEngine engine, final ForkJoinPool pool, final LongFunction<Context> contexts,
+            final boolean executeActions) {
+        if (executeActions && engine.getTimers() != null) {
+            throw new IllegalArgumentException("Cannot execute Actions in parallel on a MachineEngine with a TimingWheel");
+        }
+        this.engine = engine;
+        this.pool = pool;
+        this.contexts = contexts;
+        this.executeActions = executeActions;
+    }
+    
+    /**
+     * Replays the event log in the specified file.
+     * 
+     * @param file the file to read
+     * @param format the format of the file
+     * @return the Result
+     * @throws UncheckedIOException if the file cannot be read
+     * @throws IllegalArgumentException if the log is malformed
+     */
+    public Result replay(final Path file, final Format format) {
+        try (InputStream in = Files.newInputStream(file)) {
+            return replay(in, format);
+        }
+        catch (final IOException e) {
+            throw new UncheckedIOException("Failed to read event log " + file.toAbsolutePath(), e);
+        }
+    }
+    
+    /**
+     * Replays the event log read from the specified stream, which is read
+     * to its end but not closed.
+     * 
+     * @param in the stream to read
+     * @param format the format of the stream
+     * @return the Result
+     * @throws UncheckedIOException if the stream cannot be read
+     * @throws IllegalArgumentException if the log is malformed
+     */
+    public Result replay(final InputStream in, final Format format) {
+        final long start = System.nanoTime();
+        final Machine machine = this.engine.getMachine();
+        final Partition[] partitions = new Partition[this.pool.getParallelism() * 4];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition();
+        }
+        final Result result = new Result(this.engine, partitions);
+        try {
+            if (format == Format.LINES) {
+                readLines(in, machine, result);
+            }
+            else {
+                readBinary(in, machine, result);
+            }
+        }
+        catch (final IOException e) {
+            throw new UncheckedIOException("Failed to read event log", e);
+        }
+        replayChunk(result);
+        result.readNanos = System.nanoTime() - start - result.replayNanos;
+        for (final Partition partition : partitions) {
+            result.instances += partition.instanceCount;
+            // the events are no longer needed, only the instances
+            partition.instanceIds = null;
+            partition.eventIds = null;
+        }
+        if (result.unknownEvents > 0) {
+            this.logger.warn("skipped {} events with no transition", result.unknownEvents);
+        }
+        this.logger.info("replayed {} events on {} instances in {} ms ({} events/s)", result.events,
+                result.instances, result.getElapsed(TimeUnit.MILLISECONDS), Math.round(result.getEventsPerSecond()));
+        return result;
+    }
+    
+    private void readLines(final InputStream in, final Machine machine, final Result result)
+            throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            final String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.charAt(0) == '#') {
+                continue;
+            }
+            int split = 0;
+            while (split < trimmed.length() && !Character.isWhitespace(trimmed.charAt(split))) {
+                split++;
+            }
+            if (split == trimmed.length()) {
+                throw new IllegalArgumentException("Line " + number + " has no event: " + line);
+            }
+            final long instanceId;
+            try {
+                instanceId = Long.parseLong(trimmed.substring(0, split));
+            }
+            catch (final NumberFormatException e) {
+                throw new IllegalArgumentException("Line " + number + " has no instance ID: " + line, e);
+            }
+            add(result, instanceId, machine.getEventId(trimmed.substring(split).trim()));
+        }
+    }
+    
+    private void readBinary(final InputStream in, final Machine machine, final Result result)
+            throws IOException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        while (true) {
+            final long instanceId;
+            try {
+                instanceId = data.readLong();
+            }
+            catch (final EOFException e) {
+                return;
+            }
+            final String event;
+            try {
+                event = data.readUTF();
+            }
+            catch (final EOFException e) {
+                throw new IllegalArgumentException("Event log is truncated after " + result.events + " events", e);
+            }
+            add(result, instanceId, machine.getEventId(event));
+        }
+    }
+    
+    private void add(final Result result, final long instanceId, final int eventId) {
+        if (eventId == Machine.UNDEFINED) {
+            result.unknownEvents++;
+            return;
+        }
+        result.partitionFor(instanceId).add(instanceId, eventId);
+        result.events++;
+        if (++result.buffered == CHUNK_SIZE) {
+            replayChunk(result);
+        }
+    }
+    
+    // replays the buffered events of every partition, then empties them for the next chunk
+    private void replayChunk(final Result result) {
+        if (result.buffered == 0) {
+            return;
+        }
+        final long start = System.nanoTime();
+        this.pool.invoke(new ReplayTask(result.partitions, 0, result.partitions.length));
+        result.replayNanos += System.nanoTime() - start;
+        result.buffered = 0;
+    }
+    
+    private static long hash(final long instanceId) {
+        long h = instanceId * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 32;
+        return h & Long.MAX_VALUE;
+    }
+    
+    /**
+     * Replays a range of partitions, splitting it until each task holds one.
+     */
+    private final class ReplayTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final Partition[] partitions;
+        
+        private final int from;
+        
+        private final int to;
+        
+        ReplayTask(final Partition[] partitions, final int from, final int to) {
+            this.partitions = partitions;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (this.to - this.from > 1) {
+                final int mid = (this.from + this.to) >>> 1;
+                invokeAll(new ReplayTask(this.partitions, this.from, mid),
+                        new ReplayTask(this.partitions, mid, this.to));
+                return;
+            }
+            final Partition partition = this.partitions[this.from];
+            final MachineEngine engine = ReplayEngine.this.engine;
+            for (int i = 0; i < partition.size; i++) {
+                final long instanceId = partition.instanceIds[i];
+                MachineInstance instance = partition.get(instanceId);
+                if (instance == null) {
+                    instance = engine.newInstance(instanceId, ReplayEngine.this.contexts.apply(instanceId));
+                    partition.put(instanceId, instance);
+                    if (ReplayEngine.this.executeActions) {
+                        engine.start(instance);
+                    }
+                }
+                if (ReplayEngine.this.executeActions) {
+                    engine.fire(instance, partition.eventIds[i]);
+                }
+                else {
+                    engine.replay(instance, partition.eventIds[i]);
+                }
+            }
+            partition.size = 0;
+        }
+    }
+    
+    /**
+     * The events of a share of the instance IDs in the current chunk, in log
+     * order, and the instances rebuilt from them in an open addressing table.
+     */
+    private static final class Partition {
+        
+        private static final int INITIAL_CAPACITY = 64;
+        
+        long[] instanceIds = new long[INITIAL_CAPACITY];
+        
+        int[] eventIds = new int[INITIAL_CAPACITY];
+        
+        int size;
+        
+        private long[] keys = new long[INITIAL_CAPACITY];
+        
+        private MachineInstance[] instances = new MachineInstance[INITIAL_CAPACITY];
+        
+        int instanceCount;
+        
+        void add(final long instanceId, final int eventId) {
+            if (this.size == this.instanceIds.length) {
+                this.instanceIds = Arrays.copyOf(this.instanceIds, this.size << 1);
+                this.eventIds = Arrays.copyOf(this.eventIds, this.size << 1);
+            }
+            this.instanceIds[this.size] = instanceId;
+            this.eventIds[this.size] = eventId;
+            this.size++;
+        }
+        
+        MachineInstance get(final long instanceId) {
+            final int mask = this.keys.length - 1;
+            for (int i = slot(instanceId) & mask; this.instances[i] != null; i = (i + 1) & mask) {
+                if (this.keys[i] == instanceId) {
+                    return this.instances[i];
+                }
+            }
+            return null;
+        }
+        
+        void put(final long instanceId, final MachineInstance instance) {
+            if ((this.instanceCount + 1) * 2 > this.keys.length) {
+                final long[] keys = this.keys;
+                final MachineInstance[] instances = this.instances;
+                this.keys = new long[keys.length << 1];
+                this.instances = new MachineInstance[keys.length << 1];
+                for (int i = 0; i < keys.length; i++) {
+                    if (instances[i] != null) {
+                        insert(keys[i], instances[i]);
+                    }
+                }
+            }
+            insert(instanceId, instance);
+            this.instanceCount++;
+        }
+        
+        void forEach(final ObjLongConsumer<MachineInstance> consumer) {
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.instances[i] != null) {
+                    consumer.accept(this.instances[i], this.keys[i]);
+                }
+            }
+        }
+        
+        // mixed differently to the partition, which fixes the low bits of hash()
+        private static int slot(final long instanceId) {
+            return Long.hashCode(instanceId * 0xc2b2ae3d27d4eb4fL);
+        }
+        
+        private void insert(final long instanceId, final MachineInstance instance) {
+            final int mask = this.keys.length - 1;
+            int i = slot(instanceId) & mask;
+            while (this.instances[i] != null) {
+                i = (i + 1) & mask;
+            }
+            this.keys[i] = instanceId;
+            this.instances[i] = instance;
+        }
+    }
+    
+    /**
+     * The instances rebuilt by a replay and its throughput.
+     */
+    public static final class Result {
+        
+        private final MachineEngine engine;
+        
+        private final Partition[] partitions;
+        
+        private long events;
+        
+        // events read but not yet replayed
+        private int buffered;
+        
+        private long unknownEvents;
+        
+        private long instances;
+        
+        private long readNanos;
+        
+        private long replayNanos;
+        
+        private Result(final MachineEngine engine, final Partition[] partitions) {
+            this.engine = engine;
+            this.partitions = partitions;
+        }
+        
+        /**
+         * Returns the rebuilt instance with the specified ID.
+         * 
+         * @param instanceId the ID of the instance
+         * @return the MachineInstance, or {@code null} if the log has no events for it
+         */
+        public MachineInstance getInstance(final long instanceId) {
+            return partitionFor(instanceId).get(instanceId);
+        }
+        
+        /**
+         * Returns the current {@link State} of the rebuilt instance with the
+         * specified ID.
+         * 
+         * @param instanceId the ID of the instance
+         * @return the current State, or {@code null} if the log has no events for it
+         */
+        public State getState(final long instanceId) {
+            final MachineInstance instance = getInstance(instanceId);
+            return instance != null ? this.engine.getState(instance) : null;
+        }
+        
+        /**
+         * Passes every rebuilt instance and its ID to the specified consumer,
+         * in no particular order.
+         * 
+         * @param consumer the consumer of each instance and its ID
+         */
+        public void forEach(final ObjLongConsumer<MachineInstance> consumer) {
+            for (final Partition partition : this.partitions) {
+                partition.forEach(consumer);
+            }
+        }
+        
+        /**
+         * Arms the timers of the timed {@link Transition}s of the current
+         * {@link State}s of every rebuilt instance, for their full delays, as
+         * the log does not record when each {@link State} was entered. Call it
+         * once, on the thread which advances the {@link TimingWheel} of the
+         * engine.
+         * 
+         * @see MachineEngine#resume(MachineInstance)
+         */
+        public void resumeTimers() {
+            forEach((instance, instanceId) -> this.engine.resume(instance));
+        }
+        
+        /**
+         * Returns the number of instances rebuilt.
+         * 
+         * @return the number of instances
+         */
+        public long getInstanceCount() {
+            return this.instances;
+        }
+        
+        /**
+         * Returns the number of events replayed.
+         * 
+         * @return the number of events
+         */
+        public long getEventCount() {
+            return this.events;
+        }
+        
+        /**
+         * Returns the number of events skipped as no {@link Transition} uses
+         * their name.
+         * 
+         * @return the number of skipped events
+         */
+        public long getUnknownEventCount() {
+            return this.unknownEvents;
+        }
+        
+        /**
+         * Returns the time taken to read and partition the log.
+         * 
+         * @param unit the unit to return the time in
+         * @return the read time
+         */
+        public long getReadTime(final TimeUnit unit) {
+            return unit.convert(this.readNanos, TimeUnit.NANOSECONDS);
+        }
+        
+        /**
+         * Returns the time taken to replay the partitioned events.
+         * 
+         * @param unit the unit to return the time in
+         * @return the replay time
+         */
+        public long getReplayTime(final TimeUnit unit) {
+            return unit.convert(this.replayNanos, TimeUnit.NANOSECONDS);
+        }
+        
+        /**
+         * Returns the total time taken to read and replay the log.
+         * 
+         * @param unit the unit to return the time in
+         * @return the elapsed time
+         */
+        public long getElapsed(final TimeUnit unit) {
+            return unit.convert(this.readNanos + this.replayNanos, TimeUnit.NANOSECONDS);
+        }
+        
+        /**
+         * Returns the number of events replayed per second, over the total
+         * time taken to read and replay the log.
+         * 
+         * @return the throughput in events per second
+         */
+        public double getEventsPerSecond() {
+            final long nanos = this.readNanos + this.replayNanos;
+            return nanos == 0 ? 0 : this.events * 1e9 / nanos;
+        }
+        
+        @Override
+        public String toString() {
+            return new StringBuilder()
+                    .append("Result[")
+                    .append("instances=").append(this.instances)
+                    .append(", events=").append(this.events)
+                    .append(", unknownEvents=").append(this.unknownEvents)
+                    .append(", readMillis=").append(getReadTime(TimeUnit.MILLISECONDS))
+                    .append(", replayMillis=").append(getReplayTime(TimeUnit.MILLISECONDS))
+                    .append(", eventsPerSecond=").append(Math.round(getEventsPerSecond()))
+                    .append("]")
+                    .toString();
+        }
+        
+        private Partition partitionFor(final long instanceId) {
+            return this.partitions[(int) (hash(instanceId) % this.partitions.length)];
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.krisjacyna.yasm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Transition} compiled for one simple source {@link State}.
+ * 
+ * The exit {@link Action}s of every {@link State} left, from the source up
+ * to the least common ancestor of the source and target, and the entry
+ * {@link Action}s of every {@link State} entered, from below that ancestor
+ * down to the target and on through the initial children of the target,
+ * are flattened into arrays when the {@link Machine} is built so that no
+ * tree is walked when an event is fired. The {@link State}s left and entered
+ * which have timed {@link Transition}s are kept in the same way, so that
+ * their timers can be cancelled and armed.
+ *
+ * @author Kris Jacyna
+ */
+final class Route {
+    
+    private static final Action[] NO_ACTIONS = new Action[0];
+    
+    private static final State[] NO_STATES = new State[0];
+    
+    final Transition transition;
+    
+    // the integer ID of the Transition in its Machine
+    final int transitionId;
+    
+    // the State which declares the Transition, the source or one of its ancestors
+    final State declaring;
+    
+    final Condition condition;
+    
+    // the simple State finally entered, or null if the state does not change
+    final State target;
+    
+    final Action[] exitActions;
+    
+    final Action[] actions;
+    
+    final Action[] entryActions;
+    
+    // States with timed Transitions which are left, then entered
+    final State[] timedExits;
+    
+    final State[] timedEntries;
+    
+    private Route(final Transition transition, final int transitionId, final State declaring, final State target,
+            final Action[] exitActions, final Action[] entryActions, final State[] timedExits,
+            final State[] timedEntries) {
+        this.transition = transition;
+        this.transitionId = transitionId;
+        this.declaring = declaring;
+        this.condition = transition.condition();
+        this.target = target;
+        this.exitActions = exitActions;
+        this.actions = transition.actions();
+        this.entryActions = entryActions;
+        this.timedExits = timedExits;
+        this.timedEntries = timedEntries;
+    }
+    
+    /**
+     * Compiles a {@link Transition}, declared by the specified {@link State}
+     * or one of its ancestors, for the specified simple {@link State}.
+     * 
+     * @param source the simple State the machine is in
+     * @param declaring the State which declares the Transition
+     * @param transition the Transition
+     * @param transitionId the integer ID of the Transition
+     * @return the Route
+     */
+    static Route compile(final State source, final State declaring, final Transition transition,
+            final int transitionId) {
+        final State declared = transition.target();
+        if (declared == null) {
+            return new Route(transition, transitionId, declaring, null, NO_ACTIONS, NO_ACTIONS, NO_STATES, NO_STATES);
+        }
+        
+        // the closest State which is a proper ancestor of both ends
+        State common = declaring.getParent();
+        while (common != null && !isProperAncestor(common, declared)) {
+            common = common.getParent();
+        }
+        
+        final List<Action> exits = new ArrayList<>();
+        final List<State> timedExits = new ArrayList<>();
+        for (State s = source; s != common; s = s.getParent()) {
+            exits.addAll(s.getExitActions());
+            if (isTimed(s)) {
+                timedExits.add(s);
+            }
+        }
+        
+        final List<State> entered = new ArrayList<>();
+        for (State s = declared; s != common; s = s.getParent()) {
+            entered.add(0, s);
+        }
+        State leaf = declared;
+        while (leaf.isComposite()) {
+            leaf = leaf.getInitialChild();
+            entered.add(leaf);
+        }
+        final List<Action> entries = new ArrayList<>();
+        entered.forEach(s -> entries.addAll(s.getEntryActions()));
+        final List<State> timedEntries = new ArrayList<>();
+        entered.stream().filter(Route::isTimed).forEach(timedEntries::add);
+        
+        return new Route(transition, transitionId, declaring, leaf, toArray(exits), toArray(entries),
+                toStates(timedExits), toStates(timedEntries));
+    }
+    
+    /**
+     * Returns the entry {@link Action}s of every {@link State} from the top
+     * level down to the specified {@link State}, in the order they are
+     * executed when the machine starts in that {@link State}.
+     * 
+     * @param state the State
+     * @return the entry Actions
+     */
+    static Action[] entryPath(final State state) {
+        final List<Action> entries = new ArrayList<>();
+        for (State s = state; s != null; s = s.getParent()) {
+            entries.addAll(0, s.getEntryActions());
+        }
+        return toArray(entries);
+    }
+    
+    /**
+     * Returns the {@link State}s with timed {@link Transition}s from the top
+     * level down to the specified {@link State}.
+     * 
+     * @param state the State
+     * @return the timed States
+     */
+    static State[] timedPath(final State state) {
+        final List<State> timed = new ArrayList<>();
+        for (State s = state; s != null; s = s.getParent()) {
+            if (isTimed(s)) {
+                timed.add(0, s);
+            }
+        }
+        return toStates(timed);
+    }
+    
+    private static boolean isTimed(final State state) {
+        for (final Transition transition : state.getTransitions()) {
+            if (transition.isTimed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static boolean isProperAncestor(final State ancestor, final State state) {
+        for (State s = state.getParent(); s != null; s = s.getParent()) {
+            if (s == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static Action[] toArray(final List<Action> actions) {
+        return actions.isEmpty() ? NO_ACTIONS : actions.toArray(new Action[actions.size()]);
+    }
+    
+    private static State[] toStates(final List<State> states) {
+        return states.isEmpty() ? NO_STATES : states.toArray(new State[states.size()]);
+    }
+}
@@ -1,7 +1,13 @@
 package com.krisjacyna.yasm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -16,6 +22,23 @@ import java.util.stream.Collectors;
  * from it regardless of which events are triggered. Each machine must have only
  * one {@link State} marked as 'initial' which is the entry point for the machine.
  * 
+ * A {@link State} may contain child {@link State}s, making it a composite
+ * state. Exactly one child of a composite state is marked as 'initial' and is
+ * entered whenever the composite state is the target of a {@link Transition}.
+ * A machine is always in a simple (non-composite) {@link State}, and events
+ * which that {@link State} has no {@link Transition}s for are handled by the
+ * {@link Transition}s of its parent, then its grandparent, and so on.
+ * 
+ * A {@link State} may defer events. An event which is deferred by the current
+ * {@link State}, or by any of its ancestors, and which has no {@link Transition}
+ * is kept by the instance instead of being dropped, and is fired again once
+ * the instance has moved to another {@link State}.
+ * 
+ * Once all {@link Transition}s have been added a {@link State} is compiled
+ * (see {@link #compile()}) which freezes it and indexes its {@link Transition}s
+ * by event, so that looking up the {@link Transition}s for an event is a
+ * single map lookup with no allocation.
+ * 
  * @author Kris Jacyna
  */
 public class State {
@@ -26,11 +49,23 @@ public class State {
     
     private final boolean isFinal;
     
+    // dense index assigned by the owning Machine
+    private int index = Machine.UNDEFINED;
+    
+    private State parent;
+    
+    private final List<State> children = new ArrayList<>();
+    
     private final List<Action> entryActions = new ArrayList<>();
     
     private final List<Action> exitActions = new ArrayList<>();
     
     private final List<Transition> transitions = new ArrayList<>();
+    
+    private final Set<String> deferredEvents = new LinkedHashSet<>();
+    
+    // Event to Transitions table, built by compile()
+    private Map<String, List<Transition>> transitionTable;
 
     /**
      * Creates a new {@link State} with the specified ID and flags.
@@ -54,6 +89,80 @@ public class State {
         return this.id;
     }
     
+    /**
+     * Returns the dense integer ID assigned to this {@link State} by the
+     * {@link Machine} which owns it.
+     * 
+     * @return the integer ID, or {@link Machine#UNDEFINED} if this State
+     *         does not belong to a Machine
+     */
+    public int getIndex() {
+        return this.index;
+    }
+    
+    void setIndex(final int index) {
+        this.index = index;
+    }
+    
+    /**
+     * Returns the parent of this {@link State}.
+     * 
+     * @return the parent State, or {@code null} if this is a top level State
+     */
+    public State getParent() {
+        return this.parent;
+    }
+    
+    /**
+     * Returns the child {@link State}s of this {@link State}.
+     * 
+     * @return an unmodifiable List of child States, which is empty for a simple State
+     */
+    public List<State> getChildren() {
+        return Collections.unmodifiableList(this.children);
+    }
+    
+    /**
+     * Returns whether or not this {@link State} has child {@link State}s.
+     * 
+     * @return {@code true} if this State is composite, {@code false} otherwise
+     */
+    public boolean isComposite() {
+        return !this.children.isEmpty();
+    }
+    
+    /**
+     * Returns the child {@link State} marked as initial.
+     * 
+     * @return the initial child State, or {@code null} if there is none
+     */
+    public State getInitialChild() {
+        for (final State child : this.children) {
+            if (child.isInitial()) {
+                return child;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Adds a child {@link State}, making this a composite {@link State}.
+     * 
+     * @param child the child State
+     * @throws IllegalArgumentException if the child already has a parent
+     */
+    public void addChild(final State child) {
+        checkNotCompiled();
+        if (child.parent != null) {
+            throw new IllegalArgumentException("State '" + child.id + "' already has a parent");
+        }
+        if (this.isFinal) {
+            throw new IllegalStateException("Final state '" + this.id + "' cannot have children");
+        }
+        child.parent = this;
+        this.children.add(child);
+    }
+    
     /**
      * Returns whether of not this {@link State} is the initial point of entry.
      * 
@@ -80,6 +189,7 @@ public class State {
      * @param action the Action to execute on entry
      */
     public void addEntryAction(final Action action) {
+        checkNotCompiled();
         this.entryActions.add(action);
     }
     
@@ -89,6 +199,7 @@ public class State {
      * @param action the Action to execute on exit
      */
     public void addExitAction(final Action action) {
+        checkNotCompiled();
         this.exitActions.add(action);
     }
     
@@ -99,35 +210,122 @@ public class State {
      * @param transition the Transition to add
      */
     public void addTransition(final Transition transition) {
+        checkNotCompiled();
         this.transitions.add(transition);
     }
     
+    /**
+     * Adds an event to be deferred while the machine is in this {@link State}
+     * and the event has no {@link Transition}.
+     * 
+     * @param event the event to defer
+     */
+    public void addDeferredEvent(final String event) {
+        checkNotCompiled();
+        this.deferredEvents.add(event.intern());
+    }
+    
+    /**
+     * Returns the events deferred by this {@link State}, not including those
+     * deferred by its ancestors.
+     * 
+     * @return an unmodifiable Set of events
+     */
+    public Set<String> getDeferredEvents() {
+        return Collections.unmodifiableSet(this.deferredEvents);
+    }
+    
+    /**
+     * Compiles this {@link State} by indexing its {@link Transition}s by event.
+     * The {@link Transition}s for each event keep the order in which they
+     * were added. No more {@link Transition}s or {@link Action}s can be added
+     * once compiled.
+     * Compiling an already compiled {@link State} has no effect.
+     */
+    public void compile() {
+        if (isCompiled()) {
+            return;
+        }
+        final Map<String, List<Transition>> grouped = new HashMap<>();
+        for (final Transition transition : this.transitions) {
+            if (transition.getEvent() == null) {
+                // can never be triggered
+                continue;
+            }
+            grouped.computeIfAbsent(transition.getEvent().intern(), e -> new ArrayList<>()).add(transition);
+        }
+        final Map<String, List<Transition>> table = new HashMap<>(grouped.size() * 2);
+        grouped.forEach((event, list) -> table.put(event,
+                Collections.unmodifiableList(Arrays.asList(list.toArray(new Transition[list.size()])))));
+        this.transitionTable = table;
+    }
+    
+    /**
+     * Returns whether or not this {@link State} has been compiled.
+     * 
+     * @return {@code true} if this State is compiled, {@code false} otherwise
+     */
+    public boolean isCompiled() {
+        return this.transitionTable != null;
+    }
+    
+    /**
+     * Returns the distinct events which have {@link Transition}s from this
+     * {@link State}. This {@link State} must be compiled.
+     * 
+     * @return the set of events
+     */
+    Set<String> getEvents() {
+        return this.transitionTable.keySet();
+    }
+    
+    private void checkNotCompiled() {
+        if (isCompiled()) {
+            throw new IllegalStateException("State '" + this.id + "' has already been compiled");
+        }
+    }
+    
     /**
      * Returns the {@link List} of {@link Action}s to execute on entry.
      * 
-     * @return the List of entry Actions
+     * @return an unmodifiable List of entry Actions
      */
     public List<Action> getEntryActions() {
-        return this.entryActions;
+        return Collections.unmodifiableList(this.entryActions);
     }
 
     /**
      * Returns the {@link List} of {@link Action}s to execute on exit.
      * 
-     * @return the List of exit Actions
+     * @return an unmodifiable List of exit Actions
      */
     public List<Action> getExitActions() {
-        return this.exitActions;
+        return Collections.unmodifiableList(this.exitActions);
     }
 
+    /**
+     * Returns all of the {@link Transition}s from this {@link State}, in the
+     * order they were added.
+     * 
+     * @return an unmodifiable List of Transitions
+     */
+    public List<Transition> getTransitions() {
+        return Collections.unmodifiableList(this.transitions);
+    }
+    
     /**
      * Returns a {@link List} of {@link Transition}s to be followed for the
      * specific event {@link String}. This will be empty if there are no matches.
+     * Once compiled, the returned {@link List} is shared and unmodifiable.
      * 
      * @param event the event trigger
      * @return a List of applicable Transitions
      */
     public List<Transition> getTransitions(final String event) {
+        if (isCompiled()) {
+            final List<Transition> matches = this.transitionTable.get(event);
+            return matches != null ? matches : Collections.emptyList();
+        }
         return this.transitions.stream()
             .filter(t -> event.equals(t.getEvent()))
             .collect(Collectors.toList());
@@ -139,11 +337,13 @@ public class State {
                 .append("State [id=").append(this.id)
                 .append(", isInitial=").append(this.isInitial)
                 .append(", isFinal=").append(this.isFinal)
+                .append(", parent=").append(this.parent != null ? this.parent.id : "none")
                 .append(", entryActions=")
                 .append(this.entryActions.stream().map(Action::getId).collect(Collectors.toList()))
                 .append(", exitActions=")
                 .append(this.exitActions.stream().map(Action::getId).collect(Collectors.toList()))
                 .append(", transitions=").append(this.transitions)
+                .append(", deferredEvents=").append(this.deferredEvents)
                 .append("]")
                 .toString();
     }
@@ -0,0 +1,39 @@
+package com.krisjacyna.yasm;
+
+/**
+ * A pending timeout of a timed {@link Transition} for one instance.
+ * 
+ * A {@link Timer} is linked into a slot of a {@link TimingWheel} while it is
+ * armed and into the list of timers of its {@link MachineInstance}. Timers
+ * which expire or are cancelled are kept by the instance and reused the next
+ * time one of its {@link State}s is entered.
+ *
+ * @author Kris Jacyna
+ */
+final class Timer {
+    
+    // links within a slot of the wheel
+    Timer prev;
+    
+    Timer next;
+    
+    // index of the slot, or -1 if not armed
+    int slot = -1;
+    
+    // the tick the Timer expires on
+    long deadline;
+    
+    MachineEngine engine;
+    
+    MachineInstance instance;
+    
+    // the State which armed the Timer, whose timed Transitions alone it may
+    // take, and the timeout event it fires, as IDs of the Machine version the
+    // instance is on
+    int stateId;
+    
+    int eventId;
+    
+    // the next Timer of the same instance, armed or spare
+    Timer nextOfInstance;
+}
@@ -0,0 +1,223 @@
+package com.krisjacyna.yasm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hierarchical timing wheel which drives timed {@link Transition}s.
+ * 
+ * Time is divided into ticks of a fixed duration. Pending timers are kept in
+ * four wheels of 256 slots, each wheel covering 256 times the span of the one
+ * below it, so that arming and cancelling a timer are constant time list
+ * operations however many timers are pending. When the lowest wheel wraps,
+ * the next slot of the wheel above is cascaded down. Timeouts further away
+ * than the highest wheel covers are cascaded until they are in range.
+ * 
+ * A {@link MachineEngine} created with a {@link TimingWheel} arms a timer
+ * for every timed {@link Transition} of a {@link State} when an instance
+ * enters it and cancels the timer when the instance exits it. Timers expire
+ * when the wheel is advanced, which fires their timeout events on the
+ * advancing thread. Like a {@link MachineInstance}, a {@link TimingWheel} is
+ * not thread-safe: it must be advanced by the thread which fires events on
+ * the instances of its engines, so one wheel can be shared by every engine
+ * used on that thread.
+ * 
+ * Timeouts are rounded up to a whole number of ticks from the time they are
+ * armed, and expire on the first advance at or after their deadline.
+ *
+ * @author Kris Jacyna
+ */
+public final class TimingWheel {
+    
+    private static final int WHEEL_BITS = 8;
+    
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    
+    private static final int LEVELS = 4;
+    
+    // the furthest a timer is placed ahead of the current tick
+    private static final long MAX_SPAN = (1L << (WHEEL_BITS * LEVELS)) - 1;
+    
+    private final long tickNanos;
+    
+    private final long origin;
+    
+    private long tick;
+    
+    // first Timer of each slot, level by level
+    private final Timer[] slots = new Timer[LEVELS * WHEEL_SIZE];
+    
+    private int size;
+    
+    /**
+     * Creates a new {@link TimingWheel} which starts now.
+     * 
+     * @param tickDuration the duration of one tick
+     * @param unit the unit of the duration
+     * @throws IllegalArgumentException if the duration is not positive
+     */
+    public TimingWheel(final long tickDuration, final TimeUnit unit) {
+        this(tickDuration, unit, System.nanoTime());
+    }
+    
+    /**
+     * Creates a new {@link TimingWheel} which starts at the specified time.
+     * 
+     * @param tickDuration the duration of one tick
+     * @param unit the unit of the duration
+     * @param nanoTime the start time, as returned by {@link System#nanoTime()}
+     * @throws IllegalArgumentException if the duration is not positive
+     */
+    public TimingWheel(final long tickDuration, final TimeUnit unit, final long nanoTime) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        if (this.tickNanos <= 0) {
+            throw new IllegalArgumentException("Invalid tick duration " + tickDuration + " " + unit);
+        }
+        this.origin = nanoTime;
+    }
+    
+    /**
+     * Returns the number of pending timers.
+     * 
+     * @return the number of timers
+     */
+    public int size() {
+        return this.size;
+    }
+    
+    /**
+     * Returns the duration of one tick.
+     * 
+     * @param unit the unit to return the duration in
+     * @return the tick duration
+     */
+    public long getTickDuration(final TimeUnit unit) {
+        return unit.convert(this.tickNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Advances this wheel to the current time, firing the timeout events of
+     * every timer which has expired.
+     * 
+     * @return the number of timers which expired
+     */
+    public int advance() {
+        return advanceTo(System.nanoTime());
+    }
+    
+    /**
+     * Advances this wheel to the specified time, firing the timeout events
+     * of every timer which has expired, in deadline order.
+     * 
+     * @param nanoTime the time, as returned by {@link System#nanoTime()}
+     * @return the number of timers which expired
+     */
+    public int advanceTo(final long nanoTime) {
+        final long target = (nanoTime - this.origin) / this.tickNanos;
+        int expired = 0;
+        while (this.tick < target) {
+            this.tick++;
+            cascade();
+            expired += expire(slot(0, this.tick));
+        }
+        return expired;
+    }
+    
+    /**
+     * Arms a timer to expire after the specified delay, measured from now
+     * rather than from the last advance, which may be some ticks behind.
+     * 
+     * @param timer the Timer, which must not be armed
+     * @param millis the delay in milliseconds
+     */
+    void schedule(final Timer timer, final long millis) {
+        final long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        final long ticks = Math.max(1, (nanos + this.tickNanos - 1) / this.tickNanos);
+        final long now = (System.nanoTime() - this.origin) / this.tickNanos;
+        timer.deadline = Math.max(this.tick, now) + ticks;
+        insert(timer);
+        this.size++;
+    }
+    
+    /**
+     * Disarms a timer. Cancelling a timer which is not armed has no effect.
+     * 
+     * @param timer the Timer
+     */
+    void cancel(final Timer timer) {
+        if (timer.slot >= 0) {
+            unlink(timer);
+            this.size--;
+        }
+    }
+    
+    private void cascade() {
+        // each time a wheel wraps, the next slot of the wheel above comes into range
+        for (int level = 1; level < LEVELS; level++) {
+            if ((this.tick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) {
+                return;
+            }
+            final int slot = slot(level, this.tick);
+            Timer timer;
+            while ((timer = this.slots[slot]) != null) {
+                unlink(timer);
+                insert(timer);
+            }
+        }
+    }
+    
+    private int expire(final int slot) {
+        int expired = 0;
+        Timer timer;
+        // take one Timer at a time as firing may arm or cancel others
+        while ((timer = this.slots[slot]) != null) {
+            unlink(timer);
+            if (timer.deadline > this.tick) {
+                // beyond the span of the wheels when armed
+                insert(timer);
+                continue;
+            }
+            this.size--;
+            expired++;
+            timer.engine.timeout(timer);
+        }
+        return expired;
+    }
+    
+    private void insert(final Timer timer) {
+        final long delta = Math.min(timer.deadline - this.tick, MAX_SPAN);
+        final long expires = this.tick + delta;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        final int slot = slot(level, expires);
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = this.slots[slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        this.slots[slot] = timer;
+    }
+    
+    private void unlink(final Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        }
+        else {
+            this.slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+    }
+    
+    private static int slot(final int level, final long tick) {
+        return level * WHEEL_SIZE + (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+    }
+}
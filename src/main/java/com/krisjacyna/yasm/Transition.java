@@ -3,6 +3,7 @@ package com.krisjacyna.yasm;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.stream.Collectors;
 
 /**
@@ -12,11 +13,21 @@ import java.util.stream.Collectors;
  * {@link Condition} if one has been set. When a {@link Transition} is
  * successful, any {@link Action}s will be executed before moving onto
  * the next {@link State}.
+ * 
+ * A timed {@link Transition} is triggered by a timeout instead of an event:
+ * its timer is armed when its {@link State} is entered and cancelled when
+ * the {@link State} is exited (see {@link TimingWheel}). It is dispatched on
+ * a reserved event named after its delay (see {@link #timeoutEvent(long)}),
+ * but when a timer expires only the timed {@link Transition}s of the
+ * {@link State} which armed it are tried.
  *
  * @author Kris Jacyna
  */
 public class Transition {
     
+    /** The prefix of the reserved events which trigger timed {@link Transition}s. */
+    public static final String TIMEOUT_EVENT_PREFIX = "after:";
+    
     private final String event;
     
     private final State target;
@@ -24,12 +35,20 @@ public class Transition {
     private final Condition condition;
     
     private final List<Action> actions;
+    
+    // delay in milliseconds of a timed Transition, otherwise negative
+    private final long after;
+    
+    // array copy of the actions for iterator free dispatch
+    private final Action[] actionArray;
 
     private Transition(final Builder builder) {
         this.event = builder.event;
         this.target = builder.target;
         this.condition = builder.condition;
         this.actions  = builder.actions;
+        this.after = builder.after;
+        this.actionArray = builder.actions.toArray(new Action[builder.actions.size()]);
     }
     
     /**
@@ -59,6 +78,36 @@ public class Transition {
         return Optional.ofNullable(this.condition);
     }
 
+    /**
+     * Returns the delay of a timed {@link Transition}.
+     * 
+     * @return the delay in milliseconds, which is empty if this Transition
+     *         is triggered by an event
+     */
+    public OptionalLong getAfter() {
+        return this.after >= 0 ? OptionalLong.of(this.after) : OptionalLong.empty();
+    }
+    
+    /**
+     * Returns whether this {@link Transition} is triggered by a timeout.
+     * 
+     * @return {@code true} if this Transition is timed, {@code false} otherwise
+     */
+    public boolean isTimed() {
+        return this.after >= 0;
+    }
+    
+    /**
+     * Returns the reserved event which triggers timed {@link Transition}s
+     * with the specified delay.
+     * 
+     * @param millis the delay in milliseconds
+     * @return the event name
+     */
+    public static String timeoutEvent(final long millis) {
+        return TIMEOUT_EVENT_PREFIX + millis;
+    }
+    
     /**
      * Returns the {@link List} of {@link Action}s (which may be empty).
      * 
@@ -68,6 +117,33 @@ public class Transition {
         return this.actions;
     }
     
+    /**
+     * Returns the target {@link State}, or {@code null} if there is none.
+     * 
+     * @return the target State or {@code null}
+     */
+    State target() {
+        return this.target;
+    }
+    
+    /**
+     * Returns the {@link Condition}, or {@code null} if there is none.
+     * 
+     * @return the Condition or {@code null}
+     */
+    Condition condition() {
+        return this.condition;
+    }
+    
+    /**
+     * Returns the {@link Action}s as a shared array which must not be modified.
+     * 
+     * @return the array of Actions
+     */
+    Action[] actions() {
+        return this.actionArray;
+    }
+    
     @Override
     public String toString() {
         return new StringBuilder()
@@ -87,6 +163,7 @@ public class Transition {
     public static class Builder {
         
         private final String event;
+        private final long after;
         private State target;
         private Condition condition;
         private final List<Action> actions = new ArrayList<>();
@@ -97,7 +174,26 @@ public class Transition {
          * @param event the name of the event
          */
         public Builder(final String event) {
+            this(event, -1);
+        }
+        
+        private Builder(final String event, final long after) {
             this.event = event;
+            this.after = after;
+        }
+        
+        /**
+         * Creates a new {@link Builder} for a timed {@link Transition}.
+         * 
+         * @param millis the delay in milliseconds after the State is entered
+         * @return the Builder
+         * @throws IllegalArgumentException if the delay is negative
+         */
+        public static Builder after(final long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("Negative delay " + millis);
+            }
+            return new Builder(timeoutEvent(millis), millis);
         }
         
         public Builder setTarget(final State target) {
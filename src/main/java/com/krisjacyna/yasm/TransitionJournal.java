@@ -0,0 +1,713 @@
+package com.krisjacyna.yasm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A write-ahead journal of the {@link Transition}s taken by a
+ * {@link MachineEngine}, set with {@link MachineEngine#setJournal}.
+ * 
+ * Each {@link Transition} between {@link State}s is appended as a 29 byte
+ * record of the ID of the instance, the time in milliseconds and the integer
+ * IDs of the {@link State}s it moved from and to and of the event. The names
+ * of the {@link State}s and events are appended once for each version of
+ * the {@link Machine}, so a journal which spans a
+ * {@link MachineEngine#reload(Machine) reload} is read back by name.
+ * 
+ * Records from any number of threads are copied into a buffer under a short
+ * lock. A single writer thread swaps the buffer for a spare and writes it
+ * out, so every record appended while the last group was being written is
+ * committed by one write and, depending on the {@link Durability}, one
+ * force. Only with {@link Durability#SYNC} does a thread taking a
+ * {@link Transition} wait for the disk; otherwise it only waits if it fills
+ * a buffer while the writer is still writing the other. If the journal
+ * cannot be written, or has been closed, the thread taking a
+ * {@link Transition} fails after the instance has moved.
+ * 
+ * A journal is read in order with a {@link Reader}. Opening a journal which
+ * was not closed cleanly truncates any record torn by the crash.
+ *
+ * @author Kris Jacyna
+ */
+public final class TransitionJournal implements AutoCloseable {
+    
+    /**
+     * When the journal is forced to disk.
+     */
+    public enum Durability {
+        
+        /** Records are written to the file but only forced by {@link TransitionJournal#flush()}. */
+        NONE,
+        
+        /** The file is forced at most once per period, so a crash may lose a period of records. */
+        PERIODIC,
+        
+        /** The file is forced after every group is written, without threads waiting for it. */
+        GROUP,
+        
+        /** The file is forced after every group is written, and each thread waits for its records. */
+        SYNC
+    }
+    
+    /** The default size of the buffers records are appended to. */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    
+    private static final int MAGIC = 0x5953544a;
+    
+    private static final int VERSION = 1;
+    
+    private static final int HEADER_SIZE = 8;
+    
+    // byte type, int length, then the names of the States and events
+    private static final byte NAMES = 1;
+    
+    // byte type, long instance ID, long timestamp, int from, int to, int event
+    private static final byte TRANSITION = 2;
+    
+    private static final int TRANSITION_SIZE = 29;
+    
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private final Path path;
+    
+    private final FileChannel channel;
+    
+    private final Durability durability;
+    
+    private final long periodNanos;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    // signalled when records are appended to an empty buffer, or a flush or close is requested
+    private final Condition appendable = this.lock.newCondition();
+    
+    // signalled when the writer has written a group
+    private final Condition committed = this.lock.newCondition();
+    
+    // guarded by the lock: the buffer being appended to and the one free for the writer to swap in
+    private ByteBuffer active;
+    
+    private ByteBuffer spare;
+    
+    // the Machine whose names were last appended
+    private Machine names;
+    
+    private boolean flushRequested;
+    
+    private boolean closing;
+    
+    private IOException failure;
+    
+    // counts of records appended, written to the file and forced to disk
+    private volatile long appended;
+    
+    private volatile long written;
+    
+    private volatile long forced;
+    
+    private final Thread writer;
+    
+    private TransitionJournal(final Path path, final FileChannel channel, final Durability durability,
+            final int bufferSize, final long periodNanos) {
+        this.path = path;
+        this.channel = channel;
+        this.durability = durability;
+        this.periodNanos = periodNanos;
+        this.active = ByteBuffer.allocateDirect(bufferSize);
+        this.spare = ByteBuffer.allocateDirect(bufferSize);
+        this.writer = new Thread(this::write, "yasm-journal");
+        this.writer.setDaemon(true);
+    }
+    
+    /**
+     * Opens the journal in the specified file, creating it if it does not
+     * exist, with the default buffer size and, for
+     * {@link Durability#PERIODIC}, a period of 100 milliseconds.
+     * 
+     * @param path the file of the journal
+     * @param durability when the journal is forced to disk
+     * @return the TransitionJournal
+     * @throws UncheckedIOException if the file cannot be read or written
+     * @throws IllegalArgumentException if the file is not a transition journal
+     */
+    public static TransitionJournal open(final Path path, final Durability durability) {
+        return open(path, durability, DEFAULT_BUFFER_SIZE, 100, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Opens the journal in the specified file, creating it if it does not
+     * exist. New records are appended after the last whole record.
+     * 
+     * @param path the file of the journal
+     * @param durability when the journal is forced to disk
+     * @param bufferSize the size of each of the two buffers records are appended to
+     * @param period the longest time between forces with {@link Durability#PERIODIC}
+     * @param unit the unit of the period
+     * @return the TransitionJournal
+     * @throws UncheckedIOException if the file cannot be read or written
+     * @throws IllegalArgumentException if the file is not a transition journal
+     */
+    public static TransitionJournal open(final Path path, final Durability durability, final int bufferSize,
+            final long period, final TimeUnit unit) {
+        if (bufferSize < TRANSITION_SIZE || period <= 0) {
+            throw new IllegalArgumentException("Invalid buffer size " + bufferSize + " or period " + period + " " + unit);
+        }
+        final TransitionJournal journal;
+        try {
+            final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                journal = new TransitionJournal(path, channel, durability, bufferSize, unit.toNanos(period));
+                journal.recover();
+            }
+            catch (final IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        catch (final IOException e) {
+            throw new UncheckedIOException("Failed to open transition journal " + path.toAbsolutePath(), e);
+        }
+        journal.writer.start();
+        return journal;
+    }
+    
+    /**
+     * Opens a {@link Reader} over the journal in the specified file.
+     * 
+     * @param path the file of the journal
+     * @return the Reader, positioned before the first record
+     * @throws UncheckedIOException if the file cannot be read
+     * @throws IllegalArgumentException if the file is not a transition journal
+     */
+    public static Reader read(final Path path) {
+        try {
+            final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                return new Reader(path, channel);
+            }
+            catch (final IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        catch (final IOException e) {
+            throw new UncheckedIOException("Failed to read transition journal " + path.toAbsolutePath(), e);
+        }
+    }
+    
+    /**
+     * Returns when this journal is forced to disk.
+     * 
+     * @return the Durability
+     */
+    public Durability getDurability() {
+        return this.durability;
+    }
+    
+    /**
+     * Returns the number of {@link Transition}s appended since the journal
+     * was opened.
+     * 
+     * @return the number of records appended
+     */
+    public long getAppended() {
+        return this.appended;
+    }
+    
+    /**
+     * Returns the number of {@link Transition}s written to the file since
+     * the journal was opened, which may not yet be on disk.
+     * 
+     * @return the number of records written
+     */
+    public long getWritten() {
+        return this.written;
+    }
+    
+    /**
+     * Returns the number of {@link Transition}s forced to disk since the
+     * journal was opened.
+     * 
+     * @return the number of records forced
+     */
+    public long getForced() {
+        return this.forced;
+    }
+    
+    /**
+     * Appends a {@link Transition} of the specified instance, waiting until
+     * it is forced with {@link Durability#SYNC}.
+     * 
+     * @param machine the Machine the IDs belong to
+     * @param instanceId the ID of the instance
+     * @param from the integer ID of the State moved from
+     * @param to the integer ID of the State moved to
+     * @param eventId the integer ID of the event
+     * @throws UncheckedIOException if the journal could not be written
+     * @throws IllegalStateException if the journal is closed
+     */
+    void append(final Machine machine, final long instanceId, final int from, final int to, final int eventId) {
+        final long timestamp = System.currentTimeMillis();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            // the names and the record are reserved together, as waiting for room lets other
+            // threads append, perhaps the names of another Machine
+            ByteBuffer names = null;
+            while (true) {
+                if (machine != this.names && names == null) {
+                    names = names(machine);
+                }
+                if (reserve(machine != this.names ? names.remaining() + TRANSITION_SIZE : TRANSITION_SIZE)) {
+                    break;
+                }
+            }
+            if (machine != this.names) {
+                this.active.put(names);
+                this.names = machine;
+            }
+            this.active.put(TRANSITION)
+                    .putLong(instanceId)
+                    .putLong(timestamp)
+                    .putInt(from)
+                    .putInt(to)
+                    .putInt(eventId);
+            final long sequence = ++this.appended;
+            if (this.durability == Durability.SYNC) {
+                await(sequence);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Waits until every {@link Transition} appended so far has been written
+     * and forced to disk, whatever the {@link Durability}.
+     * 
+     * @throws UncheckedIOException if the journal could not be written
+     * @throws IllegalStateException if the journal is closed
+     */
+    public void flush() {
+        this.lock.lock();
+        try {
+            checkOpen();
+            this.flushRequested = true;
+            this.appendable.signal();
+            await(this.appended);
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Writes and forces every {@link Transition} appended so far, stops the
+     * writer thread and closes the file.
+     * 
+     * @throws UncheckedIOException if the journal could not be written
+     */
+    @Override
+    public void close() {
+        this.lock.lock();
+        try {
+            if (this.closing) {
+                return;
+            }
+            this.closing = true;
+            this.appendable.signal();
+        }
+        finally {
+            this.lock.unlock();
+        }
+        boolean interrupted = false;
+        while (this.writer.isAlive()) {
+            try {
+                this.writer.join();
+            }
+            catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            this.channel.close();
+        }
+        catch (final IOException e) {
+            throw new UncheckedIOException("Failed to close transition journal " + this.path.toAbsolutePath(), e);
+        }
+        if (this.failure != null) {
+            throw new UncheckedIOException("Failed to write transition journal " + this.path.toAbsolutePath(),
+                    this.failure);
+        }
+    }
+    
+    // makes room for the specified number of bytes in the active buffer, holding the lock, or returns
+    // false once the writer has made room, having released the lock meanwhile, to be called again
+    private boolean reserve(final int size) {
+        checkOpen();
+        if (this.active.remaining() < size) {
+            if (this.active.position() != 0) {
+                this.appendable.signal();
+                this.committed.awaitUninterruptibly();
+                return false;
+            }
+            // a table of names larger than the buffer, which grows to hold it
+            this.active = ByteBuffer.allocateDirect(size);
+        }
+        if (this.active.position() == 0) {
+            // the writer only waits while there is nothing to write
+            this.appendable.signal();
+        }
+        return true;
+    }
+    
+    // waits until the specified number of records have been forced, holding the lock
+    private void await(final long sequence) {
+        while (this.forced < sequence) {
+            if (this.failure != null) {
+                throw new UncheckedIOException("Failed to write transition journal " + this.path.toAbsolutePath(),
+                        this.failure);
+            }
+            this.committed.awaitUninterruptibly();
+        }
+    }
+    
+    private void checkOpen() {
+        if (this.failure != null) {
+            throw new UncheckedIOException("Failed to write transition journal " + this.path.toAbsolutePath(),
+                    this.failure);
+        }
+        if (this.closing) {
+            throw new IllegalStateException("Transition journal " + this.path.toAbsolutePath() + " is closed");
+        }
+    }
+    
+    private static ByteBuffer names(final Machine machine) {
+        final byte[][] states = new byte[machine.getStateCount()][];
+        final byte[][] events = new byte[machine.getEventCount()][];
+        int length = 2 * Integer.BYTES;
+        for (int i = 0; i < states.length; i++) {
+            states[i] = machine.getState(i).getId().getBytes(StandardCharsets.UTF_8);
+            length += Integer.BYTES + states[i].length;
+        }
+        for (int i = 0; i < events.length; i++) {
+            events[i] = machine.getEvent(i).getBytes(StandardCharsets.UTF_8);
+            length += Integer.BYTES + events[i].length;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(1 + Integer.BYTES + length);
+        buffer.put(NAMES).putInt(length);
+        for (final byte[][] table : new byte[][][] { states, events }) {
+            buffer.putInt(table.length);
+            for (final byte[] name : table) {
+                buffer.putInt(name.length).put(name);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    private void recover() throws IOException {
+        if (this.channel.size() == 0) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            while (header.hasRemaining()) {
+                this.channel.write(header);
+            }
+            return;
+        }
+        // find the end of the last whole record
+        final Reader reader = new Reader(this.path, this.channel);
+        while (reader.next()) {
+            // skip
+        }
+        final long size = this.channel.size();
+        if (reader.position < size) {
+            this.logger.warn("truncating transition journal {} from {} to {} bytes", this.path, size, reader.position);
+            this.channel.truncate(reader.position);
+        }
+        this.channel.position(reader.position);
+    }
+    
+    // the body of the writer thread
+    private void write() {
+        final ReentrantLock lock = this.lock;
+        long lastForce = System.nanoTime();
+        boolean unforced = false;
+        try {
+            while (true) {
+                final ByteBuffer group;
+                final long sequence;
+                final boolean force;
+                final boolean closing;
+                lock.lock();
+                try {
+                    while (this.active.position() == 0 && !this.flushRequested && !this.closing) {
+                        if (unforced && this.durability == Durability.PERIODIC) {
+                            final long wait = this.periodNanos - (System.nanoTime() - lastForce);
+                            if (wait <= 0) {
+                                break;
+                            }
+                            this.appendable.awaitNanos(wait);
+                        }
+                        else {
+                            this.appendable.await();
+                        }
+                    }
+                    group = this.active;
+                    this.active = this.spare;
+                    this.spare = null;
+                    sequence = this.appended;
+                    closing = this.closing;
+                    force = this.flushRequested || closing || this.durability == Durability.GROUP
+                            || this.durability == Durability.SYNC;
+                    this.flushRequested = false;
+                }
+                finally {
+                    lock.unlock();
+                }
+                
+                // write and force outside the lock, while threads append to the other buffer
+                group.flip();
+                unforced |= group.hasRemaining();
+                while (group.hasRemaining()) {
+                    this.channel.write(group);
+                }
+                if (unforced && (force || this.durability == Durability.PERIODIC
+                        && System.nanoTime() - lastForce >= this.periodNanos)) {
+                    this.channel.force(false);
+                    lastForce = System.nanoTime();
+                    unforced = false;
+                }
+                
+                lock.lock();
+                try {
+                    group.clear();
+                    this.spare = group;
+                    this.written = sequence;
+                    if (!unforced) {
+                        this.forced = sequence;
+                    }
+                    this.committed.signalAll();
+                    if (closing && this.active.position() == 0) {
+                        return;
+                    }
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+        }
+        catch (final IOException | InterruptedException e) {
+            this.logger.error("failed to write transition journal {}", this.path, e);
+            lock.lock();
+            try {
+                this.failure = e instanceof IOException ? (IOException) e : new InterruptedIOException();
+                this.committed.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Reads the records of a journal in the order they were appended. A
+     * {@link Reader} holds one record at a time, so reading a journal does
+     * not allocate per record. It stops at the end of the file or at the
+     * first torn record.
+     */
+    public static final class Reader implements AutoCloseable {
+        
+        private final Path path;
+        
+        private final FileChannel channel;
+        
+        private ByteBuffer buffer = ByteBuffer.allocate(64 << 10);
+        
+        // the position in the file of the next byte to read into the buffer
+        private long readPosition;
+        
+        // the position in the file after the last whole record read
+        long position = HEADER_SIZE;
+        
+        private boolean ended;
+        
+        private String[] states;
+        
+        private String[] events;
+        
+        private long instanceId;
+        
+        private long timestamp;
+        
+        private int from;
+        
+        private int to;
+        
+        private int eventId;
+        
+        Reader(final Path path, final FileChannel channel) throws IOException {
+            this.path = path;
+            this.channel = channel;
+            this.buffer.flip();
+            if (!fill(HEADER_SIZE) || this.buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a transition journal: " + path.toAbsolutePath());
+            }
+            final int version = this.buffer.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException(String.format("Transition journal %s has version %d, expected %d",
+                        path.toAbsolutePath(), version, VERSION));
+            }
+        }
+        
+        /**
+         * Moves to the next {@link Transition} in the journal.
+         * 
+         * @return {@code true} if there is one, or {@code false} at the end
+         * @throws UncheckedIOException if the file cannot be read
+         */
+        public boolean next() {
+            try {
+                while (!this.ended && fill(1)) {
+                    final byte type = this.buffer.get();
+                    if (type == TRANSITION && fill(TRANSITION_SIZE - 1)) {
+                        this.instanceId = this.buffer.getLong();
+                        this.timestamp = this.buffer.getLong();
+                        this.from = this.buffer.getInt();
+                        this.to = this.buffer.getInt();
+                        this.eventId = this.buffer.getInt();
+                        if (this.states != null && this.from >= 0 && this.from < this.states.length && this.to >= 0
+                                && this.to < this.states.length && this.eventId >= 0
+                                && this.eventId < this.events.length) {
+                            this.position += TRANSITION_SIZE;
+                            return true;
+                        }
+                    }
+                    else if (type == NAMES && fill(Integer.BYTES)) {
+                        final int length = this.buffer.getInt();
+                        if (length >= 2 * Integer.BYTES && fill(length)) {
+                            this.states = readNames();
+                            this.events = readNames();
+                            this.position += 1 + Integer.BYTES + length;
+                            continue;
+                        }
+                    }
+                    // a zeroed or partly written tail
+                    this.ended = true;
+                }
+                return false;
+            }
+            catch (final IOException e) {
+                throw new UncheckedIOException("Failed to read transition journal " + this.path.toAbsolutePath(), e);
+            }
+        }
+        
+        /**
+         * Returns the ID of the instance which took the current
+         * {@link Transition}.
+         * 
+         * @return the ID of the instance
+         */
+        public long getInstanceId() {
+            return this.instanceId;
+        }
+        
+        /**
+         * Returns the time the current {@link Transition} was taken.
+         * 
+         * @return the time in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+        
+        /**
+         * Returns the ID of the {@link State} the current {@link Transition}
+         * moved from.
+         * 
+         * @return the origin State ID
+         */
+        public String getFrom() {
+            return this.states[this.from];
+        }
+        
+        /**
+         * Returns the ID of the {@link State} the current {@link Transition}
+         * moved to.
+         * 
+         * @return the target State ID
+         */
+        public String getTo() {
+            return this.states[this.to];
+        }
+        
+        /**
+         * Returns the name of the event of the current {@link Transition}.
+         * 
+         * @return the event name
+         */
+        public String getEvent() {
+            return this.events[this.eventId];
+        }
+        
+        @Override
+        public void close() {
+            try {
+                this.channel.close();
+            }
+            catch (final IOException e) {
+                throw new UncheckedIOException("Failed to close transition journal " + this.path.toAbsolutePath(), e);
+            }
+        }
+        
+        private String[] readNames() {
+            final String[] names = new String[this.buffer.getInt()];
+            for (int i = 0; i < names.length; i++) {
+                final byte[] bytes = new byte[this.buffer.getInt()];
+                this.buffer.get(bytes);
+                names[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return names;
+        }
+        
+        // reads until the specified number of bytes remain, returning false at the end of the file
+        private boolean fill(final int size) throws IOException {
+            if (this.buffer.remaining() >= size) {
+                return true;
+            }
+            if (size > this.buffer.capacity()) {
+                this.buffer = ByteBuffer.allocate(size).put(this.buffer);
+            }
+            else {
+                this.buffer.compact();
+            }
+            while (this.buffer.position() < size) {
+                final int read = this.channel.read(this.buffer, this.readPosition);
+                if (read < 0) {
+                    this.buffer.flip();
+                    return false;
+                }
+                this.readPosition += read;
+            }
+            this.buffer.flip();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.krisjacyna.yasm;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link Context} whose declared variables are stored in primitive arrays.
+ * 
+ * The variables declared by the {@link ContextSchema} are read and written
+ * through their handles without hashing or boxing, for example:
+ * 
+ * <pre>
+ * final ContextSchema.Builder builder = new ContextSchema.Builder();
+ * final ContextSchema.LongVariable retries = builder.declareLong("retries");
+ * final TypedContext context = builder.build().newContext();
+ * retries.add(context, 1);
+ * </pre>
+ * 
+ * {@link #get(String)} and {@link #set(String, Object)} still work for every
+ * variable, boxing declared values as needed, and any undeclared key is
+ * stored as in a plain {@link Context}.
+ * 
+ * @author Kris Jacyna
+ */
+public class TypedContext extends Context {
+    
+    private final ContextSchema schema;
+    
+    final long[] longs;
+    
+    final double[] doubles;
+    
+    final Object[] objects;
+    
+    TypedContext(final ContextSchema schema, final String name) {
+        super(name);
+        this.schema = schema;
+        this.longs = new long[schema.getLongCount()];
+        this.doubles = new double[schema.getDoubleCount()];
+        this.objects = new Object[schema.getObjectCount()];
+    }
+    
+    /**
+     * Returns the {@link ContextSchema} of this {@link TypedContext}.
+     * 
+     * @return the ContextSchema
+     */
+    public ContextSchema getSchema() {
+        return this.schema;
+    }
+    
+    /**
+     * Sets the specified value. If the key is a declared variable the value
+     * must be of the variable's type.
+     * 
+     * @param key the key to use
+     * @param value the value to store
+     * @throws IllegalArgumentException if the value does not match the declared type
+     */
+    @Override
+    public void set(final String key, final Object value) {
+        final ContextSchema.Variable variable = this.schema.find(key);
+        if (variable != null) {
+            variable.setBoxed(this, value);
+        }
+        else {
+            super.set(key, value);
+        }
+    }
+    
+    @Override
+    public Object get(final String key) {
+        final ContextSchema.Variable variable = this.schema.find(key);
+        return variable != null ? variable.getBoxed(this) : super.get(key);
+    }
+    
+    /**
+     * Returns every variable of this {@link TypedContext}, the declared
+     * variables first, boxed, followed by any undeclared keys. The returned
+     * map is a copy.
+     * 
+     * @return the variables
+     */
+    @Override
+    public Map<String, Object> getVariables() {
+        final Map<String, Object> variables = new LinkedHashMap<>();
+        this.schema.getVariables().forEach((name, variable) -> variables.put(name, variable.getBoxed(this)));
+        variables.putAll(super.getVariables());
+        return variables;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(super.toString())
+                .append(" longs=").append(Arrays.toString(this.longs))
+                .append(", doubles=").append(Arrays.toString(this.doubles))
+                .append(", objects=").append(Arrays.toString(this.objects))
+                .toString();
+    }
+}
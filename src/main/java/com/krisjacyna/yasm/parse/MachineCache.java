@@ -0,0 +1,275 @@
+package com.krisjacyna.yasm.parse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.krisjacyna.yasm.Action;
+import com.krisjacyna.yasm.Condition;
+import com.krisjacyna.yasm.Machine;
+
+/**
+ * A cache of parsed {@link Machine}s which can be shared by every
+ * {@link Parser} in a process (see {@link #shared()}).
+ * 
+ * Entries are keyed by a SHA-256 digest of the definition's contents
+ * together with the identity of every registered {@link Action} and
+ * {@link Condition}, so two parsers share a {@link Machine} only if they
+ * would have built the same one. The cache holds a bounded number of
+ * entries and evicts the least recently used. When several threads parse
+ * the same definition at once only one of them parses it and the others
+ * wait for its result.
+ * 
+ * Cached {@link Machine}s are shared, so they must not be modified.
+ *
+ * @author Kris Jacyna
+ */
+public class MachineCache {
+    
+    private static final MachineCache SHARED = new MachineCache(64);
+    
+    private final int maxEntries;
+    
+    private final LongAdder hits = new LongAdder();
+    
+    private final LongAdder misses = new LongAdder();
+    
+    private final LongAdder evictions = new LongAdder();
+    
+    // guarded by itself; in access order for LRU eviction
+    private final LinkedHashMap<Key, CompletableFuture<Machine>> entries;
+    
+    /**
+     * Creates a new {@link MachineCache}.
+     * 
+     * @param maxEntries the largest number of Machines to keep
+     */
+    public MachineCache(final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Invalid maximum entries " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Key, CompletableFuture<Machine>>(16, 0.75f, true) {
+            
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, CompletableFuture<Machine>> eldest) {
+                if (size() > MachineCache.this.maxEntries) {
+                    MachineCache.this.evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+    
+    /**
+     * Returns the process-wide {@link MachineCache}, which holds up to 64
+     * {@link Machine}s.
+     * 
+     * @return the shared MachineCache
+     */
+    public static MachineCache shared() {
+        return SHARED;
+    }
+    
+    /**
+     * Returns the {@link Machine} for the definition and registries of the
+     * specified {@link Parser}, parsing it if it is not cached.
+     * 
+     * @param parser the Parser
+     * @return the Machine
+     * @throws MachineParseException if the definition cannot be read or parsed
+     */
+    Machine get(final Parser parser) {
+        final byte[] content;
+        try {
+            content = Files.readAllBytes(parser.getFile().toPath());
+        }
+        catch (final IOException e) {
+            throw new MachineParseException("Failed to read " + parser.getFile().getAbsolutePath(), e);
+        }
+        final Key key = new Key(digest(content), parser.getActionRegistry(), parser.getConditionRegistry());
+        
+        final CompletableFuture<Machine> future;
+        final boolean owner;
+        synchronized (this.entries) {
+            final CompletableFuture<Machine> existing = this.entries.get(key);
+            if (existing != null) {
+                future = existing;
+                owner = false;
+            }
+            else {
+                future = new CompletableFuture<>();
+                this.entries.put(key, future);
+                owner = true;
+            }
+        }
+        if (!owner) {
+            this.hits.increment();
+            try {
+                return future.join();
+            }
+            catch (final CompletionException e) {
+                throw (RuntimeException) e.getCause();
+            }
+        }
+        
+        this.misses.increment();
+        try {
+            final Machine machine = parser.parse(content);
+            future.complete(machine);
+            return machine;
+        }
+        catch (final RuntimeException e) {
+            synchronized (this.entries) {
+                this.entries.remove(key, future);
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+    
+    /**
+     * Returns the number of requests answered from the cache, including
+     * those which waited for a parse already in progress.
+     * 
+     * @return the number of hits
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+    
+    /**
+     * Returns the number of requests which had to parse.
+     * 
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+    
+    /**
+     * Returns the number of entries evicted to stay within the bound.
+     * 
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+    
+    /**
+     * Returns the number of cached entries.
+     * 
+     * @return the number of entries
+     */
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+    
+    /**
+     * Removes every entry. The metrics are not reset.
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append("MachineCache[")
+                .append("size=").append(size())
+                .append(", hits=").append(getHits())
+                .append(", misses=").append(getMisses())
+                .append(", evictions=").append(getEvictions())
+                .append("]")
+                .toString();
+    }
+    
+    private static byte[] digest(final byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        }
+        catch (final NoSuchAlgorithmException e) {
+            // every JVM must support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * A content digest and the identities of the registered elements.
+     */
+    private static final class Key {
+        
+        private final byte[] digest;
+        
+        private final Map<String, Action> actions;
+        
+        private final Map<String, Condition> conditions;
+        
+        private final int hash;
+        
+        Key(final byte[] digest, final Map<String, Action> actions, final Map<String, Condition> conditions) {
+            this.digest = digest;
+            this.actions = new HashMap<>(actions);
+            this.conditions = new HashMap<>(conditions);
+            int h = Arrays.hashCode(digest);
+            h = 31 * h + identityHash(this.actions);
+            h = 31 * h + identityHash(this.conditions);
+            this.hash = h;
+        }
+        
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+        
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return this.hash == other.hash
+                    && Arrays.equals(this.digest, other.digest)
+                    && sameIdentities(this.actions, other.actions)
+                    && sameIdentities(this.conditions, other.conditions);
+        }
+        
+        private static int identityHash(final Map<String, ?> registry) {
+            int h = 0;
+            for (final Map.Entry<String, ?> entry : registry.entrySet()) {
+                h += entry.getKey().hashCode() ^ System.identityHashCode(entry.getValue());
+            }
+            return h;
+        }
+        
+        private static boolean sameIdentities(final Map<String, ?> a, final Map<String, ?> b) {
+            if (a.size() != b.size()) {
+                return false;
+            }
+            for (final Map.Entry<String, ?> entry : a.entrySet()) {
+                if (b.get(entry.getKey()) != entry.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
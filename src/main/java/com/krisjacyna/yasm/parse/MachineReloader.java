@@ -0,0 +1,155 @@
+package com.krisjacyna.yasm.parse;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.krisjacyna.yasm.Machine;
+import com.krisjacyna.yasm.MachineEngine;
+
+/**
+ * Reloads the {@link Machine} of a {@link MachineEngine} from its definition
+ * while the engine's instances keep running.
+ * 
+ * The new {@link Machine} is built by a {@link Supplier}, typically a
+ * {@link Parser} but equally a {@link ModularParser}, a
+ * {@link MachineSnapshot} or any other source, and swapped into the engine
+ * with {@link MachineEngine#reload(Machine)}. Parsing happens on the thread
+ * which triggers the reload, never on a thread firing events. If the new
+ * definition fails to parse the engine keeps its current {@link Machine}.
+ * 
+ * {@link #watch(MachineEngine, String, Supplier)} starts a background thread
+ * which reloads whenever the definition file changes.
+ *
+ * @author Kris Jacyna
+ */
+public class MachineReloader implements AutoCloseable {
+    
+    // quiet period to let a file finish being written before parsing it
+    private static final long SETTLE_MILLIS = 100;
+    
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private final MachineEngine engine;
+    
+    private final Supplier<Machine> source;
+    
+    private WatchService watchService;
+    
+    private Thread watcher;
+    
+    /**
+     * Creates a {@link MachineReloader} which only reloads when
+     * {@link #reload()} is called.
+     * 
+     * @param engine the MachineEngine to reload
+     * @param source builds the new Machine
+     */
+    public MachineReloader(final MachineEngine engine, final Supplier<Machine> source) {
+        this.engine = engine;
+        this.source = source;
+    }
+    
+    /**
+     * Creates a {@link MachineReloader} which reloads the engine on a
+     * background thread whenever the specified file changes.
+     * 
+     * @param engine the MachineEngine to reload
+     * @param url the location of the definition to watch
+     * @param source builds the new Machine, usually by parsing the file
+     * @return the running MachineReloader, which must be closed to stop watching
+     * @throws MachineParseException if the file cannot be watched
+     */
+    public static MachineReloader watch(final MachineEngine engine, final String url,
+            final Supplier<Machine> source) {
+        final MachineReloader reloader = new MachineReloader(engine, source);
+        final Path file = Paths.get(url).toAbsolutePath();
+        try {
+            reloader.watchService = FileSystems.getDefault().newWatchService();
+            file.getParent().register(reloader.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch (final IOException e) {
+            throw new MachineParseException("Failed to watch " + file, e);
+        }
+        reloader.watcher = new Thread(() -> reloader.watchLoop(file), "yasm-reload-" + file.getFileName());
+        reloader.watcher.setDaemon(true);
+        reloader.watcher.start();
+        return reloader;
+    }
+    
+    /**
+     * Builds a new {@link Machine} from the source and swaps it into the
+     * engine.
+     * 
+     * @return {@code true} if the Machine was reloaded, {@code false} if
+     *         the source or the engine rejected it and the current Machine
+     *         was kept
+     */
+    public boolean reload() {
+        final Machine machine;
+        try {
+            machine = this.source.get();
+            // rejects a Machine the running instances cannot move to, such as one with other Regions
+            this.engine.reload(machine);
+        }
+        catch (final RuntimeException e) {
+            this.logger.error("failed to reload machine, keeping the current definition", e);
+            return false;
+        }
+        this.logger.info("reloaded machine with {} states", machine.getStateCount());
+        return true;
+    }
+    
+    /**
+     * Stops watching the definition, if it was being watched.
+     */
+    @Override
+    public void close() {
+        if (this.watchService != null) {
+            try {
+                this.watchService.close();
+            }
+            catch (final IOException e) {
+                this.logger.debug("failed to close watch service", e);
+            }
+        }
+    }
+    
+    private void watchLoop(final Path file) {
+        try {
+            while (true) {
+                WatchKey key = this.watchService.take();
+                boolean changed = false;
+                // collect every change until the file has settled
+                while (key != null) {
+                    for (final WatchEvent<?> event : key.pollEvents()) {
+                        changed |= file.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                    key = this.watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        }
+        catch (final ClosedWatchServiceException e) {
+            // closed
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
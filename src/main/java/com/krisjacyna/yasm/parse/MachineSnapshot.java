@@ -0,0 +1,432 @@
+package com.krisjacyna.yasm.parse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.krisjacyna.yasm.Action;
+import com.krisjacyna.yasm.Condition;
+import com.krisjacyna.yasm.Machine;
+import com.krisjacyna.yasm.Region;
+import com.krisjacyna.yasm.State;
+import com.krisjacyna.yasm.Transition;
+
+/**
+ * Saves a fully resolved {@link Machine} in a compact binary format and
+ * loads it back without parsing XML.
+ * 
+ * A snapshot holds a string table followed by the {@link State}s, in
+ * integer ID order with the index of their parent and their deferred
+ * events, their {@link Transition}s and then the {@link Region}s, with every
+ * reference stored as an integer index. {@link Action}s and
+ * {@link Condition}s are stored by ID and re-bound from the registries when
+ * loaded, in the same way as {@link Parser}. The file is memory-mapped when
+ * loaded.
+ * 
+ * The header holds a format version, a CRC32 checksum of the body, which
+ * detects corrupt or truncated files, and an optional CRC32 checksum of
+ * the source definition, which detects snapshots which are stale because
+ * the definition has since changed (see {@link #isCurrent(String, String)}).
+ *
+ * @author Kris Jacyna
+ */
+public class MachineSnapshot {
+    
+    private static final int MAGIC = 0x5941534D; // "YASM"
+    
+    static final short VERSION = 5;
+    
+    // magic, version, reserved, body checksum, source checksum, body length
+    private static final int HEADER_SIZE = 4 + 2 + 2 + 8 + 8 + 4;
+    
+    private static final int SOURCE_CHECKSUM_OFFSET = 16;
+    
+    private static final int NONE = -1;
+    
+    private final Map<String, Action> actionRegistry = new HashMap<>();
+    
+    private final Map<String, Condition> conditionRegistry = new HashMap<>();
+    
+    private final Path path;
+    
+    private MachineSnapshot(final String url) {
+        this.path = Paths.get(url);
+    }
+    
+    /**
+     * Creates a {@link MachineSnapshot} for loading the snapshot file at the
+     * specified location.
+     * 
+     * @param url the location of the snapshot
+     * @return the MachineSnapshot
+     */
+    public static MachineSnapshot newInstance(final String url) {
+        return new MachineSnapshot(url);
+    }
+    
+    public MachineSnapshot addAction(final Action action) {
+        this.actionRegistry.put(action.getId(), action);
+        return this;
+    }
+    
+    public MachineSnapshot addActions(final Collection<Action> actions) {
+        actions.forEach(a -> this.actionRegistry.put(a.getId(), a));
+        return this;
+    }
+    
+    public MachineSnapshot addCondition(final Condition condition) {
+        this.conditionRegistry.put(condition.getId(), condition);
+        return this;
+    }
+    
+    public MachineSnapshot addConditions(final Collection<Condition> conditions) {
+        conditions.forEach(c -> this.conditionRegistry.put(c.getId(), c));
+        return this;
+    }
+    
+    /**
+     * Loads the {@link Machine} from the snapshot, re-binding its
+     * {@link Action}s and {@link Condition}s from the registries.
+     * 
+     * @return the Machine
+     * @throws MachineParseException if the snapshot cannot be read, has a
+     *         different version or fails its checksum
+     * @throws UndefinedElementException if an Action or Condition is not registered
+     */
+    public Machine load() {
+        try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer);
+        }
+        catch (final IOException e) {
+            throw new MachineParseException("Failed to load snapshot " + this.path.toAbsolutePath(), e);
+        }
+    }
+    
+    /**
+     * Writes a snapshot of the specified {@link Machine}.
+     * 
+     * @param machine the Machine to save
+     * @param url the location of the snapshot
+     * @param sourceUrl the location of the definition the Machine was parsed
+     *        from, or {@code null} if staleness should not be checked
+     * @throws MachineParseException if the snapshot cannot be written
+     */
+    public static void write(final Machine machine, final String url, final String sourceUrl) {
+        final Path target = Paths.get(url);
+        try {
+            final long sourceChecksum = sourceUrl != null ? checksum(Paths.get(sourceUrl)) : 0L;
+            final ByteBuffer body = encode(machine);
+            final CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, body.limit());
+            
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC)
+                .putShort(VERSION)
+                .putShort((short) 0)
+                .putLong(crc.getValue())
+                .putLong(sourceChecksum)
+                .putInt(body.limit())
+                .flip();
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (body.hasRemaining()) {
+                    channel.write(body);
+                }
+            }
+        }
+        catch (final IOException e) {
+            throw new MachineParseException("Failed to write snapshot " + target.toAbsolutePath(), e);
+        }
+    }
+    
+    /**
+     * Returns whether the snapshot at the specified location is readable, of
+     * the current version and was written from the current contents of the
+     * specified definition.
+     * 
+     * @param url the location of the snapshot
+     * @param sourceUrl the location of the definition
+     * @return {@code true} if the snapshot can be used in place of the
+     *         definition, {@code false} if it should be rewritten
+     */
+    public static boolean isCurrent(final String url, final String sourceUrl) {
+        final Path snapshot = Paths.get(url);
+        if (!Files.isReadable(snapshot)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // fill the header
+            }
+            header.flip();
+            return header.remaining() == HEADER_SIZE
+                    && header.getInt() == MAGIC
+                    && header.getShort() == VERSION
+                    && header.getLong(SOURCE_CHECKSUM_OFFSET) == checksum(Paths.get(sourceUrl));
+        }
+        catch (final IOException e) {
+            return false;
+        }
+    }
+    
+    private Machine read(final ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new MachineParseException("Not a machine snapshot: " + this.path.toAbsolutePath());
+        }
+        final short version = buffer.getShort();
+        if (version != VERSION) {
+            throw new MachineParseException(String.format("Snapshot %s has version %d, expected %d",
+                    this.path.toAbsolutePath(), version, VERSION));
+        }
+        buffer.getShort();
+        final long bodyChecksum = buffer.getLong();
+        buffer.getLong(); // source checksum
+        final int length = buffer.getInt();
+        if (buffer.remaining() != length) {
+            throw new MachineParseException("Snapshot is truncated: " + this.path.toAbsolutePath());
+        }
+        
+        final ByteBuffer body = buffer.slice();
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[8192];
+        while (body.hasRemaining()) {
+            final int n = Math.min(chunk.length, body.remaining());
+            body.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        if (crc.getValue() != bodyChecksum) {
+            throw new MachineParseException("Snapshot checksum mismatch: " + this.path.toAbsolutePath());
+        }
+        body.flip();
+        return decode(body);
+    }
+    
+    private static ByteBuffer encode(final Machine machine) {
+        final StringTable strings = new StringTable();
+        final int stateCount = machine.getStateCount();
+        for (int i = 0; i < stateCount; i++) {
+            final State state = machine.getState(i);
+            strings.add(state.getId());
+            state.getEntryActions().forEach(a -> strings.add(a.getId()));
+            state.getExitActions().forEach(a -> strings.add(a.getId()));
+            state.getDeferredEvents().forEach(strings::add);
+            for (final Transition transition : state.getTransitions()) {
+                strings.add(transition.getEvent());
+                transition.getCondition().ifPresent(c -> strings.add(c.getId()));
+                transition.getActions().forEach(a -> strings.add(a.getId()));
+            }
+        }
+        for (int r = 0; r < machine.getRegionCount(); r++) {
+            strings.add(machine.getRegion(r).getId());
+        }
+        
+        final Encoder out = new Encoder();
+        out.putInt(strings.values.size());
+        strings.values.forEach(out::putString);
+        out.putInt(stateCount);
+        for (int i = 0; i < stateCount; i++) {
+            final State state = machine.getState(i);
+            out.putInt(strings.indexOf(state.getId()));
+            out.put((byte) ((state.isInitial() ? 1 : 0) | (state.isFinal() ? 2 : 0)));
+            out.putInt(state.getParent() != null ? state.getParent().getIndex() : NONE);
+            putActions(out, strings, state.getEntryActions());
+            putActions(out, strings, state.getExitActions());
+            out.putInt(state.getDeferredEvents().size());
+            state.getDeferredEvents().forEach(e -> out.putInt(strings.indexOf(e)));
+        }
+        for (int i = 0; i < stateCount; i++) {
+            final List<Transition> transitions = machine.getState(i).getTransitions();
+            out.putInt(transitions.size());
+            for (final Transition transition : transitions) {
+                out.putInt(transition.getEvent() != null ? strings.indexOf(transition.getEvent()) : NONE);
+                out.putLong(transition.getAfter().orElse(NONE));
+                out.putInt(transition.getTarget().map(State::getIndex).orElse(NONE));
+                out.putInt(transition.getCondition().map(c -> strings.indexOf(c.getId())).orElse(NONE));
+                putActions(out, strings, transition.getActions());
+            }
+        }
+        out.putInt(machine.getRegionCount());
+        for (int r = 0; r < machine.getRegionCount(); r++) {
+            final Region region = machine.getRegion(r);
+            out.putInt(strings.indexOf(region.getId()));
+            out.putInt(region.getInitialState().getIndex());
+            out.putInt(region.getStates().size());
+            region.getStates().forEach(state -> out.putInt(state.getIndex()));
+        }
+        return out.toBuffer();
+    }
+    
+    private Machine decode(final ByteBuffer in) {
+        final String[] strings = new String[in.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            final byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        
+        final State[] states = new State[in.getInt()];
+        final int[] parents = new int[states.length];
+        final Map<String, State> stateMap = new HashMap<>(states.length * 2);
+        for (int i = 0; i < states.length; i++) {
+            final String id = strings[in.getInt()];
+            final byte flags = in.get();
+            states[i] = new State(id, (flags & 1) != 0, (flags & 2) != 0);
+            parents[i] = in.getInt();
+            for (int a = in.getInt(); a > 0; a--) {
+                states[i].addEntryAction(action(strings[in.getInt()]));
+            }
+            for (int a = in.getInt(); a > 0; a--) {
+                states[i].addExitAction(action(strings[in.getInt()]));
+            }
+            for (int e = in.getInt(); e > 0; e--) {
+                states[i].addDeferredEvent(strings[in.getInt()]);
+            }
+            stateMap.put(id, states[i]);
+        }
+        for (int i = 0; i < states.length; i++) {
+            if (parents[i] != NONE) {
+                states[parents[i]].addChild(states[i]);
+            }
+        }
+        for (final State state : states) {
+            for (int t = in.getInt(); t > 0; t--) {
+                final int event = in.getInt();
+                final long after = in.getLong();
+                final int target = in.getInt();
+                final int condition = in.getInt();
+                final Transition.Builder builder = after != NONE
+                        ? Transition.Builder.after(after)
+                        : new Transition.Builder(event != NONE ? strings[event] : null);
+                if (target != NONE) {
+                    builder.setTarget(states[target]);
+                }
+                if (condition != NONE) {
+                    builder.setCondition(condition(strings[condition]));
+                }
+                for (int a = in.getInt(); a > 0; a--) {
+                    builder.addAction(action(strings[in.getInt()]));
+                }
+                state.addTransition(builder.build());
+            }
+        }
+        final List<Region> regions = new ArrayList<>();
+        for (int r = in.getInt(); r > 0; r--) {
+            final String id = strings[in.getInt()];
+            final State regionInitial = states[in.getInt()];
+            final List<State> regionStates = new ArrayList<>();
+            for (int i = in.getInt(); i > 0; i--) {
+                regionStates.add(states[in.getInt()]);
+            }
+            regions.add(new Region(id, regionInitial, regionStates));
+        }
+        return new Machine(stateMap, regions);
+    }
+    
+    private Action action(final String id) {
+        final Action action = this.actionRegistry.get(id);
+        if (action == null) {
+            throw UndefinedElementException.undefinedAction(id);
+        }
+        return action;
+    }
+    
+    private Condition condition(final String id) {
+        final Condition condition = this.conditionRegistry.get(id);
+        if (condition == null) {
+            throw UndefinedElementException.undefinedCondition(id);
+        }
+        return condition;
+    }
+    
+    private static void putActions(final Encoder out, final StringTable strings, final List<Action> actions) {
+        out.putInt(actions.size());
+        actions.forEach(a -> out.putInt(strings.indexOf(a.getId())));
+    }
+    
+    private static long checksum(final Path file) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(file));
+        return crc.getValue();
+    }
+    
+    /**
+     * Assigns each distinct string an index in order of first use.
+     */
+    private static final class StringTable {
+        
+        final Map<String, Integer> indexes = new LinkedHashMap<>();
+        
+        final List<String> values = new ArrayList<>();
+        
+        void add(final String value) {
+            if (value != null && !this.indexes.containsKey(value)) {
+                this.indexes.put(value, this.values.size());
+                this.values.add(value);
+            }
+        }
+        
+        int indexOf(final String value) {
+            return this.indexes.get(value);
+        }
+    }
+    
+    /**
+     * A growable big-endian buffer.
+     */
+    private static final class Encoder {
+        
+        private ByteBuffer buffer = ByteBuffer.allocate(4096);
+        
+        void put(final byte value) {
+            ensure(1).put(value);
+        }
+        
+        void putInt(final int value) {
+            ensure(4).putInt(value);
+        }
+        
+        void putLong(final long value) {
+            ensure(8).putLong(value);
+        }
+        
+        void putString(final String value) {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            ensure(bytes.length).put(bytes);
+        }
+        
+        ByteBuffer toBuffer() {
+            this.buffer.flip();
+            return this.buffer;
+        }
+        
+        private ByteBuffer ensure(final int bytes) {
+            if (this.buffer.remaining() < bytes) {
+                final ByteBuffer larger = ByteBuffer.allocate(Math.max(this.buffer.capacity() * 2,
+                        this.buffer.position() + bytes));
+                this.buffer.flip();
+                larger.put(this.buffer);
+                this.buffer = larger;
+            }
+            return this.buffer;
+        }
+    }
+}
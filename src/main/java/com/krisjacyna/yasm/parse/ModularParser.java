@@ -0,0 +1,228 @@
+package com.krisjacyna.yasm.parse;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import com.krisjacyna.yasm.Action;
+import com.krisjacyna.yasm.Condition;
+import com.krisjacyna.yasm.Machine;
+import com.krisjacyna.yasm.State;
+
+/**
+ * Parses a {@link Machine} which is split across several XML files.
+ * 
+ * Each file holds a {@code <machine>} fragment whose {@link State}s may
+ * target {@link State}s in any other fragment. The fragments are parsed in
+ * parallel on a {@link ForkJoinPool}, then merged and cross-validated: state
+ * IDs must be unique across all fragments, exactly one {@link State} must be
+ * marked as initial and every target must be defined by some fragment. The
+ * cross-fragment targets are then resolved in parallel, one task per
+ * fragment. Fragments may not declare {@link com.krisjacyna.yasm.Region}s.
+ *
+ * @author Kris Jacyna
+ */
+public class ModularParser {
+    
+    private final Map<String, Action> actionRegistry = new HashMap<>();
+    
+    private final Map<String, Condition> conditionRegistry = new HashMap<>();
+    
+    private final List<File> files = new ArrayList<>();
+    
+    private final ForkJoinPool pool;
+    
+    private ModularParser(final Collection<String> urls, final ForkJoinPool pool) {
+        urls.forEach(url -> this.files.add(new File(url)));
+        this.pool = pool;
+    }
+    
+    /**
+     * Creates a {@link ModularParser} for the specified files which parses
+     * on the common {@link ForkJoinPool}.
+     * 
+     * @param urls the locations of the fragments
+     * @return the ModularParser
+     */
+    public static ModularParser newInstance(final String... urls) {
+        return newInstance(Arrays.asList(urls), ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Creates a {@link ModularParser} for the specified files which parses
+     * on the specified {@link ForkJoinPool}.
+     * 
+     * @param urls the locations of the fragments
+     * @param pool the ForkJoinPool to parse on
+     * @return the ModularParser
+     */
+    public static ModularParser newInstance(final Collection<String> urls, final ForkJoinPool pool) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No definitions to parse");
+        }
+        return new ModularParser(urls, pool);
+    }
+    
+    public ModularParser addAction(final Action action) {
+        this.actionRegistry.put(action.getId(), action);
+        return this;
+    }
+    
+    public ModularParser addActions(final Collection<Action> actions) {
+        actions.forEach(a -> this.actionRegistry.put(a.getId(), a));
+        return this;
+    }
+    
+    public ModularParser addCondition(final Condition condition) {
+        this.conditionRegistry.put(condition.getId(), condition);
+        return this;
+    }
+    
+    public ModularParser addConditions(final Collection<Condition> conditions) {
+        conditions.forEach(c -> this.conditionRegistry.put(c.getId(), c));
+        return this;
+    }
+    
+    /**
+     * Parses, merges and validates all of the fragments.
+     * 
+     * @return the merged Machine
+     * @throws MachineParseException if any fragment fails to parse or the
+     *         merged machine is not valid
+     */
+    public Machine parse() {
+        final XmlHandler[] handlers = new XmlHandler[this.files.size()];
+        final List<ForkJoinTask<?>> parses = new ArrayList<>(handlers.length);
+        for (int i = 0; i < handlers.length; i++) {
+            parses.add(new ParseTask(i, handlers));
+        }
+        this.pool.invoke(new Join(parses));
+        
+        final Map<String, State> states = new HashMap<>();
+        State initialState = null;
+        try {
+            for (final XmlHandler handler : handlers) {
+                if (!handler.getRegions().isEmpty()) {
+                    throw new MachineValidationException("Regions are not supported in modular definitions");
+                }
+                for (final State state : handler.getStates().values()) {
+                    if (states.putIfAbsent(state.getId(), state) != null) {
+                        throw new MachineValidationException("Duplicate state with ID '" + state.getId() + "'");
+                    }
+                }
+                if (handler.getInitialState() != null) {
+                    if (initialState != null) {
+                        throw new MachineValidationException(String.format(
+                                "States '%s' and '%s' are both marked as initial",
+                                initialState.getId(), handler.getInitialState().getId()));
+                    }
+                    initialState = handler.getInitialState();
+                }
+            }
+            if (initialState == null) {
+                throw new MachineValidationException("No state is marked as initial");
+            }
+            for (final XmlHandler handler : handlers) {
+                for (final String target : handler.getUnresolvedTargets()) {
+                    if (!states.containsKey(target)) {
+                        throw UndefinedElementException.undefinedState(target);
+                    }
+                }
+            }
+        }
+        catch (final RuntimeException e) {
+            throw new MachineParseException("Failed to merge " + this.files, e);
+        }
+        
+        final List<ForkJoinTask<?>> resolves = new ArrayList<>(handlers.length);
+        for (final XmlHandler handler : handlers) {
+            resolves.add(new ResolveTask(handler, states));
+        }
+        this.pool.invoke(new Join(resolves));
+        return new Machine(states, initialState);
+    }
+    
+    /**
+     * Runs a set of tasks and waits for all of them.
+     */
+    private static final class Join extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final transient List<ForkJoinTask<?>> tasks;
+        
+        Join(final List<ForkJoinTask<?>> tasks) {
+            this.tasks = tasks;
+        }
+        
+        @Override
+        protected void compute() {
+            invokeAll(this.tasks);
+        }
+    }
+    
+    /**
+     * Parses one fragment.
+     */
+    private final class ParseTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final int index;
+        
+        private final transient XmlHandler[] handlers;
+        
+        ParseTask(final int index, final XmlHandler[] handlers) {
+            this.index = index;
+            this.handlers = handlers;
+        }
+        
+        @Override
+        protected void compute() {
+            final File file = ModularParser.this.files.get(this.index);
+            try {
+                final XmlHandler handler = new XmlHandler(ModularParser.this.actionRegistry,
+                        ModularParser.this.conditionRegistry, true);
+                // SAX parsers are not thread-safe, so each task has its own
+                SAXParserFactory.newInstance().newSAXParser().parse(file, handler);
+                this.handlers[this.index] = handler;
+            }
+            catch (final Exception e) {
+                throw new MachineParseException("Failed to parse " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+    
+    /**
+     * Resolves the cross-fragment targets of one fragment.
+     */
+    private static final class ResolveTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final transient XmlHandler handler;
+        
+        private final transient Map<String, State> states;
+        
+        ResolveTask(final XmlHandler handler, final Map<String, State> states) {
+            this.handler = handler;
+            this.states = states;
+        }
+        
+        @Override
+        protected void compute() {
+            for (final String target : new ArrayList<>(this.handler.getUnresolvedTargets())) {
+                this.handler.resolve(this.states.get(target));
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.krisjacyna.yasm.parse;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.util.Collection;
 import java.util.HashMap;
@@ -9,6 +10,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import com.krisjacyna.yasm.Action;
@@ -99,10 +101,47 @@ public class Parser {
         try {
             final XmlHandler handler = new XmlHandler(this.actionRegistry, this.conditionRegistry);
             this.parser.parse(this.file, handler);
-            return new Machine(handler.getStates(), handler.getInitialState());
+            return handler.newMachine();
         }
         catch (final Exception e) {
             throw new MachineParseException("Failed to parse " + this.file.getAbsolutePath(), e);
         }
     }
+    
+    /**
+     * Returns the {@link Machine} from the specified {@link MachineCache},
+     * parsing it only if no {@link Machine} has been cached for the same
+     * contents and registered {@link Action}s and {@link Condition}s.
+     * 
+     * @param cache the MachineCache to use, such as {@link MachineCache#shared()}
+     * @return the shared Machine
+     */
+    public Machine parse(final MachineCache cache) {
+        return cache.get(this);
+    }
+    
+    Machine parse(final byte[] content) {
+        try {
+            final XmlHandler handler = new XmlHandler(this.actionRegistry, this.conditionRegistry);
+            final InputSource source = new InputSource(new ByteArrayInputStream(content));
+            source.setSystemId(this.file.toURI().toString());
+            this.parser.parse(source, handler);
+            return handler.newMachine();
+        }
+        catch (final Exception e) {
+            throw new MachineParseException("Failed to parse " + this.file.getAbsolutePath(), e);
+        }
+    }
+    
+    File getFile() {
+        return this.file;
+    }
+    
+    Map<String, Action> getActionRegistry() {
+        return this.actionRegistry;
+    }
+    
+    Map<String, Condition> getConditionRegistry() {
+        return this.conditionRegistry;
+    }
 }
@@ -1,10 +1,13 @@
 package com.krisjacyna.yasm.parse;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -12,11 +15,38 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import com.krisjacyna.yasm.Action;
 import com.krisjacyna.yasm.Condition;
+import com.krisjacyna.yasm.Machine;
+import com.krisjacyna.yasm.Region;
 import com.krisjacyna.yasm.State;
 import com.krisjacyna.yasm.Transition;
 
 /**
+ * Builds {@link State}s in a single streaming pass. The {@link Transition}s
+ * of a {@link State} are built as soon as all of their targets have been
+ * seen; until then its {@link Transition.Builder}s wait in a table of
+ * pending references keyed by target ID, which is cleared as each target
+ * {@link State} appears. Only {@link State}s with forward references keep
+ * their builders, so memory stays close to the size of the final machine.
  * 
+ * {@link State} elements may be nested to build composite {@link State}s.
+ * Each open {@link State} keeps its own builders, so the {@link Transition}s
+ * of a parent may be declared before or after its children. A {@link State}
+ * is registered as soon as its element starts, so children may refer to
+ * their ancestors without waiting for them to be closed.
+ * 
+ * The top level {@link State}s may be split into orthogonal {@link Region}s
+ * with {@code <region>} elements, each of which must mark exactly one of its
+ * {@link State}s as initial. Either every top level {@link State} is in a
+ * {@link Region} or none is.
+ * 
+ * A {@code <transition>} with an {@code after} attribute, such as
+ * {@code after="30s"}, is a timed {@link Transition} taken when the
+ * {@link State} has been active for that long.
+ * 
+ * A handler created for a fragment of a machine skips the checks for a
+ * single initial {@link State} and for undefined targets at the end of the
+ * document, so that the fragment can be merged with others and its pending
+ * targets resolved against their {@link State}s.
  *
  * @author Kris Jacyna
  */
@@ -29,16 +59,30 @@ public class XmlHandler extends DefaultHandler {
     // State names to State objects
     private final Map<String, State> states = new HashMap<>();
     
-    // Map of Origin states to a Map of target states to transitions
-    // This is to keep track of transitions before all of the States
-    // have been processed
-    private final Map<String, Map<String, List<Transition.Builder>>> transitionBuilders = new HashMap<>();
+    // Target state names to the transitions waiting for them
+    private final Map<String, List<PendingTarget>> pendingTargets = new HashMap<>();
+    
+    private final Deque<String> element = new ArrayDeque<>();
+    
+    // the State elements which are open, innermost first
+    private final Deque<OpenState> open = new ArrayDeque<>();
+    
+    // the initial State of the machine, or of the open Region
+    private State initialState;
+    
+    private final List<Region> regions = new ArrayList<>();
+    
+    // ID and top level States of the open Region, if any
+    private String regionId;
+    
+    private final List<State> regionStates = new ArrayList<>();
     
-    private final Stack<String> element = new Stack<>();
+    // the first top level State outside of any Region
+    private State looseState;
+    
+    private final boolean fragment;
 
     // reusable objects
-    private State rState;
-    
     private Transition.Builder rTransitionBuilder;
 
     /**
@@ -48,8 +92,20 @@ public class XmlHandler extends DefaultHandler {
      */
     public XmlHandler(final Map<String, Action> actionRegistry,
             final Map<String, Condition> conditionRegistry) {
+        this(actionRegistry, conditionRegistry, false);
+    }
+    
+    /**
+     * 
+     * @param actionRegistry
+     * @param conditionRegistry
+     * @param fragment whether the document is only a fragment of a machine
+     */
+    public XmlHandler(final Map<String, Action> actionRegistry,
+            final Map<String, Condition> conditionRegistry, final boolean fragment) {
         this.actionRegistry.putAll(actionRegistry);
         this.conditionRegistry.putAll(conditionRegistry);
+        this.fragment = fragment;
     }
     
     @Override
@@ -57,6 +113,19 @@ public class XmlHandler extends DefaultHandler {
             final String qName, final Attributes attributes) throws SAXException {
         
         switch (qName) {
+        case "region":
+            if (!this.open.isEmpty() || this.regionId != null) {
+                throw new MachineValidationException("Regions may only be declared at the top level");
+            }
+            final String regionId = attributes.getValue("id");
+            for (final Region region : this.regions) {
+                if (region.getId().equals(regionId)) {
+                    throw new MachineValidationException("Duplicate region with ID '" + regionId + "'");
+                }
+            }
+            this.regionId = regionId;
+            break;
+            
         case "state":
             final String id = attributes.getValue("id");
             if (this.states.containsKey(id)) {
@@ -65,51 +134,77 @@ public class XmlHandler extends DefaultHandler {
             
             final boolean isInitial = Boolean.valueOf(getOrDefault(attributes, "initial", "false"));
             final boolean isFinal = Boolean.valueOf(getOrDefault(attributes, "final", "false"));
-            this.rState = new State(id, isInitial, isFinal);
+            startState(new State(id, isInitial, isFinal));
             break;
             
         case "action":
             final String action = attributes.getValue("exec");
-            if (!this.actionRegistry.containsKey(action)) {
+            final Action a = this.actionRegistry.get(action);
+            if (a == null) {
                 throw UndefinedElementException.undefinedAction(action);
             }
-            if (this.element.peek().equals("entry")) {
-                this.rState.addEntryAction(this.actionRegistry.get(action));
+            switch (this.element.peek()) {
+            case "entry":
+                this.open.peek().state.addEntryAction(a);
+                break;
+            case "exit":
+                this.open.peek().state.addExitAction(a);
+                break;
+            case "transition":
+                this.rTransitionBuilder.addAction(a);
+                break;
+            default:
+                break;
             }
-            else if (this.element.peek().equals("exit")) {
-                this.rState.addExitAction(this.actionRegistry.get(action));
+            break;
+            
+        case "defer":
+            if (this.open.isEmpty()) {
+                throw new MachineValidationException("Deferred events may only be declared within a state");
             }
-            else if (this.element.peek().equals("transition")) {
-                this.rTransitionBuilder.addAction(this.actionRegistry.get(action));
+            final String deferred = attributes.getValue("event");
+            if (deferred == null || deferred.isEmpty()) {
+                throw new MachineValidationException(String.format(
+                        "Deferred event in state '%s' has no event attribute", this.open.peek().state.getId()));
             }
+            this.open.peek().state.addDeferredEvent(deferred);
             break;
             
         case "transition":
-            if (this.rState.isFinal()) {
+            final OpenState source = this.open.peek();
+            if (source == null) {
+                throw new MachineValidationException("Transitions may only be declared within a state");
+            }
+            if (source.state.isFinal()) {
                 throw new MachineValidationException(String.format(
                         "State '%s' cannot define any transtitions as it is marked as final",
-                        this.rState.getId()));
+                        source.state.getId()));
             }
             final String event = attributes.getValue("event");
+            final String after = attributes.getValue("after");
             final String target = attributes.getValue("target");
             final String condition = attributes.getValue("condition");
             
-            this.rTransitionBuilder = new Transition.Builder(event);
-            if (condition != null) {
-                if (!this.conditionRegistry.containsKey(condition)) {
-                    throw UndefinedElementException.undefinedCondition(condition);
+            if (after != null) {
+                if (event != null) {
+                    throw new MachineValidationException(String.format(
+                            "Transition from state '%s' cannot have both an event and a delay",
+                            source.state.getId()));
                 }
-                this.rTransitionBuilder.setCondition(this.conditionRegistry.get(condition));
+                this.rTransitionBuilder = Transition.Builder.after(parseDuration("after", after));
             }
-            if (target != null) {
-                if (!this.transitionBuilders.containsKey(this.rState.getId())) {
-                    this.transitionBuilders.put(this.rState.getId(), new HashMap<>());
-                }
-                if (!this.transitionBuilders.get(this.rState.getId()).containsKey(target)) {
-                    this.transitionBuilders.get(this.rState.getId()).put(target, new ArrayList<>());
+            else {
+                this.rTransitionBuilder = new Transition.Builder(event);
+            }
+            if (condition != null) {
+                final Condition c = this.conditionRegistry.get(condition);
+                if (c == null) {
+                    throw UndefinedElementException.undefinedCondition(condition);
                 }
-                this.transitionBuilders.get(this.rState.getId()).get(target).add(this.rTransitionBuilder);
+                this.rTransitionBuilder.setCondition(c);
             }
+            source.builders.add(this.rTransitionBuilder);
+            source.targets.add(target);
             break;
            
         default:
@@ -125,14 +220,24 @@ public class XmlHandler extends DefaultHandler {
         this.element.pop();
         switch (qName) {
         case "state":
-            this.states.put(this.rState.getId(), this.rState);
-            this.rState = null;
+            endState();
+            break;
+
+        case "region":
+            endRegion();
             break;
 
         case "machine":
             if (this.element.isEmpty()) {
-                checkInitialState();
-                buildTransitions();
+                if (!this.regions.isEmpty() && this.looseState != null) {
+                    throw new MachineValidationException(String.format(
+                            "State '%s' must be inside a region as the machine has regions",
+                            this.looseState.getId()));
+                }
+                if (!this.fragment) {
+                    checkInitialState();
+                    checkPendingTargets();
+                }
             } else {
                 // error
             }
@@ -143,26 +248,125 @@ public class XmlHandler extends DefaultHandler {
         }
     }
     
+    private void startState(final State state) {
+        final OpenState parent = this.open.peek();
+        if (parent != null) {
+            if (parent.state.isFinal()) {
+                throw new MachineValidationException(String.format(
+                        "State '%s' cannot contain any states as it is marked as final",
+                        parent.state.getId()));
+            }
+            parent.state.addChild(state);
+        }
+        else if (this.regionId != null) {
+            this.regionStates.add(state);
+        }
+        else if (this.looseState == null) {
+            this.looseState = state;
+        }
+        if (state.isInitial()) {
+            // top level states compete for the machine, children for their parent
+            final State other = parent != null ? parent.initialChild : this.initialState;
+            if (other != null) {
+                throw new MachineValidationException(String.format(
+                        "States '%s' and '%s' are both marked as initial",
+                        other.getId(), state.getId()));
+            }
+            if (parent != null) {
+                parent.initialChild = state;
+            }
+            else {
+                this.initialState = state;
+            }
+        }
+        this.states.put(state.getId(), state);
+        
+        // complete any transitions which were waiting for this state
+        resolve(state);
+        
+        this.open.push(new OpenState(state));
+    }
+    
+    private void endState() {
+        final OpenState closed = this.open.pop();
+        final State state = closed.state;
+        if (state.isComposite() && closed.initialChild == null) {
+            throw new MachineValidationException(String.format(
+                    "Composite state '%s' has no child state marked as initial", state.getId()));
+        }
+        
+        // resolve the transitions of this state against those seen so far
+        final PendingState pending = new PendingState(state, closed.builders);
+        for (int i = 0; i < closed.builders.size(); i++) {
+            final String target = closed.targets.get(i);
+            if (target == null) {
+                continue;
+            }
+            final State targetState = this.states.get(target);
+            if (targetState != null) {
+                closed.builders.get(i).setTarget(targetState);
+            }
+            else {
+                pending.unresolved++;
+                this.pendingTargets.computeIfAbsent(target, t -> new ArrayList<>())
+                    .add(new PendingTarget(pending, closed.builders.get(i)));
+            }
+        }
+        if (pending.unresolved == 0) {
+            pending.build();
+        }
+        this.rTransitionBuilder = null;
+    }
+    
+    private void endRegion() {
+        if (this.initialState == null) {
+            throw new MachineValidationException(String.format(
+                    "No state in region '%s' is marked as initial", this.regionId));
+        }
+        this.regions.add(new Region(this.regionId, this.initialState, this.regionStates));
+        this.regionId = null;
+        this.regionStates.clear();
+        this.initialState = null;
+    }
+    
+    /**
+     * Completes the {@link Transition}s waiting for the specified target,
+     * which may come from another fragment.
+     * 
+     * @param target the target State
+     */
+    void resolve(final State target) {
+        final List<PendingTarget> waiting = this.pendingTargets.remove(target.getId());
+        if (waiting == null) {
+            return;
+        }
+        for (final PendingTarget ref : waiting) {
+            ref.builder.setTarget(target);
+            if (--ref.origin.unresolved == 0) {
+                ref.origin.build();
+            }
+        }
+    }
+    
     private void checkInitialState() {
-        if (this.states.values().stream().filter(s -> s.isInitial()).count() != 1) {
+        if (this.regions.isEmpty() && this.initialState == null) {
             throw new MachineValidationException("No state is marked as initial");
         }
     }
     
-    private void buildTransitions() throws SAXException {
-        this.transitionBuilders.forEach((state, builderMap) -> {
-            final State originState = this.states.get(state);
-            builderMap.forEach((target, builders) -> {
-                if (!this.states.containsKey(target)) {
-                    throw UndefinedElementException.undefinedState(target);
-                }
-                final State targetState = this.states.get(target);
-                builders.forEach(builder -> {
-                    builder.setTarget(targetState);
-                    originState.addTransition(builder.build());
-                });
-            });
-        });
+    private void checkPendingTargets() {
+        if (!this.pendingTargets.isEmpty()) {
+            throw UndefinedElementException.undefinedState(this.pendingTargets.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Returns the IDs of the targets which have not been seen yet.
+     * 
+     * @return the set of unresolved target IDs
+     */
+    Set<String> getUnresolvedTargets() {
+        return this.pendingTargets.keySet();
     }
 
     public Map<String, State> getStates() {
@@ -170,11 +374,138 @@ public class XmlHandler extends DefaultHandler {
     }
     
     public State getInitialState() {
-        return this.states.values().stream().filter(s -> s.isInitial()).findFirst().get();
+        return this.regions.isEmpty() ? this.initialState : this.regions.get(0).getInitialState();
+    }
+    
+    /**
+     * Returns the {@link Region}s declared by the document, in document order.
+     * 
+     * @return the Regions, which are empty if the document declares none
+     */
+    public List<Region> getRegions() {
+        return this.regions;
+    }
+    
+    /**
+     * Creates the {@link Machine} from the parsed {@link State}s, with its
+     * {@link Region}s if the document declares any.
+     * 
+     * @return the new Machine
+     */
+    Machine newMachine() {
+        return this.regions.isEmpty()
+                ? new Machine(this.states, this.initialState)
+                : new Machine(this.states, this.regions);
+    }
+    
+    /**
+     * Parses a duration such as {@code 500ms}, {@code 30s}, {@code 5m} or
+     * {@code 1h}. A number without a unit is in milliseconds.
+     * 
+     * @param attribute the name of the attribute holding the duration
+     * @param duration the duration
+     * @return the duration in milliseconds
+     * @throws MachineParseException if the duration is malformed or too long
+     */
+    static long parseDuration(final String attribute, final String duration) {
+        final String value = duration.trim();
+        int end = 0;
+        while (end < value.length() && Character.isDigit(value.charAt(end))) {
+            end++;
+        }
+        if (end == 0) {
+            throw invalidDuration(attribute, duration, null);
+        }
+        final long unit;
+        switch (value.substring(end).trim()) {
+        case "":
+        case "ms":
+            unit = 1;
+            break;
+        case "s":
+            unit = TimeUnit.SECONDS.toMillis(1);
+            break;
+        case "m":
+            unit = TimeUnit.MINUTES.toMillis(1);
+            break;
+        case "h":
+            unit = TimeUnit.HOURS.toMillis(1);
+            break;
+        default:
+            throw invalidDuration(attribute, duration, null);
+        }
+        try {
+            return Math.multiplyExact(Long.parseLong(value.substring(0, end)), unit);
+        }
+        catch (final NumberFormatException|ArithmeticException e) {
+            throw invalidDuration(attribute, duration, e);
+        }
+    }
+    
+    private static MachineParseException invalidDuration(final String attribute, final String duration,
+            final RuntimeException cause) {
+        return new MachineParseException(String.format(
+                "Invalid duration '%s' in attribute '%s'", duration, attribute), cause);
     }
     
     private static String getOrDefault(final Attributes attrs, final String key, final String def) {
         final String val = attrs.getValue(key);
         return val != null ? val : def;
     }
+    
+    /**
+     * A {@link State} whose element has not been closed yet.
+     */
+    private static final class OpenState {
+        
+        final State state;
+        
+        final List<Transition.Builder> builders = new ArrayList<>();
+        
+        final List<String> targets = new ArrayList<>();
+        
+        State initialChild;
+        
+        OpenState(final State state) {
+            this.state = state;
+        }
+    }
+    
+    /**
+     * A {@link State} whose {@link Transition}s are waiting for targets.
+     */
+    private static final class PendingState {
+        
+        final State state;
+        
+        List<Transition.Builder> builders;
+        
+        int unresolved;
+        
+        PendingState(final State state, final List<Transition.Builder> builders) {
+            this.state = state;
+            this.builders = builders;
+        }
+        
+        void build() {
+            // add in document order
+            this.builders.forEach(b -> this.state.addTransition(b.build()));
+            this.builders = null;
+        }
+    }
+    
+    /**
+     * A {@link Transition.Builder} waiting for its target {@link State}.
+     */
+    private static final class PendingTarget {
+        
+        final PendingState origin;
+        
+        final Transition.Builder builder;
+        
+        PendingTarget(final PendingState origin, final Transition.Builder builder) {
+            this.origin = origin;
+            this.builder = builder;
+        }
+    }
 }
@@ -0,0 +1,85 @@
+package com.krisjacyna.yasm;
+
+import static org.testng.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that firing events on a started {@link MachineExecutor} does not
+ * allocate once the dispatch path has been warmed up.
+ *
+ * @author Kris Jacyna
+ */
+public class AllocationTest {
+    
+    private static final int WARMUP = 200_000;
+    
+    private static final int EVENTS = 100_000;
+    
+    private static final Action NO_OP = context -> { };
+    
+    @Test
+    public void fireDoesNotAllocate() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            throw new SkipException("Thread allocation is not measurable on this JVM");
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        
+        final Machine machine = toggle();
+        final MachineExecutor executor = new MachineExecutor(machine, new Context());
+        executor.start();
+        final int toggle = machine.getEventId("toggle");
+        final int ignored = machine.getEventId("ignored");
+        for (int i = 0; i < WARMUP; i++) {
+            executor.fire(toggle);
+            executor.fire(ignored);
+        }
+        
+        final long thread = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < EVENTS; i++) {
+            executor.fire(toggle);
+            executor.fire(ignored);
+        }
+        final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        
+        assertEquals(allocated, 0L, "Bytes allocated firing " + EVENTS * 2 + " events");
+    }
+    
+    // two states toggled by an event, each with entry and exit actions, a
+    // failing guarded transition before the one taken and an unhandled event
+    private static Machine toggle() {
+        final Map<String, State> states = new HashMap<>();
+        final State on = state(states, "on", true);
+        final State off = state(states, "off", false);
+        link(on, off);
+        link(off, on);
+        on.addTransition(new Transition.Builder("ignored").setTarget(on).setCondition(never()).build());
+        return new Machine(states, on);
+    }
+    
+    private static State state(final Map<String, State> states, final String id, final boolean isInitial) {
+        final State state = new State(id, isInitial, false);
+        state.addEntryAction(NO_OP);
+        state.addExitAction(NO_OP);
+        states.put(id, state);
+        return state;
+    }
+    
+    private static void link(final State from, final State to) {
+        from.addTransition(new Transition.Builder("toggle").setTarget(to).setCondition(never()).build());
+        from.addTransition(new Transition.Builder("toggle").setTarget(to).addAction(NO_OP).build());
+    }
+    
+    private static Condition never() {
+        return context -> false;
+    }
+}
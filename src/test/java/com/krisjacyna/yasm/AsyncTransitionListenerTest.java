@@ -0,0 +1,97 @@
+package com.krisjacyna.yasm;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests delivering transitions on other threads with an
+ * {@link AsyncTransitionListener}.
+ *
+ * @author Kris Jacyna
+ */
+public class AsyncTransitionListenerTest {
+    
+    private static final State FROM = new State("from", true, false);
+    
+    private static final State TO = new State("to", false, false);
+    
+    @Test
+    public void publishedTransitionsAreDeliveredInOrder() {
+        final List<String> events = new ArrayList<>();
+        final AsyncTransitionListener listener = new AsyncTransitionListener(AsyncTransitionListener.Overflow.BLOCK,
+                8, 2, Thread::new, (from, to, event) -> events.add(event));
+        for (int i = 0; i < 100; i++) {
+            listener.onTransition(FROM, TO, "e" + i);
+        }
+        listener.close();
+        
+        assertEquals(events.size(), 100);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(events.get(i), "e" + i);
+        }
+        assertEquals(listener.getDelivered(0), 100);
+        assertEquals(listener.getLag(0), 0);
+        assertEquals(listener.getDropped(), 0);
+    }
+    
+    // a consumer thread which died would block the publisher once the ring is full
+    @Test(timeOut = 10_000)
+    public void listenerThrowingErrorKeepsReceivingTransitions() {
+        final List<String> events = new ArrayList<>();
+        final AsyncTransitionListener listener = new AsyncTransitionListener(AsyncTransitionListener.Overflow.BLOCK,
+                8, 4, Thread::new, (from, to, event) -> {
+                    events.add(event);
+                    if (events.size() == 1) {
+                        throw new AssertionError("first");
+                    }
+                });
+        for (int i = 0; i < 20; i++) {
+            listener.onTransition(FROM, TO, "e" + i);
+        }
+        listener.close();
+        
+        assertEquals(events.size(), 20);
+        assertEquals(listener.getDelivered(0), 20);
+    }
+    
+    @Test
+    public void transitionsAfterCloseAreDropped() {
+        final AsyncTransitionListener listener = new AsyncTransitionListener(AsyncTransitionListener.Overflow.DROP,
+                (from, to, event) -> { });
+        listener.onTransition(FROM, TO, "before");
+        listener.close();
+        listener.onTransition(FROM, TO, "after");
+        
+        assertEquals(listener.getPublished(), 1);
+        assertEquals(listener.getDelivered(0), 1);
+        assertEquals(listener.getDropped(), 1);
+    }
+    
+    @Test
+    public void everyTransitionIsDeliveredOrDroppedWhenClosedWhilePublishing() throws InterruptedException {
+        for (int round = 0; round < 200; round++) {
+            final AsyncTransitionListener listener = new AsyncTransitionListener(
+                    AsyncTransitionListener.Overflow.BLOCK, 1024, 16, Thread::new, (from, to, event) -> { });
+            final Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        listener.onTransition(FROM, TO, "e");
+                    }
+                });
+                threads[t].start();
+            }
+            listener.close();
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            
+            assertEquals(listener.getDelivered(0), listener.getPublished());
+            assertEquals(listener.getPublished() + listener.getDropped(), 400);
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.krisjacyna.yasm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests writing {@link MachineInstance}s to a {@link CheckpointStore} and
+ * recovering them by reopening it.
+ *
+ * @author Kris Jacyna
+ */
+public class CheckpointStoreTest {
+    
+    private static final int SEGMENT_SIZE = 4096;
+    
+    private Path path;
+    
+    @BeforeMethod
+    public void createFile() throws IOException {
+        this.path = Files.createTempFile("checkpoint", ".log");
+        Files.delete(this.path);
+    }
+    
+    @AfterMethod
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(this.path);
+        Files.deleteIfExists(this.path.resolveSibling(this.path.getFileName() + ".compact"));
+    }
+    
+    @Test
+    public void instancesAreRecoveredOnReopen() {
+        final MachineEngine engine = new MachineEngine(toggle());
+        try (CheckpointStore store = open(engine)) {
+            final MachineInstance first = store.newInstance(1);
+            store.newInstance(2);
+            engine.fire(first, "flip");
+            assertEquals(store.checkpoint(), 2);
+        }
+        
+        final MachineEngine reopened = new MachineEngine(toggle());
+        try (CheckpointStore store = open(reopened)) {
+            assertEquals(store.size(), 2);
+            assertEquals(reopened.getState(store.getInstance(1)).getId(), "off");
+            assertEquals(store.getInstance(1).getContext().get("flips"), 1);
+            assertEquals(reopened.getState(store.getInstance(2)).getId(), "on");
+            assertNull(store.getInstance(2).getContext().get("flips"));
+            // recovered instances are written again only once they change
+            assertEquals(store.checkpoint(), 0);
+        }
+    }
+    
+    @Test
+    public void checkpointsAreIncremental() {
+        final MachineEngine engine = new MachineEngine(toggle());
+        try (CheckpointStore store = open(engine)) {
+            final MachineInstance first = store.newInstance(1);
+            final MachineInstance second = store.newInstance(2);
+            assertEquals(store.checkpoint(), 2);
+            assertEquals(store.checkpoint(), 0);
+            
+            engine.fire(first, "flip");
+            assertEquals(store.checkpoint(), 1);
+            // an event without a Transition changes nothing
+            engine.fire(second, "unknown");
+            assertEquals(store.checkpoint(), 0);
+            
+            second.getContext().set("note", "outside an action");
+            store.markChanged(2);
+            assertEquals(store.checkpoint(), 1);
+            // changes after the last checkpoint are lost
+            engine.fire(second, "flip");
+        }
+        
+        final MachineEngine reopened = new MachineEngine(toggle());
+        try (CheckpointStore store = open(reopened)) {
+            assertEquals(reopened.getState(store.getInstance(1)).getId(), "off");
+            assertEquals(reopened.getState(store.getInstance(2)).getId(), "on");
+            assertEquals(store.getInstance(2).getContext().get("note"), "outside an action");
+        }
+    }
+    
+    @Test
+    public void contextValuesRoundTrip() {
+        final MachineEngine engine = new MachineEngine(toggle());
+        try (CheckpointStore store = open(engine)) {
+            final Context context = store.newInstance(1).getContext();
+            context.set("null", null);
+            context.set("boolean", true);
+            context.set("integer", 42);
+            context.set("long", Long.MAX_VALUE);
+            context.set("double", 0.5);
+            context.set("string", "été");
+            context.set("serialized", new java.util.ArrayList<>(Arrays.asList("a", "b")));
+            store.checkpoint();
+        }
+        
+        try (CheckpointStore store = open(new MachineEngine(toggle()))) {
+            final Context context = store.getInstance(1).getContext();
+            assertTrue(context.getVariables().containsKey("null"));
+            assertNull(context.get("null"));
+            assertEquals(context.get("boolean"), true);
+            assertEquals(context.get("integer"), 42);
+            assertEquals(context.get("long"), Long.MAX_VALUE);
+            assertEquals(context.get("double"), 0.5);
+            assertEquals(context.get("string"), "été");
+            assertEquals(context.get("serialized"), Arrays.asList("a", "b"));
+        }
+    }
+    
+    @Test
+    public void removedInstancesAreNotRecovered() {
+        final MachineEngine engine = new MachineEngine(toggle());
+        try (CheckpointStore store = open(engine)) {
+            store.newInstance(1);
+            store.newInstance(2);
+            store.newInstance(3);
+            store.checkpoint();
+            assertTrue(store.remove(1));
+            assertFalse(store.remove(1));
+            assertFalse(store.remove(4));
+            assertEquals(store.size(), 2);
+            store.checkpoint();
+            // a removed ID may be used again
+            engine.fire(store.newInstance(1), "flip");
+            assertTrue(store.remove(3));
+            store.checkpoint();
+        }
+        
+        final MachineEngine reopened = new MachineEngine(toggle());
+        try (CheckpointStore store = open(reopened)) {
+            assertEquals(store.size(), 2);
+            assertEquals(reopened.getState(store.getInstance(1)).getId(), "off");
+            assertEquals(reopened.getState(store.getInstance(2)).getId(), "on");
+            assertNull(store.getInstance(3));
+        }
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void registeringDuplicateFails() {
+        try (CheckpointStore store = open(new MachineEngine(toggle()))) {
+            store.newInstance(1);
+            store.newInstance(1);
+        }
+    }
+    
+    @Test
+    public void checkpointCompactsLog() {
+        final MachineEngine engine = new MachineEngine(toggle());
+        try (CheckpointStore store = open(engine)) {
+            final MachineInstance instance = store.newInstance(1);
+            store.newInstance(2);
+            int compactions = 0;
+            for (int i = 0; i < 200; i++) {
+                final long before = store.getLogSize();
+                engine.fire(instance, "flip");
+                store.checkpoint();
+                if (store.getLogSize() < before) {
+                    // compacted once the log passed a segment
+                    assertTrue(before > SEGMENT_SIZE - 100, "Log compacted at " + before + " bytes");
+                    compactions++;
+                }
+            }
+            assertTrue(compactions > 0);
+            assertTrue(store.getLogSize() < SEGMENT_SIZE + 100, "Log is " + store.getLogSize() + " bytes");
+        }
+        
+        final MachineEngine reopened = new MachineEngine(toggle());
+        try (CheckpointStore store = open(reopened)) {
+            assertEquals(store.size(), 2);
+            assertEquals(reopened.getState(store.getInstance(1)).getId(), "on");
+            assertEquals(store.getInstance(1).getContext().get("flips"), 200);
+        }
+    }
+    
+    @Test
+    public void compactKeepsOnlyLiveRecords() {
+        final MachineEngine engine = new MachineEngine(toggle());
+        try (CheckpointStore store = open(engine)) {
+            for (long id = 0; id < 10; id++) {
+                store.newInstance(id);
+            }
+            store.checkpoint();
+            for (long id = 0; id < 10; id += 2) {
+                engine.fire(store.getInstance(id), "flip");
+            }
+            store.checkpoint();
+            for (long id = 5; id < 10; id++) {
+                store.remove(id);
+            }
+            final long before = store.getLogSize();
+            store.compact();
+            assertTrue(store.getLogSize() < before);
+            // appending continues after the compacted records
+            engine.fire(store.getInstance(1), "flip");
+            store.checkpoint();
+        }
+        
+        final MachineEngine reopened = new MachineEngine(toggle());
+        try (CheckpointStore store = open(reopened)) {
+            assertEquals(store.size(), 5);
+            for (long id = 0; id < 5; id++) {
+                assertEquals(reopened.getState(store.getInstance(id)).getId(), id == 3 ? "on" : "off");
+            }
+        }
+    }
+    
+    @Test
+    public void tornRecordIsTruncated() throws IOException {
+        final MachineEngine engine = new MachineEngine(toggle());
+        final long torn;
+        try (CheckpointStore store = open(engine)) {
+            final MachineInstance instance = store.newInstance(1);
+            store.checkpoint();
+            torn = store.getLogSize();
+            engine.fire(instance, "flip");
+            store.checkpoint();
+        }
+        // a crash before the body of the last record reached the disk
+        corrupt(torn + 12);
+        
+        final MachineEngine reopened = new MachineEngine(toggle());
+        try (CheckpointStore store = open(reopened)) {
+            assertEquals(store.getLogSize(), torn);
+            final MachineInstance instance = store.getInstance(1);
+            assertEquals(reopened.getState(instance).getId(), "on");
+            reopened.fire(instance, "flip");
+            reopened.fire(instance, "flip");
+            reopened.fire(instance, "flip");
+            store.checkpoint();
+        }
+        
+        final MachineEngine again = new MachineEngine(toggle());
+        try (CheckpointStore store = open(again)) {
+            assertEquals(again.getState(store.getInstance(1)).getId(), "off");
+            assertEquals(store.getInstance(1).getContext().get("flips"), 3);
+        }
+    }
+    
+    @Test
+    public void recordsPadToNextSegment() {
+        final MachineEngine engine = new MachineEngine(toggle());
+        final char[] filler = new char[700];
+        try (CheckpointStore store = open(engine)) {
+            for (long id = 0; id < 5; id++) {
+                store.newInstance(id);
+            }
+            for (int round = 0; round < 3; round++) {
+                Arrays.fill(filler, (char) ('a' + round));
+                final String value = new String(filler);
+                for (long id = 0; id < 5; id++) {
+                    store.getInstance(id).getContext().set("filler", value);
+                    store.markChanged(id);
+                }
+                store.checkpoint();
+            }
+            // three rounds of records do not fit in two segments of 4096 bytes
+            assertTrue(store.getLogSize() > 2 * SEGMENT_SIZE, "Log is " + store.getLogSize() + " bytes");
+        }
+        
+        Arrays.fill(filler, 'c');
+        try (CheckpointStore store = open(new MachineEngine(toggle()))) {
+            assertEquals(store.size(), 5);
+            for (long id = 0; id < 5; id++) {
+                assertEquals(store.getInstance(id).getContext().get("filler"), new String(filler));
+            }
+        }
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void recordLargerThanSegmentFails() {
+        try (CheckpointStore store = open(new MachineEngine(toggle()))) {
+            store.newInstance(1).getContext().set("filler", new String(new char[SEGMENT_SIZE]));
+            store.checkpoint();
+        }
+    }
+    
+    @Test
+    public void recoveryFollowsReload() {
+        final Map<String, State> states = new HashMap<>();
+        final State on = state(states, "on", true);
+        final State off = state(states, "off", false);
+        final State broken = state(states, "broken", false);
+        on.addTransition(new Transition.Builder("flip").setTarget(off).build());
+        off.addTransition(new Transition.Builder("break").setTarget(broken).build());
+        final MachineEngine engine = new MachineEngine(new Machine(states, on));
+        try (CheckpointStore store = open(engine)) {
+            final MachineInstance working = store.newInstance(1);
+            final MachineInstance failed = store.newInstance(2);
+            engine.fire(working, "flip");
+            engine.fire(failed, "flip");
+            engine.fire(failed, "break");
+            store.checkpoint();
+        }
+        
+        // "broken" is removed and "armed" sorts first, shifting the other State IDs
+        final Map<String, State> reloaded = new HashMap<>();
+        final State armed = state(reloaded, "armed", false);
+        final State on2 = state(reloaded, "on", true);
+        final State off2 = state(reloaded, "off", false);
+        on2.addTransition(new Transition.Builder("flip").setTarget(off2).build());
+        off2.addTransition(new Transition.Builder("arm").setTarget(armed).build());
+        final MachineEngine reopened = new MachineEngine(new Machine(reloaded, on2));
+        try (CheckpointStore store = open(reopened)) {
+            assertEquals(reopened.getState(store.getInstance(1)).getId(), "off");
+            assertEquals(reopened.getState(store.getInstance(2)).getId(), "on");
+            reopened.fire(store.getInstance(1), "arm");
+            store.checkpoint();
+        }
+        
+        // a log holding State tables of both machines
+        final MachineEngine again = new MachineEngine(new Machine(reloaded, on2));
+        try (CheckpointStore store = open(again)) {
+            assertEquals(again.getState(store.getInstance(1)).getId(), "armed");
+            assertEquals(again.getState(store.getInstance(2)).getId(), "on");
+        }
+    }
+    
+    @Test
+    public void checkpointAfterReloadWritesNewNames() {
+        final MachineEngine engine = new MachineEngine(toggle());
+        try (CheckpointStore store = open(engine)) {
+            final MachineInstance instance = store.newInstance(1);
+            engine.fire(instance, "flip");
+            store.checkpoint();
+            final Map<String, State> states = new HashMap<>();
+            final State added = state(states, "added", false);
+            final State on = state(states, "on", true);
+            final State off = state(states, "off", false);
+            off.addTransition(new Transition.Builder("add").setTarget(added).build());
+            on.addTransition(new Transition.Builder("flip").setTarget(off).build());
+            engine.reload(new Machine(states, on));
+            engine.fire(instance, "add");
+            store.newInstance(2);
+            store.checkpoint();
+        }
+        
+        final Map<String, State> states = new HashMap<>();
+        final State on = state(states, "on", true);
+        final State added = state(states, "added", false);
+        on.addTransition(new Transition.Builder("add").setTarget(added).build());
+        final MachineEngine reopened = new MachineEngine(new Machine(states, on));
+        try (CheckpointStore store = open(reopened)) {
+            assertEquals(reopened.getState(store.getInstance(1)).getId(), "added");
+            assertEquals(reopened.getState(store.getInstance(2)).getId(), "on");
+        }
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void openingAnotherFileFails() throws IOException {
+        Files.write(this.path, new byte[SEGMENT_SIZE]);
+        open(new MachineEngine(toggle())).close();
+    }
+    
+    private CheckpointStore open(final MachineEngine engine) {
+        return CheckpointStore.open(this.path, engine, id -> new Context(Long.toString(id)), SEGMENT_SIZE);
+    }
+    
+    private void corrupt(final long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) ~b.get(0));
+            b.rewind();
+            channel.write(b, position);
+        }
+    }
+    
+    // two States toggled by an event, counting the flips in the Context
+    private static Machine toggle() {
+        final Map<String, State> states = new HashMap<>();
+        final State on = state(states, "on", true);
+        final State off = state(states, "off", false);
+        final Action count = context -> {
+            final Integer flips = (Integer) context.get("flips");
+            context.set("flips", flips == null ? 1 : flips + 1);
+        };
+        on.addTransition(new Transition.Builder("flip").setTarget(off).addAction(count).build());
+        off.addTransition(new Transition.Builder("flip").setTarget(on).addAction(count).build());
+        return new Machine(states, on);
+    }
+    
+    private static State state(final Map<String, State> states, final String id, final boolean isInitial) {
+        final State state = new State(id, isInitial, false);
+        states.put(id, state);
+        return state;
+    }
+}
@@ -0,0 +1,149 @@
+package com.krisjacyna.yasm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests firing events on instances shared between threads through a
+ * {@link ConcurrentMachineEngine}.
+ *
+ * @author Kris Jacyna
+ */
+public class ConcurrentMachineEngineTest {
+    
+    private static final Action NO_OP = context -> { };
+    
+    @Test
+    public void instancesFiringOnEachOtherDoNotDeadlock() throws InterruptedException {
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final ConcurrentMachineEngine[] engine = new ConcurrentMachineEngine[1];
+        // both threads hold the lock of their own instance before firing on the other
+        final Action ping = context -> {
+            try {
+                barrier.await(5, TimeUnit.SECONDS);
+            }
+            catch (final Exception e) {
+                throw new IllegalStateException(e);
+            }
+            engine[0].fire((MachineInstance) context.get("partner"), "pong");
+        };
+        engine[0] = new ConcurrentMachineEngine(pingPong(ping, NO_OP), 1024, false);
+        final MachineInstance[] instances = onDifferentStripes(engine[0]);
+        instances[0].getContext().set("partner", instances[1]);
+        instances[1].getContext().set("partner", instances[0]);
+        
+        final Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            final MachineInstance instance = instances[t];
+            threads[t] = new Thread(() -> engine[0].fire(instance, "ping"));
+            threads[t].setDaemon(true);
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join(10_000);
+            assertFalse(thread.isAlive(), "Deadlocked");
+        }
+        assertEquals(engine[0].getState(instances[0]).getId(), "ponged");
+        assertEquals(engine[0].getState(instances[1]).getId(), "ponged");
+    }
+    
+    @Test
+    public void eventsOnOtherInstancesAreFiredAfterTheCurrentEvent() {
+        final List<String> seen = new ArrayList<>();
+        final ConcurrentMachineEngine[] engine = new ConcurrentMachineEngine[1];
+        final Action ping = context -> {
+            final MachineInstance partner = (MachineInstance) context.get("partner");
+            engine[0].fire(partner, "pong");
+            engine[0].fire(partner, "pong");
+            seen.add("ping " + context.getName());
+        };
+        final Action pong = context -> seen.add("pong " + context.getName());
+        engine[0] = new ConcurrentMachineEngine(pingPong(ping, pong), 1024, false);
+        final MachineInstance[] instances = onDifferentStripes(engine[0]);
+        instances[0].getContext().set("partner", instances[1]);
+        instances[1].getContext().set("partner", instances[0]);
+        
+        engine[0].fire(instances[0], "ping");
+        assertEquals(seen, Arrays.asList("ping 0", "pong 1"));
+        assertEquals(engine[0].getState(instances[0]).getId(), "pinged");
+        // the second pong is fired on the partner in its new State, which ignores it
+        assertEquals(engine[0].getState(instances[1]).getId(), "ponged");
+    }
+    
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void readingAnotherInstanceFromActionFails() {
+        final ConcurrentMachineEngine[] engine = new ConcurrentMachineEngine[1];
+        final Action ping = context -> engine[0].getState((MachineInstance) context.get("partner"));
+        engine[0] = new ConcurrentMachineEngine(pingPong(ping, NO_OP), 1024, false);
+        final MachineInstance[] instances = onDifferentStripes(engine[0]);
+        instances[0].getContext().set("partner", instances[1]);
+        engine[0].fire(instances[0], "ping");
+    }
+    
+    @Test
+    public void concurrentFiresAreApplied() throws InterruptedException {
+        final int[] count = new int[1];
+        final Map<String, State> states = new HashMap<>();
+        final State on = new State("on", true, false);
+        final State off = new State("off", false, false);
+        on.addTransition(new Transition.Builder("flip").setTarget(off).addAction(context -> count[0]++).build());
+        off.addTransition(new Transition.Builder("flip").setTarget(on).addAction(context -> count[0]++).build());
+        states.put("on", on);
+        states.put("off", off);
+        final ConcurrentMachineEngine engine = new ConcurrentMachineEngine(new Machine(states, on), 4, false);
+        final MachineInstance instance = engine.newInstance(null);
+        
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    engine.fire(instance, "flip");
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        // the lock publishes the counter of the Actions along with the State
+        engine.fire(instance, "flip");
+        assertEquals(count[0], 40_001);
+        assertEquals(engine.getState(instance).getId(), "off");
+    }
+    
+    // two instances, named "0" and "1", guarded by different locks
+    private static MachineInstance[] onDifferentStripes(final ConcurrentMachineEngine engine) {
+        final MachineInstance first = engine.newInstance(new Context("0"));
+        MachineInstance second = engine.newInstance(new Context("1"));
+        while (engine.lockFor(second) == engine.lockFor(first)) {
+            second = engine.newInstance(new Context("1"));
+        }
+        return new MachineInstance[] { first, second };
+    }
+    
+    // idle -ping-> pinged, and idle or pinged -pong-> ponged
+    private static Machine pingPong(final Action ping, final Action pong) {
+        final Map<String, State> states = new HashMap<>();
+        final State idle = new State("idle", true, false);
+        final State pinged = new State("pinged", false, false);
+        final State ponged = new State("ponged", false, false);
+        ponged.addEntryAction(pong);
+        idle.addTransition(new Transition.Builder("ping").setTarget(pinged).addAction(ping).build());
+        idle.addTransition(new Transition.Builder("pong").setTarget(ponged).build());
+        pinged.addTransition(new Transition.Builder("pong").setTarget(ponged).build());
+        states.put("idle", idle);
+        states.put("pinged", pinged);
+        states.put("ponged", ponged);
+        return new Machine(states, idle);
+    }
+}
@@ -0,0 +1,98 @@
+package com.krisjacyna.yasm;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests deferring events until a {@link MachineInstance} changes
+ * {@link State}.
+ *
+ * @author Kris Jacyna
+ */
+public class DeferralTest {
+    
+    @Test
+    public void deferredEventIsFiredInNextState() {
+        final int[] tries = new int[1];
+        final MachineEngine engine = new MachineEngine(busy(tries));
+        final MachineInstance instance = engine.newInstance(null);
+        engine.fire(instance, "ping");
+        assertEquals(engine.getState(instance).getId(), "busy");
+        
+        engine.fire(instance, "done");
+        assertEquals(engine.getState(instance).getId(), "pinged");
+        assertEquals(tries[0], 1);
+    }
+    
+    @Test
+    public void transitionWithoutTargetKeepsEventsDeferred() {
+        final int[] tries = new int[1];
+        final int[] ticks = new int[1];
+        final Map<String, State> states = new HashMap<>();
+        final State busy = state(states, "busy", true);
+        final State ready = state(states, "ready", false);
+        busy.addDeferredEvent("ping");
+        // a guard which never passes, so each try of the deferred event is counted
+        busy.addTransition(new Transition.Builder("ping").setTarget(ready).setCondition(context -> {
+            tries[0]++;
+            return false;
+        }).build());
+        busy.addTransition(new Transition.Builder("tick").addAction(context -> ticks[0]++).build());
+        busy.addTransition(new Transition.Builder("done").setTarget(ready).build());
+        ready.addTransition(new Transition.Builder("ping").setTarget(state(states, "pinged", false)).build());
+        final MachineEngine engine = new MachineEngine(new Machine(states, busy));
+        final MachineInstance instance = engine.newInstance(null);
+        
+        engine.fire(instance, "ping");
+        engine.fire(instance, "tick");
+        engine.fire(instance, "tick");
+        assertEquals(ticks[0], 2);
+        assertEquals(tries[0], 1);
+        
+        engine.fire(instance, "done");
+        assertEquals(engine.getState(instance).getId(), "pinged");
+        assertEquals(tries[0], 1);
+    }
+    
+    @Test
+    public void selfTransitionReleasesDeferredEvents() {
+        final int[] tries = new int[1];
+        final Map<String, State> states = new HashMap<>();
+        final State busy = state(states, "busy", true);
+        busy.addDeferredEvent("ping");
+        busy.addTransition(new Transition.Builder("ping").setTarget(busy).setCondition(context -> {
+            tries[0]++;
+            return false;
+        }).build());
+        busy.addTransition(new Transition.Builder("again").setTarget(busy).build());
+        final MachineEngine engine = new MachineEngine(new Machine(states, busy));
+        final MachineInstance instance = engine.newInstance(null);
+        
+        engine.fire(instance, "ping");
+        // leaving and entering the State again tries the deferred event again
+        engine.fire(instance, "again");
+        assertEquals(tries[0], 2);
+    }
+    
+    // busy defers ping, which is handled once done moves it to ready
+    private static Machine busy(final int[] tries) {
+        final Map<String, State> states = new HashMap<>();
+        final State busy = state(states, "busy", true);
+        final State ready = state(states, "ready", false);
+        busy.addDeferredEvent("ping");
+        busy.addTransition(new Transition.Builder("done").setTarget(ready).build());
+        ready.addTransition(new Transition.Builder("ping").setTarget(state(states, "pinged", false))
+                .addAction(context -> tries[0]++).build());
+        return new Machine(states, busy);
+    }
+    
+    private static State state(final Map<String, State> states, final String id, final boolean isInitial) {
+        final State state = new State(id, isInitial, false);
+        states.put(id, state);
+        return state;
+    }
+}
@@ -0,0 +1,159 @@
+package com.krisjacyna.yasm;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests firing events on {@link Machine}s with composite {@link State}s and
+ * orthogonal {@link Region}s.
+ *
+ * @author Kris Jacyna
+ */
+public class HierarchyTest {
+    
+    private final List<String> trace = new ArrayList<>();
+    
+    private Map<String, State> states;
+    
+    @BeforeMethod
+    public void clear() {
+        this.trace.clear();
+        this.states = new HashMap<>();
+    }
+    
+    @Test
+    public void siblingsExitAndEnterUpToTheirCommonAncestor() {
+        // a contains a1 and a2, which contain a1x and a2x
+        final State a = state("a", true, null);
+        final State a1 = state("a1", true, a);
+        final State a1x = state("a1x", true, a1);
+        final State a2 = state("a2", false, a);
+        state("a2x", true, a2);
+        a1x.addTransition(new Transition.Builder("go").setTarget(a2).addAction(context -> this.trace.add("go"))
+                .build());
+        final MachineEngine engine = new MachineEngine(new Machine(this.states, a));
+        final MachineInstance instance = engine.newInstance(null);
+        engine.start(instance);
+        assertEquals(this.trace, Arrays.asList("enter a", "enter a1", "enter a1x"));
+        this.trace.clear();
+        
+        engine.fire(instance, "go");
+        // a is neither left nor entered, and the composite target is entered down to its initial child
+        assertEquals(this.trace, Arrays.asList("exit a1x", "exit a1", "go", "enter a2", "enter a2x"));
+        assertEquals(engine.getState(instance).getId(), "a2x");
+    }
+    
+    @Test
+    public void transitionOutOfNestedStateExitsEveryAncestor() {
+        final State a = state("a", true, null);
+        final State a1 = state("a1", true, a);
+        final State a1x = state("a1x", true, a1);
+        final State b = state("b", false, null);
+        a1x.addTransition(new Transition.Builder("go").setTarget(b).build());
+        final MachineEngine engine = new MachineEngine(new Machine(this.states, a));
+        final MachineInstance instance = engine.newInstance(null);
+        
+        engine.fire(instance, "go");
+        assertEquals(this.trace, Arrays.asList("exit a1x", "exit a1", "exit a", "enter b"));
+    }
+    
+    @Test
+    public void eventFallsBackToParent() {
+        final State a = state("a", true, null);
+        final State a1 = state("a1", true, a);
+        state("cancelled", false, null);
+        a.addTransition(new Transition.Builder("cancel").setTarget(this.states.get("cancelled")).build());
+        final MachineEngine engine = new MachineEngine(new Machine(this.states, a));
+        final MachineInstance instance = engine.newInstance(null);
+        assertEquals(engine.getState(instance), a1);
+        
+        engine.fire(instance, "cancel");
+        assertEquals(this.trace, Arrays.asList("exit a1", "exit a", "enter cancelled"));
+    }
+    
+    @Test
+    public void childTransitionIsTriedBeforeParent() {
+        final boolean[] open = new boolean[1];
+        final State a = state("a", true, null);
+        final State a1 = state("a1", true, a);
+        final State child = state("child", false, null);
+        final State parent = state("parent", false, null);
+        a.addTransition(new Transition.Builder("go").setTarget(parent).build());
+        a1.addTransition(new Transition.Builder("go").setTarget(child).setCondition(context -> open[0]).build());
+        final MachineEngine engine = new MachineEngine(new Machine(this.states, a));
+        final MachineInstance opened = engine.newInstance(null);
+        final MachineInstance closed = engine.newInstance(null);
+        
+        open[0] = true;
+        engine.fire(opened, "go");
+        assertEquals(engine.getState(opened), child);
+        // a failing guard of the child falls back to the parent
+        open[0] = false;
+        engine.fire(closed, "go");
+        assertEquals(engine.getState(closed), parent);
+    }
+    
+    @Test
+    public void regionsMoveIndependently() {
+        final State idle = state("idle", true, null);
+        final State busy = state("busy", false, null);
+        final State up = state("up", true, null);
+        final State down = state("down", false, null);
+        idle.addTransition(new Transition.Builder("work").setTarget(busy).build());
+        busy.addTransition(new Transition.Builder("reset").setTarget(idle).build());
+        up.addTransition(new Transition.Builder("fail").setTarget(down).build());
+        down.addTransition(new Transition.Builder("reset").setTarget(up).build());
+        final Machine machine = new Machine(this.states, Arrays.asList(
+                new Region("work", idle, Arrays.asList(idle, busy)),
+                new Region("health", up, Arrays.asList(up, down))));
+        assertEquals(machine.getRegionCount(), 2);
+        assertEquals(machine.getRegionMask(machine.getEventId("work")), 1L);
+        assertEquals(machine.getRegionMask(machine.getEventId("fail")), 2L);
+        assertEquals(machine.getRegionMask(machine.getEventId("reset")), 3L);
+        final MachineEngine engine = new MachineEngine(machine);
+        final MachineInstance instance = engine.newInstance(null);
+        engine.start(instance);
+        assertEquals(this.trace, Arrays.asList("enter idle", "enter up"));
+        
+        engine.fire(instance, "work");
+        assertEquals(engine.getState(instance, 0), busy);
+        assertEquals(engine.getState(instance, 1), up);
+        engine.fire(instance, "fail");
+        assertEquals(engine.getState(instance, 0), busy);
+        assertEquals(engine.getState(instance, 1), down);
+        // an event with Transitions in both Regions moves both
+        engine.fire(instance, "reset");
+        assertEquals(engine.getState(instance, 0), idle);
+        assertEquals(engine.getState(instance, 1), up);
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void transitionAcrossRegionsFails() {
+        final State idle = state("idle", true, null);
+        final State up = state("up", true, null);
+        idle.addTransition(new Transition.Builder("go").setTarget(up).build());
+        new Machine(this.states, Arrays.asList(
+                new Region("work", idle, Arrays.asList(idle)),
+                new Region("health", up, Arrays.asList(up))));
+    }
+    
+    // a State tracing its entry and exit, the child of the parent unless that is null
+    private State state(final String id, final boolean isInitial, final State parent) {
+        final State state = new State(id, isInitial, false);
+        state.addEntryAction(context -> this.trace.add("enter " + id));
+        state.addExitAction(context -> this.trace.add("exit " + id));
+        if (parent != null) {
+            parent.addChild(state);
+        }
+        this.states.put(id, state);
+        return state;
+    }
+}
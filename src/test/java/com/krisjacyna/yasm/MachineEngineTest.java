@@ -0,0 +1,119 @@
+package com.krisjacyna.yasm;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests firing events on {@link MachineInstance}s with a
+ * {@link MachineEngine}.
+ *
+ * @author Kris Jacyna
+ */
+public class MachineEngineTest {
+    
+    @Test
+    public void undefinedEventIdIsDropped() {
+        final MachineEngine engine = new MachineEngine(toggle(), null, new EngineMetrics());
+        final MachineInstance instance = engine.newInstance(null);
+        engine.fire(instance, engine.getMachine().getEventId("unknown"));
+        assertEquals(engine.getState(instance).getId(), "off");
+        assertEquals(engine.getMetrics().snapshot().getEventsDropped(), 1);
+    }
+    
+    @Test
+    public void undefinedEventIdFiredFromActionIsDropped() {
+        final MachineEngine[] engine = new MachineEngine[1];
+        final Map<String, State> states = new HashMap<>();
+        final State off = state(states, "off", true);
+        final State on = state(states, "on", false);
+        off.addTransition(new Transition.Builder("flip").setTarget(on).addAction(context -> {
+            final MachineInstance instance = (MachineInstance) context.get("instance");
+            engine[0].fire(instance, Machine.UNDEFINED);
+            engine[0].fire(instance, engine[0].getMachine().getEventId("flip"));
+        }).build());
+        on.addTransition(new Transition.Builder("flip").setTarget(off).build());
+        engine[0] = new MachineEngine(new Machine(states, off), null, new EngineMetrics());
+        final MachineInstance instance = engine[0].newInstance(new Context("0"));
+        instance.getContext().set("instance", instance);
+        
+        engine[0].fire(instance, "flip");
+        assertEquals(engine[0].getState(instance).getId(), "off");
+        assertEquals(engine[0].getMetrics().snapshot().getEventsDropped(), 1);
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void eventIdOutOfRangeFails() {
+        final MachineEngine engine = new MachineEngine(toggle());
+        engine.fire(engine.newInstance(null), engine.getMachine().getEventCount());
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void negativeEventIdFails() {
+        final MachineEngine engine = new MachineEngine(toggle());
+        engine.fire(engine.newInstance(null), -2);
+    }
+    
+    @Test
+    public void undefinedEventIdIsDroppedOffHeap() {
+        final MachineEngine engine = new MachineEngine(toggle());
+        final OffHeapInstanceStore store = new OffHeapInstanceStore(4, 0);
+        engine.newInstance(store, 0);
+        engine.fire(store.newCursor(), 0, Machine.UNDEFINED);
+        assertEquals(engine.getState(store, 0).getId(), "off");
+    }
+    
+    @Test
+    public void startingStoredInstanceRunsToCompletion() {
+        final List<String> seen = new ArrayList<>();
+        final MachineEngine[] engine = new MachineEngine[1];
+        final Map<String, State> states = new HashMap<>();
+        final State idle = state(states, "idle", true);
+        final State running = state(states, "running", false);
+        idle.addTransition(new Transition.Builder("go").setTarget(running).build());
+        // events fired and instances started from entry Actions wait for the Actions to finish
+        idle.addEntryAction(context -> {
+            final OffHeapInstanceStore.Cursor cursor = (OffHeapInstanceStore.Cursor) context;
+            if (cursor.getInstanceId() == 0) {
+                engine[0].fire(cursor, 0, engine[0].getMachine().getEventId("go"));
+            }
+            seen.add("idle " + cursor.getInstanceId());
+        });
+        running.addEntryAction(context -> {
+            final OffHeapInstanceStore.Cursor cursor = (OffHeapInstanceStore.Cursor) context;
+            engine[0].start(cursor, 1);
+            seen.add("running " + cursor.getInstanceId());
+        });
+        engine[0] = new MachineEngine(new Machine(states, idle));
+        final OffHeapInstanceStore store = new OffHeapInstanceStore(4, 0);
+        engine[0].newInstance(store, 0);
+        engine[0].newInstance(store, 1);
+        
+        engine[0].start(store.newCursor(), 0);
+        assertEquals(seen, Arrays.asList("idle 0", "running 0", "idle 1"));
+        assertEquals(engine[0].getState(store, 0).getId(), "running");
+        assertEquals(engine[0].getState(store, 1).getId(), "idle");
+    }
+    
+    // off -flip-> on -flip-> off
+    private static Machine toggle() {
+        final Map<String, State> states = new HashMap<>();
+        final State off = state(states, "off", true);
+        final State on = state(states, "on", false);
+        off.addTransition(new Transition.Builder("flip").setTarget(on).build());
+        on.addTransition(new Transition.Builder("flip").setTarget(off).build());
+        return new Machine(states, off);
+    }
+    
+    private static State state(final Map<String, State> states, final String id, final boolean isInitial) {
+        final State state = new State(id, isInitial, false);
+        states.put(id, state);
+        return state;
+    }
+}
@@ -0,0 +1,76 @@
+package com.krisjacyna.yasm;
+
+import static org.testng.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that processing events on a {@link MachineEngine} with
+ * {@link EngineMetrics} does not allocate, even after a reload while the
+ * events were queued.
+ *
+ * @author Kris Jacyna
+ */
+public class MetricsAllocationTest {
+    
+    private static final int EVENTS = 100_000;
+    
+    private static final Action NO_OP = context -> { };
+    
+    @Test
+    public void dispatchStraddlingReloadDoesNotAllocate() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            throw new SkipException("Thread allocation is not measurable on this JVM");
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        
+        final long thread = Thread.currentThread().getId();
+        final long[] allocated = new long[1];
+        final MachineEngine[] engine = new MachineEngine[1];
+        final MachineInstance[] instance = new MachineInstance[1];
+        // queues the events, then reloads before they are processed with the old Machine
+        final Action reload = context -> {
+            for (int i = 0; i < EVENTS; i++) {
+                engine[0].fire(instance[0], "toggle");
+            }
+            engine[0].fire(instance[0], "mark");
+            engine[0].reload(toggle(NO_OP, NO_OP));
+            allocated[0] = threads.getThreadAllocatedBytes(thread);
+        };
+        final Action mark = context -> allocated[0] = threads.getThreadAllocatedBytes(thread) - allocated[0];
+        engine[0] = new MachineEngine(toggle(reload, mark), null, new EngineMetrics());
+        // the first rounds warm up the dispatch path
+        for (int i = 0; i < 3; i++) {
+            instance[0] = engine[0].newInstance(null);
+            engine[0].reload(toggle(reload, mark));
+            engine[0].fire(instance[0], "reload");
+        }
+        
+        assertEquals(allocated[0], 0L, "Bytes allocated processing " + EVENTS + " events after a reload");
+    }
+    
+    // two states toggled by an event, with a reload and a mark event handled without leaving either
+    private static Machine toggle(final Action reload, final Action mark) {
+        final Map<String, State> states = new HashMap<>();
+        final State on = new State("on", true, false);
+        final State off = new State("off", false, false);
+        on.addTransition(new Transition.Builder("toggle").setTarget(off).addAction(NO_OP).build());
+        off.addTransition(new Transition.Builder("toggle").setTarget(on).addAction(NO_OP).build());
+        states.put("on", on);
+        states.put("off", off);
+        for (final State state : states.values()) {
+            state.addEntryAction(NO_OP);
+            state.addTransition(new Transition.Builder("reload").addAction(reload).build());
+            state.addTransition(new Transition.Builder("mark").addAction(mark).build());
+        }
+        return new Machine(states, on);
+    }
+}
@@ -0,0 +1,234 @@
+package com.krisjacyna.yasm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests moving instances to the new {@link Machine} when a
+ * {@link MachineEngine} is reloaded.
+ *
+ * @author Kris Jacyna
+ */
+public class ReloadTest {
+    
+    @Test
+    public void statesAreKeptByName() {
+        final MachineEngine engine = new MachineEngine(workflow());
+        final MachineInstance idle = engine.newInstance(null);
+        final MachineInstance running = engine.newInstance(null);
+        final MachineInstance paused = engine.newInstance(null);
+        engine.fire(running, "go");
+        engine.fire(paused, "go");
+        engine.fire(paused, "pause");
+        
+        // "aaa" sorts first and shifts every State and event ID, "paused" is renamed "suspended",
+        // "running" becomes composite and "pause" is renamed "suspend"
+        final Map<String, State> states = new HashMap<>();
+        final State aaa = state(states, "aaa", false);
+        final State idle2 = state(states, "idle", true);
+        final State running2 = state(states, "running", false);
+        final State warming = child(states, running2, "warming", true);
+        final State hot = child(states, running2, "hot", false);
+        final State suspended = state(states, "suspended", false);
+        idle2.addTransition(new Transition.Builder("aaa").setTarget(aaa).build());
+        idle2.addTransition(new Transition.Builder("go").setTarget(running2).build());
+        warming.addTransition(new Transition.Builder("go").setTarget(hot).build());
+        running2.addTransition(new Transition.Builder("suspend").setTarget(suspended).build());
+        engine.reload(new Machine(states, idle2));
+        
+        assertEquals(engine.getState(idle).getId(), "idle");
+        assertEquals(engine.getState(running).getId(), "warming");
+        assertEquals(engine.getState(paused).getId(), "idle");
+        
+        // event names are looked up on the new Machine
+        engine.fire(running, "go");
+        assertEquals(engine.getState(running).getId(), "hot");
+        engine.fire(running, "pause");
+        assertEquals(engine.getState(running).getId(), "hot");
+        engine.fire(running, "suspend");
+        assertEquals(engine.getState(running).getId(), "suspended");
+        engine.fire(idle, "go");
+        assertEquals(engine.getState(idle).getId(), "warming");
+    }
+    
+    @Test
+    public void deferredEventsFollowReload() {
+        // events "done", "old" and "ping" have IDs 0, 1 and 2
+        final Map<String, State> states = new HashMap<>();
+        final State busy = state(states, "busy", true);
+        final State ready = state(states, "ready", false);
+        busy.addDeferredEvent("old");
+        busy.addDeferredEvent("ping");
+        busy.addTransition(new Transition.Builder("done").setTarget(ready).build());
+        ready.addTransition(new Transition.Builder("old").setTarget(state(states, "old", false)).build());
+        ready.addTransition(new Transition.Builder("ping").setTarget(state(states, "pinged", false)).build());
+        final MachineEngine engine = new MachineEngine(new Machine(states, busy));
+        final MachineInstance instance = engine.newInstance(null);
+        engine.fire(instance, "old");
+        engine.fire(instance, "ping");
+        assertEquals(engine.getState(instance).getId(), "busy");
+        
+        // without "old", events "aaa", "done" and "ping" have IDs 0, 1 and 2, so the
+        // deferred ID of "old" would be "done" and the deferred ID of "ping" would be "ping"
+        final Map<String, State> reloaded = new HashMap<>();
+        final State busy2 = state(reloaded, "busy", true);
+        final State ready2 = state(reloaded, "ready", false);
+        busy2.addDeferredEvent("ping");
+        busy2.addTransition(new Transition.Builder("done").setTarget(ready2).build());
+        ready2.addTransition(new Transition.Builder("aaa").setTarget(state(reloaded, "wrong", false)).build());
+        ready2.addTransition(new Transition.Builder("done").setTarget(state(reloaded, "wrong2", false)).build());
+        ready2.addTransition(new Transition.Builder("ping").setTarget(state(reloaded, "pinged", false)).build());
+        engine.reload(new Machine(reloaded, busy2));
+        
+        engine.fire(instance, "done");
+        assertEquals(engine.getState(instance).getId(), "pinged");
+    }
+    
+    @Test
+    public void instanceMissingManyReloadsKeepsItsState() {
+        final MachineEngine engine = new MachineEngine(chain(false));
+        final MachineInstance idle = engine.newInstance(null);
+        final MachineInstance busy = engine.newInstance(null);
+        final MachineInstance removed = engine.newInstance(null);
+        engine.fire(idle, "next");
+        engine.fire(removed, "next");
+        engine.fire(removed, "next");
+        for (int i = 0; i < 1000; i++) {
+            // every other Machine has an extra State which shifts the State IDs
+            engine.reload(chain(i % 2 == 0));
+            engine.fire(busy, "next");
+            engine.fire(busy, "back");
+            if (i == 500) {
+                engine.reload(chain(false, "s2"));
+            }
+        }
+        assertEquals(engine.getState(idle).getId(), "s1");
+        assertEquals(engine.getState(busy).getId(), "s0");
+        assertEquals(engine.getState(removed).getId(), "s0");
+    }
+    
+    @Test
+    public void instancesInSameVersionShareTheirMove() {
+        final MachineEngine engine = new MachineEngine(chain(false));
+        final MachineInstance[] instances = new MachineInstance[100];
+        for (int i = 0; i < instances.length; i++) {
+            instances[i] = engine.newInstance(null);
+            for (int n = 0; n < i % 3; n++) {
+                engine.fire(instances[i], "next");
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            engine.reload(chain(i % 2 == 0));
+        }
+        for (int i = 0; i < instances.length; i++) {
+            assertEquals(engine.getState(instances[i]).getId(), "s" + i % 3);
+        }
+    }
+    
+    @Test
+    public void oldMachinesAreCollected() throws InterruptedException {
+        final MachineEngine engine = new MachineEngine(chain(false));
+        final WeakReference<Machine> first = new WeakReference<>(engine.getMachine());
+        final MachineInstance instance = engine.newInstance(null);
+        for (int i = 0; i < 100; i++) {
+            engine.reload(chain(i % 2 == 0));
+        }
+        engine.fire(instance, "next");
+        for (int i = 0; i < 50 && first.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(first.get());
+        assertEquals(engine.getState(instance).getId(), "s1");
+    }
+    
+    @Test
+    public void storedInstancesFollowReload() {
+        final MachineEngine engine = new MachineEngine(chain(false));
+        final OffHeapInstanceStore store = new OffHeapInstanceStore(64, 0);
+        final OffHeapInstanceStore.Cursor cursor = store.newCursor();
+        for (long id = 0; id < 30; id++) {
+            engine.newInstance(store, id);
+            for (int n = 0; n < id % 3; n++) {
+                engine.fire(cursor, id, engine.getMachine().getEventId("next"));
+            }
+        }
+        engine.reload(chain(true));
+        // some instances move to the new version before the next reload and some are removed
+        for (long id = 0; id < 10; id++) {
+            assertEquals(engine.getState(store, id).getId(), "s" + id % 3);
+        }
+        for (long id = 20; id < 30; id++) {
+            store.remove(id);
+        }
+        engine.reload(chain(false, "s2"));
+        for (long id = 30; id < 40; id++) {
+            engine.newInstance(store, id);
+        }
+        for (int i = 0; i < 10; i++) {
+            engine.reload(chain(i % 2 == 0, "s2"));
+        }
+        
+        for (long id = 0; id < 20; id++) {
+            assertEquals(engine.getState(store, id).getId(), id % 3 == 1 ? "s1" : "s0");
+        }
+        for (long id = 30; id < 40; id++) {
+            assertEquals(engine.getState(store, id).getId(), "s0");
+        }
+        engine.fire(cursor, 1, engine.getMachine().getEventId("back"));
+        assertEquals(engine.getState(store, 1).getId(), "s0");
+    }
+    
+    // idle -go-> running -pause-> paused
+    private static Machine workflow() {
+        final Map<String, State> states = new HashMap<>();
+        final State idle = state(states, "idle", true);
+        final State running = state(states, "running", false);
+        final State paused = state(states, "paused", false);
+        idle.addTransition(new Transition.Builder("go").setTarget(running).build());
+        running.addTransition(new Transition.Builder("pause").setTarget(paused).build());
+        return new Machine(states, idle);
+    }
+    
+    // s0 -next-> s1 -next-> s2 and back, with an extra first State if shifted, without any removed States
+    private static Machine chain(final boolean shifted, final String... removed) {
+        final Map<String, State> states = new HashMap<>();
+        if (shifted) {
+            state(states, "a", false);
+        }
+        State previous = null;
+        for (int i = 0; i < 3; i++) {
+            final String id = "s" + i;
+            if (Arrays.asList(removed).contains(id)) {
+                continue;
+            }
+            final State state = state(states, id, i == 0);
+            if (previous != null) {
+                previous.addTransition(new Transition.Builder("next").setTarget(state).build());
+                state.addTransition(new Transition.Builder("back").setTarget(previous).build());
+            }
+            previous = state;
+        }
+        return new Machine(states, states.get("s0"));
+    }
+    
+    private static State state(final Map<String, State> states, final String id, final boolean isInitial) {
+        final State state = new State(id, isInitial, false);
+        states.put(id, state);
+        return state;
+    }
+    
+    private static State child(final Map<String, State> states, final State parent, final String id,
+            final boolean isInitial) {
+        final State state = state(states, id, isInitial);
+        parent.addChild(state);
+        return state;
+    }
+}
@@ -0,0 +1,154 @@
+package com.krisjacyna.yasm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests rebuilding instances from event logs with a {@link ReplayEngine}.
+ *
+ * @author Kris Jacyna
+ */
+public class ReplayEngineTest {
+    
+    @Test
+    public void linesAreReplayedInOrderPerInstance() {
+        final ReplayEngine.Result result = new ReplayEngine(new MachineEngine(busy())).replay(lines(
+                "# a comment",
+                "1 ping",
+                "",
+                "2 done",
+                "1 tick",
+                "2 ping",
+                "3 unknown",
+                "1  done"), ReplayEngine.Format.LINES);
+        
+        assertEquals(result.getState(1).getId(), "pinged");
+        assertEquals(result.getState(2).getId(), "pinged");
+        assertNull(result.getState(3));
+        assertEquals(result.getInstanceCount(), 2);
+        assertEquals(result.getEventCount(), 5);
+        assertEquals(result.getUnknownEventCount(), 1);
+    }
+    
+    @Test
+    public void binaryIsReplayedLikeLines() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            record(out, 1, "ping");
+            record(out, 2, "done");
+            record(out, 1, "tick");
+            record(out, 2, "ping");
+            record(out, 3, "unknown");
+            record(out, 1, "done");
+        }
+        final ReplayEngine.Result result = new ReplayEngine(new MachineEngine(busy()))
+                .replay(new ByteArrayInputStream(bytes.toByteArray()), ReplayEngine.Format.BINARY);
+        
+        assertEquals(result.getState(1).getId(), "pinged");
+        assertEquals(result.getState(2).getId(), "pinged");
+        assertEquals(result.getInstanceCount(), 2);
+        assertEquals(result.getEventCount(), 5);
+        assertEquals(result.getUnknownEventCount(), 1);
+    }
+    
+    @Test
+    public void instancesCarryOverChunkBoundary() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (int i = 0; i < ReplayEngine.CHUNK_SIZE - 2; i++) {
+                record(out, 1 + i % 2, "tick");
+            }
+            // deferred in the last event of the first chunk and released in the second
+            record(out, 0, "done");
+            record(out, 1, "ping");
+            record(out, 1, "done");
+            record(out, 0, "ping");
+        }
+        final ReplayEngine.Result result = new ReplayEngine(new MachineEngine(busy()))
+                .replay(new ByteArrayInputStream(bytes.toByteArray()), ReplayEngine.Format.BINARY);
+        
+        assertEquals(result.getState(0).getId(), "pinged");
+        assertEquals(result.getState(1).getId(), "pinged");
+        assertEquals(result.getState(2).getId(), "busy");
+        assertEquals(result.getInstanceCount(), 3);
+        assertEquals(result.getEventCount(), ReplayEngine.CHUNK_SIZE + 2);
+    }
+    
+    @Test
+    public void timersOfRebuiltInstancesAreResumed() {
+        final long origin = System.nanoTime();
+        final TimingWheel wheel = new TimingWheel(1, TimeUnit.SECONDS, origin);
+        final Map<String, State> states = new HashMap<>();
+        final State idle = state(states, "idle", true);
+        final State waiting = state(states, "waiting", false);
+        idle.addTransition(new Transition.Builder("go").setTarget(waiting).build());
+        waiting.addTransition(Transition.Builder.after(30_000).setTarget(state(states, "timeout", false)).build());
+        final MachineEngine engine = new MachineEngine(new Machine(states, idle), wheel);
+        final ReplayEngine.Result result = new ReplayEngine(engine).replay(lines("1 go", "2 go", "3 go"),
+                ReplayEngine.Format.LINES);
+        assertEquals(wheel.size(), 0);
+        
+        result.resumeTimers();
+        assertEquals(wheel.size(), 3);
+        wheel.advanceTo(origin + TimeUnit.SECONDS.toNanos(30));
+        for (long id = 1; id <= 3; id++) {
+            assertEquals(result.getState(id).getId(), "timeout");
+        }
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "Line 2 .*")
+    public void lineWithoutEventFails() {
+        new ReplayEngine(new MachineEngine(busy())).replay(lines("1 ping", "2"), ReplayEngine.Format.LINES);
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void truncatedBinaryFails() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            record(out, 1, "ping");
+            out.writeLong(2);
+        }
+        new ReplayEngine(new MachineEngine(busy()))
+                .replay(new ByteArrayInputStream(bytes.toByteArray()), ReplayEngine.Format.BINARY);
+    }
+    
+    // busy defers ping, which is handled once done moves it to ready, and ignores tick
+    private static Machine busy() {
+        final Map<String, State> states = new HashMap<>();
+        final State busy = state(states, "busy", true);
+        final State ready = state(states, "ready", false);
+        busy.addDeferredEvent("ping");
+        busy.addTransition(new Transition.Builder("tick").build());
+        busy.addTransition(new Transition.Builder("done").setTarget(ready).build());
+        ready.addTransition(new Transition.Builder("ping").setTarget(state(states, "pinged", false)).build());
+        return new Machine(states, busy);
+    }
+    
+    private static ByteArrayInputStream lines(final String... lines) {
+        return new ByteArrayInputStream(String.join("\n", Arrays.asList(lines)).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static void record(final DataOutputStream out, final long instanceId, final String event)
+            throws IOException {
+        out.writeLong(instanceId);
+        out.writeUTF(event);
+    }
+    
+    private static State state(final Map<String, State> states, final String id, final boolean isInitial) {
+        final State state = new State(id, isInitial, false);
+        states.put(id, state);
+        return state;
+    }
+}
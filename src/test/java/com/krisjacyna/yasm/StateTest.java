@@ -0,0 +1,42 @@
+package com.krisjacyna.yasm;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests building {@link State}s.
+ *
+ * @author Kris Jacyna
+ */
+public class StateTest {
+    
+    private static final Action NOTHING = context -> { };
+    
+    @Test
+    public void addedActionsAreReturnedInOrder() {
+        final Action other = context -> { };
+        final State state = new State("a", true, false);
+        state.addEntryAction(NOTHING);
+        state.addEntryAction(other);
+        state.addExitAction(other);
+        
+        assertEquals(state.getEntryActions(), Arrays.asList(NOTHING, other));
+        assertEquals(state.getExitActions(), Arrays.asList(other));
+    }
+    
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void entryActionsCannotBeModified() {
+        new State("a", true, false).getEntryActions().add(NOTHING);
+    }
+    
+    // a compiled State is frozen, which adding through the List would get around
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void exitActionsOfCompiledStateCannotBeModified() {
+        final State state = new State("a", true, false);
+        state.compile();
+        state.getExitActions().add(NOTHING);
+    }
+}
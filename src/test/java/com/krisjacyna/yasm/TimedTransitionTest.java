@@ -0,0 +1,177 @@
+package com.krisjacyna.yasm;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests timed {@link Transition}s driven by a {@link TimingWheel} with one
+ * second ticks, advanced by hand from the time it was created.
+ *
+ * @author Kris Jacyna
+ */
+public class TimedTransitionTest {
+    
+    private long origin;
+    
+    private TimingWheel wheel;
+    
+    @BeforeMethod
+    public void createWheel() {
+        this.origin = System.nanoTime();
+        this.wheel = new TimingWheel(1, TimeUnit.SECONDS, this.origin);
+    }
+    
+    @Test
+    public void timedTransitionIsTakenAfterItsDelay() {
+        final Map<String, State> states = new HashMap<>();
+        final State idle = state(states, "idle", true);
+        final State timeout = state(states, "timeout", false);
+        idle.addTransition(Transition.Builder.after(30_000).setTarget(timeout).build());
+        final MachineEngine engine = new MachineEngine(new Machine(states, idle), this.wheel);
+        final MachineInstance instance = engine.newInstance(null);
+        engine.start(instance);
+        
+        advanceTo(29);
+        assertEquals(engine.getState(instance).getId(), "idle");
+        advanceTo(30);
+        assertEquals(engine.getState(instance).getId(), "timeout");
+        assertEquals(this.wheel.size(), 0);
+    }
+    
+    @Test
+    public void timerOfParentDoesNotTakeTransitionOfChild() {
+        final Map<String, State> states = new HashMap<>();
+        final State parent = state(states, "parent", true);
+        final State first = child(states, parent, "first", true);
+        final State second = child(states, parent, "second", false);
+        final State parentDone = state(states, "parentDone", false);
+        final State secondDone = state(states, "secondDone", false);
+        parent.addTransition(Transition.Builder.after(30_000).setTarget(parentDone).build());
+        first.addTransition(new Transition.Builder("next").setTarget(second).build());
+        second.addTransition(Transition.Builder.after(30_000).setTarget(secondDone).build());
+        final MachineEngine engine = new MachineEngine(new Machine(states, parent), this.wheel);
+        final MachineInstance instance = engine.newInstance(null);
+        engine.start(instance);
+        
+        advanceTo(25);
+        engine.fire(instance, "next");
+        assertEquals(engine.getState(instance).getId(), "second");
+        advanceTo(30);
+        assertEquals(engine.getState(instance).getId(), "parentDone");
+        // the timer of the child was cancelled when the parent was left
+        assertEquals(this.wheel.size(), 0);
+    }
+    
+    @Test
+    public void timerOfChildDoesNotTakeTransitionOfParent() {
+        final boolean[] open = new boolean[1];
+        final Map<String, State> states = new HashMap<>();
+        final State parent = state(states, "parent", true);
+        final State first = child(states, parent, "first", true);
+        final State second = child(states, parent, "second", false);
+        final State parentDone = state(states, "parentDone", false);
+        parent.addTransition(Transition.Builder.after(30_000).setTarget(parentDone)
+                .setCondition(context -> open[0]).build());
+        first.addTransition(new Transition.Builder("next").setTarget(second).build());
+        second.addTransition(Transition.Builder.after(30_000).setTarget(first)
+                .setCondition(context -> false).build());
+        final MachineEngine engine = new MachineEngine(new Machine(states, parent), this.wheel);
+        final MachineInstance instance = engine.newInstance(null);
+        engine.start(instance);
+        
+        advanceTo(5);
+        engine.fire(instance, "next");
+        // the parent's timeout is refused by its Condition
+        advanceTo(30);
+        assertEquals(engine.getState(instance).getId(), "second");
+        open[0] = true;
+        advanceTo(35);
+        assertEquals(engine.getState(instance).getId(), "second");
+        assertEquals(this.wheel.size(), 0);
+    }
+    
+    @Test
+    public void timerOnlyMovesItsOwnRegion() {
+        final Map<String, State> states = new HashMap<>();
+        final State waiting = state(states, "waiting", true);
+        final State expired = state(states, "expired", false);
+        waiting.addTransition(Transition.Builder.after(10_000).setTarget(expired).build());
+        final State idle = state(states, "idle", false);
+        final State busy = state(states, "busy", false);
+        final State stuck = state(states, "stuck", false);
+        idle.addTransition(new Transition.Builder("work").setTarget(busy).build());
+        busy.addTransition(Transition.Builder.after(10_000).setTarget(stuck).build());
+        final Machine machine = new Machine(states, Arrays.asList(
+                new Region("timer", waiting, Arrays.asList(waiting, expired)),
+                new Region("worker", idle, Arrays.asList(idle, busy, stuck))));
+        final MachineEngine engine = new MachineEngine(machine, this.wheel);
+        final MachineInstance instance = engine.newInstance(null);
+        engine.start(instance);
+        
+        advanceTo(5);
+        engine.fire(instance, "work");
+        advanceTo(10);
+        assertEquals(engine.getState(instance, 0).getId(), "expired");
+        assertEquals(engine.getState(instance, 1).getId(), "busy");
+        advanceTo(15);
+        assertEquals(engine.getState(instance, 1).getId(), "stuck");
+    }
+    
+    @Test
+    public void timerFollowsItsStateAcrossReload() {
+        final MachineEngine engine = new MachineEngine(nested(30_000), this.wheel);
+        final MachineInstance instance = engine.newInstance(null);
+        engine.start(instance);
+        
+        advanceTo(10);
+        engine.reload(nested(30_000));
+        advanceTo(30);
+        assertEquals(engine.getState(instance).getId(), "done");
+    }
+    
+    @Test
+    public void timerIsDroppedWhenReloadRemovesItsTransition() {
+        final MachineEngine engine = new MachineEngine(nested(30_000), this.wheel);
+        final MachineInstance instance = engine.newInstance(null);
+        engine.start(instance);
+        
+        advanceTo(10);
+        engine.reload(nested(60_000));
+        advanceTo(30);
+        assertEquals(engine.getState(instance).getId(), "inner");
+    }
+    
+    // a composite State with a timed Transition out of it
+    private static Machine nested(final long millis) {
+        final Map<String, State> states = new HashMap<>();
+        final State outer = state(states, "outer", true);
+        child(states, outer, "inner", true);
+        final State done = state(states, "done", false);
+        outer.addTransition(Transition.Builder.after(millis).setTarget(done).build());
+        return new Machine(states, outer);
+    }
+    
+    private void advanceTo(final long seconds) {
+        this.wheel.advanceTo(this.origin + TimeUnit.SECONDS.toNanos(seconds));
+    }
+    
+    private static State state(final Map<String, State> states, final String id, final boolean isInitial) {
+        final State state = new State(id, isInitial, false);
+        states.put(id, state);
+        return state;
+    }
+    
+    private static State child(final Map<String, State> states, final State parent, final String id,
+            final boolean isInitial) {
+        final State state = state(states, id, isInitial);
+        parent.addChild(state);
+        return state;
+    }
+}
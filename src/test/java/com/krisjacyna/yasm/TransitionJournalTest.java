@@ -0,0 +1,225 @@
+package com.krisjacyna.yasm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests appending to a {@link TransitionJournal} through a
+ * {@link MachineEngine} and reading it back.
+ *
+ * @author Kris Jacyna
+ */
+public class TransitionJournalTest {
+    
+    private Path path;
+    
+    @BeforeMethod
+    public void createFile() throws IOException {
+        this.path = Files.createTempFile("journal", ".log");
+        Files.delete(this.path);
+    }
+    
+    @AfterMethod
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(this.path);
+    }
+    
+    @Test
+    public void transitionsAreReadBackByName() {
+        final MachineEngine engine = new MachineEngine(toggle("on", "off"));
+        try (TransitionJournal journal = TransitionJournal.open(this.path, TransitionJournal.Durability.NONE)) {
+            engine.setJournal(journal);
+            final MachineInstance first = engine.newInstance(1, null);
+            final MachineInstance second = engine.newInstance(2, null);
+            engine.fire(first, "flip");
+            engine.fire(second, "flip");
+            engine.fire(first, "flip");
+            // an event without a Transition is not journalled
+            engine.fire(first, "unknown");
+            assertEquals(journal.getAppended(), 3);
+        }
+        
+        final List<String> records = readAll();
+        assertEquals(records, list("1 on->off flip", "2 on->off flip", "1 off->on flip"));
+    }
+    
+    @Test
+    public void reopeningTruncatesTornRecord() throws IOException {
+        final MachineEngine engine = new MachineEngine(toggle("on", "off"));
+        final MachineInstance instance = engine.newInstance(1, null);
+        try (TransitionJournal journal = TransitionJournal.open(this.path, TransitionJournal.Durability.NONE)) {
+            engine.setJournal(journal);
+            engine.fire(instance, "flip");
+            engine.fire(instance, "flip");
+        }
+        final long whole = Files.size(this.path);
+        // a crash part way through writing the third record
+        try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 2, 0, 0, 0, 0, 0, 0, 0, 1, 0 }));
+        }
+        assertEquals(readAll().size(), 2);
+        
+        try (TransitionJournal journal = TransitionJournal.open(this.path, TransitionJournal.Durability.NONE)) {
+            assertEquals(Files.size(this.path), whole);
+            engine.setJournal(journal);
+            engine.fire(instance, "flip");
+        }
+        
+        // the reopened journal appends its own table of names
+        assertEquals(readAll(), list("1 on->off flip", "1 off->on flip", "1 on->off flip"));
+    }
+    
+    @Test
+    public void namesFollowReload() {
+        final MachineEngine engine = new MachineEngine(toggle("on", "off"));
+        final MachineInstance instance = engine.newInstance(1, null);
+        try (TransitionJournal journal = TransitionJournal.open(this.path, TransitionJournal.Durability.NONE)) {
+            engine.setJournal(journal);
+            engine.fire(instance, "flip");
+            // a State sorting before the others shifts every State ID
+            final Map<String, State> states = new HashMap<>();
+            final State off = new State("off", false, false);
+            final State on = new State("on", true, false);
+            final State broken = new State("broken", false, false);
+            off.addTransition(new Transition.Builder("break").setTarget(broken).build());
+            on.addTransition(new Transition.Builder("flip").setTarget(off).build());
+            states.put("off", off);
+            states.put("on", on);
+            states.put("broken", broken);
+            engine.reload(new Machine(states, on));
+            engine.fire(instance, "break");
+        }
+        
+        assertEquals(readAll(), list("1 on->off flip", "1 off->broken break"));
+    }
+    
+    @Test
+    public void syncWaitsUntilForced() {
+        final MachineEngine engine = new MachineEngine(toggle("on", "off"));
+        final MachineInstance instance = engine.newInstance(1, null);
+        try (TransitionJournal journal = TransitionJournal.open(this.path, TransitionJournal.Durability.SYNC)) {
+            engine.setJournal(journal);
+            for (int i = 1; i <= 100; i++) {
+                engine.fire(instance, "flip");
+                assertEquals(journal.getForced(), i);
+            }
+        }
+        assertEquals(readAll().size(), 100);
+    }
+    
+    @Test
+    public void flushForcesWithoutSync() {
+        final MachineEngine engine = new MachineEngine(toggle("on", "off"));
+        final MachineInstance instance = engine.newInstance(1, null);
+        try (TransitionJournal journal = TransitionJournal.open(this.path, TransitionJournal.Durability.PERIODIC,
+                TransitionJournal.DEFAULT_BUFFER_SIZE, 1, TimeUnit.HOURS)) {
+            engine.setJournal(journal);
+            for (int i = 0; i < 10; i++) {
+                engine.fire(instance, "flip");
+            }
+            journal.flush();
+            assertEquals(journal.getForced(), 10);
+            assertEquals(journal.getWritten(), 10);
+        }
+    }
+    
+    @Test
+    public void concurrentMachinesKeepTheirNames() throws InterruptedException {
+        final int transitions = 20_000;
+        final Machine[] machines = { toggle("a0", "a1"), toggle("b0", "b1") };
+        // a buffer of two records, so appending waits for the writer
+        try (TransitionJournal journal = TransitionJournal.open(this.path, TransitionJournal.Durability.NONE,
+                58, 1, TimeUnit.SECONDS)) {
+            final Thread[] threads = new Thread[machines.length];
+            for (int t = 0; t < threads.length; t++) {
+                final MachineEngine engine = new MachineEngine(machines[t]);
+                engine.setJournal(journal);
+                final MachineInstance instance = engine.newInstance(t, null);
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < transitions; i++) {
+                        engine.fire(instance, "flip");
+                    }
+                });
+                threads[t].start();
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+        }
+        
+        int read = 0;
+        try (TransitionJournal.Reader reader = TransitionJournal.read(this.path)) {
+            while (reader.next()) {
+                final String prefix = reader.getInstanceId() == 0 ? "a" : "b";
+                assertTrue(reader.getFrom().startsWith(prefix), reader.getFrom());
+                assertTrue(reader.getTo().startsWith(prefix), reader.getTo());
+                read++;
+            }
+        }
+        assertEquals(read, machines.length * transitions);
+    }
+    
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void appendingAfterCloseFails() {
+        final MachineEngine engine = new MachineEngine(toggle("on", "off"));
+        final TransitionJournal journal = TransitionJournal.open(this.path, TransitionJournal.Durability.NONE);
+        engine.setJournal(journal);
+        journal.close();
+        engine.fire(engine.newInstance(1, null), "flip");
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void openingAnotherFileFails() throws IOException {
+        Files.write(this.path, "not a journal".getBytes("UTF-8"));
+        TransitionJournal.open(this.path, TransitionJournal.Durability.NONE).close();
+    }
+    
+    private List<String> readAll() {
+        final List<String> records = new ArrayList<>();
+        try (TransitionJournal.Reader reader = TransitionJournal.read(this.path)) {
+            while (reader.next()) {
+                records.add(reader.getInstanceId() + " " + reader.getFrom() + "->" + reader.getTo() + " "
+                        + reader.getEvent());
+            }
+            assertFalse(reader.next());
+        }
+        return records;
+    }
+    
+    private static List<String> list(final String... records) {
+        final List<String> list = new ArrayList<>();
+        for (final String record : records) {
+            list.add(record);
+        }
+        return list;
+    }
+    
+    // two States toggled by one event, the first initial
+    private static Machine toggle(final String first, final String second) {
+        final Map<String, State> states = new HashMap<>();
+        final State a = new State(first, true, false);
+        final State b = new State(second, false, false);
+        a.addTransition(new Transition.Builder("flip").setTarget(b).build());
+        b.addTransition(new Transition.Builder("flip").setTarget(a).build());
+        states.put(first, a);
+        states.put(second, b);
+        return new Machine(states, a);
+    }
+}
@@ -0,0 +1,122 @@
+package com.krisjacyna.yasm.parse;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.krisjacyna.yasm.Action;
+import com.krisjacyna.yasm.Context;
+import com.krisjacyna.yasm.Machine;
+
+/**
+ * Tests sharing parsed {@link Machine}s through a {@link MachineCache}.
+ *
+ * @author Kris Jacyna
+ */
+public class MachineCacheTest {
+    
+    private static final String DEFINITION = "<machine>"
+            + "<state id='idle' initial='true'><entry><action exec='Log'/></entry></state>"
+            + "</machine>";
+    
+    private final List<Path> files = new ArrayList<>();
+    
+    private final Log log = new Log();
+    
+    @BeforeMethod
+    public void clear() {
+        this.files.clear();
+    }
+    
+    @AfterMethod
+    public void deleteFiles() throws IOException {
+        for (final Path file : this.files) {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    @Test
+    public void sameContentInAnotherFileIsShared() throws IOException {
+        final MachineCache cache = new MachineCache(4);
+        final Machine first = parse(cache, file(DEFINITION), this.log);
+        final Machine second = parse(cache, file(DEFINITION), this.log);
+        
+        assertSame(second, first);
+        assertEquals(cache.getMisses(), 1);
+        assertEquals(cache.getHits(), 1);
+        assertEquals(cache.size(), 1);
+    }
+    
+    @Test
+    public void anotherActionWithTheSameIdIsNotShared() throws IOException {
+        final MachineCache cache = new MachineCache(4);
+        final String file = file(DEFINITION);
+        final Machine first = parse(cache, file, this.log);
+        final Log other = new Log();
+        final Machine second = parse(cache, file, other);
+        
+        assertNotSame(second, first);
+        assertSame(second.getInitialState().getEntryActions().get(0), other);
+        assertEquals(cache.getMisses(), 2);
+        assertEquals(cache.getHits(), 0);
+    }
+    
+    @Test
+    public void changedContentIsNotShared() throws IOException {
+        final MachineCache cache = new MachineCache(4);
+        final String file = file(DEFINITION);
+        final Machine first = parse(cache, file, this.log);
+        Files.write(this.files.get(0), DEFINITION.replace("idle", "ready").getBytes(StandardCharsets.UTF_8));
+        final Machine second = parse(cache, file, this.log);
+        
+        assertNotSame(second, first);
+        assertEquals(second.getInitialState().getId(), "ready");
+        assertEquals(cache.getMisses(), 2);
+    }
+    
+    @Test
+    public void leastRecentlyUsedMachineIsEvicted() throws IOException {
+        final MachineCache cache = new MachineCache(1);
+        final String idle = file(DEFINITION);
+        final String ready = file(DEFINITION.replace("idle", "ready"));
+        parse(cache, idle, this.log);
+        parse(cache, ready, this.log);
+        parse(cache, idle, this.log);
+        
+        assertEquals(cache.size(), 1);
+        assertEquals(cache.getMisses(), 3);
+        assertEquals(cache.getEvictions(), 2);
+        cache.clear();
+        assertEquals(cache.size(), 0);
+    }
+    
+    private String file(final String definition) throws IOException {
+        final Path file = Files.createTempFile("machine", ".xml");
+        this.files.add(file);
+        Files.write(file, definition.getBytes(StandardCharsets.UTF_8));
+        return file.toString();
+    }
+    
+    private static Machine parse(final MachineCache cache, final String url, final Action action) {
+        return Parser.newInstance(url).addAction(action).parse(cache);
+    }
+    
+    private static final class Log implements Action {
+        
+        @Override
+        public void execute(final Context context) {
+            // nothing to do
+        }
+    }
+}
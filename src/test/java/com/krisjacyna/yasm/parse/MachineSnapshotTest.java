@@ -0,0 +1,186 @@
+package com.krisjacyna.yasm.parse;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.krisjacyna.yasm.Action;
+import com.krisjacyna.yasm.Condition;
+import com.krisjacyna.yasm.Context;
+import com.krisjacyna.yasm.Machine;
+import com.krisjacyna.yasm.MachineEngine;
+import com.krisjacyna.yasm.MachineInstance;
+import com.krisjacyna.yasm.State;
+import com.krisjacyna.yasm.Transition;
+
+/**
+ * Tests saving {@link Machine}s with a {@link MachineSnapshot} and loading
+ * them back.
+ *
+ * @author Kris Jacyna
+ */
+public class MachineSnapshotTest {
+    
+    private static final String DEFINITION = "<machine>"
+            + "<region id='work'>"
+            + "<state id='idle' initial='true'>"
+            + "<entry><action exec='Count'/></entry>"
+            + "<defer event='stop'/>"
+            + "<transition event='go' target='running' condition='Open'><action exec='Count'/></transition>"
+            + "</state>"
+            + "<state id='running'>"
+            + "<exit><action exec='Count'/></exit>"
+            + "<transition event='stop' target='done'/>"
+            + "<state id='warming' initial='true'><transition after='30s' target='hot'/></state>"
+            + "<state id='hot'/>"
+            + "</state>"
+            + "<state id='done' final='true'/>"
+            + "</region>"
+            + "<region id='health'>"
+            + "<state id='up' initial='true'><transition event='fail' target='down'/></state>"
+            + "<state id='down'/>"
+            + "</region>"
+            + "</machine>";
+    
+    private final Count count = new Count();
+    
+    private final Open open = new Open();
+    
+    private Path source;
+    
+    private Path snapshot;
+    
+    @BeforeMethod
+    public void createFiles() throws IOException {
+        this.source = Files.createTempFile("machine", ".xml");
+        this.snapshot = Files.createTempFile("machine", ".snapshot");
+        Files.write(this.source, DEFINITION.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    @AfterMethod
+    public void deleteFiles() throws IOException {
+        Files.deleteIfExists(this.source);
+        Files.deleteIfExists(this.snapshot);
+    }
+    
+    @Test
+    public void loadedMachineMatchesParsedMachine() {
+        final Machine parsed = parse();
+        MachineSnapshot.write(parsed, this.snapshot.toString(), this.source.toString());
+        final Machine loaded = load();
+        
+        assertEquals(loaded.getStates().keySet(), parsed.getStates().keySet());
+        assertEquals(loaded.getRegionCount(), 2);
+        assertEquals(loaded.getStartState().getId(), "idle");
+        assertEquals(loaded.getStartState(1).getId(), "up");
+        for (final State expected : parsed.getStates().values()) {
+            final State actual = loaded.getStates().get(expected.getId());
+            assertEquals(actual.getIndex(), expected.getIndex());
+            assertEquals(actual.isInitial(), expected.isInitial());
+            assertEquals(actual.isFinal(), expected.isFinal());
+            assertEquals(id(actual.getParent()), id(expected.getParent()));
+            assertEquals(actual.getDeferredEvents(), expected.getDeferredEvents());
+            assertEquals(actual.getEntryActions(), expected.getEntryActions());
+            assertEquals(actual.getExitActions(), expected.getExitActions());
+            final List<Transition> transitions = actual.getTransitions();
+            assertEquals(transitions.size(), expected.getTransitions().size());
+            for (int i = 0; i < transitions.size(); i++) {
+                final Transition transition = transitions.get(i);
+                final Transition other = expected.getTransitions().get(i);
+                assertEquals(transition.getEvent(), other.getEvent());
+                assertEquals(transition.getAfter(), other.getAfter());
+                assertEquals(transition.getTarget().map(State::getId), other.getTarget().map(State::getId));
+                assertEquals(transition.getCondition(), other.getCondition());
+                assertEquals(transition.getActions(), other.getActions());
+            }
+        }
+    }
+    
+    @Test
+    public void loadedMachineRunsWithRegisteredElements() {
+        MachineSnapshot.write(parse(), this.snapshot.toString(), null);
+        final Machine machine = load();
+        assertSame(machine.getStates().get("idle").getEntryActions().get(0), this.count);
+        
+        final MachineEngine engine = new MachineEngine(machine);
+        final MachineInstance instance = engine.newInstance(new Context());
+        engine.start(instance);
+        engine.fire(instance, "stop");
+        engine.fire(instance, "go");
+        engine.fire(instance, "fail");
+        // entering idle, the Transition and leaving running, which releases the deferred stop
+        assertEquals(engine.getState(instance, 0).getId(), "done");
+        assertEquals(engine.getState(instance, 1).getId(), "down");
+        assertEquals(this.count.executed, 3);
+    }
+    
+    @Test
+    public void snapshotIsStaleOnceTheDefinitionChanges() throws IOException {
+        MachineSnapshot.write(parse(), this.snapshot.toString(), this.source.toString());
+        assertTrue(MachineSnapshot.isCurrent(this.snapshot.toString(), this.source.toString()));
+        
+        Files.write(this.source, " ".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertFalse(MachineSnapshot.isCurrent(this.snapshot.toString(), this.source.toString()));
+    }
+    
+    @Test(expectedExceptions = MachineParseException.class)
+    public void corruptSnapshotFails() throws IOException {
+        MachineSnapshot.write(parse(), this.snapshot.toString(), null);
+        final byte[] bytes = Files.readAllBytes(this.snapshot);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(this.snapshot, bytes);
+        load();
+    }
+    
+    @Test(expectedExceptions = UndefinedElementException.class)
+    public void unregisteredActionFails() {
+        MachineSnapshot.write(parse(), this.snapshot.toString(), null);
+        MachineSnapshot.newInstance(this.snapshot.toString()).addCondition(this.open).load();
+    }
+    
+    private Machine parse() {
+        return Parser.newInstance(this.source.toString()).addAction(this.count).addCondition(this.open).parse();
+    }
+    
+    private Machine load() {
+        return MachineSnapshot.newInstance(this.snapshot.toString())
+                .addActions(Collections.singleton(this.count))
+                .addConditions(Collections.singleton(this.open))
+                .load();
+    }
+    
+    private static String id(final State state) {
+        return state != null ? state.getId() : null;
+    }
+    
+    private static final class Count implements Action {
+        
+        int executed;
+        
+        @Override
+        public void execute(final Context context) {
+            this.executed++;
+        }
+    }
+    
+    private static final class Open implements Condition {
+        
+        @Override
+        public boolean evaluate(final Context context) {
+            return true;
+        }
+    }
+}
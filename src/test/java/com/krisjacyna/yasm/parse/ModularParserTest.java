@@ -0,0 +1,120 @@
+package com.krisjacyna.yasm.parse;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.krisjacyna.yasm.Machine;
+import com.krisjacyna.yasm.MachineEngine;
+import com.krisjacyna.yasm.MachineInstance;
+
+/**
+ * Tests merging {@link Machine}s from several fragments with a
+ * {@link ModularParser}.
+ *
+ * @author Kris Jacyna
+ */
+public class ModularParserTest {
+    
+    private final List<Path> fragments = new ArrayList<>();
+    
+    @BeforeMethod
+    public void clear() {
+        this.fragments.clear();
+    }
+    
+    @AfterMethod
+    public void deleteFragments() throws IOException {
+        for (final Path fragment : this.fragments) {
+            Files.deleteIfExists(fragment);
+        }
+    }
+    
+    @Test
+    public void targetsResolveAcrossFragments() throws IOException {
+        final Machine machine = parse(
+                "<machine>"
+                        + "<state id='idle' initial='true'><transition event='go' target='running'/></state>"
+                        + "</machine>",
+                "<machine>"
+                        + "<state id='running'><transition event='stop' target='idle'/></state>"
+                        + "</machine>");
+        assertEquals(machine.getStates().size(), 2);
+        assertEquals(machine.getInitialState().getId(), "idle");
+        
+        final MachineEngine engine = new MachineEngine(machine);
+        final MachineInstance instance = engine.newInstance(null);
+        engine.fire(instance, "go");
+        assertEquals(engine.getState(instance).getId(), "running");
+        engine.fire(instance, "stop");
+        assertEquals(engine.getState(instance).getId(), "idle");
+    }
+    
+    @Test
+    public void duplicateStateFails() throws IOException {
+        assertFails(MachineValidationException.class,
+                "<machine><state id='idle' initial='true'/></machine>",
+                "<machine><state id='idle'/></machine>");
+    }
+    
+    @Test
+    public void initialStateInTwoFragmentsFails() throws IOException {
+        assertFails(MachineValidationException.class,
+                "<machine><state id='a' initial='true'/></machine>",
+                "<machine><state id='b' initial='true'/></machine>");
+    }
+    
+    @Test
+    public void missingInitialStateFails() throws IOException {
+        assertFails(MachineValidationException.class,
+                "<machine><state id='a'/></machine>",
+                "<machine><state id='b'/></machine>");
+    }
+    
+    @Test
+    public void targetMissingFromEveryFragmentFails() throws IOException {
+        assertFails(UndefinedElementException.class,
+                "<machine><state id='a' initial='true'><transition event='go' target='c'/></state></machine>",
+                "<machine><state id='b'/></machine>");
+    }
+    
+    @Test
+    public void regionFails() throws IOException {
+        assertFails(MachineValidationException.class,
+                "<machine><region id='r'><state id='a' initial='true'/></region></machine>");
+    }
+    
+    private Machine parse(final String... definitions) throws IOException {
+        final String[] urls = new String[definitions.length];
+        for (int i = 0; i < definitions.length; i++) {
+            final Path fragment = Files.createTempFile("fragment", ".xml");
+            this.fragments.add(fragment);
+            Files.write(fragment, definitions[i].getBytes(StandardCharsets.UTF_8));
+            urls[i] = fragment.toString();
+        }
+        return ModularParser.newInstance(urls).parse();
+    }
+    
+    // the merge fails with a MachineParseException caused by the specified exception
+    private void assertFails(final Class<? extends Exception> cause, final String... definitions)
+            throws IOException {
+        try {
+            parse(definitions);
+            fail("Expected a MachineParseException");
+        }
+        catch (final MachineParseException e) {
+            assertTrue(cause.isInstance(e.getCause()), String.valueOf(e.getCause()));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.krisjacyna.yasm.parse;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.testng.annotations.Test;
+
+import com.krisjacyna.yasm.Machine;
+import com.krisjacyna.yasm.Transition;
+
+/**
+ * Tests building {@link Machine}s from XML with an {@link XmlHandler}.
+ *
+ * @author Kris Jacyna
+ */
+public class XmlHandlerTest {
+    
+    @Test(expectedExceptions = MachineValidationException.class,
+            expectedExceptionsMessageRegExp = "Transitions may only be declared within a state")
+    public void transitionOutsideStateFails() throws Exception {
+        parse("<machine>"
+                + "<state id='a' initial='true'/>"
+                + "<transition event='go' target='a'/>"
+                + "</machine>");
+    }
+    
+    @Test(expectedExceptions = MachineValidationException.class,
+            expectedExceptionsMessageRegExp = "Transitions may only be declared within a state")
+    public void transitionInRegionOutsideStateFails() throws Exception {
+        parse("<machine><region id='r'>"
+                + "<state id='a' initial='true'/>"
+                + "<transition event='go' target='a'/>"
+                + "</region></machine>");
+    }
+    
+    @Test
+    public void transitionWithinStateIsBuilt() throws Exception {
+        final Machine machine = parse("<machine>"
+                + "<state id='a' initial='true'><transition event='go' target='b'/></state>"
+                + "<state id='b'/>"
+                + "</machine>").newMachine();
+        assertEquals(machine.getStates().get("a").getTransitions("go").get(0).getTarget().get().getId(), "b");
+    }
+    
+    @Test(expectedExceptions = MachineValidationException.class,
+            expectedExceptionsMessageRegExp = "Deferred event in state 'a' has no event attribute")
+    public void deferWithoutEventFails() throws Exception {
+        parse("<machine><state id='a' initial='true'><defer/></state></machine>");
+    }
+    
+    @Test(expectedExceptions = MachineValidationException.class,
+            expectedExceptionsMessageRegExp = "Deferred events may only be declared within a state")
+    public void deferOutsideStateFails() throws Exception {
+        parse("<machine><state id='a' initial='true'/><defer event='go'/></machine>");
+    }
+    
+    @Test
+    public void deferredEventIsAdded() throws Exception {
+        final XmlHandler handler = parse("<machine>"
+                + "<state id='a' initial='true'><defer event='go'/></state>"
+                + "</machine>");
+        assertEquals(handler.getStates().get("a").getDeferredEvents(), Collections.singleton("go"));
+    }
+    
+    @Test
+    public void forwardTargetsAreResolvedInDeclarationOrder() throws Exception {
+        final Machine machine = parse("<machine>"
+                + "<state id='a' initial='true'>"
+                + "<transition event='go' target='b1'/>"
+                + "<transition event='stay' target='a'/>"
+                + "<transition event='later' target='c'/>"
+                + "</state>"
+                + "<state id='b'><state id='b1' initial='true'/></state>"
+                + "<state id='c'/>"
+                + "</machine>").newMachine();
+        final List<Transition> transitions = machine.getStates().get("a").getTransitions();
+        assertEquals(transitions.size(), 3);
+        assertEquals(transitions.get(0).getTarget().get().getId(), "b1");
+        assertEquals(transitions.get(1).getTarget().get().getId(), "a");
+        assertEquals(transitions.get(2).getTarget().get().getId(), "c");
+    }
+    
+    @Test(expectedExceptions = UndefinedElementException.class)
+    public void undefinedTargetFails() throws Exception {
+        parse("<machine>"
+                + "<state id='a' initial='true'><transition event='go' target='missing'/></state>"
+                + "</machine>");
+    }
+    
+    static XmlHandler parse(final String xml) throws Exception {
+        final XmlHandler handler = new XmlHandler(Collections.emptyMap(), Collections.emptyMap());
+        SAXParserFactory.newInstance().newSAXParser()
+                .parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), handler);
+        return handler;
+    }
+}
@@ -0,0 +1,57 @@
+package com.krisjacyna.yasm.benchmarks;
+
+import java.util.Collection;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs {@link FireBenchmark} with the JMH allocation profiler and fails if
+ * any configuration allocates on the steady-state dispatch path.
+ *
+ * @author Kris Jacyna
+ */
+public final class AllocationCheck {
+    
+    // allowance for profiler noise, in bytes per operation
+    private static final double THRESHOLD = 1.0;
+    
+    private AllocationCheck() {
+    }
+    
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(FireBenchmark.class.getSimpleName())
+                .mode(org.openjdk.jmh.annotations.Mode.Throughput)
+                .warmupIterations(3)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(3)
+                .measurementTime(TimeValue.seconds(1))
+                .addProfiler(GCProfiler.class)
+                .build();
+        final Collection<RunResult> results = new Runner(options).run();
+        
+        boolean failed = false;
+        for (final RunResult result : results) {
+            final Result<?> alloc = result.getSecondaryResults().get("gc.alloc.rate.norm");
+            if (alloc == null) {
+                throw new IllegalStateException("No allocation results for " + result.getParams().getBenchmark());
+            }
+            if (alloc.getScore() > THRESHOLD) {
+                System.err.printf("%s %s allocates %.2f bytes/op%n",
+                        result.getParams().getBenchmark(), result.getParams(), alloc.getScore());
+                failed = true;
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+        System.out.println("fire() does not allocate");
+    }
+}
@@ -0,0 +1,94 @@
+package com.krisjacyna.yasm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.krisjacyna.yasm.Context;
+import com.krisjacyna.yasm.MachineExecutor;
+
+/**
+ * Measures the throughput and latency of {@link MachineExecutor#fire(String)}
+ * and {@link MachineExecutor#fire(int)} on small, wide and deep machines,
+ * with and without guarded transitions. The batch benchmarks fire every
+ * event of the fixture per operation through
+ * {@link MachineExecutor#fireAll(int[])}.
+ *
+ * @author Kris Jacyna
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FireBenchmark {
+    
+    @Param({ "SMALL", "WIDE", "DEEP" })
+    private Shape shape;
+    
+    @Param({ "256" })
+    private int size;
+    
+    @Param({ "false", "true" })
+    private boolean guarded;
+    
+    private MachineExecutor executor;
+    
+    private String[] events;
+    
+    private int[] eventIds;
+    
+    private int next;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Machines.Fixture fixture = Machines.build(this.shape, this.size, this.guarded);
+        this.executor = new MachineExecutor(fixture.machine, new Context());
+        this.events = fixture.events;
+        this.eventIds = new int[this.events.length];
+        for (int i = 0; i < this.events.length; i++) {
+            this.eventIds[i] = fixture.machine.getEventId(this.events[i]);
+        }
+        this.executor.start();
+    }
+    
+    @Benchmark
+    public int fireString() {
+        this.executor.fire(this.events[nextIndex()]);
+        return this.executor.getCurrentStateId();
+    }
+    
+    @Benchmark
+    public int fireInt() {
+        this.executor.fire(this.eventIds[nextIndex()]);
+        return this.executor.getCurrentStateId();
+    }
+    
+    @Benchmark
+    public int fireAllString() {
+        return this.executor.fireAll(this.events).getTransitions();
+    }
+    
+    @Benchmark
+    public int fireAllInt() {
+        return this.executor.fireAll(this.eventIds).getTransitions();
+    }
+    
+    private int nextIndex() {
+        final int i = this.next;
+        this.next = i + 1 == this.events.length ? 0 : i + 1;
+        return i;
+    }
+}
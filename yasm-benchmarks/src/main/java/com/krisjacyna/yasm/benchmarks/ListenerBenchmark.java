@@ -0,0 +1,67 @@
+package com.krisjacyna.yasm.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.krisjacyna.yasm.Context;
+import com.krisjacyna.yasm.MachineExecutor;
+import com.krisjacyna.yasm.TransitionListener;
+
+/**
+ * Measures the cost of notifying 0, 1 and N {@link TransitionListener}s
+ * from {@link MachineExecutor#fire(int)}.
+ *
+ * @author Kris Jacyna
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerBenchmark {
+    
+    @Param({ "0", "1", "8" })
+    private int listeners;
+    
+    private MachineExecutor executor;
+    
+    private int eventId;
+    
+    @Setup(Level.Trial)
+    public void setUp(final Blackhole blackhole) {
+        final Machines.Fixture fixture = Machines.build(Shape.SMALL, 0, false);
+        this.executor = new MachineExecutor(fixture.machine, new Context());
+        for (int i = 0; i < this.listeners; i++) {
+            // distinct instances so that none are collapsed
+            this.executor.addListener(new TransitionListener() {
+                @Override
+                public void onTransition(final com.krisjacyna.yasm.State from,
+                        final com.krisjacyna.yasm.State to, final String event) {
+                    blackhole.consume(to);
+                }
+            });
+        }
+        this.eventId = fixture.machine.getEventId(fixture.events[0]);
+        this.executor.start();
+    }
+    
+    @Benchmark
+    public int fire() {
+        this.executor.fire(this.eventId);
+        return this.executor.getCurrentStateId();
+    }
+}
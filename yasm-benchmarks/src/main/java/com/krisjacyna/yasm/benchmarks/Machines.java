@@ -0,0 +1,180 @@
+package com.krisjacyna.yasm.benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.krisjacyna.yasm.Action;
+import com.krisjacyna.yasm.Condition;
+import com.krisjacyna.yasm.Context;
+import com.krisjacyna.yasm.Machine;
+import com.krisjacyna.yasm.State;
+import com.krisjacyna.yasm.Transition;
+
+/**
+ * Builds the {@link Machine}s and XML definitions used by the benchmarks.
+ *
+ * @author Kris Jacyna
+ */
+final class Machines {
+    
+    /** An {@link Action} which does nothing. */
+    static final Action NO_OP = new Action() {
+        @Override
+        public void execute(final Context context) {
+            // nothing
+        }
+        
+        @Override
+        public String getId() {
+            return "noOp";
+        }
+    };
+    
+    /** A {@link Condition} which always passes. */
+    static final Condition ALWAYS = new Condition() {
+        @Override
+        public boolean evaluate(final Context context) {
+            return true;
+        }
+        
+        @Override
+        public String getId() {
+            return "always";
+        }
+    };
+    
+    /** A {@link Condition} which never passes. */
+    static final Condition NEVER = new Condition() {
+        @Override
+        public boolean evaluate(final Context context) {
+            return false;
+        }
+        
+        @Override
+        public String getId() {
+            return "never";
+        }
+    };
+    
+    /**
+     * A {@link Machine} and a cyclic sequence of events which always
+     * trigger a {@link Transition} on it.
+     */
+    static final class Fixture {
+        
+        final Machine machine;
+        
+        final String[] events;
+        
+        Fixture(final Machine machine, final String[] events) {
+            this.machine = machine;
+            this.events = events;
+        }
+    }
+    
+    private Machines() {
+    }
+    
+    /**
+     * Builds a {@link Fixture} for a {@link Machine} of the given shape.
+     * 
+     * @param shape the shape of the machine
+     * @param size the number of transitions for wide and deep machines
+     * @param guarded whether each transition is preceded by a failing guarded transition
+     * @return the Fixture
+     */
+    static Fixture build(final Shape shape, final int size, final boolean guarded) {
+        final Map<String, State> states = new HashMap<>();
+        final String[] events;
+        switch (shape) {
+        case SMALL: {
+            final State on = state(states, "on", true);
+            final State off = state(states, "off", false);
+            link(on, off, "toggle", guarded);
+            link(off, on, "toggle", guarded);
+            events = new String[] { "toggle" };
+            break;
+        }
+        case WIDE: {
+            final State hub = state(states, "hub", true);
+            final String[] sequence = new String[size * 2];
+            for (int i = 0; i < size; i++) {
+                final State leaf = state(states, "leaf" + i, false);
+                link(hub, leaf, "go" + i, guarded);
+                link(leaf, hub, "back", guarded);
+                sequence[i * 2] = "go" + i;
+                sequence[i * 2 + 1] = "back";
+            }
+            events = sequence;
+            break;
+        }
+        case DEEP: {
+            final State first = state(states, "s0", true);
+            State previous = first;
+            for (int i = 1; i < size; i++) {
+                final State next = state(states, "s" + i, false);
+                link(previous, next, "next", guarded);
+                previous = next;
+            }
+            link(previous, first, "next", guarded);
+            events = new String[] { "next" };
+            break;
+        }
+        default:
+            throw new IllegalArgumentException(shape.name());
+        }
+        final State initial = states.values().stream().filter(State::isInitial).findFirst().get();
+        return new Fixture(new Machine(states, initial), events);
+    }
+    
+    /**
+     * Writes an XML definition of a cycle of states to the given file.
+     * Every state has an entry and exit action, a guarded transition
+     * and an unguarded transition.
+     * 
+     * @param file the file to write to
+     * @param stateCount the number of states
+     * @throws IOException if the file cannot be written
+     */
+    static void writeXml(final Path file, final int stateCount) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("<machine>\n");
+            for (int i = 0; i < stateCount; i++) {
+                final int next = (i + 1) % stateCount;
+                out.write("  <state id=\"s" + i + "\"" + (i == 0 ? " initial=\"true\"" : "") + ">\n");
+                out.write("    <entry><action exec=\"noOp\"/></entry>\n");
+                out.write("    <exit><action exec=\"noOp\"/></exit>\n");
+                out.write("    <transition event=\"skip\" target=\"s" + next + "\" condition=\"never\"/>\n");
+                out.write("    <transition event=\"next\" target=\"s" + next + "\">\n");
+                out.write("      <action exec=\"noOp\"/>\n");
+                out.write("    </transition>\n");
+                out.write("  </state>\n");
+            }
+            out.write("</machine>\n");
+        }
+    }
+    
+    private static State state(final Map<String, State> states, final String id, final boolean isInitial) {
+        final State state = new State(id, isInitial, false);
+        state.addEntryAction(NO_OP);
+        state.addExitAction(NO_OP);
+        states.put(id, state);
+        return state;
+    }
+    
+    private static void link(final State from, final State to, final String event, final boolean guarded) {
+        if (guarded) {
+            from.addTransition(new Transition.Builder(event).setTarget(to).setCondition(NEVER).build());
+        }
+        final Transition.Builder builder = new Transition.Builder(event).setTarget(to).addAction(NO_OP);
+        if (guarded) {
+            builder.setCondition(ALWAYS);
+        }
+        from.addTransition(builder.build());
+    }
+}
@@ -0,0 +1,62 @@
+package com.krisjacyna.yasm.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.krisjacyna.yasm.Machine;
+import com.krisjacyna.yasm.parse.Parser;
+
+/**
+ * Measures the time taken by {@link Parser#parse()} for XML definitions
+ * of 10 to 100,000 states.
+ *
+ * @author Kris Jacyna
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ParseBenchmark {
+    
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    private int states;
+    
+    private Path file;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.file = Files.createTempFile("yasm-parse-", ".xml");
+        Machines.writeXml(this.file, this.states);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(this.file);
+    }
+    
+    @Benchmark
+    public Machine parse() {
+        return Parser.newInstance(this.file.toString())
+                .addAction(Machines.NO_OP)
+                .addCondition(Machines.NEVER)
+                .parse();
+    }
+}
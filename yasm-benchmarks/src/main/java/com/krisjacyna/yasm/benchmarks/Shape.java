@@ -0,0 +1,15 @@
+package com.krisjacyna.yasm.benchmarks;
+
+/**
+ * The shapes of {@link com.krisjacyna.yasm.Machine} which are benchmarked.
+ *
+ * @author Kris Jacyna
+ */
+public enum Shape {
+    /** Two states toggled by one event. */
+    SMALL,
+    /** A hub state with many outgoing transitions, each returning to the hub. */
+    WIDE,
+    /** A long cycle of states, each moving to the next. */
+    DEEP
+}